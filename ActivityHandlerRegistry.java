@@ -0,0 +1,272 @@
+// Table-driven activity handler registry
+//
+// Replaces the string switches in CamundaEventSubscriber. Handlers are methods
+// annotated with @ActivityHandler (or registered programmatically) and are keyed by
+// (processDefinitionKey, activityId, eventName). For "take" events the activity id
+// is the sequence flow id.
+//
+// Only beans whose class is annotated with @ActivityHandlers are searched for handler
+// methods, so the scan resolves the type of those beans and no others. Handler
+// methods must not be private: they are called on the bean Spring hands out, which
+// may be a proxy (@Transactional, @Async, ...), through the method the proxy exposes.
+//
+// Registrations are collected once, from bean definitions, the first time the
+// registry is consulted - this may be while the engine parses deployments during
+// startup, before the handler beans themselves exist. The first event of a process
+// definition version builds a lookup table for exactly that definition id, so a
+// newly deployed BPMN version is picked up without restarting or rebuilding the
+// subscriber, and each later event is two hash lookups. Events without a handler
+// return immediately.
+//
+// A handler that reads or writes variables takes a VariableSnapshot as its second
+// parameter and lists the ones it reads in variables(); they are fetched in one batch,
+// without deserializing object values (see VariablePlan).
+//
+//   @Component
+//   @ActivityHandlers
+//   public class ApprovalHandlers {
+//
+//       @ActivityHandler(activity = "approvalTask", event = ExecutionListener.EVENTNAME_START)
+//       void handleApprovalTaskStart(DelegateExecution execution) { ... }
+//
+//       @ActivityHandler(process = "invoiceApproval", minVersion = 3,
+//                        activity = "reviewTask", event = ExecutionListener.EVENTNAME_END,
+//                        variables = {"reviewer", "reviewOutcome"})
+//       void handleReviewTaskEnd(DelegateExecution execution, VariableSnapshot variables) { ... }
+
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface ActivityHandler {
+    // Process definition key, "*" matches every process
+    String process() default ActivityHandlerRegistry.ANY_PROCESS;
+
+    // Activity id, or the sequence flow id for "take" events
+    String activity();
+
+    // ExecutionListener.EVENTNAME_START / EVENTNAME_END / EVENTNAME_TAKE
+    String event();
+
+    // Inclusive range of process definition versions the handler applies to
+    int minVersion() default 1;
+
+    int maxVersion() default Integer.MAX_VALUE;
+
+    // Variables prefetched into the VariableSnapshot parameter
+    String[] variables() default {};
+}
+
+// Marks a bean class that declares @ActivityHandler methods
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface ActivityHandlers {
+}
+
+@FunctionalInterface
+public interface ActivityEventHandler {
+    void handle(DelegateExecution execution);
+}
+
+@Data
+@AllArgsConstructor
+public class ActivityHandlerRegistration {
+    private String processDefinitionKey;
+    private String activityId;
+    private String eventName;
+    private int minVersion;
+    private int maxVersion;
+    private ActivityEventHandler handler;
+    private String source;
+
+    public boolean appliesTo(String key, int version) {
+        return (ActivityHandlerRegistry.ANY_PROCESS.equals(processDefinitionKey) || processDefinitionKey.equals(key))
+                && version >= minVersion && version <= maxVersion;
+    }
+}
+
+@Component
+@Slf4j
+public class ActivityHandlerRegistry {
+
+    public static final String ANY_PROCESS = "*";
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Autowired
+    private HandlerInstrumentation handlerInstrumentation;
+
+    @Autowired
+    private VariablePrefetcher variablePrefetcher;
+
+    private final List<ActivityHandlerRegistration> registrations = new CopyOnWriteArrayList<>();
+    private volatile boolean scanned;
+
+    // processDefinitionId -> eventName -> activityId -> handlers; replaced as a whole on register,
+    // so a table built from the registrations before it can only land in the discarded map
+    private volatile ConcurrentHashMap<String, Map<String, Map<String, ActivityEventHandler[]>>> tables =
+            new ConcurrentHashMap<>();
+
+    // Only looks at the types of @ActivityHandlers beans, handler beans are resolved on first invocation
+    private synchronized void scan() {
+        if (scanned) {
+            return;
+        }
+        for (String beanName : applicationContext.getBeanNamesForAnnotation(ActivityHandlers.class)) {
+            Class<?> beanType = applicationContext.getType(beanName, false);
+            if (beanType == null) {
+                continue;
+            }
+            Map<Method, ActivityHandler> annotated = MethodIntrospector.selectMethods(ClassUtils.getUserClass(beanType),
+                    (MethodIntrospector.MetadataLookup<ActivityHandler>) method ->
+                            AnnotatedElementUtils.findMergedAnnotation(method, ActivityHandler.class));
+            annotated.forEach((method, annotation) -> registerMethod(beanName, method, annotation));
+        }
+        scanned = true;
+        log.info("Activity handler registry initialized with {} handlers", registrations.size());
+    }
+
+    public void register(ActivityHandlerRegistration registration) {
+        ensureScanned();
+        registrations.add(registration);
+        // Tables are rebuilt lazily per process definition on the next event
+        tables = new ConcurrentHashMap<>();
+    }
+
+    public List<ActivityHandlerRegistration> getRegistrations() {
+        ensureScanned();
+        return Collections.unmodifiableList(registrations);
+    }
+
+    // Any version of the process definition has a handler for this element and event
+    public boolean hasHandlers(String processDefinitionKey, String activityId, String eventName) {
+        ensureScanned();
+        for (ActivityHandlerRegistration registration : registrations) {
+            if (registration.getActivityId().equals(activityId)
+                    && registration.getEventName().equals(eventName)
+                    && (ANY_PROCESS.equals(registration.getProcessDefinitionKey())
+                        || registration.getProcessDefinitionKey().equals(processDefinitionKey))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void dispatch(DelegateExecution execution, String eventName, String activityId) {
+        ConcurrentHashMap<String, Map<String, Map<String, ActivityEventHandler[]>>> current = tables;
+        Map<String, Map<String, ActivityEventHandler[]>> table = current.get(execution.getProcessDefinitionId());
+        if (table == null) {
+            ensureScanned();
+            table = current.computeIfAbsent(execution.getProcessDefinitionId(),
+                    id -> buildTable(execution.getProcessEngineServices().getRepositoryService(), id));
+        }
+        Map<String, ActivityEventHandler[]> byActivity = table.get(eventName);
+        if (byActivity == null) {
+            return;
+        }
+        ActivityEventHandler[] handlers = byActivity.get(activityId);
+        if (handlers == null) {
+            return;
+        }
+        for (ActivityEventHandler handler : handlers) {
+            handler.handle(execution);
+        }
+    }
+
+    private void ensureScanned() {
+        if (!scanned) {
+            scan();
+        }
+    }
+
+    private Map<String, Map<String, ActivityEventHandler[]>> buildTable(RepositoryService repositoryService,
+                                                                        String processDefinitionId) {
+        ProcessDefinition processDefinition = repositoryService.getProcessDefinition(processDefinitionId);
+        String key = processDefinition.getKey();
+        int version = processDefinition.getVersion();
+
+        Map<String, Map<String, List<ActivityEventHandler>>> collected = new HashMap<>();
+        for (ActivityHandlerRegistration registration : registrations) {
+            if (registration.appliesTo(key, version)) {
+                collected.computeIfAbsent(registration.getEventName(), e -> new HashMap<>())
+                        .computeIfAbsent(registration.getActivityId(), a -> new ArrayList<>())
+                        .add(handlerInstrumentation.wrap(registration.getSource(), registration.getHandler()));
+            }
+        }
+
+        Map<String, Map<String, ActivityEventHandler[]>> table = new HashMap<>();
+        collected.forEach((eventName, byActivity) -> {
+            Map<String, ActivityEventHandler[]> handlers = new HashMap<>();
+            byActivity.forEach((activityId, list) -> handlers.put(activityId, list.toArray(new ActivityEventHandler[0])));
+            table.put(eventName, handlers);
+        });
+        log.info("Built handler table for {} (version {}): {}", key, version, table.keySet());
+        return table;
+    }
+
+    private void registerMethod(String beanName, Method method, ActivityHandler annotation) {
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        boolean withSnapshot = parameterTypes.length == 2 && parameterTypes[1] == VariableSnapshot.class;
+        if ((parameterTypes.length != 1 && !withSnapshot)
+                || !parameterTypes[0].isAssignableFrom(DelegateExecution.class)) {
+            throw new IllegalStateException("@ActivityHandler method " + method
+                    + " must take a DelegateExecution and optionally a VariableSnapshot parameter");
+        }
+        if (!withSnapshot && annotation.variables().length > 0) {
+            throw new IllegalStateException("@ActivityHandler method " + method
+                    + " declares variables but takes no VariableSnapshot parameter");
+        }
+        if (Modifier.isPrivate(method.getModifiers())) {
+            throw new IllegalStateException("@ActivityHandler method " + method
+                    + " must not be private, a proxied bean could not run it");
+        }
+        VariablePlan plan = withSnapshot ? VariablePlan.of(annotation.variables()) : null;
+        ActivityEventHandler handler = new BeanMethodHandler(applicationContext, beanName, method, plan);
+        registrations.add(new ActivityHandlerRegistration(
+                annotation.process(),
+                annotation.activity(),
+                annotation.event(),
+                annotation.minVersion(),
+                annotation.maxVersion(),
+                handler,
+                beanName + "#" + method.getName()));
+        log.debug("Registered activity handler {}#{} for {}/{}/{}",
+                beanName, method.getName(), annotation.process(), annotation.activity(), annotation.event());
+    }
+
+    // Resolves the target bean on first use, the registry may be scanned before the bean exists
+    private class BeanMethodHandler implements ActivityEventHandler {
+        private final ApplicationContext applicationContext;
+        private final String beanName;
+        private final Method method;
+        private final VariablePlan plan;
+        // The method as the bean (or its proxy) exposes it, written before bean
+        private volatile Method invocable;
+        private volatile Object bean;
+
+        BeanMethodHandler(ApplicationContext applicationContext, String beanName, Method method, VariablePlan plan) {
+            this.applicationContext = applicationContext;
+            this.beanName = beanName;
+            this.method = method;
+            this.plan = plan;
+        }
+
+        @Override
+        public void handle(DelegateExecution execution) {
+            Object target = bean;
+            if (target == null) {
+                target = applicationContext.getBean(beanName);
+                Method selected = AopUtils.selectInvocableMethod(method, target.getClass());
+                ReflectionUtils.makeAccessible(selected);
+                invocable = selected;
+                bean = target;
+            }
+            if (plan == null) {
+                ReflectionUtils.invokeMethod(invocable, target, execution);
+            } else {
+                ReflectionUtils.invokeMethod(invocable, target, execution, variablePrefetcher.fetch(execution, plan));
+            }
+        }
+    }
+}
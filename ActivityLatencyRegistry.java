@@ -0,0 +1,282 @@
+// Per-activity latency histograms
+//
+// Durations reported by CamundaEventSubscriber (activity end, process end) are
+// recorded into one LatencyHistogram per (processDefinitionKey, activityId).
+// Histograms have a fixed bucket layout, so memory per histogram is constant and
+// recording is a lookup in two maps plus a few atomic increments.
+//
+// Exposed as Micrometer gauges (workflow.activity.latency) and via
+// GET /api/metrics/activities
+
+// Log-linear (HDR style) histogram over millisecond values.
+// Values below 128 get their own bucket, above that every power of two is split
+// into 64 sub-buckets, which keeps the relative error under 1.6%. Coarser histograms
+// (fewer sub-bucket bits) trade precision for memory, e.g. for the many short-lived
+// slices of ProcessKpiAggregator.
+public class LatencyHistogram {
+
+    public static final int DEFAULT_SUB_BUCKET_BITS = 6;
+    // ~ 35 years in ms, larger values are clamped
+    private static final int MAX_VALUE_BITS = 40;
+    private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+
+    private final int subBucketBits;
+    private final int subBucketCount;
+    private final int linearLimit;
+    private final int bucketCount;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalSum = new AtomicLong();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    public LatencyHistogram() {
+        this(DEFAULT_SUB_BUCKET_BITS);
+    }
+
+    public LatencyHistogram(int subBucketBits) {
+        if (subBucketBits < 1 || subBucketBits > 10) {
+            throw new IllegalArgumentException("subBucketBits must be between 1 and 10: " + subBucketBits);
+        }
+        this.subBucketBits = subBucketBits;
+        this.subBucketCount = 1 << subBucketBits;
+        this.linearLimit = subBucketCount * 2;
+        this.bucketCount = linearLimit + (MAX_VALUE_BITS - subBucketBits - 1) * subBucketCount;
+        this.counts = new AtomicLongArray(bucketCount);
+    }
+
+    public void record(long value) {
+        long clamped = value < 0 ? 0 : Math.min(value, MAX_VALUE);
+        counts.incrementAndGet(bucketIndex(clamped));
+        totalCount.incrementAndGet();
+        totalSum.addAndGet(clamped);
+        maxValue.accumulateAndGet(clamped, Math::max);
+    }
+
+    // Adds the counts of a histogram with the same layout, used to merge time slices
+    public void add(LatencyHistogram other) {
+        if (other.subBucketBits != subBucketBits) {
+            throw new IllegalArgumentException("Histogram layouts differ: " + other.subBucketBits + " / " + subBucketBits);
+        }
+        for (int i = 0; i < bucketCount; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        totalCount.addAndGet(other.totalCount.get());
+        totalSum.addAndGet(other.totalSum.get());
+        maxValue.accumulateAndGet(other.maxValue.get(), Math::max);
+    }
+
+    // Not atomic with respect to concurrent record() calls
+    public void reset() {
+        for (int i = 0; i < bucketCount; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        totalSum.set(0);
+        maxValue.set(0);
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    public double getMean() {
+        long count = totalCount.get();
+        return count == 0 ? 0 : (double) totalSum.get() / count;
+    }
+
+    // percentile in [0, 100], returns 0 for an empty histogram
+    public long getValueAtPercentile(double percentile) {
+        long count = totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long cumulative = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            cumulative += counts.get(i);
+            if (cumulative >= target) {
+                return Math.min(highestEquivalentValue(i), maxValue.get());
+            }
+        }
+        return maxValue.get();
+    }
+
+    int bucketIndex(long value) {
+        if (value < linearLimit) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits;
+        int subBucket = (int) (value >>> shift) - subBucketCount;
+        return linearLimit + (shift - 1) * subBucketCount + subBucket;
+    }
+
+    long highestEquivalentValue(int index) {
+        if (index < linearLimit) {
+            return index;
+        }
+        int offset = index - linearLimit;
+        int shift = offset / subBucketCount + 1;
+        long subBucket = offset % subBucketCount + subBucketCount;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class ActivityLatencySummary {
+    private String processDefinitionKey;
+    private String activityId;
+    private long count;
+    private double mean;
+    private long p50;
+    private long p95;
+    private long p99;
+    private long max;
+}
+
+// Process definition ids look like "key:version:id" - cached so the hot path does not split strings.
+// A key too long for that form gets a plain id; it is looked up in the deployment cache when
+// called inside a command, and the id itself stands in for the key otherwise.
+public final class ProcessDefinitionKeys {
+
+    private static final ConcurrentHashMap<String, String> KEYS = new ConcurrentHashMap<>();
+
+    private ProcessDefinitionKeys() {
+    }
+
+    public static String of(String processDefinitionId) {
+        if (processDefinitionId == null) {
+            return null;
+        }
+        String key = KEYS.get(processDefinitionId);
+        if (key != null) {
+            return key;
+        }
+        int separator = processDefinitionId.indexOf(':');
+        if (separator > 0) {
+            key = processDefinitionId.substring(0, separator);
+        } else if (Context.getProcessEngineConfiguration() != null) {
+            ProcessDefinitionEntity definition = Context.getProcessEngineConfiguration().getDeploymentCache()
+                    .findDeployedProcessDefinitionById(processDefinitionId);
+            key = definition != null ? definition.getKey() : null;
+        }
+        if (key == null) {
+            return processDefinitionId;
+        }
+        KEYS.putIfAbsent(processDefinitionId, key);
+        return key;
+    }
+}
+
+@Component
+@Slf4j
+public class ActivityLatencyRegistry {
+
+    // Pseudo activity id under which whole process instance durations are recorded
+    public static final String PROCESS_SCOPE = "_process";
+
+    private static final double[] PUBLISHED_PERCENTILES = {50, 95, 99};
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, LatencyHistogram>> histograms =
+            new ConcurrentHashMap<>();
+
+    public void record(String processDefinitionKey, String activityId, long durationMs) {
+        histogram(processDefinitionKey, activityId).record(durationMs);
+    }
+
+    public List<ActivityLatencySummary> getSummaries() {
+        List<ActivityLatencySummary> summaries = new ArrayList<>();
+        histograms.forEach((processDefinitionKey, byActivity) ->
+                byActivity.forEach((activityId, histogram) ->
+                        summaries.add(summarize(processDefinitionKey, activityId, histogram))));
+        return summaries;
+    }
+
+    public List<ActivityLatencySummary> getSummaries(String processDefinitionKey) {
+        List<ActivityLatencySummary> summaries = new ArrayList<>();
+        Map<String, LatencyHistogram> byActivity = histograms.get(processDefinitionKey);
+        if (byActivity != null) {
+            byActivity.forEach((activityId, histogram) ->
+                    summaries.add(summarize(processDefinitionKey, activityId, histogram)));
+        }
+        return summaries;
+    }
+
+    private LatencyHistogram histogram(String processDefinitionKey, String activityId) {
+        ConcurrentHashMap<String, LatencyHistogram> byActivity = histograms.get(processDefinitionKey);
+        if (byActivity == null) {
+            byActivity = histograms.computeIfAbsent(processDefinitionKey, key -> new ConcurrentHashMap<>());
+        }
+        LatencyHistogram histogram = byActivity.get(activityId);
+        if (histogram == null) {
+            histogram = byActivity.computeIfAbsent(activityId,
+                    id -> registerGauges(processDefinitionKey, id, new LatencyHistogram()));
+        }
+        return histogram;
+    }
+
+    private LatencyHistogram registerGauges(String processDefinitionKey, String activityId, LatencyHistogram histogram) {
+        for (double percentile : PUBLISHED_PERCENTILES) {
+            Gauge.builder("workflow.activity.latency", histogram, h -> h.getValueAtPercentile(percentile))
+                    .tag("process", processDefinitionKey)
+                    .tag("activity", activityId)
+                    .tag("quantile", String.valueOf(percentile / 100))
+                    .baseUnit("milliseconds")
+                    .register(meterRegistry);
+        }
+        Gauge.builder("workflow.activity.latency.max", histogram, LatencyHistogram::getMax)
+                .tag("process", processDefinitionKey)
+                .tag("activity", activityId)
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+        FunctionCounter.builder("workflow.activity.count", histogram, LatencyHistogram::getCount)
+                .tag("process", processDefinitionKey)
+                .tag("activity", activityId)
+                .register(meterRegistry);
+        log.debug("Registered latency histogram for {} / {}", processDefinitionKey, activityId);
+        return histogram;
+    }
+
+    private ActivityLatencySummary summarize(String processDefinitionKey, String activityId, LatencyHistogram histogram) {
+        return new ActivityLatencySummary(
+                processDefinitionKey,
+                activityId,
+                histogram.getCount(),
+                histogram.getMean(),
+                histogram.getValueAtPercentile(50),
+                histogram.getValueAtPercentile(95),
+                histogram.getValueAtPercentile(99),
+                histogram.getMax());
+    }
+}
+
+@RestController
+@RequestMapping("/api/metrics/activities")
+@Slf4j
+public class ActivityLatencyController {
+
+    @Autowired
+    private ActivityLatencyRegistry activityLatencyRegistry;
+
+    @GetMapping
+    public ResponseEntity<List<ActivityLatencySummary>> getAllActivityLatencies() {
+        return ResponseEntity.ok(activityLatencyRegistry.getSummaries());
+    }
+
+    @GetMapping("/{processDefinitionKey}")
+    public ResponseEntity<List<ActivityLatencySummary>> getActivityLatencies(@PathVariable String processDefinitionKey) {
+        return ResponseEntity.ok(activityLatencyRegistry.getSummaries(processDefinitionKey));
+    }
+}
@@ -0,0 +1,125 @@
+// In-memory activity timing
+//
+// Replaces the "<activityId>_startTime" / "<activityId>_duration" process variables.
+// Start timestamps are kept per (executionId, activityId) in a bounded concurrent
+// map; the end listener removes the entry and computes the duration without any
+// ACT_RU_VARIABLE access. If the entry is missing (node restarted, entry evicted,
+// cache full) the start time is read from ACT_HI_ACTINST instead. Both listeners run
+// inside the engine transaction; if it rolls back, the start entry is removed again
+// and an entry taken by the end listener is put back, so retried jobs and failed
+// commands leave nothing behind.
+//
+// application.yml:
+//
+// workflow:
+//   timing:
+//     max-entries: 100000
+//     max-age-hours: 168
+
+@Data
+public class ActivityTimingKey {
+    private final String executionId;
+    private final String activityId;
+}
+
+@Component
+@Slf4j
+public class ActivityTimingCache {
+
+    @Autowired
+    private HistoryService historyService;
+
+    @Value("${workflow.timing.max-entries:100000}")
+    private int maxEntries;
+
+    @Value("${workflow.timing.max-age-hours:168}")
+    private long maxAgeHours;
+
+    private final ConcurrentHashMap<ActivityTimingKey, Long> startTimes = new ConcurrentHashMap<>();
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder historyFallbacks = new LongAdder();
+
+    public void recordStart(DelegateExecution execution) {
+        if (startTimes.size() >= maxEntries) {
+            // Full - the end listener will fall back to the history tables
+            rejected.increment();
+            return;
+        }
+        ActivityTimingKey key = keyOf(execution);
+        Long startTime = System.currentTimeMillis();
+        Long previous = startTimes.put(key, startTime);
+        onRollback(() -> {
+            if (previous != null) {
+                startTimes.replace(key, startTime, previous);
+            } else {
+                startTimes.remove(key, startTime);
+            }
+        });
+    }
+
+    // Returns the activity duration in ms, or null if the start time is unknown
+    public Long recordEnd(DelegateExecution execution) {
+        long now = System.currentTimeMillis();
+        ActivityTimingKey key = keyOf(execution);
+        Long startTime = startTimes.remove(key);
+        if (startTime != null) {
+            Long removed = startTime;
+            onRollback(() -> startTimes.putIfAbsent(key, removed));
+        } else {
+            startTime = loadStartTimeFromHistory(execution);
+        }
+        return startTime != null ? now - startTime : null;
+    }
+
+    public int size() {
+        return startTimes.size();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getHistoryFallbackCount() {
+        return historyFallbacks.sum();
+    }
+
+    // Drops entries of executions that never reported an end (e.g. lost with a node)
+    @Scheduled(fixedDelay = 3600000)
+    public void evictExpired() {
+        long cutoff = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(maxAgeHours);
+        int before = startTimes.size();
+        startTimes.values().removeIf(startTime -> startTime < cutoff);
+        int evicted = before - startTimes.size();
+        if (evicted > 0) {
+            log.info("Evicted {} expired activity timing entries", evicted);
+        }
+    }
+
+    private void onRollback(Runnable undo) {
+        CommandContext commandContext = Context.getCommandContext();
+        if (commandContext != null) {
+            commandContext.getTransactionContext().addTransactionListener(TransactionState.ROLLED_BACK, ctx -> undo.run());
+        }
+    }
+
+    private ActivityTimingKey keyOf(DelegateExecution execution) {
+        return new ActivityTimingKey(execution.getId(), execution.getCurrentActivityId());
+    }
+
+    private Long loadStartTimeFromHistory(DelegateExecution execution) {
+        String activityInstanceId = execution.getActivityInstanceId();
+        if (activityInstanceId == null) {
+            return null;
+        }
+        historyFallbacks.increment();
+        HistoricActivityInstance activityInstance = historyService.createHistoricActivityInstanceQuery()
+                .activityInstanceId(activityInstanceId)
+                .singleResult();
+        if (activityInstance == null || activityInstance.getStartTime() == null) {
+            log.debug("No start time found for activity instance {}", activityInstanceId);
+            return null;
+        }
+        return activityInstance.getStartTime().getTime();
+    }
+}
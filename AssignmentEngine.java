@@ -0,0 +1,349 @@
+// Workload-aware task auto-assignment
+//
+// Replaces the fixed department -> manager mapping of getDefaultAssigneeForDepartment.
+// Each department resolves to a pool of candidates, and a task goes to the candidate
+// with the fewest open tasks (LEAST_LOAD, ties rotate) or to the next one in a smooth
+// weighted round robin (WEIGHTED_ROUND_ROBIN).
+//
+// Open-task counts live in memory and are kept current by the task listeners:
+// assignment moves a task from its previous assignee to the new one, complete and
+// delete release it. A task -> assignee map makes every update idempotent, and an
+// update made in a command that rolls back is undone. The counts are seeded once on
+// startup from the open assigned tasks; selecting an assignee never queries the task
+// table and is a scan over the pool's pre-resolved counters.
+//
+// Pools come from configuration and, for departments without a configured pool,
+// from the members of the identity service group with the department's name. They
+// are cached and rebuilt every pool-refresh-interval-ms or on POST
+// /api/admin/assignment/refresh. A department without candidates falls back to
+// fallback-assignee.
+//
+// application.yml:
+//
+// workflow:
+//   assignment:
+//     strategy: LEAST_LOAD           # or WEIGHTED_ROUND_ROBIN
+//     pool-refresh-interval-ms: 300000
+//     fallback-assignee: default.manager
+//     seed-page-size: 1000
+//     pools:
+//       hr:
+//         - user-id: hr.manager
+//           weight: 1
+//       finance:
+//         - user-id: finance.manager
+//         - user-id: finance.deputy
+//           weight: 2
+
+public enum AssignmentStrategy {
+    LEAST_LOAD,
+    WEIGHTED_ROUND_ROBIN
+}
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class AssignmentCandidate {
+    private String userId;
+    // Relative share of the department's tasks; least-load compares load / weight
+    private int weight = 1;
+}
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "workflow.assignment")
+public class AssignmentProperties {
+    private AssignmentStrategy strategy = AssignmentStrategy.LEAST_LOAD;
+    private long poolRefreshIntervalMs = 300000;
+    private String fallbackAssignee = "default.manager";
+    private int seedPageSize = 1000;
+    // department (lower case) -> candidates
+    private Map<String, List<AssignmentCandidate>> pools = new LinkedHashMap<>();
+
+    public AssignmentProperties() {
+        // The previous fixed mapping, one manager per department
+        pools.put("hr", new ArrayList<>(Collections.singletonList(new AssignmentCandidate("hr.manager", 1))));
+        pools.put("finance", new ArrayList<>(Collections.singletonList(new AssignmentCandidate("finance.manager", 1))));
+        pools.put("it", new ArrayList<>(Collections.singletonList(new AssignmentCandidate("it.manager", 1))));
+        pools.put("legal", new ArrayList<>(Collections.singletonList(new AssignmentCandidate("legal.manager", 1))));
+    }
+}
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CandidateLoad {
+    private String userId;
+    private int weight;
+    private int openTasks;
+}
+
+@Component
+@Slf4j
+public class AssignmentEngine {
+
+    @Autowired
+    private AssignmentProperties properties;
+
+    @Autowired
+    private IdentityService identityService;
+
+    @Autowired
+    private TaskService taskService;
+
+    // userId -> open tasks; pools hold direct references to these counters
+    private final ConcurrentHashMap<String, AtomicInteger> loads = new ConcurrentHashMap<>();
+    // taskId -> assignee of every open assigned task
+    private final ConcurrentHashMap<String, String> assignees = new ConcurrentHashMap<>();
+    // Tasks closed while the counts are being seeded, so the seed does not resurrect them
+    private volatile Set<String> closedWhileSeeding;
+
+    private volatile Map<String, DepartmentPool> pools = Collections.emptyMap();
+    // Departments asked for since the last refresh that had no pool, resolved on the next refresh
+    private final Set<String> unresolved = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "assignment-pool-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        long interval = properties.getPoolRefreshIntervalMs();
+        scheduler.scheduleWithFixedDelay(this::refreshPools, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    @EventListener
+    public void onApplicationReady(ApplicationReadyEvent event) {
+        scheduler.execute(this::seedLoads);
+    }
+
+    // Picks an assignee for a new task of the department, never null
+    public String selectAssignee(String department) {
+        String key = department.toLowerCase();
+        DepartmentPool pool = pools.get(key);
+        if (pool == null) {
+            unresolved.add(key);
+            return properties.getFallbackAssignee();
+        }
+        return properties.getStrategy() == AssignmentStrategy.WEIGHTED_ROUND_ROBIN
+                ? pool.nextWeighted()
+                : pool.leastLoaded();
+    }
+
+    // Task listener "assignment", the assignee may be null when a task is unclaimed
+    public void onAssigned(String taskId, String assignee) {
+        String previous = assignee != null ? assignees.put(taskId, assignee) : assignees.remove(taskId);
+        if (Objects.equals(previous, assignee)) {
+            return;
+        }
+        move(previous, assignee);
+        onRollback(() -> {
+            if (previous != null) {
+                assignees.put(taskId, previous);
+            } else {
+                assignees.remove(taskId, assignee);
+            }
+            move(assignee, previous);
+        });
+    }
+
+    // Task listener "complete" / "delete"
+    public void onClosed(String taskId) {
+        Set<String> seeding = closedWhileSeeding;
+        if (seeding != null) {
+            seeding.add(taskId);
+        }
+        String previous = assignees.remove(taskId);
+        if (previous == null) {
+            return;
+        }
+        move(previous, null);
+        onRollback(() -> {
+            assignees.put(taskId, previous);
+            move(null, previous);
+        });
+    }
+
+    public Map<String, List<CandidateLoad>> getPoolLoads() {
+        Map<String, List<CandidateLoad>> result = new TreeMap<>();
+        pools.forEach((department, pool) -> result.put(department, pool.loads()));
+        return result;
+    }
+
+    public int getOpenTasks(String userId) {
+        AtomicInteger load = loads.get(userId);
+        return load != null ? load.get() : 0;
+    }
+
+    public void refreshPools() {
+        try {
+            Set<String> departments = new TreeSet<>(properties.getPools().keySet());
+            departments.addAll(pools.keySet());
+            departments.addAll(unresolved);
+            Map<String, DepartmentPool> rebuilt = new HashMap<>();
+            for (String department : departments) {
+                List<AssignmentCandidate> candidates = properties.getPools().get(department);
+                if (candidates == null || candidates.isEmpty()) {
+                    candidates = identityService.createUserQuery().memberOfGroup(department).list().stream()
+                            .map(user -> new AssignmentCandidate(user.getId(), 1))
+                            .collect(Collectors.toList());
+                }
+                if (!candidates.isEmpty()) {
+                    DepartmentPool previous = pools.get(department);
+                    rebuilt.put(department, new DepartmentPool(candidates, previous));
+                }
+            }
+            unresolved.removeAll(rebuilt.keySet());
+            pools = rebuilt;
+            log.debug("Assignment pools refreshed: {}", rebuilt.keySet());
+        } catch (Exception e) {
+            // Keep the previous pools, the next refresh tries again
+            log.warn("Refreshing assignment pools failed: {}", e.getMessage());
+        }
+    }
+
+    // One pass over the open assigned tasks on startup, later changes come from the listeners
+    private void seedLoads() {
+        long started = System.currentTimeMillis();
+        Set<String> closed = ConcurrentHashMap.newKeySet();
+        closedWhileSeeding = closed;
+        int seeded = 0;
+        try {
+            int first = 0;
+            while (true) {
+                List<Task> page = taskService.createTaskQuery().taskAssigned()
+                        .orderByTaskId().asc()
+                        .listPage(first, properties.getSeedPageSize());
+                for (Task task : page) {
+                    if (!closed.contains(task.getId()) && assignees.putIfAbsent(task.getId(), task.getAssignee()) == null) {
+                        move(null, task.getAssignee());
+                        seeded++;
+                    }
+                }
+                if (page.size() < properties.getSeedPageSize()) {
+                    break;
+                }
+                first += page.size();
+            }
+        } finally {
+            closedWhileSeeding = null;
+        }
+        log.info("Seeded open-task counts of {} tasks in {} ms", seeded, System.currentTimeMillis() - started);
+    }
+
+    private void move(String from, String to) {
+        if (from != null) {
+            load(from).decrementAndGet();
+        }
+        if (to != null) {
+            load(to).incrementAndGet();
+        }
+    }
+
+    private AtomicInteger load(String userId) {
+        AtomicInteger load = loads.get(userId);
+        return load != null ? load : loads.computeIfAbsent(userId, id -> new AtomicInteger());
+    }
+
+    private void onRollback(Runnable undo) {
+        CommandContext commandContext = Context.getCommandContext();
+        if (commandContext != null) {
+            commandContext.getTransactionContext().addTransactionListener(TransactionState.ROLLED_BACK, ctx -> undo.run());
+        }
+    }
+
+    // Candidates of one department with their load counters resolved up front
+    private class DepartmentPool {
+        private final String[] users;
+        private final int[] weights;
+        private final AtomicInteger[] counters;
+        private final int totalWeight;
+        // Rotates the starting point of the least-load scan so ties are spread
+        private final AtomicInteger cursor;
+        // Smooth weighted round robin state, guarded by the pool
+        private final int[] currentWeights;
+
+        DepartmentPool(List<AssignmentCandidate> candidates, DepartmentPool previous) {
+            int size = candidates.size();
+            users = new String[size];
+            weights = new int[size];
+            counters = new AtomicInteger[size];
+            int total = 0;
+            for (int i = 0; i < size; i++) {
+                AssignmentCandidate candidate = candidates.get(i);
+                users[i] = candidate.getUserId();
+                weights[i] = Math.max(1, candidate.getWeight());
+                counters[i] = load(candidate.getUserId());
+                total += weights[i];
+            }
+            totalWeight = total;
+            cursor = previous != null ? previous.cursor : new AtomicInteger();
+            currentWeights = new int[size];
+        }
+
+        String leastLoaded() {
+            int size = users.length;
+            int start = Math.floorMod(cursor.getAndIncrement(), size);
+            int best = start;
+            // load / weight compared without division: a / wa < b / wb  <=>  a * wb < b * wa
+            long bestLoad = counters[start].get();
+            long bestWeight = weights[start];
+            for (int n = 1; n < size; n++) {
+                int i = start + n < size ? start + n : start + n - size;
+                long load = counters[i].get();
+                if (load * bestWeight < bestLoad * weights[i]) {
+                    best = i;
+                    bestLoad = load;
+                    bestWeight = weights[i];
+                }
+            }
+            return users[best];
+        }
+
+        synchronized String nextWeighted() {
+            int best = 0;
+            for (int i = 0; i < users.length; i++) {
+                currentWeights[i] += weights[i];
+                if (currentWeights[i] > currentWeights[best]) {
+                    best = i;
+                }
+            }
+            currentWeights[best] -= totalWeight;
+            return users[best];
+        }
+
+        List<CandidateLoad> loads() {
+            List<CandidateLoad> result = new ArrayList<>(users.length);
+            for (int i = 0; i < users.length; i++) {
+                result.add(new CandidateLoad(users[i], weights[i], counters[i].get()));
+            }
+            return result;
+        }
+    }
+}
+
+@RestController
+@RequestMapping("/api/admin/assignment")
+public class AssignmentController {
+
+    @Autowired
+    private AssignmentEngine assignmentEngine;
+
+    @GetMapping
+    public ResponseEntity<Map<String, List<CandidateLoad>>> getPoolLoads() {
+        return ResponseEntity.ok(assignmentEngine.getPoolLoads());
+    }
+
+    @PostMapping("/refresh")
+    public ResponseEntity<Map<String, List<CandidateLoad>>> refresh() {
+        assignmentEngine.refreshPools();
+        return ResponseEntity.ok(assignmentEngine.getPoolLoads());
+    }
+}
@@ -0,0 +1,533 @@
+// Asynchronous batched history
+//
+// With history level FULL every activity, variable update and task change is an
+// INSERT or UPDATE of an ACT_HI_* row in the engine transaction. In ASYNC mode
+// AsyncHistoryPlugin replaces the engine's DbHistoryEventHandler with
+// AsyncHistoryEventHandler: the history events of a command are buffered, handed to a
+// queue once the command has committed (dropped if it rolls back), and a single
+// background writer passes them in order to the configured sink in batches of up to
+// flush-size, waiting at most flush-interval-ms for a batch to fill:
+//
+//   JDBC   the engine's own DbHistoryEventHandler inside one engine command per batch,
+//          so the rows land in ACT_HI_* as before, flushed as JDBC batches
+//   MONGO  one document per history entity (_id "<entity class>:<id>") in a collection,
+//          upserted with bulk writes; the ACT_HI_* tables stay empty, so HistoryService
+//          queries and Cockpit history see nothing - only for history consumed from Mongo
+//
+// A command writes its history synchronously, as part of the command, instead when
+//   - the queue holds more than capacity events,
+//   - the sink failed its last write (the writer keeps retrying the backlog), or
+//   - it produced one of sync-event-types ("<entity class>:<event type>", e.g.
+//     HistoricProcessInstanceEventEntity:end) that must not wait in memory,
+// but only once no event of the same process instance is still queued, so the rows of
+// one instance are always written in order. Over capacity the command waits for that
+// as long as it takes, which holds the engine threads back until the writer catches
+// up and keeps the queue bounded (by capacity plus the events of the commands that
+// passed the check concurrently). In the other two cases it waits up to
+// block-timeout-ms and otherwise stays asynchronous. For MONGO a synchronous write is
+// not part of the engine transaction. A waiting command keeps its connection, so the
+// pool needs room for the writer's command next to the engine threads.
+//
+// ASYNC makes history eventually consistent: a HistoryService query right after a
+// command may not see its rows yet. Readers that look up the history of the running
+// instance (ActivityTimingCache's fallback, the process details endpoint) need SYNC,
+// which is the default. Queued events are written on shutdown; there is no durable
+// spool, a crash loses them. sync-event-types is the only durability setting: events
+// listed there are written in the engine transaction.
+// A batch that keeps failing is retried with backoff; after max-attempts its events
+// are written one by one and events that fail alone are logged and dropped, while a
+// batch where every event fails (sink down) is kept and retried.
+//
+// Metrics: workflow.history.queue.depth, workflow.history.events{outcome},
+// workflow.history.batch.duration, GET /api/admin/history-writer
+//
+// application.yml:
+//
+// workflow:
+//   history:
+//     mode: SYNC                 # engine default, in the transaction; ASYNC = batched
+//     sink: JDBC                 # or MONGO
+//     capacity: 50000
+//     flush-size: 500
+//     flush-interval-ms: 200
+//     block-timeout-ms: 100
+//     max-attempts: 5
+//     retry-backoff-ms: 1000
+//     shutdown-timeout-ms: 30000
+//     sync-event-types: HistoricProcessInstanceEventEntity:end
+//     mongo:
+//       collection: camunda_history
+
+public enum HistoryWriteMode {
+    SYNC,
+    ASYNC
+}
+
+public enum HistorySinkType {
+    JDBC,
+    MONGO
+}
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "workflow.history")
+public class AsyncHistoryProperties {
+    private HistoryWriteMode mode = HistoryWriteMode.SYNC;
+    private HistorySinkType sink = HistorySinkType.JDBC;
+    private int capacity = 50000;
+    private int flushSize = 500;
+    private long flushIntervalMs = 200;
+    private long blockTimeoutMs = 100;
+    private int maxAttempts = 5;
+    private long retryBackoffMs = 1000;
+    private long shutdownTimeoutMs = 30000;
+    private Set<String> syncEventTypes = new LinkedHashSet<>();
+    private Mongo mongo = new Mongo();
+
+    @Data
+    public static class Mongo {
+        private String collection = "camunda_history";
+    }
+}
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class AsyncHistoryStatus {
+    private HistoryWriteMode mode;
+    private HistorySinkType sink;
+    private int queueDepth;
+    private int queuedInstances;
+    private boolean sinkHealthy;
+    private long queued;
+    private long written;
+    private long writtenInCommand;
+    private long discarded;
+    private long failed;
+}
+
+// Destination of history events; write() gets events in the order they were committed
+public interface HistoryEventSink {
+
+    // Background writer, one batch
+    void write(List<HistoryEvent> batch);
+
+    // Inside the engine command that produced the event
+    void writeInCommand(HistoryEvent event);
+
+    // Called by AsyncHistoryPlugin before the engine is built
+    default void bind(ProcessEngineConfigurationImpl configuration) {
+    }
+}
+
+@Component
+@ConditionalOnProperty(prefix = "workflow.history", name = "sink", havingValue = "JDBC", matchIfMissing = true)
+public class JdbcHistoryEventSink implements HistoryEventSink {
+
+    private final DbHistoryEventHandler dbHistoryEventHandler = new DbHistoryEventHandler();
+    private ProcessEngineConfigurationImpl configuration;
+
+    @Override
+    public void bind(ProcessEngineConfigurationImpl configuration) {
+        this.configuration = configuration;
+    }
+
+    @Override
+    public void write(List<HistoryEvent> batch) {
+        CommandExecutor commandExecutor = configuration.getCommandExecutorTxRequired();
+        int next = 0;
+        while (next < batch.size()) {
+            int from = next;
+            next = commandExecutor.execute(commandContext -> writeUntilRepeated(batch, from));
+        }
+    }
+
+    @Override
+    public void writeInCommand(HistoryEvent event) {
+        dbHistoryEventHandler.handleEvent(event);
+    }
+
+    // An entity updated by a later command is a second object with the same id; the
+    // entity cache of one command would drop it, so it starts the next command
+    private int writeUntilRepeated(List<HistoryEvent> batch, int from) {
+        Map<String, HistoryEvent> seen = new HashMap<>();
+        int i = from;
+        for (; i < batch.size(); i++) {
+            HistoryEvent event = batch.get(i);
+            if (event.getId() != null) {
+                HistoryEvent previous = seen.putIfAbsent(event.getClass().getName() + ':' + event.getId(), event);
+                if (previous != null && previous != event) {
+                    break;
+                }
+            }
+            dbHistoryEventHandler.handleEvent(event);
+        }
+        return i;
+    }
+}
+
+@Component
+@ConditionalOnProperty(prefix = "workflow.history", name = "sink", havingValue = "MONGO")
+public class MongoHistoryEventSink implements HistoryEventSink {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private AsyncHistoryProperties properties;
+
+    // Fields, not getters: entity getters may need a command context
+    private final ObjectMapper mapper = new ObjectMapper()
+            .setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE)
+            .setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY)
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+
+    @Override
+    public void write(List<HistoryEvent> batch) {
+        // Ordered, so an update never overtakes the insert of the same entity
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.ORDERED, properties.getMongo().getCollection());
+        for (HistoryEvent event : batch) {
+            bulk.upsert(query(event), update(event));
+        }
+        bulk.execute();
+    }
+
+    @Override
+    public void writeInCommand(HistoryEvent event) {
+        mongoTemplate.upsert(query(event), update(event), properties.getMongo().getCollection());
+    }
+
+    private Query query(HistoryEvent event) {
+        return Query.query(Criteria.where("_id").is(event.getClass().getSimpleName() + ":" + event.getId()));
+    }
+
+    // Only the fields the event carries, so an end event keeps the start fields
+    @SuppressWarnings("unchecked")
+    private Update update(HistoryEvent event) {
+        Map<String, Object> fields = mapper.convertValue(event, Map.class);
+        Update update = new Update();
+        fields.forEach((name, value) -> {
+            if (!"id".equals(name)) {
+                update.set(name, value);
+            }
+        });
+        update.set("entityType", event.getClass().getSimpleName());
+        return update;
+    }
+}
+
+@Component
+@Slf4j
+public class AsyncHistoryEventHandler implements HistoryEventHandler {
+
+    @Autowired
+    private AsyncHistoryProperties properties;
+
+    @Autowired
+    private HistoryEventSink sink;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final LinkedBlockingQueue<HistoryEvent> queue = new LinkedBlockingQueue<>();
+    // Committed but unwritten events per process instance (entity id without one)
+    private final ConcurrentHashMap<String, Integer> queuedPerInstance = new ConcurrentHashMap<>();
+    private final Map<CommandContext, List<HistoryEvent>> pending = new ConcurrentHashMap<>();
+    private volatile boolean sinkHealthy = true;
+    private volatile boolean running;
+    private Thread writer;
+
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder writtenInCommand = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private Timer batchTimer;
+
+    @PostConstruct
+    public void start() {
+        if (properties.getMode() != HistoryWriteMode.ASYNC) {
+            return;
+        }
+        Gauge.builder("workflow.history.queue.depth", queue, Collection::size).register(meterRegistry);
+        FunctionCounter.builder("workflow.history.events", queued, LongAdder::sum).tag("outcome", "queued").register(meterRegistry);
+        FunctionCounter.builder("workflow.history.events", written, LongAdder::sum).tag("outcome", "written").register(meterRegistry);
+        FunctionCounter.builder("workflow.history.events", writtenInCommand, LongAdder::sum).tag("outcome", "in-command").register(meterRegistry);
+        FunctionCounter.builder("workflow.history.events", discarded, LongAdder::sum).tag("outcome", "discarded").register(meterRegistry);
+        FunctionCounter.builder("workflow.history.events", failed, LongAdder::sum).tag("outcome", "failed").register(meterRegistry);
+        batchTimer = Timer.builder("workflow.history.batch.duration").register(meterRegistry);
+
+        running = true;
+        writer = new Thread(this::writeLoop, "history-writer");
+        writer.setDaemon(true);
+        writer.start();
+        log.info("Asynchronous history started - sink: {}, flushSize: {}, flushInterval: {} ms",
+                properties.getSink(), properties.getFlushSize(), properties.getFlushIntervalMs());
+    }
+
+    // Before bean destruction, while the engine can still run the writer's commands
+    @EventListener
+    public void onContextClosed(ContextClosedEvent event) throws InterruptedException {
+        if (writer == null || !running) {
+            return;
+        }
+        running = false;
+        writer.join(properties.getShutdownTimeoutMs());
+        if (!queue.isEmpty()) {
+            log.error("{} history events were not written before shutdown", queue.size());
+        }
+    }
+
+    @Override
+    public void handleEvent(HistoryEvent historyEvent) {
+        CommandContext commandContext = Context.getCommandContext();
+        if (commandContext == null) {
+            enqueue(Collections.singletonList(historyEvent));
+            return;
+        }
+        pending.computeIfAbsent(commandContext, this::register).add(historyEvent);
+    }
+
+    @Override
+    public void handleEvents(List<HistoryEvent> historyEvents) {
+        for (HistoryEvent historyEvent : historyEvents) {
+            handleEvent(historyEvent);
+        }
+    }
+
+    public AsyncHistoryStatus getStatus() {
+        return new AsyncHistoryStatus(properties.getMode(), properties.getSink(), queue.size(),
+                queuedPerInstance.size(), sinkHealthy, queued.sum(), written.sum(), writtenInCommand.sum(),
+                discarded.sum(), failed.sum());
+    }
+
+    private List<HistoryEvent> register(CommandContext commandContext) {
+        commandContext.registerCommandContextListener(new CommandContextListener() {
+            @Override
+            public void onCommandContextClose(CommandContext context) {
+                beforeFlush(context);
+            }
+
+            @Override
+            public void onCommandFailed(CommandContext context, Throwable t) {
+                discard(context);
+            }
+        });
+        TransactionContext transactionContext = commandContext.getTransactionContext();
+        transactionContext.addTransactionListener(TransactionState.COMMITTED, ctx -> {
+            List<HistoryEvent> events = pending.remove(ctx);
+            if (events != null && !events.isEmpty()) {
+                enqueue(events);
+            }
+        });
+        transactionContext.addTransactionListener(TransactionState.ROLLED_BACK, this::discard);
+        // Only the engine thread of the command adds to it
+        return new ArrayList<>();
+    }
+
+    // Still inside the command, before the entity manager flushes
+    private void beforeFlush(CommandContext commandContext) {
+        List<HistoryEvent> events = pending.get(commandContext);
+        if (events == null || events.isEmpty()) {
+            return;
+        }
+        boolean overCapacity = queue.size() + events.size() > properties.getCapacity();
+        if (!overCapacity && !needsSynchronousWrite(events)) {
+            return;
+        }
+        long timeoutMs = overCapacity ? Long.MAX_VALUE : properties.getBlockTimeoutMs();
+        if (!awaitInstancesWritten(events, timeoutMs)) {
+            // Older events of the instance are still queued, writing now would overtake them
+            log.debug("History of command stays asynchronous, its process instances have queued events");
+            return;
+        }
+        for (HistoryEvent event : events) {
+            sink.writeInCommand(event);
+        }
+        writtenInCommand.add(events.size());
+        events.clear();
+    }
+
+    private boolean needsSynchronousWrite(List<HistoryEvent> events) {
+        if (!sinkHealthy) {
+            return true;
+        }
+        if (!properties.getSyncEventTypes().isEmpty()) {
+            for (HistoryEvent event : events) {
+                if (properties.getSyncEventTypes().contains(event.getClass().getSimpleName() + ":" + event.getEventType())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Long.MAX_VALUE waits until the writer got there
+    private boolean awaitInstancesWritten(List<HistoryEvent> events, long timeoutMs) {
+        long deadline = timeoutMs == Long.MAX_VALUE ? Long.MAX_VALUE
+                : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        for (HistoryEvent event : events) {
+            String key = orderingKey(event);
+            while (queuedPerInstance.containsKey(key)) {
+                if (deadline != Long.MAX_VALUE && System.nanoTime() >= deadline) {
+                    return false;
+                }
+                if (!running) {
+                    // The writer is gone, nothing will drain the instance
+                    return false;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+        return true;
+    }
+
+    private void discard(CommandContext commandContext) {
+        List<HistoryEvent> events = pending.remove(commandContext);
+        if (events != null) {
+            discarded.add(events.size());
+        }
+    }
+
+    private void enqueue(List<HistoryEvent> events) {
+        for (HistoryEvent event : events) {
+            queuedPerInstance.merge(orderingKey(event), 1, Integer::sum);
+            queue.add(event);
+        }
+        queued.add(events.size());
+    }
+
+    private static String orderingKey(HistoryEvent event) {
+        return event.getProcessInstanceId() != null ? event.getProcessInstanceId() : String.valueOf(event.getId());
+    }
+
+    private void writeLoop() {
+        List<HistoryEvent> batch = new ArrayList<>(properties.getFlushSize());
+        long flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(properties.getFlushIntervalMs());
+        while (running || !queue.isEmpty()) {
+            try {
+                HistoryEvent first = queue.poll(properties.getFlushIntervalMs(), TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + flushIntervalNanos;
+                while (batch.size() < properties.getFlushSize()) {
+                    queue.drainTo(batch, properties.getFlushSize() - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= properties.getFlushSize() || remaining <= 0 || !running) {
+                        break;
+                    }
+                    HistoryEvent next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                for (HistoryEvent event : batch) {
+                    queuedPerInstance.computeIfPresent(orderingKey(event), (key, count) -> count == 1 ? null : count - 1);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeBatch(List<HistoryEvent> batch) throws InterruptedException {
+        long shutdownDeadline = Long.MAX_VALUE;
+        for (int attempt = 1; ; attempt++) {
+            long start = System.nanoTime();
+            try {
+                sink.write(batch);
+                batchTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                written.add(batch.size());
+                sinkHealthy = true;
+                return;
+            } catch (Exception e) {
+                sinkHealthy = false;
+                log.warn("Writing {} history events failed (attempt {}): {}", batch.size(), attempt, e.getMessage());
+            }
+            if (attempt >= properties.getMaxAttempts() && writeIndividually(batch)) {
+                sinkHealthy = true;
+                return;
+            }
+            if (!running) {
+                if (shutdownDeadline == Long.MAX_VALUE) {
+                    shutdownDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(properties.getShutdownTimeoutMs());
+                } else if (System.nanoTime() > shutdownDeadline) {
+                    failed.add(batch.size());
+                    log.error("Giving up on {} history events at shutdown", batch.size());
+                    return;
+                }
+            }
+            long backoff = properties.getRetryBackoffMs() << Math.min(attempt - 1, 6);
+            Thread.sleep(backoff);
+        }
+    }
+
+    // Isolates events the sink rejects; false when nothing could be written (sink down)
+    private boolean writeIndividually(List<HistoryEvent> batch) {
+        List<HistoryEvent> rejected = new ArrayList<>();
+        for (HistoryEvent event : batch) {
+            try {
+                sink.write(Collections.singletonList(event));
+            } catch (Exception e) {
+                rejected.add(event);
+                log.error("Dropping history event {} {} of process instance {}: {}", event.getClass().getSimpleName(),
+                        event.getId(), event.getProcessInstanceId(), e.getMessage());
+            }
+        }
+        if (rejected.size() == batch.size()) {
+            return false;
+        }
+        written.add(batch.size() - rejected.size());
+        failed.add(rejected.size());
+        return true;
+    }
+}
+
+@Component
+public class AsyncHistoryPlugin extends AbstractProcessEnginePlugin {
+
+    @Autowired
+    private AsyncHistoryProperties properties;
+
+    @Autowired
+    private AsyncHistoryEventHandler asyncHistoryEventHandler;
+
+    @Autowired
+    private HistoryEventSink historyEventSink;
+
+    @Override
+    public void preInit(ProcessEngineConfigurationImpl processEngineConfiguration) {
+        if (properties.getMode() != HistoryWriteMode.ASYNC) {
+            return;
+        }
+        historyEventSink.bind(processEngineConfiguration);
+        processEngineConfiguration.setEnableDefaultDbHistoryEventHandler(false);
+        List<HistoryEventHandler> handlers = processEngineConfiguration.getCustomHistoryEventHandlers();
+        if (handlers == null) {
+            handlers = new ArrayList<>();
+            processEngineConfiguration.setCustomHistoryEventHandlers(handlers);
+        }
+        handlers.add(asyncHistoryEventHandler);
+    }
+}
+
+@RestController
+@RequestMapping("/api/admin/history-writer")
+public class AsyncHistoryController {
+
+    @Autowired
+    private AsyncHistoryEventHandler asyncHistoryEventHandler;
+
+    @GetMapping
+    public ResponseEntity<AsyncHistoryStatus> getStatus() {
+        return ResponseEntity.ok(asyncHistoryEventHandler.getStatus());
+    }
+}
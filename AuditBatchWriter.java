@@ -0,0 +1,382 @@
+// Asynchronous audit pipeline
+//
+// AuditService builds an AuditRecord per event and publishes it through
+// SideEffectDispatcher, which delivers it to AuditBatchWriter. Producers only
+// publish into a bounded lock-free ring buffer; a single drain thread
+// batch-inserts into the AUDIT_LOG table (store: JDBC) or appends dictionary-encoded
+// records to local segment files (store: BINARY, see BinaryAuditStore).
+//
+// Nothing is dropped for lack of room: when the buffer is full the producer waits
+// until the drain thread frees a slot, which pushes back on SideEffectQueue. A batch
+// the store rejects is retried with backoff and keeps the drain thread (and so the
+// producers) waiting; after max-attempts its records are written one by one, a
+// record that fails alone is logged and dropped, and if every record fails the store
+// is considered down and the batch is retried again. At shutdown the drain thread
+// gives up after shutdown-timeout-ms.
+//
+// application.yml:
+//
+// workflow:
+//   audit:
+//     store: JDBC
+//     buffer-capacity: 65536
+//     flush-size: 500
+//     flush-interval-ms: 200
+//     max-attempts: 5
+//     retry-backoff-ms: 1000
+//     shutdown-timeout-ms: 10000
+
+public enum AuditEventType {
+    TASK_CREATED,
+    TASK_ASSIGNED,
+    TASK_COMPLETED,
+    TASK_DELETED,
+    PROCESS_STARTED,
+    PROCESS_ENDED,
+    ACTIVITY_STARTED,
+    ACTIVITY_ENDED,
+    SEQUENCE_FLOW_TAKEN
+}
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class AuditRecord implements ProcessScoped, TypedSideEffect {
+    // Dedup key assigned by OutboxRelay, null for records that did not go through the outbox
+    private String eventId;
+    private AuditEventType type;
+    private long timestamp;
+    private String processInstanceId;
+    private String processDefinitionKey;
+    private String taskId;
+    private String taskName;
+    private String activityId;
+    private String activityName;
+    private String transitionId;
+    private Long durationMs;
+    private String actor;
+    private String detail;
+}
+
+// Bounded multi-producer / single-consumer ring buffer.
+// Each slot carries a sequence number: producers claim a position with a CAS on
+// the tail and publish by advancing the slot sequence, the drain thread consumes
+// in order and hands the slot back by advancing the sequence one lap further.
+public class AuditRingBuffer {
+
+    private final AuditRecord[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    public AuditRingBuffer(int capacity) {
+        int size = 2;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new AuditRecord[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    // Returns false when the buffer is full, never blocks
+    public boolean offer(AuditRecord record) {
+        long position = tail.get();
+        for (;;) {
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots[index] = record;
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    // Must only be called from the single drain thread
+    public int drainTo(List<AuditRecord> batch, int maxRecords) {
+        long position = head;
+        int drained = 0;
+        while (drained < maxRecords) {
+            int index = (int) position & mask;
+            if (sequences.get(index) != position + 1) {
+                break;
+            }
+            batch.add(slots[index]);
+            slots[index] = null;
+            sequences.lazySet(index, position + mask + 1);
+            position++;
+            drained++;
+        }
+        head = position;
+        return drained;
+    }
+
+    public int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
+
+// Durable destination for audit batches
+public interface AuditStore {
+    void write(List<AuditRecord> batch);
+}
+
+@Component
+@ConditionalOnProperty(prefix = "workflow.audit", name = "store", havingValue = "JDBC", matchIfMissing = true)
+@Slf4j
+public class JdbcAuditStore implements AuditStore {
+
+    // Redelivered outbox records carry the same EVENT_ID and update their row;
+    // NULL never matches, so records without an id are always inserted
+    private static final String INSERT_SQL =
+        "MERGE INTO AUDIT_LOG (EVENT_ID, EVENT_TYPE, EVENT_TIME, PROCESS_INSTANCE_ID, PROCESS_DEFINITION_KEY, " +
+        "TASK_ID, TASK_NAME, ACTIVITY_ID, ACTIVITY_NAME, TRANSITION_ID, DURATION_MS, ACTOR, DETAIL) " +
+        "KEY (EVENT_ID) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @PostConstruct
+    public void createTable() {
+        jdbcTemplate.execute(
+            "CREATE TABLE IF NOT EXISTS AUDIT_LOG (" +
+            "ID BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+            "EVENT_ID VARCHAR(64) UNIQUE, " +
+            "EVENT_TYPE VARCHAR(32) NOT NULL, " +
+            "EVENT_TIME TIMESTAMP NOT NULL, " +
+            "PROCESS_INSTANCE_ID VARCHAR(64), " +
+            "PROCESS_DEFINITION_KEY VARCHAR(255), " +
+            "TASK_ID VARCHAR(64), " +
+            "TASK_NAME VARCHAR(255), " +
+            "ACTIVITY_ID VARCHAR(255), " +
+            "ACTIVITY_NAME VARCHAR(255), " +
+            "TRANSITION_ID VARCHAR(255), " +
+            "DURATION_MS BIGINT, " +
+            "ACTOR VARCHAR(255), " +
+            "DETAIL VARCHAR(4000))");
+    }
+
+    @Override
+    public void write(List<AuditRecord> batch) {
+        jdbcTemplate.batchUpdate(INSERT_SQL, batch, batch.size(), (ps, record) -> {
+            ps.setString(1, record.getEventId());
+            ps.setString(2, record.getType().name());
+            ps.setTimestamp(3, new Timestamp(record.getTimestamp()));
+            ps.setString(4, record.getProcessInstanceId());
+            ps.setString(5, record.getProcessDefinitionKey());
+            ps.setString(6, record.getTaskId());
+            ps.setString(7, record.getTaskName());
+            ps.setString(8, record.getActivityId());
+            ps.setString(9, record.getActivityName());
+            ps.setString(10, record.getTransitionId());
+            ps.setObject(11, record.getDurationMs(), Types.BIGINT);
+            ps.setString(12, record.getActor());
+            ps.setString(13, record.getDetail());
+        });
+    }
+}
+
+@Component
+@Slf4j
+public class AuditBatchWriter implements SideEffectSink<AuditRecord> {
+
+    @Autowired
+    private AuditStore auditStore;
+
+    @Value("${workflow.audit.buffer-capacity:65536}")
+    private int bufferCapacity;
+
+    @Value("${workflow.audit.flush-size:500}")
+    private int flushSize;
+
+    @Value("${workflow.audit.flush-interval-ms:200}")
+    private long flushIntervalMs;
+
+    @Value("${workflow.audit.max-attempts:5}")
+    private int maxAttempts;
+
+    @Value("${workflow.audit.retry-backoff-ms:1000}")
+    private long retryBackoffMs;
+
+    @Value("${workflow.audit.shutdown-timeout-ms:10000}")
+    private long shutdownTimeoutMs;
+
+    private AuditRingBuffer ringBuffer;
+    private Thread drainThread;
+    private volatile boolean running;
+
+    private final LongAdder written = new LongAdder();
+    // Records whose producer had to wait for room in the buffer
+    private final LongAdder overflowed = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    @PostConstruct
+    public void start() {
+        ringBuffer = new AuditRingBuffer(bufferCapacity);
+        running = true;
+        drainThread = new Thread(this::drainLoop, "audit-writer");
+        drainThread.setDaemon(true);
+        drainThread.start();
+        log.info("Audit writer started - capacity: {}, flushSize: {}, flushInterval: {} ms",
+                ringBuffer.capacity(), flushSize, flushIntervalMs);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(drainThread);
+        drainThread.join(shutdownTimeoutMs + TimeUnit.SECONDS.toMillis(1));
+    }
+
+    @Override
+    public Class<AuditRecord> payloadType() {
+        return AuditRecord.class;
+    }
+
+    @Override
+    public void deliver(AuditRecord record) {
+        submit(record);
+    }
+
+    @Override
+    public boolean outboxEligible() {
+        return true;
+    }
+
+    // Waits while the buffer is full - the store is falling behind
+    public void submit(AuditRecord record) {
+        if (ringBuffer.offer(record)) {
+            return;
+        }
+        overflowed.increment();
+        long waitNanos = TimeUnit.MICROSECONDS.toNanos(50);
+        while (!ringBuffer.offer(record)) {
+            if (!drainThread.isAlive()) {
+                // Nobody drains any more (shutdown), write on the caller
+                writeBatch(Collections.singletonList(record));
+                return;
+            }
+            LockSupport.parkNanos(waitNanos);
+            waitNanos = Math.min(waitNanos * 2, TimeUnit.MILLISECONDS.toNanos(10));
+        }
+    }
+
+    public int getPendingCount() {
+        return ringBuffer.size();
+    }
+
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    public long getOverflowCount() {
+        return overflowed.sum();
+    }
+
+    public long getRetriedCount() {
+        return retried.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    private void drainLoop() {
+        List<AuditRecord> batch = new ArrayList<>(flushSize);
+        long flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+        long lastFlush = System.nanoTime();
+
+        while (running || ringBuffer.size() > 0) {
+            ringBuffer.drainTo(batch, flushSize - batch.size());
+
+            long now = System.nanoTime();
+            boolean intervalElapsed = now - lastFlush >= flushIntervalNanos;
+            if (batch.size() >= flushSize || (!batch.isEmpty() && (intervalElapsed || !running))) {
+                writeBatch(batch);
+                batch.clear();
+                lastFlush = now;
+            } else if (batch.isEmpty() && intervalElapsed) {
+                lastFlush = now;
+            }
+
+            if (ringBuffer.size() == 0 && running) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            writeBatch(batch);
+        }
+    }
+
+    private void writeBatch(List<AuditRecord> batch) {
+        long shutdownDeadline = Long.MAX_VALUE;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                auditStore.write(batch);
+                written.add(batch.size());
+                return;
+            } catch (Exception e) {
+                log.warn("Writing {} audit records failed (attempt {}): {}", batch.size(), attempt, e.getMessage());
+            }
+            if (attempt >= maxAttempts && writeIndividually(batch)) {
+                return;
+            }
+            if (!running) {
+                if (shutdownDeadline == Long.MAX_VALUE) {
+                    shutdownDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownTimeoutMs);
+                } else if (System.nanoTime() > shutdownDeadline) {
+                    failed.add(batch.size());
+                    log.error("Giving up on {} audit records at shutdown", batch.size());
+                    return;
+                }
+            }
+            retried.add(batch.size());
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(retryBackoffMs << Math.min(attempt - 1, 5)));
+        }
+    }
+
+    // Isolates records the store rejects; false when nothing could be written (store down)
+    private boolean writeIndividually(List<AuditRecord> batch) {
+        List<AuditRecord> rejected = new ArrayList<>();
+        List<String> errors = new ArrayList<>();
+        for (AuditRecord record : batch) {
+            try {
+                auditStore.write(Collections.singletonList(record));
+            } catch (Exception e) {
+                rejected.add(record);
+                errors.add(e.getMessage());
+            }
+        }
+        // Every record failed: the store is down, the batch is retried and nothing is dropped
+        if (rejected.size() == batch.size()) {
+            return false;
+        }
+        for (int i = 0; i < rejected.size(); i++) {
+            AuditRecord record = rejected.get(i);
+            log.error("Dropping {} audit record of process instance {}: {}", record.getType(),
+                    record.getProcessInstanceId(), errors.get(i));
+        }
+        written.add(batch.size() - rejected.size());
+        failed.add(rejected.size());
+        return true;
+    }
+}
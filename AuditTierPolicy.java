@@ -0,0 +1,363 @@
+// Audit tiers
+//
+// Decides per event type, and optionally per process definition, how much of the
+// audit trail is written:
+//   ALWAYS      every event becomes an AUDIT_LOG row
+//   SAMPLED     1 in sample-every events, and/or at most max-per-second rows
+//   AGGREGATED  no rows, only per (process, event type) counts which are written
+//               as one summary row per interval
+//   OFF         nothing
+// Task lifecycle events are always ALWAYS and cannot be overridden.
+//
+// Configured tiers can be overridden at runtime through /api/admin/audit-tiers;
+// overrides live in memory and are dropped on restart or DELETE.
+//
+// application.yml:
+//
+// workflow:
+//   audit:
+//     tiers:
+//       aggregate-flush-interval-ms: 60000
+//       event-types:
+//         SEQUENCE_FLOW_TAKEN:
+//           tier: SAMPLED
+//           sample-every: 10
+//           max-per-second: 200
+//       processes:
+//         invoiceApproval:
+//           ACTIVITY_STARTED:
+//             tier: AGGREGATED
+
+public enum AuditTier {
+    ALWAYS,
+    SAMPLED,
+    AGGREGATED,
+    OFF
+}
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class AuditTierRule {
+    private AuditTier tier = AuditTier.ALWAYS;
+    // SAMPLED: keep one in this many events, 1 keeps all
+    private int sampleEvery = 1;
+    // SAMPLED: upper bound of rows per second, 0 means no cap
+    private int maxPerSecond = 0;
+
+    public static final AuditTierRule ALWAYS = new AuditTierRule(AuditTier.ALWAYS, 1, 0);
+}
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "workflow.audit.tiers")
+public class AuditTierProperties {
+    private long aggregateFlushIntervalMs = 60000;
+    private Map<AuditEventType, AuditTierRule> eventTypes = new EnumMap<>(AuditEventType.class);
+    private Map<String, Map<AuditEventType, AuditTierRule>> processes = new HashMap<>();
+}
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class AuditTierCount {
+    private String processDefinitionKey;
+    private AuditEventType eventType;
+    private AuditTier tier;
+    private long seen;
+    private long written;
+}
+
+@Component
+@Slf4j
+public class AuditTierPolicy {
+
+    private static final String UNKNOWN_PROCESS = "_unknown";
+
+    private static final Set<AuditEventType> LOSSLESS_TYPES = EnumSet.of(
+            AuditEventType.TASK_CREATED, AuditEventType.TASK_ASSIGNED,
+            AuditEventType.TASK_COMPLETED, AuditEventType.TASK_DELETED);
+
+    @Autowired
+    private AuditTierProperties properties;
+
+    @Autowired
+    private SideEffectDispatcher sideEffectDispatcher;
+
+    private final Map<AuditEventType, AuditTierRule> typeOverrides = new ConcurrentHashMap<>();
+    private final Map<String, Map<AuditEventType, AuditTierRule>> processOverrides = new ConcurrentHashMap<>();
+
+    // Rebuilt on every change, read without locking on the event path
+    private volatile TierTable table;
+
+    // processDefinitionKey -> per event type state, indexed by ordinal
+    private final ConcurrentHashMap<String, TierState[]> states = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "audit-tier-aggregator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        properties.getEventTypes().keySet().forEach(this::requireAdjustable);
+        properties.getProcesses().values().forEach(rules -> rules.keySet().forEach(this::requireAdjustable));
+        rebuild();
+        long interval = properties.getAggregateFlushIntervalMs();
+        scheduler.scheduleWithFixedDelay(this::flushAggregates, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        flushAggregates();
+    }
+
+    // True if the event should be written as its own audit record
+    public boolean shouldWrite(AuditEventType type, String processDefinitionKey) {
+        if (LOSSLESS_TYPES.contains(type)) {
+            return true;
+        }
+        String key = processDefinitionKey != null ? processDefinitionKey : UNKNOWN_PROCESS;
+        AuditTierRule rule = table.resolve(key, type);
+        if (rule.getTier() == AuditTier.ALWAYS) {
+            return true;
+        }
+        if (rule.getTier() == AuditTier.OFF) {
+            return false;
+        }
+
+        TierState state = stateFor(key, type);
+        long seen = state.seen.getAndIncrement();
+        if (rule.getTier() == AuditTier.AGGREGATED) {
+            state.aggregated.increment();
+            return false;
+        }
+        boolean write = (rule.getSampleEvery() <= 1 || seen % rule.getSampleEvery() == 0)
+                && (rule.getMaxPerSecond() <= 0 || state.tryAcquire(rule.getMaxPerSecond()));
+        if (write) {
+            state.written.increment();
+        }
+        return write;
+    }
+
+    public AuditTierRule getRule(AuditEventType type, String processDefinitionKey) {
+        if (LOSSLESS_TYPES.contains(type)) {
+            return AuditTierRule.ALWAYS;
+        }
+        return table.resolve(processDefinitionKey != null ? processDefinitionKey : UNKNOWN_PROCESS, type);
+    }
+
+    public Map<AuditEventType, AuditTierRule> getEffectiveRules(String processDefinitionKey) {
+        Map<AuditEventType, AuditTierRule> rules = new EnumMap<>(AuditEventType.class);
+        for (AuditEventType type : AuditEventType.values()) {
+            rules.put(type, getRule(type, processDefinitionKey));
+        }
+        return rules;
+    }
+
+    public Set<String> getConfiguredProcesses() {
+        return table.processRules.keySet();
+    }
+
+    public void setRule(AuditEventType type, AuditTierRule rule) {
+        requireAdjustable(type);
+        typeOverrides.put(type, validate(rule));
+        log.info("Audit tier for {} set to {}", type, rule);
+        rebuild();
+    }
+
+    public void setRule(String processDefinitionKey, AuditEventType type, AuditTierRule rule) {
+        requireAdjustable(type);
+        processOverrides.computeIfAbsent(processDefinitionKey, key -> new ConcurrentHashMap<>()).put(type, validate(rule));
+        log.info("Audit tier for {} in process {} set to {}", type, processDefinitionKey, rule);
+        rebuild();
+    }
+
+    public void clearOverrides() {
+        typeOverrides.clear();
+        processOverrides.clear();
+        log.info("Audit tier overrides cleared");
+        rebuild();
+    }
+
+    public List<AuditTierCount> getCounts() {
+        List<AuditTierCount> counts = new ArrayList<>();
+        states.forEach((key, byType) -> {
+            for (AuditEventType type : AuditEventType.values()) {
+                TierState state = byType[type.ordinal()];
+                if (state != null) {
+                    counts.add(new AuditTierCount(key, type, getRule(type, key).getTier(),
+                            state.seen.get(), state.written.sum()));
+                }
+            }
+        });
+        return counts;
+    }
+
+    // One summary record per (process, event type) that only had aggregated events
+    void flushAggregates() {
+        states.forEach((key, byType) -> {
+            for (AuditEventType type : AuditEventType.values()) {
+                TierState state = byType[type.ordinal()];
+                long count = state != null ? state.aggregated.sumThenReset() : 0;
+                if (count > 0) {
+                    sideEffectDispatcher.publish(AuditRecord.builder()
+                            .type(type)
+                            .timestamp(System.currentTimeMillis())
+                            .processDefinitionKey(UNKNOWN_PROCESS.equals(key) ? null : key)
+                            .detail("aggregated count=" + count)
+                            .build());
+                }
+            }
+        });
+    }
+
+    private TierState stateFor(String key, AuditEventType type) {
+        TierState[] byType = states.computeIfAbsent(key, k -> new TierState[AuditEventType.values().length]);
+        TierState state = byType[type.ordinal()];
+        if (state == null) {
+            synchronized (byType) {
+                state = byType[type.ordinal()];
+                if (state == null) {
+                    state = new TierState();
+                    byType[type.ordinal()] = state;
+                }
+            }
+        }
+        return state;
+    }
+
+    private synchronized void rebuild() {
+        Map<AuditEventType, AuditTierRule> defaults = new EnumMap<>(AuditEventType.class);
+        defaults.putAll(properties.getEventTypes());
+        defaults.putAll(typeOverrides);
+
+        Map<String, Map<AuditEventType, AuditTierRule>> byProcess = new HashMap<>();
+        properties.getProcesses().forEach((key, rules) -> byProcess.computeIfAbsent(key, k -> new EnumMap<>(AuditEventType.class)).putAll(rules));
+        processOverrides.forEach((key, rules) -> byProcess.computeIfAbsent(key, k -> new EnumMap<>(AuditEventType.class)).putAll(rules));
+
+        table = new TierTable(defaults, byProcess);
+    }
+
+    private void requireAdjustable(AuditEventType type) {
+        if (LOSSLESS_TYPES.contains(type)) {
+            throw new IllegalArgumentException("Audit tier of task event " + type + " cannot be changed");
+        }
+    }
+
+    private AuditTierRule validate(AuditTierRule rule) {
+        if (rule == null || rule.getTier() == null) {
+            throw new IllegalArgumentException("Audit tier rule must specify a tier");
+        }
+        if (rule.getSampleEvery() < 1 || rule.getMaxPerSecond() < 0) {
+            throw new IllegalArgumentException("sampleEvery must be >= 1 and maxPerSecond >= 0");
+        }
+        return new AuditTierRule(rule.getTier(), rule.getSampleEvery(), rule.getMaxPerSecond());
+    }
+
+    private static class TierTable {
+        private final AuditTierRule[] defaults = new AuditTierRule[AuditEventType.values().length];
+        private final Map<String, AuditTierRule[]> processRules = new HashMap<>();
+
+        TierTable(Map<AuditEventType, AuditTierRule> defaultRules, Map<String, Map<AuditEventType, AuditTierRule>> byProcess) {
+            Arrays.fill(defaults, AuditTierRule.ALWAYS);
+            defaultRules.forEach((type, rule) -> defaults[type.ordinal()] = rule);
+            byProcess.forEach((key, rules) -> {
+                AuditTierRule[] resolved = defaults.clone();
+                rules.forEach((type, rule) -> resolved[type.ordinal()] = rule);
+                processRules.put(key, resolved);
+            });
+        }
+
+        AuditTierRule resolve(String processDefinitionKey, AuditEventType type) {
+            AuditTierRule[] rules = processRules.get(processDefinitionKey);
+            return (rules != null ? rules : defaults)[type.ordinal()];
+        }
+    }
+
+    private static class TierState {
+        private final AtomicLong seen = new AtomicLong();
+        private final LongAdder written = new LongAdder();
+        private final LongAdder aggregated = new LongAdder();
+        // Current second in the high bits, rows written in it in the low 24 bits
+        private final AtomicLong rateWindow = new AtomicLong();
+
+        boolean tryAcquire(int maxPerSecond) {
+            long second = System.currentTimeMillis() / 1000;
+            for (;;) {
+                long current = rateWindow.get();
+                long windowSecond = current >>> 24;
+                long used = current & 0xFFFFFF;
+                long next;
+                if (windowSecond != second) {
+                    next = (second << 24) | 1;
+                } else if (used < maxPerSecond) {
+                    next = current + 1;
+                } else {
+                    return false;
+                }
+                if (rateWindow.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
+
+@RestController
+@RequestMapping("/api/admin/audit-tiers")
+@Slf4j
+public class AuditTierController {
+
+    @Autowired
+    private AuditTierPolicy auditTierPolicy;
+
+    @GetMapping
+    public ResponseEntity<Map<String, Object>> getAuditTiers() {
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("default", auditTierPolicy.getEffectiveRules(null));
+        Map<String, Map<AuditEventType, AuditTierRule>> processes = new TreeMap<>();
+        for (String processDefinitionKey : auditTierPolicy.getConfiguredProcesses()) {
+            processes.put(processDefinitionKey, auditTierPolicy.getEffectiveRules(processDefinitionKey));
+        }
+        response.put("processes", processes);
+        return ResponseEntity.ok(response);
+    }
+
+    @GetMapping("/counts")
+    public ResponseEntity<List<AuditTierCount>> getAuditTierCounts() {
+        return ResponseEntity.ok(auditTierPolicy.getCounts());
+    }
+
+    @PutMapping("/{eventType}")
+    public ResponseEntity<String> setAuditTier(@PathVariable AuditEventType eventType,
+                                               @RequestBody AuditTierRule rule) {
+        try {
+            auditTierPolicy.setRule(eventType, rule);
+            return ResponseEntity.ok("Audit tier for " + eventType + " set to " + rule.getTier());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    @PutMapping("/{processDefinitionKey}/{eventType}")
+    public ResponseEntity<String> setProcessAuditTier(@PathVariable String processDefinitionKey,
+                                                      @PathVariable AuditEventType eventType,
+                                                      @RequestBody AuditTierRule rule) {
+        try {
+            auditTierPolicy.setRule(processDefinitionKey, eventType, rule);
+            return ResponseEntity.ok("Audit tier for " + eventType + " in " + processDefinitionKey
+                    + " set to " + rule.getTier());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    @DeleteMapping
+    public ResponseEntity<Void> clearAuditTierOverrides() {
+        auditTierPolicy.clearOverrides();
+        return ResponseEntity.noContent().build();
+    }
+}
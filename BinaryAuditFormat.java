@@ -0,0 +1,1047 @@
+// Dictionary-encoded binary audit records
+//
+// With workflow.audit.store: BINARY the audit writer appends to local segment files
+// instead of the AUDIT_LOG table. The strings that repeat on every event
+// (processDefinitionKey, activityId, activityName, transitionId, taskName, actor) are
+// interned once into a persistent dictionary and stored as int codes; process
+// instance, task and event ids are packed into 16 bytes (UUID, decimal id, or the
+// outbox "<row>:<index>" pair); anything else, including detail, goes to a string
+// heap next to the segment. Every record has the same size, so a scan is a linear
+// walk over a memory-mapped file and filters on type, definition, activity or actor
+// compare ints without decoding a string.
+//
+// Files in the directory:
+//
+//   audit.dict                     int magic, int version, then per entry: int UTF-8
+//                                  length, bytes; entry n (from 1) has code n, 0 = null
+//   <first sequence>.audit         16 byte header (int magic, short version, short record
+//                                  size, long creation time), then RECORD_SIZE records
+//   <first sequence>.strings       int UTF-8 length, bytes; addressed by file offset
+//
+// Record layout (big endian, 104 bytes):
+//
+//    0  long   timestamp (epoch ms)
+//    8  long   durationMs, Long.MIN_VALUE = null
+//   16  long   detail offset in .strings, -1 = null
+//   24  16     processInstanceId      }
+//   40  16     taskId                 } id slots, kind in the kinds field
+//   56  16     eventId                }
+//   72  int    processDefinitionKey   }
+//   76  int    activityId             }
+//   80  int    activityName           } dictionary codes
+//   84  int    transitionId           }
+//   88  int    taskName               }
+//   92  int    actor                  }
+//   96  byte   AuditEventType ordinal (only append new constants to AuditEventType)
+//   97  byte   reserved
+//   98  short  id kinds, 3 bits per slot (processInstanceId, taskId, eventId):
+//              0 null, 1 UUID, 2 decimal, 3 decimal pair "a:b", 4 .strings offset
+//  100  int    reserved
+//
+// Dictionary entries and heap strings are written before the records that reference
+// them; a torn record at the end of the last segment or a torn dictionary entry is cut
+// off on startup, and whatever a failed write got onto disk is cut off right away so
+// the retry appends at the same place. Redelivered outbox records are appended again with the same eventId,
+// AuditDump --distinct drops the repeats.
+//
+//   java -cp app.jar AuditDump ./data/audit --type=ACTIVITY_ENDED --process=invoice --limit=100
+//   java -cp app.jar AuditDump ./data/audit --stats
+//
+// application.yml:
+//
+// workflow:
+//   audit:
+//     store: BINARY                  # default JDBC
+//     binary:
+//       directory: ./data/audit
+//       segment-size-mb: 64
+//       force: true
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "workflow.audit.binary")
+public class BinaryAuditProperties {
+    private String directory = "./data/audit";
+    // At most 1024, segments are mapped as one buffer when read
+    private int segmentSizeMb = 64;
+    // fsync every batch, like the commit of the JDBC store
+    private boolean force = true;
+}
+
+// Persistent string <-> code mapping; codes are never reused or reassigned
+@Slf4j
+public final class AuditDictionary implements Closeable {
+
+    static final int MAGIC = 0x57464144;
+    static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    private final FileChannel channel;
+    private final boolean writable;
+    private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<>();
+    // Index = code, [0] is null; replaced when grown, readers see a consistent prefix
+    private volatile String[] values = new String[1024];
+    private volatile int size = 1;
+    private long readPosition = HEADER_SIZE;
+    // End of the last complete write, where the next one starts
+    private long writePosition = HEADER_SIZE;
+    // Interned but not yet written, kept until a write succeeds
+    private final List<byte[]> unwritten = new ArrayList<>();
+
+    private AuditDictionary(FileChannel channel, boolean writable) {
+        this.channel = channel;
+        this.writable = writable;
+    }
+
+    public static AuditDictionary open(Path path, boolean writable) throws IOException {
+        FileChannel channel = writable
+                ? FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ);
+        AuditDictionary dictionary = new AuditDictionary(channel, writable);
+        if (channel.size() == 0 && writable) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            channel.write(header, 0);
+            channel.force(true);
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            if (header.getInt(0) != MAGIC) {
+                channel.close();
+                throw new IOException("Not an audit dictionary: " + path);
+            }
+            dictionary.refresh();
+            if (writable && channel.size() > dictionary.readPosition) {
+                log.warn("Cutting {} bytes of torn entries off {}",
+                        channel.size() - dictionary.readPosition, path);
+                channel.truncate(dictionary.readPosition);
+            }
+            dictionary.writePosition = dictionary.readPosition;
+        }
+        return dictionary;
+    }
+
+    // Writer thread only; null is code 0
+    public int intern(String value) {
+        if (value == null) {
+            return 0;
+        }
+        Integer code = codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        int next = size;
+        add(next, value);
+        unwritten.add(value.getBytes(StandardCharsets.UTF_8));
+        return next;
+    }
+
+    // Code of a known value, -1 if it was never interned
+    public int codeOf(String value) {
+        if (value == null) {
+            return 0;
+        }
+        Integer code = codes.get(value);
+        return code != null ? code : -1;
+    }
+
+    public String lookup(int code) {
+        if (code == 0) {
+            return null;
+        }
+        if (code >= size && !writable) {
+            // Written by the store after this reader loaded the file
+            try {
+                refresh();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        if (code >= size) {
+            throw new IllegalStateException("Unknown audit dictionary code " + code);
+        }
+        return values[code];
+    }
+
+    public int size() {
+        return size - 1;
+    }
+
+    // Appends entries interned since the last write, before the records using them;
+    // a failed write is cut off again and the entries are kept for the next attempt
+    void write(boolean force) throws IOException {
+        if (unwritten.isEmpty()) {
+            return;
+        }
+        int bytes = 0;
+        for (byte[] entry : unwritten) {
+            bytes += 4 + entry.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(bytes);
+        for (byte[] entry : unwritten) {
+            buffer.putInt(entry.length).put(entry);
+        }
+        buffer.flip();
+        long position = writePosition;
+        try {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            if (force) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            truncate(channel, writePosition, e);
+            throw e;
+        }
+        writePosition = position;
+        unwritten.clear();
+    }
+
+    // Reads entries appended since the last read; stops at a torn entry
+    synchronized void refresh() throws IOException {
+        long available = channel.size() - readPosition;
+        if (available <= 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) available);
+        while (buffer.hasRemaining() && channel.read(buffer, readPosition + buffer.position()) >= 0) {
+        }
+        buffer.flip();
+        while (buffer.remaining() >= 4) {
+            int length = buffer.getInt(buffer.position());
+            if (length < 0 || buffer.remaining() - 4 < length) {
+                break;
+            }
+            buffer.getInt();
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            add(size, new String(bytes, StandardCharsets.UTF_8));
+            readPosition += 4 + length;
+        }
+    }
+
+    private void add(int code, String value) {
+        String[] current = values;
+        if (code == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[code] = value;
+        values = current;
+        codes.put(value, code);
+        size = code + 1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Cuts a partially written append off so the retry starts at the same place
+    static void truncate(FileChannel channel, long size, IOException failure) {
+        try {
+            if (channel.size() > size) {
+                channel.truncate(size);
+            }
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
+}
+
+// Encodes and decodes AuditRecord <-> fixed-width records, see the layout above
+public final class AuditRecordCodec {
+
+    public static final int RECORD_SIZE = 104;
+    public static final int SEGMENT_MAGIC = 0x57464152;
+    public static final short SEGMENT_VERSION = 1;
+    public static final int SEGMENT_HEADER_SIZE = 16;
+
+    static final int TIMESTAMP = 0;
+    static final int DURATION = 8;
+    static final int DETAIL = 16;
+    static final int PROCESS_INSTANCE_ID = 24;
+    static final int TASK_ID = 40;
+    static final int EVENT_ID = 56;
+    static final int PROCESS_DEFINITION_KEY = 72;
+    static final int ACTIVITY_ID = 76;
+    static final int ACTIVITY_NAME = 80;
+    static final int TRANSITION_ID = 84;
+    static final int TASK_NAME = 88;
+    static final int ACTOR = 92;
+    static final int TYPE = 96;
+    static final int ID_KINDS = 98;
+
+    static final int ID_NULL = 0;
+    static final int ID_UUID = 1;
+    static final int ID_DECIMAL = 2;
+    static final int ID_DECIMAL_PAIR = 3;
+    static final int ID_STRING = 4;
+
+    private static final AuditEventType[] TYPES = AuditEventType.values();
+
+    private AuditRecordCodec() {
+    }
+
+    // Interns into the dictionary; heap stores a string and returns its offset
+    public static void encode(AuditRecord record, AuditDictionary dictionary, ToLongFunction<String> heap,
+                              ByteBuffer out, int at) {
+        out.putLong(at + TIMESTAMP, record.getTimestamp());
+        out.putLong(at + DURATION, record.getDurationMs() != null ? record.getDurationMs() : Long.MIN_VALUE);
+        out.putLong(at + DETAIL, record.getDetail() != null ? heap.applyAsLong(record.getDetail()) : -1);
+        int kinds = putId(out, at + PROCESS_INSTANCE_ID, record.getProcessInstanceId(), heap)
+                | putId(out, at + TASK_ID, record.getTaskId(), heap) << 3
+                | putId(out, at + EVENT_ID, record.getEventId(), heap) << 6;
+        out.putInt(at + PROCESS_DEFINITION_KEY, dictionary.intern(record.getProcessDefinitionKey()));
+        out.putInt(at + ACTIVITY_ID, dictionary.intern(record.getActivityId()));
+        out.putInt(at + ACTIVITY_NAME, dictionary.intern(record.getActivityName()));
+        out.putInt(at + TRANSITION_ID, dictionary.intern(record.getTransitionId()));
+        out.putInt(at + TASK_NAME, dictionary.intern(record.getTaskName()));
+        out.putInt(at + ACTOR, dictionary.intern(record.getActor()));
+        out.put(at + TYPE, (byte) record.getType().ordinal());
+        out.put(at + TYPE + 1, (byte) 0);
+        out.putShort(at + ID_KINDS, (short) kinds);
+        out.putInt(at + ID_KINDS + 2, 0);
+    }
+
+    public static AuditRecord decode(ByteBuffer in, int at, AuditDictionary dictionary, LongFunction<String> heap) {
+        int kinds = in.getShort(at + ID_KINDS);
+        long duration = in.getLong(at + DURATION);
+        long detail = in.getLong(at + DETAIL);
+        return AuditRecord.builder()
+                .timestamp(in.getLong(at + TIMESTAMP))
+                .type(type(in, at))
+                .durationMs(duration != Long.MIN_VALUE ? duration : null)
+                .detail(detail >= 0 ? heap.apply(detail) : null)
+                .processInstanceId(getId(in, at + PROCESS_INSTANCE_ID, kinds & 7, heap))
+                .taskId(getId(in, at + TASK_ID, kinds >> 3 & 7, heap))
+                .eventId(getId(in, at + EVENT_ID, kinds >> 6 & 7, heap))
+                .processDefinitionKey(dictionary.lookup(in.getInt(at + PROCESS_DEFINITION_KEY)))
+                .activityId(dictionary.lookup(in.getInt(at + ACTIVITY_ID)))
+                .activityName(dictionary.lookup(in.getInt(at + ACTIVITY_NAME)))
+                .transitionId(dictionary.lookup(in.getInt(at + TRANSITION_ID)))
+                .taskName(dictionary.lookup(in.getInt(at + TASK_NAME)))
+                .actor(dictionary.lookup(in.getInt(at + ACTOR)))
+                .build();
+    }
+
+    static AuditEventType type(ByteBuffer in, int at) {
+        return TYPES[in.get(at + TYPE)];
+    }
+
+    static String getId(ByteBuffer in, int at, int kind, LongFunction<String> heap) {
+        long high = in.getLong(at);
+        long low = in.getLong(at + 8);
+        switch (kind) {
+            case ID_UUID:
+                return new UUID(high, low).toString();
+            case ID_DECIMAL:
+                return Long.toString(low);
+            case ID_DECIMAL_PAIR:
+                return high + ":" + low;
+            case ID_STRING:
+                return heap.apply(low);
+            default:
+                return null;
+        }
+    }
+
+    private static int putId(ByteBuffer out, int at, String id, ToLongFunction<String> heap) {
+        long high = 0;
+        long low;
+        int kind;
+        if (id == null) {
+            low = 0;
+            kind = ID_NULL;
+        } else if (isCanonicalUuid(id)) {
+            UUID uuid = UUID.fromString(id);
+            high = uuid.getMostSignificantBits();
+            low = uuid.getLeastSignificantBits();
+            kind = ID_UUID;
+        } else if ((low = parseDecimal(id, 0, id.length())) >= 0) {
+            kind = ID_DECIMAL;
+        } else {
+            int colon = id.indexOf(':');
+            if (colon > 0 && (high = parseDecimal(id, 0, colon)) >= 0
+                    && (low = parseDecimal(id, colon + 1, id.length())) >= 0) {
+                kind = ID_DECIMAL_PAIR;
+            } else {
+                high = 0;
+                low = heap.applyAsLong(id);
+                kind = ID_STRING;
+            }
+        }
+        out.putLong(at, high);
+        out.putLong(at + 8, low);
+        return kind;
+    }
+
+    // Lower case 8-4-4-4-12, the form UUID.toString() gives back
+    private static boolean isCanonicalUuid(String id) {
+        if (id.length() != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = id.charAt(i);
+            boolean hyphen = i == 8 || i == 13 || i == 18 || i == 23;
+            if (hyphen ? c != '-' : !(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Non-negative decimal without leading zeros and at most 18 digits, else -1
+    private static long parseDecimal(String s, int from, int to) {
+        int length = to - from;
+        if (length == 0 || length > 18 || length > 1 && s.charAt(from) == '0') {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
+
+@Component
+@ConditionalOnProperty(prefix = "workflow.audit", name = "store", havingValue = "BINARY")
+@Slf4j
+public class BinaryAuditStore implements AuditStore {
+
+    @Autowired
+    private BinaryAuditProperties properties;
+
+    private Path directory;
+    private AuditDictionary dictionary;
+    private FileChannel records;
+    private FileChannel strings;
+    private long nextSequence;
+    private long segmentSize;
+
+    private ByteBuffer recordBuffer = ByteBuffer.allocateDirect(AuditRecordCodec.RECORD_SIZE * 512);
+    private ByteArrayOutputStream stringBuffer = new ByteArrayOutputStream();
+    private DataOutputStream stringOut = new DataOutputStream(stringBuffer);
+    private long stringsPosition;
+    // End of the last complete batch; writes go here, not to the file size a failed write left
+    private long recordsPosition;
+
+    private final LongAdder written = new LongAdder();
+
+    @PostConstruct
+    public synchronized void open() throws IOException {
+        directory = Paths.get(properties.getDirectory());
+        Files.createDirectories(directory);
+        segmentSize = Math.min(1024, Math.max(1, properties.getSegmentSizeMb())) * 1024L * 1024L;
+        dictionary = AuditDictionary.open(directory.resolve("audit.dict"), true);
+
+        List<Path> segments = AuditRecordReader.segments(directory);
+        if (segments.isEmpty()) {
+            openSegment(0);
+        } else {
+            Path last = segments.get(segments.size() - 1);
+            long first = AuditRecordReader.firstSequence(last);
+            records = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long count = (records.size() - AuditRecordCodec.SEGMENT_HEADER_SIZE) / AuditRecordCodec.RECORD_SIZE;
+            long valid = AuditRecordCodec.SEGMENT_HEADER_SIZE + count * AuditRecordCodec.RECORD_SIZE;
+            if (records.size() > valid) {
+                log.warn("Cutting a torn audit record off {}", last);
+                records.truncate(valid);
+            }
+            strings = FileChannel.open(stringsFile(last), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            stringsPosition = strings.size();
+            recordsPosition = valid;
+            nextSequence = first + count;
+        }
+        log.info("Binary audit store opened - directory: {}, next sequence: {}, dictionary entries: {}",
+                directory, nextSequence, dictionary.size());
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (records != null) {
+            records.close();
+            strings.close();
+            dictionary.close();
+        }
+    }
+
+    @Override
+    public synchronized void write(List<AuditRecord> batch) {
+        long stringsStart = stringsPosition;
+        try {
+            int bytes = batch.size() * AuditRecordCodec.RECORD_SIZE;
+            if (recordsPosition + bytes > segmentSize && recordsPosition > AuditRecordCodec.SEGMENT_HEADER_SIZE) {
+                rollSegment();
+                stringsStart = stringsPosition;
+            }
+            if (recordBuffer.capacity() < bytes) {
+                recordBuffer = ByteBuffer.allocateDirect(bytes);
+            }
+            recordBuffer.clear();
+            stringBuffer.reset();
+            for (int i = 0; i < batch.size(); i++) {
+                AuditRecordCodec.encode(batch.get(i), dictionary, this::appendString,
+                        recordBuffer, i * AuditRecordCodec.RECORD_SIZE);
+            }
+            recordBuffer.limit(bytes);
+
+            // Everything a record refers to is on disk before the record
+            dictionary.write(properties.isForce());
+            if (stringBuffer.size() > 0) {
+                writeFully(strings, ByteBuffer.wrap(stringBuffer.toByteArray()), stringsPosition);
+                stringsPosition += stringBuffer.size();
+                if (properties.isForce()) {
+                    strings.force(false);
+                }
+            }
+            writeFully(records, recordBuffer, recordsPosition);
+            if (properties.isForce()) {
+                records.force(false);
+            }
+            recordsPosition += bytes;
+            nextSequence += batch.size();
+            written.add(batch.size());
+        } catch (IOException e) {
+            // Back to the state before the batch: AuditBatchWriter retries it (or its records
+            // one by one), and those appends must start where this one did. Dictionary entries
+            // that made it to disk stay, their codes are already handed out.
+            AuditDictionary.truncate(records, recordsPosition, e);
+            AuditDictionary.truncate(strings, stringsStart, e);
+            stringsPosition = stringsStart;
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    public int getDictionarySize() {
+        return dictionary.size();
+    }
+
+    private long appendString(String value) {
+        try {
+            long offset = stringsPosition + stringBuffer.size();
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            stringOut.writeInt(bytes.length);
+            stringOut.write(bytes);
+            return offset;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        records.force(false);
+        strings.force(false);
+        records.close();
+        strings.close();
+        openSegment(nextSequence);
+    }
+
+    private void openSegment(long firstSequence) throws IOException {
+        Path segment = directory.resolve(String.format("%020d.audit", firstSequence));
+        records = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(AuditRecordCodec.SEGMENT_HEADER_SIZE)
+                .putInt(AuditRecordCodec.SEGMENT_MAGIC)
+                .putShort(AuditRecordCodec.SEGMENT_VERSION)
+                .putShort((short) AuditRecordCodec.RECORD_SIZE)
+                .putLong(System.currentTimeMillis());
+        header.flip();
+        writeFully(records, header, 0);
+        recordsPosition = AuditRecordCodec.SEGMENT_HEADER_SIZE;
+        strings = FileChannel.open(stringsFile(segment), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        stringsPosition = strings.size();
+        nextSequence = firstSequence;
+    }
+
+    static Path stringsFile(Path segment) {
+        String name = segment.getFileName().toString();
+        return segment.resolveSibling(name.substring(0, name.length() - ".audit".length()) + ".strings");
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
+
+// One record of a mapped segment; valid only inside the scan callback
+public final class AuditRecordView {
+
+    private final AuditDictionary dictionary;
+    private ByteBuffer buffer;
+    private int offset;
+    private LongFunction<String> heap;
+    private long sequence;
+
+    AuditRecordView(AuditDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    void moveTo(ByteBuffer buffer, int offset, LongFunction<String> heap, long sequence) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.heap = heap;
+        this.sequence = sequence;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTimestamp() {
+        return buffer.getLong(offset + AuditRecordCodec.TIMESTAMP);
+    }
+
+    public AuditEventType getType() {
+        return AuditRecordCodec.type(buffer, offset);
+    }
+
+    public int getProcessDefinitionKeyCode() {
+        return buffer.getInt(offset + AuditRecordCodec.PROCESS_DEFINITION_KEY);
+    }
+
+    public int getActivityIdCode() {
+        return buffer.getInt(offset + AuditRecordCodec.ACTIVITY_ID);
+    }
+
+    public int getTransitionIdCode() {
+        return buffer.getInt(offset + AuditRecordCodec.TRANSITION_ID);
+    }
+
+    public int getActorCode() {
+        return buffer.getInt(offset + AuditRecordCodec.ACTOR);
+    }
+
+    public String getProcessInstanceId() {
+        return AuditRecordCodec.getId(buffer, offset + AuditRecordCodec.PROCESS_INSTANCE_ID,
+                buffer.getShort(offset + AuditRecordCodec.ID_KINDS) & 7, heap);
+    }
+
+    public String getEventId() {
+        return AuditRecordCodec.getId(buffer, offset + AuditRecordCodec.EVENT_ID,
+                buffer.getShort(offset + AuditRecordCodec.ID_KINDS) >> 6 & 7, heap);
+    }
+
+    public AuditRecord toRecord() {
+        return AuditRecordCodec.decode(buffer, offset, dictionary, heap);
+    }
+}
+
+// Read-only access to a binary audit directory; usable while the store appends
+public final class AuditRecordReader implements Closeable {
+
+    private final Path directory;
+    private final AuditDictionary dictionary;
+
+    public AuditRecordReader(Path directory) throws IOException {
+        this.directory = directory;
+        this.dictionary = AuditDictionary.open(directory.resolve("audit.dict"), false);
+    }
+
+    public AuditDictionary getDictionary() {
+        return dictionary;
+    }
+
+    // Visits records in sequence order until the visitor returns false; returns the number visited
+    public long scan(Predicate<AuditRecordView> visitor) throws IOException {
+        AuditRecordView view = new AuditRecordView(dictionary);
+        long visited = 0;
+        for (Path segment : segments(directory)) {
+            long first = firstSequence(segment);
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ);
+                 SegmentStrings strings = new SegmentStrings(BinaryAuditStore.stringsFile(segment))) {
+                long size = channel.size();
+                long count = (size - AuditRecordCodec.SEGMENT_HEADER_SIZE) / AuditRecordCodec.RECORD_SIZE;
+                if (count <= 0) {
+                    continue;
+                }
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        AuditRecordCodec.SEGMENT_HEADER_SIZE + count * AuditRecordCodec.RECORD_SIZE);
+                if (buffer.getInt(0) != AuditRecordCodec.SEGMENT_MAGIC
+                        || buffer.getShort(6) != AuditRecordCodec.RECORD_SIZE) {
+                    throw new IOException("Not an audit segment of this version: " + segment);
+                }
+                for (int i = 0; i < count; i++) {
+                    view.moveTo(buffer, AuditRecordCodec.SEGMENT_HEADER_SIZE + i * AuditRecordCodec.RECORD_SIZE,
+                            strings, first + i);
+                    visited++;
+                    if (!visitor.test(view)) {
+                        return visited;
+                    }
+                }
+            }
+        }
+        return visited;
+    }
+
+    public long getSizeInBytes() throws IOException {
+        long bytes = Files.size(directory.resolve("audit.dict"));
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".audit") || name.endsWith(".strings")) {
+                    bytes += Files.size(file);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        dictionary.close();
+    }
+
+    static List<Path> segments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".audit"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    static long firstSequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - ".audit".length()));
+    }
+
+    // Heap strings of one segment, mapped on first use and again when the store appended more
+    private static final class SegmentStrings implements LongFunction<String>, Closeable {
+        private final Path path;
+        private FileChannel channel;
+        private MappedByteBuffer buffer;
+
+        SegmentStrings(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        public String apply(long offset) {
+            try {
+                if (buffer == null || offset + 4 > buffer.capacity()
+                        || offset + 4 + buffer.getInt((int) offset) > buffer.capacity()) {
+                    if (channel == null) {
+                        channel = FileChannel.open(path, StandardOpenOption.READ);
+                    }
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+                int length = buffer.getInt((int) offset);
+                byte[] bytes = new byte[length];
+                buffer.get((int) offset + 4, bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+}
+
+// Command line dumper for a binary audit directory
+public class AuditDump {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: AuditDump <directory> [--type=<AuditEventType>] [--process=<definition key>]");
+            System.err.println("                 [--activity=<activity id>] [--actor=<user>] [--instance=<id>]");
+            System.err.println("                 [--from=<ISO instant>] [--to=<ISO instant>] [--limit=<n>] [--distinct] [--stats]");
+            System.exit(2);
+        }
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            int separator = arg.indexOf('=');
+            options.put(separator > 0 ? arg.substring(2, separator) : arg.substring(2),
+                    separator > 0 ? arg.substring(separator + 1) : "true");
+        }
+
+        try (AuditRecordReader reader = new AuditRecordReader(Paths.get(args[0]))) {
+            AuditDictionary dictionary = reader.getDictionary();
+            Predicate<AuditRecordView> filter = filter(options, dictionary);
+            long limit = Long.parseLong(options.getOrDefault("limit", String.valueOf(Long.MAX_VALUE)));
+            boolean stats = options.containsKey("stats");
+            Set<String> seenEventIds = options.containsKey("distinct") ? new HashSet<>() : null;
+
+            long[] matched = new long[1];
+            Map<AuditEventType, Long> perType = new EnumMap<>(AuditEventType.class);
+            Map<Integer, Long> perDefinition = new HashMap<>();
+            long started = System.nanoTime();
+            long scanned = reader.scan(view -> {
+                if (!filter.test(view)) {
+                    return true;
+                }
+                if (seenEventIds != null) {
+                    String eventId = view.getEventId();
+                    if (eventId != null && !seenEventIds.add(eventId)) {
+                        return true;
+                    }
+                }
+                matched[0]++;
+                if (stats) {
+                    perType.merge(view.getType(), 1L, Long::sum);
+                    perDefinition.merge(view.getProcessDefinitionKeyCode(), 1L, Long::sum);
+                } else {
+                    System.out.println(format(view.getSequence(), view.toRecord()));
+                }
+                return matched[0] < limit;
+            });
+            long elapsedNanos = System.nanoTime() - started;
+
+            if (stats) {
+                long bytes = reader.getSizeInBytes();
+                System.out.printf("Records: %d scanned, %d matched in %.1f ms (%.0f MB/s)%n", scanned, matched[0],
+                        elapsedNanos / 1e6, scanned * (double) AuditRecordCodec.RECORD_SIZE / 1e6 / (elapsedNanos / 1e9));
+                System.out.printf("Storage: %d bytes, %.1f bytes per record, %d dictionary entries%n",
+                        bytes, scanned > 0 ? (double) bytes / scanned : 0, dictionary.size());
+                perType.forEach((type, count) -> System.out.printf("  %-22s %d%n", type, count));
+                perDefinition.forEach((code, count) -> System.out.printf("  %-22s %d%n",
+                        code == 0 ? "(none)" : dictionary.lookup(code), count));
+            }
+        }
+    }
+
+    // Dictionary filters compare codes; a value that was never interned matches nothing
+    private static Predicate<AuditRecordView> filter(Map<String, String> options, AuditDictionary dictionary) {
+        Predicate<AuditRecordView> filter = view -> true;
+        if (options.containsKey("type")) {
+            AuditEventType type = AuditEventType.valueOf(options.get("type"));
+            filter = filter.and(view -> view.getType() == type);
+        }
+        if (options.containsKey("process")) {
+            int code = dictionary.codeOf(options.get("process"));
+            filter = filter.and(view -> view.getProcessDefinitionKeyCode() == code);
+        }
+        if (options.containsKey("activity")) {
+            int code = dictionary.codeOf(options.get("activity"));
+            filter = filter.and(view -> view.getActivityIdCode() == code);
+        }
+        if (options.containsKey("actor")) {
+            int code = dictionary.codeOf(options.get("actor"));
+            filter = filter.and(view -> view.getActorCode() == code);
+        }
+        if (options.containsKey("from")) {
+            long from = Instant.parse(options.get("from")).toEpochMilli();
+            filter = filter.and(view -> view.getTimestamp() >= from);
+        }
+        if (options.containsKey("to")) {
+            long to = Instant.parse(options.get("to")).toEpochMilli();
+            filter = filter.and(view -> view.getTimestamp() < to);
+        }
+        if (options.containsKey("instance")) {
+            String instance = options.get("instance");
+            filter = filter.and(view -> instance.equals(view.getProcessInstanceId()));
+        }
+        return filter;
+    }
+
+    private static String format(long sequence, AuditRecord record) {
+        StringBuilder line = new StringBuilder()
+                .append(sequence).append(' ')
+                .append(Instant.ofEpochMilli(record.getTimestamp())).append(' ')
+                .append(record.getType());
+        append(line, "process", record.getProcessDefinitionKey());
+        append(line, "instance", record.getProcessInstanceId());
+        append(line, "task", record.getTaskId());
+        append(line, "taskName", record.getTaskName());
+        append(line, "activity", record.getActivityId());
+        append(line, "activityName", record.getActivityName());
+        append(line, "transition", record.getTransitionId());
+        append(line, "durationMs", record.getDurationMs());
+        append(line, "actor", record.getActor());
+        append(line, "detail", record.getDetail());
+        append(line, "eventId", record.getEventId());
+        return line.toString();
+    }
+
+    private static void append(StringBuilder line, String name, Object value) {
+        if (value != null) {
+            line.append(' ').append(name).append('=').append(value);
+        }
+    }
+}
+
+class BinaryAuditFormatTest {
+
+    @TempDir
+    Path directory;
+
+    private final List<Closeable> opened = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() throws IOException {
+        for (Closeable closeable : opened) {
+            closeable.close();
+        }
+    }
+
+    @Test
+    void testCodecRoundTrip() throws IOException {
+        AuditDictionary dictionary = dictionary(true);
+        List<String> heap = new ArrayList<>();
+        ToLongFunction<String> append = value -> {
+            heap.add(value);
+            return heap.size() - 1;
+        };
+        List<AuditRecord> records = List.of(
+                record("3f2b8c1e-9a4d-4e6f-8b1a-2c3d4e5f6a7b", "42", "17:3")
+                        .detail("d\u00e9tail").durationMs(1500L).build(),
+                // Upper case UUID, leading zero and a non-numeric pair go to the heap
+                record("3F2B8C1E-9A4D-4E6F-8B1A-2C3D4E5F6A7B", "007", "row:3").build(),
+                record(null, null, null).actor(null).transitionId("flow_1").durationMs(0L).build());
+
+        ByteBuffer buffer = ByteBuffer.allocate(records.size() * AuditRecordCodec.RECORD_SIZE);
+        for (int i = 0; i < records.size(); i++) {
+            AuditRecordCodec.encode(records.get(i), dictionary, append, buffer, i * AuditRecordCodec.RECORD_SIZE);
+        }
+
+        for (int i = 0; i < records.size(); i++) {
+            AuditRecord decoded = AuditRecordCodec.decode(buffer, i * AuditRecordCodec.RECORD_SIZE,
+                    dictionary, offset -> heap.get((int) offset));
+            assertThat(decoded).isEqualTo(records.get(i));
+        }
+        assertThat(heap).containsExactly("d\u00e9tail", "3F2B8C1E-9A4D-4E6F-8B1A-2C3D4E5F6A7B", "007", "row:3");
+        assertThat(AuditRecordCodec.type(buffer, 0)).isEqualTo(AuditEventType.ACTIVITY_ENDED);
+    }
+
+    @Test
+    void testDictionaryIsReadBackAfterReopen() throws IOException {
+        AuditDictionary writer = dictionary(true);
+        assertThat(writer.intern(null)).isZero();
+        int approval = writer.intern("approval");
+        int reviewer = writer.intern("r\u00e9viewer");
+        assertThat(writer.intern("approval")).isEqualTo(approval);
+        writer.write(false);
+
+        AuditDictionary reader = dictionary(false);
+        assertThat(reader.size()).isEqualTo(2);
+        assertThat(reader.lookup(approval)).isEqualTo("approval");
+        assertThat(reader.lookup(reviewer)).isEqualTo("r\u00e9viewer");
+        assertThat(reader.codeOf("approval")).isEqualTo(approval);
+        assertThat(reader.codeOf("unknown")).isEqualTo(-1);
+
+        // Entries written after the reader loaded the file are picked up on lookup
+        int invoice = writer.intern("invoice");
+        writer.write(false);
+        assertThat(reader.lookup(invoice)).isEqualTo("invoice");
+        assertThatThrownBy(() -> reader.lookup(invoice + 1)).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void testTornDictionaryEntryIsCutOff() throws IOException {
+        AuditDictionary writer = dictionary(true);
+        writer.intern("approval");
+        writer.write(false);
+        writer.close();
+        opened.remove(writer);
+        // Length of an entry whose bytes never made it
+        try (FileChannel channel = FileChannel.open(directory.resolve("audit.dict"), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(6).putInt(0, 40), channel.size());
+        }
+
+        AuditDictionary recovered = dictionary(true);
+        assertThat(recovered.size()).isEqualTo(1);
+        int invoice = recovered.intern("invoice");
+        recovered.write(false);
+
+        AuditDictionary reader = dictionary(false);
+        assertThat(reader.lookup(1)).isEqualTo("approval");
+        assertThat(reader.lookup(invoice)).isEqualTo("invoice");
+    }
+
+    @Test
+    void testStoreRecordsAreScannedBackAfterReopen() throws IOException {
+        BinaryAuditStore store = store();
+        List<AuditRecord> first = List.of(record("pi-1", "1", "1:0").detail("first").build(),
+                record("pi-2", "2", "1:1").build());
+        store.write(first);
+        store.close();
+
+        BinaryAuditStore reopened = store();
+        List<AuditRecord> second = List.of(record("pi-3", "3", "2:0").build());
+        reopened.write(second);
+
+        assertThat(scan()).containsExactlyElementsOf(Stream.concat(first.stream(), second.stream())
+                .collect(Collectors.toList()));
+    }
+
+    @Test
+    void testFailedWriteIsCutOffBeforeTheRetry() throws IOException {
+        BinaryAuditStore store = store();
+        List<AuditRecord> first = List.of(record("pi-1", "1", "1:0").build());
+        store.write(first);
+        Path segment = AuditRecordReader.segments(directory).get(0);
+        long size = Files.size(segment);
+
+        // The strings write fails after a part of the batch reached the segment
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(AuditRecordCodec.RECORD_SIZE + 10), size);
+        }
+        FileChannel strings = (FileChannel) ReflectionTestUtils.getField(store, "strings");
+        FileChannel closed = FileChannel.open(BinaryAuditStore.stringsFile(segment), StandardOpenOption.READ);
+        closed.close();
+        ReflectionTestUtils.setField(store, "strings", closed);
+        List<AuditRecord> second = List.of(record("pi-2", "2", "2:0").detail("second").build());
+        assertThatThrownBy(() -> store.write(second)).isInstanceOf(UncheckedIOException.class);
+        assertThat(Files.size(segment)).isEqualTo(size);
+
+        ReflectionTestUtils.setField(store, "strings", strings);
+        store.write(second);
+        assertThat(scan()).containsExactly(first.get(0), second.get(0));
+    }
+
+    private AuditDictionary dictionary(boolean writable) throws IOException {
+        AuditDictionary dictionary = AuditDictionary.open(directory.resolve("audit.dict"), writable);
+        opened.add(dictionary);
+        return dictionary;
+    }
+
+    private BinaryAuditStore store() throws IOException {
+        BinaryAuditProperties properties = new BinaryAuditProperties();
+        properties.setDirectory(directory.toString());
+        properties.setForce(false);
+        BinaryAuditStore store = new BinaryAuditStore();
+        ReflectionTestUtils.setField(store, "properties", properties);
+        store.open();
+        opened.add(store::close);
+        return store;
+    }
+
+    private List<AuditRecord> scan() throws IOException {
+        List<AuditRecord> records = new ArrayList<>();
+        try (AuditRecordReader reader = new AuditRecordReader(directory)) {
+            reader.scan(view -> records.add(view.toRecord()));
+        }
+        return records;
+    }
+
+    private static AuditRecord.AuditRecordBuilder record(String processInstanceId, String taskId, String eventId) {
+        return AuditRecord.builder()
+                .timestamp(1000)
+                .type(AuditEventType.ACTIVITY_ENDED)
+                .processInstanceId(processInstanceId)
+                .processDefinitionKey("approval")
+                .taskId(taskId)
+                .taskName("Approval Task")
+                .activityId("approvalTask")
+                .activityName("Approval Task")
+                .actor("hr.manager")
+                .eventId(eventId);
+    }
+}
@@ -74,6 +74,12 @@ public class CamundaEventSubscriber {
     @Autowired
     private AuditService auditService;
     
+    @Autowired
+    private TaskArchiver taskArchiver;
+    
+    @Autowired
+    private ProcessCounters processCounters;
+    
     // Subscribe to Task Events in Camunda 7
     @EventListener
     public void handleTaskEvent(DelegateTask delegateTask) {
@@ -123,6 +129,12 @@ public class CamundaEventSubscriber {
         }
     }
     
+    @EventListener
+    public void handleProcessEnd(ProcessEndEvent event) {
+        // Final counter values become process variables
+        processCounters.complete(event.getExecution());
+    }
+    
     // Specific Task Event Handlers
     private void handleTaskCreate(DelegateTask task) {
         // Log task creation
@@ -242,8 +254,8 @@ public class CamundaEventSubscriber {
         
         // Handle conditional flows
         if ("approvalRejected".equals(currentTransitionId)) {
-            execution.setVariable("rejectionCount", 
-                ((Integer) execution.getVariable("rejectionCount")) + 1);
+            // A process counter, concurrent paths no longer conflict on a variable row
+            processCounters.increment(execution, "rejectionCount");
         }
     }
     
@@ -271,7 +283,7 @@ public class CamundaEventSubscriber {
     private void handleReviewTaskStart(DelegateExecution execution) {
         // Set review parameters
         execution.setVariable("reviewStarted", true);
-        execution.setVariable("reviewerCount", 0);
+        processCounters.reset(execution, "reviewerCount");
     }
     
     private void handleApprovalTaskEnd(DelegateExecution execution) {
@@ -286,9 +298,9 @@ public class CamundaEventSubscriber {
     }
     
     private void archiveTaskData(DelegateTask task) {
-        // Archive task data to external system
-        log.info("Archiving data for completed task: {}", task.getId());
-        // Implementation for archiving
+        // Buffered and written to columnar segments once the completion commits
+        log.debug("Archiving data for completed task: {}", task.getId());
+        taskArchiver.archive(task);
     }
 }
 
@@ -298,19 +310,27 @@ public class CamundaEventSubscriber {
 public class CamundaConfig {
     
     @Bean
-    public ProcessEnginePlugin customListenerPlugin() {
+    public ProcessEnginePlugin customListenerPlugin(ActivityHandlerRegistry activityHandlerRegistry,
+                                                    ListenerAttachmentProperties listenerAttachmentProperties,
+                                                    ListenerAttachmentReport listenerAttachmentReport,
+                                                    AuditTierPolicy auditTierPolicy) {
         return new ProcessEnginePlugin() {
             @Override
             public void preInit(ProcessEngineConfigurationImpl processEngineConfiguration) {
-                // Register global task listeners
-                List<TaskListener> globalTaskListeners = new ArrayList<>();
-                globalTaskListeners.add(new GlobalTaskListener());
-                processEngineConfiguration.setCustomPreTaskListeners(globalTaskListeners);
-                
-                // Register global execution listeners
-                List<ExecutionListener> globalExecutionListeners = new ArrayList<>();
-                globalExecutionListeners.add(new GlobalExecutionListener());
-                processEngineConfiguration.setCustomPreExecutionListeners(globalExecutionListeners);
+                // Attach the global listeners only to the BPMN elements that need them,
+                // decided once per element when a deployment is parsed
+                List<BpmnParseListener> preParseListeners = processEngineConfiguration.getCustomPreBPMNParseListeners();
+                if (preParseListeners == null) {
+                    preParseListeners = new ArrayList<>();
+                    processEngineConfiguration.setCustomPreBPMNParseListeners(preParseListeners);
+                }
+                preParseListeners.add(new SelectiveListenerParseListener(
+                        activityHandlerRegistry,
+                        listenerAttachmentProperties,
+                        listenerAttachmentReport,
+                        auditTierPolicy,
+                        new GlobalTaskListener(),
+                        new GlobalExecutionListener()));
             }
             
             @Override
@@ -59,6 +59,152 @@ logging:
   pattern:
     console: "%d{yyyy-MM-dd HH:mm:ss} - %msg%n"
 
+# Workflow event handling
+workflow:
+  audit:
+    store: JDBC
+    binary:
+      directory: ./data/audit
+      segment-size-mb: 64
+      force: true
+    buffer-capacity: 65536
+    flush-size: 500
+    flush-interval-ms: 200
+    max-attempts: 5
+    retry-backoff-ms: 1000
+    shutdown-timeout-ms: 10000
+    tiers:
+      aggregate-flush-interval-ms: 60000
+      event-types:
+        SEQUENCE_FLOW_TAKEN:
+          tier: SAMPLED
+          sample-every: 10
+          max-per-second: 200
+  events:
+    dispatch-mode: OUTBOX
+    lanes:
+      enabled: false
+      lanes: 0
+      capacity-per-lane: 10000
+      hot-lane-watermark: 0.5
+      block-warning-ms: 1000
+      after-commit: true
+    queue:
+      enabled: true
+      capacity: 10000
+      lanes: 2
+      block-timeout-ms: 50
+      low-value-watermark: 0.5
+      spill-directory: ./data/spill
+      max-spill-mb: 512
+      replay-interval-ms: 5000
+      default-policy: BLOCK
+      policies:
+        "[AuditRecord.SEQUENCE_FLOW_TAKEN]": DROP
+        AuditRecord: SPILL
+        NotificationMessage: BLOCK
+  outbox:
+    relay-enabled: true
+    partitions: 4
+    batch-size: 200
+    poll-interval-ms: 200
+    max-attempts: 10
+    initial-backoff-ms: 1000
+    max-backoff-ms: 300000
+  journal:
+    enabled: true
+    directory: ./data/journal
+    segment-size-mb: 64
+    retained-segments: 16
+    force-interval-ms: 1000
+  history:
+    mode: SYNC
+    sink: JDBC
+    capacity: 50000
+    flush-size: 500
+    flush-interval-ms: 200
+    block-timeout-ms: 100
+    max-attempts: 5
+    retry-backoff-ms: 1000
+    shutdown-timeout-ms: 30000
+    sync-event-types: HistoricProcessInstanceEventEntity:end
+    policy:
+      enabled: true
+      file: ./config/history-policy.yml
+      reload-interval-ms: 5000
+  archive:
+    enabled: true
+    directory: ./data/task-archive
+    segment-rows: 50000
+    flush-interval-ms: 60000
+    max-buffered-rows: 200000
+    max-value-length: 1024
+    compression-level: 6
+  timing:
+    max-entries: 100000
+    max-age-hours: 168
+  notifications:
+    max-concurrency-per-channel: 16
+    timeout-ms: 5000
+    max-attempts: 4
+    initial-backoff-ms: 200
+    max-backoff-ms: 10000
+    circuit-breaker-failure-threshold: 5
+    circuit-breaker-open-ms: 30000
+    max-pending-deliveries: 10000
+    coalescing:
+      enabled: true
+      window-ms: 30000
+      max-batch-size: 50
+      coalesced-types: TASK_ASSIGNMENT, TASK_COMPLETION, TASK_CANCELLATION
+      urgent-types: FINAL_APPROVAL, REJECTION, DEADLINE_ESCALATION
+      urgent-priority-threshold: 75
+      shutdown-timeout-ms: 10000
+  instrumentation:
+    enabled: true
+    track-variables: true
+    count-statements: true
+    slow-threshold-ms: 50
+    watchdog-interval-ms: 10
+    stack-trace-interval-ms: 60000
+  counters:
+    flush-interval-ms: 5000
+    idle-eviction-ms: 600000
+  assignment:
+    strategy: LEAST_LOAD
+    pool-refresh-interval-ms: 300000
+    fallback-assignee: default.manager
+    pools:
+      hr:
+        - user-id: hr.manager
+      finance:
+        - user-id: finance.manager
+      it:
+        - user-id: it.manager
+      legal:
+        - user-id: legal.manager
+  kpi:
+    slice-ms: 10000
+    windows-ms: 60000, 300000, 900000
+    histogram-sub-bucket-bits: 4
+    max-process-definitions: 200
+    reconcile-interval-ms: 60000
+  deadlines:
+    enabled: true
+    tick-ms: 1000
+    slots-per-level: 256
+    levels: 4
+    definitions:
+      approval:
+        variable: approvalDeadline
+        activity: approvalTask
+      review:
+        variable: reviewDeadline
+        activity: reviewTask
+  listeners:
+    audited-activity-types: userTask, serviceTask, sendTask, receiveTask, scriptTask,
+                            businessRuleTask, manualTask, task, callActivity, subProcess
+
 
 
 
@@ -70,6 +216,7 @@ logging:
 
 
 @Component
+@ActivityHandlers
 @Slf4j
 public class CamundaEventSubscriber {
     
@@ -79,115 +226,183 @@ public class CamundaEventSubscriber {
     @Autowired
     private AuditService auditService;
     
+    @Autowired
+    private ActivityTimingCache activityTimingCache;
+    
+    @Autowired
+    private ActivityLatencyRegistry activityLatencyRegistry;
+    
+    @Autowired
+    private ActivityHandlerRegistry activityHandlerRegistry;
+    
+    @Autowired
+    private EventJournalService eventJournalService;
+    
+    @Autowired
+    private HandlerInstrumentation handlerInstrumentation;
+    
+    @Autowired
+    private VariablePrefetcher variablePrefetcher;
+    
+    @Autowired
+    private ProcessCounters processCounters;
+    
+    @Autowired
+    private DeadlineMonitor deadlineMonitor;
+    
+    @Autowired
+    private AssignmentEngine assignmentEngine;
+    
+    @Autowired
+    private ProcessKpiAggregator processKpiAggregator;
+    
+    // Variables each handler reads, fetched in one batch per event
+    private static final VariablePlan TASK_CREATE_VARIABLES = VariablePlan.of("priority", "department");
+    private static final VariablePlan TASK_COMPLETE_VARIABLES = VariablePlan.of("assignedDate", "processOwner");
+    private static final VariablePlan PROCESS_END_VARIABLES = VariablePlan.of("processStartTime");
+    
     // Camunda 7 Spring Boot Event Listeners
     @EventListener
     public void handleTaskCreate(TaskCreateEvent event) {
-        DelegateTask task = event.getTask();
-        log.info("Task Created - ID: {}, Name: {}, ProcessInstance: {}", 
-                task.getId(), task.getName(), task.getProcessInstanceId());
+        try (HandlerScope scope = handlerInstrumentation.begin("handleTaskCreate")) {
+            DelegateTask task = event.getTask();
+            log.info("Task Created - ID: {}, Name: {}, ProcessInstance: {}", 
+                    task.getId(), task.getName(), task.getProcessInstanceId());
         
-        handleTaskCreate(task);
+            eventJournalService.recordTaskEvent(AuditEventType.TASK_CREATED, task);
+            handleTaskCreate(task);
+        }
     }
     
     @EventListener
     public void handleTaskAssign(TaskAssignEvent event) {
-        DelegateTask task = event.getTask();
-        log.info("Task Assigned - ID: {}, Assignee: {}", task.getId(), task.getAssignee());
+        try (HandlerScope scope = handlerInstrumentation.begin("handleTaskAssignment")) {
+            DelegateTask task = event.getTask();
+            log.info("Task Assigned - ID: {}, Assignee: {}", task.getId(), task.getAssignee());
         
-        handleTaskAssignment(task);
+            eventJournalService.recordTaskEvent(AuditEventType.TASK_ASSIGNED, task);
+            handleTaskAssignment(task);
+        }
     }
     
     @EventListener
     public void handleTaskComplete(TaskCompleteEvent event) {
-        DelegateTask task = event.getTask();
-        log.info("Task Completed - ID: {}, CompletedBy: {}", task.getId(), task.getAssignee());
+        try (HandlerScope scope = handlerInstrumentation.begin("handleTaskComplete")) {
+            DelegateTask task = event.getTask();
+            log.info("Task Completed - ID: {}, CompletedBy: {}", task.getId(), task.getAssignee());
         
-        handleTaskComplete(task);
+            eventJournalService.recordTaskEvent(AuditEventType.TASK_COMPLETED, task);
+            handleTaskComplete(task);
+        }
     }
     
     @EventListener
     public void handleTaskDelete(TaskDeleteEvent event) {
-        DelegateTask task = event.getTask();
-        log.info("Task Deleted - ID: {}, Reason: {}", task.getId(), task.getDeleteReason());
+        try (HandlerScope scope = handlerInstrumentation.begin("handleTaskDelete")) {
+            DelegateTask task = event.getTask();
+            log.info("Task Deleted - ID: {}, Reason: {}", task.getId(), task.getDeleteReason());
         
-        handleTaskDelete(task);
+            eventJournalService.recordTaskEvent(AuditEventType.TASK_DELETED, task);
+            handleTaskDelete(task);
+        }
     }
     
     @EventListener
     public void handleExecutionStart(ExecutionStartEvent event) {
-        DelegateExecution execution = event.getExecution();
-        log.info("Execution Started - Activity: {}, ProcessInstance: {}", 
-                execution.getCurrentActivityId(), execution.getProcessInstanceId());
+        try (HandlerScope scope = handlerInstrumentation.begin("handleExecutionStart")) {
+            DelegateExecution execution = event.getExecution();
+            log.info("Execution Started - Activity: {}, ProcessInstance: {}", 
+                    execution.getCurrentActivityId(), execution.getProcessInstanceId());
         
-        handleExecutionStart(execution);
+            eventJournalService.recordExecutionEvent(AuditEventType.ACTIVITY_STARTED, execution);
+            handleExecutionStart(execution);
+        }
     }
     
     @EventListener
     public void handleExecutionEnd(ExecutionEndEvent event) {
-        DelegateExecution execution = event.getExecution();
-        log.info("Execution Ended - Activity: {}, ProcessInstance: {}", 
-                execution.getCurrentActivityId(), execution.getProcessInstanceId());
+        try (HandlerScope scope = handlerInstrumentation.begin("handleExecutionEnd")) {
+            DelegateExecution execution = event.getExecution();
+            log.info("Execution Ended - Activity: {}, ProcessInstance: {}", 
+                    execution.getCurrentActivityId(), execution.getProcessInstanceId());
         
-        handleExecutionEnd(execution);
+            eventJournalService.recordExecutionEvent(AuditEventType.ACTIVITY_ENDED, execution);
+            handleExecutionEnd(execution);
+        }
     }
     
     @EventListener
     public void handleSequenceFlowTake(SequenceFlowTakeEvent event) {
-        DelegateExecution execution = event.getExecution();
-        log.info("Sequence Flow Taken - Transition: {}, ProcessInstance: {}", 
-                execution.getCurrentTransitionId(), execution.getProcessInstanceId());
+        try (HandlerScope scope = handlerInstrumentation.begin("handleExecutionTake")) {
+            DelegateExecution execution = event.getExecution();
+            log.debug("Sequence Flow Taken - Transition: {}, ProcessInstance: {}", 
+                    execution.getCurrentTransitionId(), execution.getProcessInstanceId());
         
-        handleExecutionTake(execution);
+            eventJournalService.recordExecutionEvent(AuditEventType.SEQUENCE_FLOW_TAKEN, execution);
+            handleExecutionTake(execution);
+        }
     }
     
     @EventListener
     public void handleProcessStart(ProcessStartEvent event) {
-        DelegateExecution execution = event.getExecution();
-        log.info("Process Started - ProcessInstance: {}, ProcessDefinition: {}", 
-                execution.getProcessInstanceId(), execution.getProcessDefinitionId());
+        try (HandlerScope scope = handlerInstrumentation.begin("handleProcessStart")) {
+            DelegateExecution execution = event.getExecution();
+            log.info("Process Started - ProcessInstance: {}, ProcessDefinition: {}", 
+                    execution.getProcessInstanceId(), execution.getProcessDefinitionId());
         
-        handleProcessStart(execution);
+            eventJournalService.recordExecutionEvent(AuditEventType.PROCESS_STARTED, execution);
+            handleProcessStart(execution);
+        }
     }
     
     @EventListener
     public void handleProcessEnd(ProcessEndEvent event) {
-        DelegateExecution execution = event.getExecution();
-        log.info("Process Ended - ProcessInstance: {}, ProcessDefinition: {}", 
-                execution.getProcessInstanceId(), execution.getProcessDefinitionId());
+        try (HandlerScope scope = handlerInstrumentation.begin("handleProcessEnd")) {
+            DelegateExecution execution = event.getExecution();
+            log.info("Process Ended - ProcessInstance: {}, ProcessDefinition: {}", 
+                    execution.getProcessInstanceId(), execution.getProcessDefinitionId());
         
-        handleProcessEnd(execution);
+            eventJournalService.recordExecutionEvent(AuditEventType.PROCESS_ENDED, execution);
+            handleProcessEnd(execution);
+        }
     }
     
     // Business Logic Handlers
     private void handleTaskCreate(DelegateTask task) {
+        VariableSnapshot variables = variablePrefetcher.fetch(task, TASK_CREATE_VARIABLES);
+        
         // Log task creation
         auditService.logTaskCreation(task.getId(), task.getName(), task.getProcessInstanceId());
         
         // Set default due date for high priority tasks
-        if (task.getDueDate() == null && "high".equals(task.getVariable("priority"))) {
+        if (task.getDueDate() == null && "high".equals(variables.getValue("priority"))) {
             Calendar cal = Calendar.getInstance();
             cal.add(Calendar.DAY_OF_MONTH, 1);
             task.setDueDate(cal.getTime());
             log.info("Set due date for high priority task: {}", task.getId());
         }
         
-        // Auto-assign based on department
-        String department = (String) task.getVariable("department");
+        // Auto-assign to the least loaded member of the department's pool
+        String department = variables.getString("department");
         if (department != null && task.getAssignee() == null) {
-            String defaultAssignee = getDefaultAssigneeForDepartment(department);
-            if (defaultAssignee != null) {
-                task.setAssignee(defaultAssignee);
-                log.info("Auto-assigned task {} to {}", task.getId(), defaultAssignee);
-            }
+            String assignee = assignmentEngine.selectAssignee(department);
+            task.setAssignee(assignee);
+            log.info("Auto-assigned task {} to {}", task.getId(), assignee);
         }
         
         // Set task variables
-        task.setVariable("createdDate", new Date());
-        task.setVariable("taskStatus", "CREATED");
+        variables.set("createdDate", new Date());
+        variables.set("taskStatus", "CREATED");
+        
+        // The instance waits here, persist its counters
+        processCounters.flushAtWaitState(task.getProcessInstanceId());
     }
     
     private void handleTaskAssignment(DelegateTask task) {
+        VariableSnapshot variables = variablePrefetcher.fetch(task, VariablePlan.NONE);
         String assignee = task.getAssignee();
+        // Keep the open-task counts current, also when a task is unclaimed
+        assignmentEngine.onAssigned(task.getId(), assignee);
         if (assignee != null) {
             // Send notification to assignee
             notificationService.sendTaskAssignmentNotification(assignee, task);
@@ -196,18 +411,20 @@ public class CamundaEventSubscriber {
             auditService.logTaskAssignment(task.getId(), assignee);
             
             // Update task variables
-            task.setVariable("assignedDate", new Date());
-            task.setVariable("assignedBy", "system");
-            task.setVariable("taskStatus", "ASSIGNED");
+            variables.set("assignedDate", new Date());
+            variables.set("assignedBy", "system");
+            variables.set("taskStatus", "ASSIGNED");
         }
     }
     
     private void handleTaskComplete(DelegateTask task) {
+        VariableSnapshot variables = variablePrefetcher.fetch(task, TASK_COMPLETE_VARIABLES);
+        
         // Calculate task duration
-        Date assignedDate = (Date) task.getVariable("assignedDate");
+        Date assignedDate = variables.getDate("assignedDate");
         if (assignedDate != null) {
             long durationHours = (new Date().getTime() - assignedDate.getTime()) / (1000 * 60 * 60);
-            task.setVariable("taskDurationHours", durationHours);
+            variables.set("taskDurationHours", durationHours);
             log.info("Task {} completed in {} hours", task.getId(), durationHours);
         }
         
@@ -215,19 +432,21 @@ public class CamundaEventSubscriber {
         auditService.logTaskCompletion(task.getId(), task.getAssignee());
         
         // Send completion notification to process owner
-        String processOwner = (String) task.getVariable("processOwner");
+        String processOwner = variables.getString("processOwner");
         if (processOwner != null) {
             notificationService.sendTaskCompletionNotification(processOwner, task);
         }
         
         // Update task status
-        task.setVariable("completedDate", new Date());
-        task.setVariable("taskStatus", "COMPLETED");
+        variables.set("completedDate", new Date());
+        variables.set("taskStatus", "COMPLETED");
+        assignmentEngine.onClosed(task.getId());
     }
     
     private void handleTaskDelete(DelegateTask task) {
         String deleteReason = task.getDeleteReason();
         auditService.logTaskDeletion(task.getId(), deleteReason);
+        assignmentEngine.onClosed(task.getId());
         
         // Notify assignee if task was cancelled
         if (task.getAssignee() != null && !"completed".equals(deleteReason)) {
@@ -245,23 +464,14 @@ public class CamundaEventSubscriber {
         }
         
         // Log activity start
-        auditService.logActivityStart(execution.getProcessInstanceId(), activityId, activityName);
-        
-        // Set activity timing
-        execution.setVariable(activityId + "_startTime", new Date());
-        
-        // Handle specific activities
-        switch (activityId) {
-            case "approvalTask":
-                handleApprovalTaskStart(execution);
-                break;
-            case "reviewTask":
-                handleReviewTaskStart(execution);
-                break;
-            case "notificationTask":
-                handleNotificationTaskStart(execution);
-                break;
-        }
+        auditService.logActivityStart(execution.getProcessInstanceId(),
+                ProcessDefinitionKeys.of(execution.getProcessDefinitionId()), activityId, activityName);
+        
+        // Track activity timing in memory (no process variable write)
+        activityTimingCache.recordStart(execution);
+        
+        // Handle specific activities (see @ActivityHandler methods)
+        activityHandlerRegistry.dispatch(execution, ExecutionListener.EVENTNAME_START, activityId);
     }
     
     private void handleExecutionEnd(DelegateExecution execution) {
@@ -274,122 +484,142 @@ public class CamundaEventSubscriber {
         }
         
         // Calculate activity duration
-        Date startTime = (Date) execution.getVariable(activityId + "_startTime");
-        if (startTime != null) {
-            long durationMs = new Date().getTime() - startTime.getTime();
-            execution.setVariable(activityId + "_duration", durationMs);
+        Long durationMs = activityTimingCache.recordEnd(execution);
+        String processDefinitionKey = ProcessDefinitionKeys.of(execution.getProcessDefinitionId());
+        if (durationMs != null) {
+            activityLatencyRegistry.record(processDefinitionKey, activityId, durationMs);
             log.info("Activity {} completed in {} ms", activityId, durationMs);
         }
         
         // Log activity completion
-        auditService.logActivityEnd(execution.getProcessInstanceId(), activityId, activityName);
+        auditService.logActivityEnd(execution.getProcessInstanceId(), processDefinitionKey,
+                activityId, activityName, durationMs);
         
         // Handle specific activity completions
-        if ("approvalTask".equals(activityId)) {
-            handleApprovalTaskEnd(execution);
-        }
+        activityHandlerRegistry.dispatch(execution, ExecutionListener.EVENTNAME_END, activityId);
     }
     
     private void handleExecutionTake(DelegateExecution execution) {
         String currentTransitionId = execution.getCurrentTransitionId();
         
-        // Log sequence flow taken
-        auditService.logSequenceFlowTaken(execution.getProcessInstanceId(), currentTransitionId);
+        // Log sequence flow taken (subject to the configured audit tier)
+        auditService.logSequenceFlowTaken(execution.getProcessInstanceId(),
+                ProcessDefinitionKeys.of(execution.getProcessDefinitionId()), currentTransitionId);
         
         // Handle conditional flows
-        if ("approvalRejected".equals(currentTransitionId)) {
-            Integer rejectionCount = (Integer) execution.getVariable("rejectionCount");
-            if (rejectionCount == null) rejectionCount = 0;
-            execution.setVariable("rejectionCount", rejectionCount + 1);
-            
-            log.info("Process {} rejected {} times", execution.getProcessInstanceId(), rejectionCount + 1);
-        } else if ("approvalApproved".equals(currentTransitionId)) {
-            execution.setVariable("approvalDate", new Date());
-            log.info("Process {} approved", execution.getProcessInstanceId());
+        if (currentTransitionId != null) {
+            activityHandlerRegistry.dispatch(execution, ExecutionListener.EVENTNAME_TAKE, currentTransitionId);
         }
     }
     
     private void handleProcessStart(DelegateExecution execution) {
-        String processDefinitionKey = execution.getProcessDefinitionId().split(":")[0];
+        String processDefinitionKey = ProcessDefinitionKeys.of(execution.getProcessDefinitionId());
+        VariableSnapshot variables = variablePrefetcher.fetch(execution, VariablePlan.NONE);
         auditService.logProcessStart(execution.getProcessInstanceId(), processDefinitionKey);
         
         // Set process-level variables
-        execution.setVariable("processStartTime", new Date());
-        execution.setVariable("processStatus", "RUNNING");
-        execution.setVariable("rejectionCount", 0);
+        variables.set("processStartTime", new Date());
+        variables.set("processStatus", "RUNNING");
+        processCounters.reset(execution, "rejectionCount");
         
         // Initialize process tracking
+        processKpiAggregator.processStarted(processDefinitionKey);
         notificationService.sendProcessStartNotification(execution.getProcessInstanceId(), processDefinitionKey);
     }
     
     private void handleProcessEnd(DelegateExecution execution) {
-        String processDefinitionKey = execution.getProcessDefinitionId().split(":")[0];
+        String processDefinitionKey = ProcessDefinitionKeys.of(execution.getProcessDefinitionId());
+        VariableSnapshot variables = variablePrefetcher.fetch(execution, PROCESS_END_VARIABLES);
         
         // Calculate process duration
-        Date startTime = (Date) execution.getVariable("processStartTime");
+        Date startTime = variables.getDate("processStartTime");
+        Long durationMs = null;
         if (startTime != null) {
-            long durationMs = new Date().getTime() - startTime.getTime();
-            execution.setVariable("processDuration", durationMs);
+            durationMs = new Date().getTime() - startTime.getTime();
+            variables.set("processDuration", durationMs);
+            activityLatencyRegistry.record(processDefinitionKey, ActivityLatencyRegistry.PROCESS_SCOPE, durationMs);
             log.info("Process {} completed in {} ms", execution.getProcessInstanceId(), durationMs);
         }
+        processKpiAggregator.processEnded(processDefinitionKey, durationMs, execution.isCanceled());
         
         auditService.logProcessEnd(execution.getProcessInstanceId(), processDefinitionKey);
         
         // Set final status
-        execution.setVariable("processEndTime", new Date());
-        execution.setVariable("processStatus", "COMPLETED");
+        variables.set("processEndTime", new Date());
+        variables.set("processStatus", "COMPLETED");
+        
+        // Final counter values become process variables
+        processCounters.complete(execution);
         
         // Send process completion notification
         notificationService.sendProcessEndNotification(execution.getProcessInstanceId(), processDefinitionKey);
     }
     
-    // Helper methods
-    private String getDefaultAssigneeForDepartment(String department) {
-        switch (department.toLowerCase()) {
-            case "hr": return "hr.manager";
-            case "finance": return "finance.manager";
-            case "it": return "it.manager";
-            case "legal": return "legal.manager";
-            default: return "default.manager";
-        }
-    }
-    
-    private void handleApprovalTaskStart(DelegateExecution execution) {
+    // Activity handlers, looked up through ActivityHandlerRegistry
+    @ActivityHandler(activity = "approvalTask", event = ExecutionListener.EVENTNAME_START)
+    void handleApprovalTaskStart(DelegateExecution execution, VariableSnapshot variables) {
         // Set approval deadline (3 business days)
         Calendar cal = Calendar.getInstance();
         cal.add(Calendar.DAY_OF_MONTH, 3);
-        execution.setVariable("approvalDeadline", cal.getTime());
+        variables.set("approvalDeadline", cal.getTime());
+        deadlineMonitor.schedule(execution, "approval", cal.getTime());
         
         // Initialize approval tracking
-        execution.setVariable("approvalLevel", 1);
-        execution.setVariable("approvalStarted", true);
+        variables.set("approvalLevel", 1);
+        variables.set("approvalStarted", true);
         
         log.info("Approval process started for {}", execution.getProcessInstanceId());
     }
     
-    private void handleReviewTaskStart(DelegateExecution execution) {
-        // Set review parameters
-        execution.setVariable("reviewStarted", true);
-        execution.setVariable("reviewerCount", 0);
-        execution.setVariable("reviewDeadline", new Date(System.currentTimeMillis() + 2 * 24 * 60 * 60 * 1000)); // 2 days
+    @ActivityHandler(activity = "reviewTask", event = ExecutionListener.EVENTNAME_START)
+    void handleReviewTaskStart(DelegateExecution execution, VariableSnapshot variables) {
+        // Set review parameters, reviewerCount is a process counter (see ProcessCounters)
+        variables.set("reviewStarted", true);
+        processCounters.reset(execution, "reviewerCount");
+        Date reviewDeadline = new Date(System.currentTimeMillis() + 2 * 24 * 60 * 60 * 1000); // 2 days
+        variables.set("reviewDeadline", reviewDeadline);
+        deadlineMonitor.schedule(execution, "review", reviewDeadline);
         
         log.info("Review process started for {}", execution.getProcessInstanceId());
     }
     
-    private void handleNotificationTaskStart(DelegateExecution execution) {
-        // Prepare notification data
-        execution.setVariable("notificationSent", false);
-        execution.setVariable("notificationAttempts", 0);
+    @ActivityHandler(activity = "reviewTask", event = ExecutionListener.EVENTNAME_END)
+    void handleReviewTaskEnd(DelegateExecution execution) {
+        deadlineMonitor.cancel(execution.getProcessInstanceId(), "review");
+    }
+    
+    @ActivityHandler(activity = "notificationTask", event = ExecutionListener.EVENTNAME_START)
+    void handleNotificationTaskStart(DelegateExecution execution, VariableSnapshot variables) {
+        // Prepare notification data, notificationAttempts is a process counter
+        variables.set("notificationSent", false);
+        processCounters.reset(execution, "notificationAttempts");
         
         log.info("Notification task started for {}", execution.getProcessInstanceId());
     }
     
-    private void handleApprovalTaskEnd(DelegateExecution execution) {
-        Boolean approved = (Boolean) execution.getVariable("approved");
-        String approver = (String) execution.getVariable("approver");
+    @ActivityHandler(activity = "approvalRejected", event = ExecutionListener.EVENTNAME_TAKE)
+    void handleApprovalRejected(DelegateExecution execution) {
+        // No variable write, concurrent paths no longer conflict on the counter
+        long rejectionCount = processCounters.increment(execution, "rejectionCount");
+        
+        log.info("Process {} rejected {} times", execution.getProcessInstanceId(), rejectionCount);
+    }
+    
+    @ActivityHandler(activity = "approvalApproved", event = ExecutionListener.EVENTNAME_TAKE)
+    void handleApprovalApproved(DelegateExecution execution, VariableSnapshot variables) {
+        variables.set("approvalDate", new Date());
+        log.info("Process {} approved", execution.getProcessInstanceId());
+    }
+    
+    @ActivityHandler(activity = "approvalTask", event = ExecutionListener.EVENTNAME_END,
+                     variables = {"approved", "approver"})
+    void handleApprovalTaskEnd(DelegateExecution execution, VariableSnapshot variables) {
+        Boolean approved = variables.getBoolean("approved");
+        String approver = variables.getString("approver");
+        deadlineMonitor.cancel(execution.getProcessInstanceId(), "approval");
         
         if (approved != null && approved) {
-            execution.setVariable("finalApprovalDate", new Date());
+            variables.set("finalApprovalDate", new Date());
             log.info("Process {} finally approved by {}", execution.getProcessInstanceId(), approver);
             notificationService.sendFinalApprovalNotification(execution.getProcessInstanceId(), approver);
         } else {
@@ -404,34 +634,69 @@ public class CamundaEventSubscriber {
 @Slf4j
 public class NotificationService {
     
+    @Autowired
+    private SideEffectDispatcher sideEffectDispatcher;
+    
     public void sendTaskAssignmentNotification(String assignee, DelegateTask task) {
-        log.info("📧 Sending assignment notification to {} for task '{}'", assignee, task.getName());
-        // Implementation: Send email, SMS, or push notification
+        publish(taskMessage(NotificationType.TASK_ASSIGNMENT, assignee, task));
     }
     
     public void sendTaskCompletionNotification(String recipient, DelegateTask task) {
-        log.info("✅ Sending completion notification to {} for task '{}'", recipient, task.getName());
+        publish(taskMessage(NotificationType.TASK_COMPLETION, recipient, task));
     }
     
     public void sendTaskCancellationNotification(String assignee, DelegateTask task, String reason) {
-        log.info("❌ Sending cancellation notification to {} for task '{}' - Reason: {}", 
-                assignee, task.getName(), reason);
+        publish(taskMessage(NotificationType.TASK_CANCELLATION, assignee, task).reason(reason));
     }
     
     public void sendProcessStartNotification(String processInstanceId, String processDefinitionKey) {
-        log.info("🚀 Process started - Instance: {}, Definition: {}", processInstanceId, processDefinitionKey);
+        publish(NotificationMessage.builder()
+                .type(NotificationType.PROCESS_START)
+                .processInstanceId(processInstanceId)
+                .processDefinitionKey(processDefinitionKey));
     }
     
     public void sendProcessEndNotification(String processInstanceId, String processDefinitionKey) {
-        log.info("🏁 Process completed - Instance: {}, Definition: {}", processInstanceId, processDefinitionKey);
+        publish(NotificationMessage.builder()
+                .type(NotificationType.PROCESS_END)
+                .processInstanceId(processInstanceId)
+                .processDefinitionKey(processDefinitionKey));
     }
     
     public void sendFinalApprovalNotification(String processInstanceId, String approver) {
-        log.info("✅ Final approval notification for process {} approved by {}", processInstanceId, approver);
+        publish(NotificationMessage.builder()
+                .type(NotificationType.FINAL_APPROVAL)
+                .processInstanceId(processInstanceId)
+                .actor(approver));
     }
     
     public void sendRejectionNotification(String processInstanceId, String approver) {
-        log.info("❌ Rejection notification for process {} rejected by {}", processInstanceId, approver);
+        publish(NotificationMessage.builder()
+                .type(NotificationType.REJECTION)
+                .processInstanceId(processInstanceId)
+                .actor(approver));
+    }
+    
+    public void sendDeadlineEscalationNotification(String processInstanceId, String activityId, Date deadline) {
+        publish(NotificationMessage.builder()
+                .type(NotificationType.DEADLINE_ESCALATION)
+                .processInstanceId(processInstanceId)
+                .reason(activityId + " overdue since " + deadline));
+    }
+    
+    // Read everything needed from the task now - delivery may happen after the command closed
+    private NotificationMessage.NotificationMessageBuilder taskMessage(NotificationType type, String recipient, DelegateTask task) {
+        return NotificationMessage.builder()
+                .type(type)
+                .recipient(recipient)
+                .taskId(task.getId())
+                .taskName(task.getName())
+                .processInstanceId(task.getProcessInstanceId())
+                .priority(task.getPriority());
+    }
+    
+    private void publish(NotificationMessage.NotificationMessageBuilder builder) {
+        sideEffectDispatcher.publish(builder.timestamp(System.currentTimeMillis()).build());
     }
 }
 
@@ -439,49 +704,120 @@ public class NotificationService {
 @Slf4j
 public class AuditService {
     
-    // Task audit methods
+    @Autowired
+    private SideEffectDispatcher sideEffectDispatcher;
+    
+    @Autowired
+    private AuditTierPolicy auditTierPolicy;
+    
+    // Task audit methods (always written, see AuditTierPolicy)
     public void logTaskCreation(String taskId, String taskName, String processInstanceId) {
-        log.info("AUDIT: Task created - ID: {}, Name: '{}', ProcessInstance: {}", 
+        log.debug("AUDIT: Task created - ID: {}, Name: '{}', ProcessInstance: {}", 
                 taskId, taskName, processInstanceId);
+        submit(AuditRecord.builder()
+                .type(AuditEventType.TASK_CREATED)
+                .taskId(taskId)
+                .taskName(taskName)
+                .processInstanceId(processInstanceId));
     }
     
     public void logTaskAssignment(String taskId, String assignee) {
-        log.info("AUDIT: Task assigned - ID: {}, Assignee: {}", taskId, assignee);
+        log.debug("AUDIT: Task assigned - ID: {}, Assignee: {}", taskId, assignee);
+        submit(AuditRecord.builder()
+                .type(AuditEventType.TASK_ASSIGNED)
+                .taskId(taskId)
+                .actor(assignee));
     }
     
     public void logTaskCompletion(String taskId, String assignee) {
-        log.info("AUDIT: Task completed - ID: {}, CompletedBy: {}", taskId, assignee);
+        log.debug("AUDIT: Task completed - ID: {}, CompletedBy: {}", taskId, assignee);
+        submit(AuditRecord.builder()
+                .type(AuditEventType.TASK_COMPLETED)
+                .taskId(taskId)
+                .actor(assignee));
     }
     
     public void logTaskDeletion(String taskId, String deleteReason) {
-        log.info("AUDIT: Task deleted - ID: {}, Reason: {}", taskId, deleteReason);
+        log.debug("AUDIT: Task deleted - ID: {}, Reason: {}", taskId, deleteReason);
+        submit(AuditRecord.builder()
+                .type(AuditEventType.TASK_DELETED)
+                .taskId(taskId)
+                .detail(deleteReason));
     }
     
     // Process audit methods
     public void logProcessStart(String processInstanceId, String processDefinitionKey) {
-        log.info("AUDIT: Process started - Instance: {}, Definition: {}", 
+        if (!auditTierPolicy.shouldWrite(AuditEventType.PROCESS_STARTED, processDefinitionKey)) {
+            return;
+        }
+        log.debug("AUDIT: Process started - Instance: {}, Definition: {}", 
                 processInstanceId, processDefinitionKey);
+        submit(AuditRecord.builder()
+                .type(AuditEventType.PROCESS_STARTED)
+                .processInstanceId(processInstanceId)
+                .processDefinitionKey(processDefinitionKey));
     }
     
     public void logProcessEnd(String processInstanceId, String processDefinitionKey) {
-        log.info("AUDIT: Process ended - Instance: {}, Definition: {}", 
+        if (!auditTierPolicy.shouldWrite(AuditEventType.PROCESS_ENDED, processDefinitionKey)) {
+            return;
+        }
+        log.debug("AUDIT: Process ended - Instance: {}, Definition: {}", 
                 processInstanceId, processDefinitionKey);
+        submit(AuditRecord.builder()
+                .type(AuditEventType.PROCESS_ENDED)
+                .processInstanceId(processInstanceId)
+                .processDefinitionKey(processDefinitionKey));
     }
     
     // Activity audit methods
-    public void logActivityStart(String processInstanceId, String activityId, String activityName) {
-        log.info("AUDIT: Activity started - Process: {}, Activity: {} ('{}')", 
+    public void logActivityStart(String processInstanceId, String processDefinitionKey,
+                                 String activityId, String activityName) {
+        if (!auditTierPolicy.shouldWrite(AuditEventType.ACTIVITY_STARTED, processDefinitionKey)) {
+            return;
+        }
+        log.debug("AUDIT: Activity started - Process: {}, Activity: {} ('{}')", 
                 processInstanceId, activityId, activityName);
+        submit(AuditRecord.builder()
+                .type(AuditEventType.ACTIVITY_STARTED)
+                .processInstanceId(processInstanceId)
+                .processDefinitionKey(processDefinitionKey)
+                .activityId(activityId)
+                .activityName(activityName));
     }
     
-    public void logActivityEnd(String processInstanceId, String activityId, String activityName) {
-        log.info("AUDIT: Activity ended - Process: {}, Activity: {} ('{}')", 
-                processInstanceId, activityId, activityName);
+    public void logActivityEnd(String processInstanceId, String processDefinitionKey,
+                               String activityId, String activityName, Long durationMs) {
+        if (!auditTierPolicy.shouldWrite(AuditEventType.ACTIVITY_ENDED, processDefinitionKey)) {
+            return;
+        }
+        log.debug("AUDIT: Activity ended - Process: {}, Activity: {} ('{}'), Duration: {} ms", 
+                processInstanceId, activityId, activityName, durationMs);
+        submit(AuditRecord.builder()
+                .type(AuditEventType.ACTIVITY_ENDED)
+                .processInstanceId(processInstanceId)
+                .processDefinitionKey(processDefinitionKey)
+                .activityId(activityId)
+                .activityName(activityName)
+                .durationMs(durationMs));
+    }
+    
+    public void logSequenceFlowTaken(String processInstanceId, String processDefinitionKey, String transitionId) {
+        if (!auditTierPolicy.shouldWrite(AuditEventType.SEQUENCE_FLOW_TAKEN, processDefinitionKey)) {
+            return;
+        }
+        log.debug("AUDIT: Sequence flow taken - Process: {}, Transition: {}", 
+                processInstanceId, transitionId);
+        submit(AuditRecord.builder()
+                .type(AuditEventType.SEQUENCE_FLOW_TAKEN)
+                .processInstanceId(processInstanceId)
+                .processDefinitionKey(processDefinitionKey)
+                .transitionId(transitionId));
     }
     
-    public void logSequenceFlowTaken(String processInstanceId, String transitionId) {
-        log.info("AUDIT: Sequence flow taken - Process: {}, Transition: {}", 
-                processInstanceId, transitionId);
+    // Released to the audit writer once the engine transaction committed
+    private void submit(AuditRecord.AuditRecordBuilder builder) {
+        sideEffectDispatcher.publish(builder.timestamp(System.currentTimeMillis()).build());
     }
 }
 
@@ -489,6 +825,11 @@ public class AuditService {
 
 
 
+<properties>
+    <!-- Virtual threads in the load harness -->
+    <java.version>21</java.version>
+</properties>
+
 <dependencies>
     <!-- Camunda 7 Spring Boot Starter -->
     <dependency>
@@ -515,6 +856,18 @@ public class AuditService {
         <artifactId>spring-boot-starter-data-jpa</artifactId>
     </dependency>
     
+    <!-- Metrics (Micrometer) -->
+    <dependency>
+        <groupId>org.springframework.boot</groupId>
+        <artifactId>spring-boot-starter-actuator</artifactId>
+    </dependency>
+    
+    <!-- Secondary store, MONGO history sink -->
+    <dependency>
+        <groupId>org.springframework.boot</groupId>
+        <artifactId>spring-boot-starter-data-mongodb</artifactId>
+    </dependency>
+    
     <!-- Database -->
     <dependency>
         <groupId>com.h2database</groupId>
@@ -542,10 +895,26 @@ public class AuditService {
         <version>15.0.0</version>
         <scope>test</scope>
     </dependency>
+    
+    <!-- Benchmarks (EventSubscriberBenchmark) -->
+    <dependency>
+        <groupId>org.openjdk.jmh</groupId>
+        <artifactId>jmh-core</artifactId>
+        <version>1.37</version>
+        <scope>test</scope>
+    </dependency>
+    
+    <dependency>
+        <groupId>org.openjdk.jmh</groupId>
+        <artifactId>jmh-generator-annprocess</artifactId>
+        <version>1.37</version>
+        <scope>test</scope>
+    </dependency>
 </dependencies>
 
 @SpringBootApplication
 @EnableJpaRepositories
+@EnableScheduling
 @Slf4j
 public class CamundaApplication {
     
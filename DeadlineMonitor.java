@@ -0,0 +1,659 @@
+// SLA / deadline monitor on a hierarchical timing wheel
+//
+// handleApprovalTaskStart and handleReviewTaskStart compute a deadline and hand it
+// to DeadlineMonitor.schedule(). Deadlines live in memory in a hierarchical timing
+// wheel: each level has slots-per-level slots, level 0 slots are one tick wide and
+// each higher level is slots-per-level times coarser. Scheduling and cancelling are
+// O(1) list operations, a tick looks at one level-0 slot and, when a level wraps,
+// re-distributes one slot of the next level. There is no timer job per process
+// instance and no query over tasks by due date.
+//
+// The wheel is owned by the ticker thread. Engine threads only enqueue schedule /
+// cancel commands, once their transaction committed, which the ticker drains before
+// every tick, so the wheel needs no locks and a rolled back command changes nothing.
+// A late ticker (GC pause, busy host) catches up tick by tick.
+//
+// A fired deadline is checked against the runtime first: if the instance has left
+// the activity in the meantime it is dropped. Otherwise the node claims it with an
+// insert into DEADLINE_ESCALATION (one row per instance, definition and deadline);
+// only the node whose insert succeeds calls every DeadlineEscalationHandler, so a
+// cluster where every node reloaded the same deadlines escalates once. The deadline
+// variable is then marked with "<variable>Escalated" so a restart does not schedule
+// it again. Claims older than claim-retention-days are deleted on reload.
+//
+// On startup the wheel is reloaded from the database: the executions waiting in each
+// monitored activity are paged, and the deadline variables of each page are read
+// with one variable query.
+//
+// application.yml:
+//
+// workflow:
+//   deadlines:
+//     enabled: true
+//     tick-ms: 1000
+//     slots-per-level: 256
+//     levels: 4
+//     reload-page-size: 1000
+//     escalation-threads: 2
+//     claim-retention-days: 30
+//     definitions:
+//       approval:
+//         variable: approvalDeadline
+//         activity: approvalTask
+//       review:
+//         variable: reviewDeadline
+//         activity: reviewTask
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DeadlineDefinition {
+    // Process variable holding the deadline (java.util.Date)
+    private String variable;
+    // Activity the deadline applies to, the deadline is void once the instance left it
+    private String activity;
+}
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "workflow.deadlines")
+public class DeadlineProperties {
+    private boolean enabled = true;
+    private long tickMs = 1000;
+    // Power of two; levels * log2(slots-per-level) bits of ticks are covered exactly,
+    // anything further out is parked in the last slot of the top level
+    private int slotsPerLevel = 256;
+    private int levels = 4;
+    private int reloadPageSize = 1000;
+    private int escalationThreads = 2;
+    private int claimRetentionDays = 30;
+    private Map<String, DeadlineDefinition> definitions = new LinkedHashMap<>();
+
+    public DeadlineProperties() {
+        definitions.put("approval", new DeadlineDefinition("approvalDeadline", "approvalTask"));
+        definitions.put("review", new DeadlineDefinition("reviewDeadline", "reviewTask"));
+    }
+}
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DeadlineEvent {
+    private String definition;
+    private String processInstanceId;
+    private String activityId;
+    private String variable;
+    private Date deadline;
+    private Date firedAt;
+}
+
+// Called for every deadline that passed while the instance was still in the activity
+public interface DeadlineEscalationHandler {
+    void escalate(DeadlineEvent event);
+}
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DeadlineMonitorStatus {
+    private boolean enabled;
+    private long tickMs;
+    private long pending;
+    private long scheduled;
+    private long fired;
+    private long escalated;
+    private long stale;
+}
+
+// Hierarchical timing wheel, not thread-safe: only the DeadlineMonitor ticker uses it
+class TimingWheel {
+
+    // Intrusive list node, one per pending deadline
+    static final class Entry {
+        final String key;
+        final String definition;
+        final String processInstanceId;
+        final long deadlineMs;
+        long expiryTick;
+        Entry prev;
+        Entry next;
+
+        Entry(String key, String definition, String processInstanceId, long deadlineMs) {
+            this.key = key;
+            this.definition = definition;
+            this.processInstanceId = processInstanceId;
+            this.deadlineMs = deadlineMs;
+        }
+
+        boolean isLinked() {
+            return prev != null;
+        }
+
+        void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = null;
+            next = null;
+        }
+    }
+
+    private final long startMs;
+    private final long tickMs;
+    private final int bits;
+    private final int mask;
+    private final int levels;
+    // slots[level][slot] is a sentinel of a circular list
+    private final Entry[][] slots;
+    private long currentTick;
+    private int size;
+
+    TimingWheel(long startMs, long tickMs, int slotsPerLevel, int levels) {
+        if (Integer.bitCount(slotsPerLevel) != 1) {
+            throw new IllegalArgumentException("slots-per-level must be a power of two: " + slotsPerLevel);
+        }
+        if (levels * Integer.numberOfTrailingZeros(slotsPerLevel) > 62) {
+            throw new IllegalArgumentException("slots-per-level ^ levels must fit in a long");
+        }
+        this.startMs = startMs;
+        this.tickMs = tickMs;
+        this.bits = Integer.numberOfTrailingZeros(slotsPerLevel);
+        this.mask = slotsPerLevel - 1;
+        this.levels = levels;
+        this.slots = new Entry[levels][slotsPerLevel];
+        for (Entry[] level : slots) {
+            for (int i = 0; i < level.length; i++) {
+                Entry sentinel = new Entry(null, null, null, 0);
+                sentinel.prev = sentinel;
+                sentinel.next = sentinel;
+                level[i] = sentinel;
+            }
+        }
+    }
+
+    // Tick a deadline expires in; rounded up, a deadline never fires early
+    long tickOf(long timeMs) {
+        return Math.floorDiv(timeMs - startMs + tickMs - 1, tickMs);
+    }
+
+    // Last tick that has fully started at the given time; rounded down, the wheel may
+    // only advance to it
+    long elapsedTicks(long timeMs) {
+        return Math.floorDiv(timeMs - startMs, tickMs);
+    }
+
+    long getCurrentTick() {
+        return currentTick;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // False if the deadline is already due, the caller fires it right away
+    boolean add(Entry entry) {
+        entry.expiryTick = tickOf(entry.deadlineMs);
+        if (entry.expiryTick <= currentTick) {
+            return false;
+        }
+        link(entry);
+        size++;
+        return true;
+    }
+
+    void remove(Entry entry) {
+        if (entry.isLinked()) {
+            entry.unlink();
+            size--;
+        }
+    }
+
+    // Moves to the next tick and hands every deadline expiring in it to the consumer
+    void advance(Consumer<Entry> expired) {
+        currentTick++;
+        for (int level = 1; level < levels; level++) {
+            if ((currentTick & ((1L << (bits * level)) - 1)) != 0) {
+                break;
+            }
+            // The lower levels wrapped: spread this level's current slot over them
+            Entry sentinel = slots[level][(int) ((currentTick >>> (bits * level)) & mask)];
+            Entry entry = sentinel.next;
+            while (entry != sentinel) {
+                Entry next = entry.next;
+                entry.unlink();
+                // Lands in a lower level, or in the level-0 slot expired below
+                link(entry);
+                entry = next;
+            }
+        }
+        Entry sentinel = slots[0][(int) (currentTick & mask)];
+        Entry entry = sentinel.next;
+        while (entry != sentinel) {
+            Entry next = entry.next;
+            entry.unlink();
+            size--;
+            expired.accept(entry);
+            entry = next;
+        }
+    }
+
+    private void link(Entry entry) {
+        long delta = entry.expiryTick - currentTick;
+        int level = 0;
+        while (level < levels - 1 && delta >= (1L << (bits * (level + 1)))) {
+            level++;
+        }
+        long tick = entry.expiryTick;
+        if (delta >= (1L << (bits * levels))) {
+            // Beyond the wheel: park it in the slot visited last, it is re-filed on the way down
+            tick = currentTick + (1L << (bits * levels)) - 1;
+        }
+        Entry sentinel = slots[level][(int) ((tick >>> (bits * level)) & mask)];
+        entry.prev = sentinel.prev;
+        entry.next = sentinel;
+        sentinel.prev.next = entry;
+        sentinel.prev = entry;
+    }
+}
+
+// One row per escalated deadline, whoever inserts it escalates
+@Repository
+public class DeadlineClaimStore {
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @PostConstruct
+    public void createTable() {
+        jdbcTemplate.execute(
+            "CREATE TABLE IF NOT EXISTS DEADLINE_ESCALATION (" +
+            "PROCESS_INSTANCE_ID VARCHAR(64) NOT NULL, " +
+            "DEFINITION VARCHAR(64) NOT NULL, " +
+            "DEADLINE TIMESTAMP NOT NULL, " +
+            "CLAIMED_AT TIMESTAMP NOT NULL, " +
+            "PRIMARY KEY (PROCESS_INSTANCE_ID, DEFINITION, DEADLINE))");
+    }
+
+    // False if another node already escalates this deadline
+    public boolean claim(String processInstanceId, String definition, Date deadline) {
+        try {
+            jdbcTemplate.update("INSERT INTO DEADLINE_ESCALATION (PROCESS_INSTANCE_ID, DEFINITION, DEADLINE, CLAIMED_AT) " +
+                    "VALUES (?, ?, ?, ?)", processInstanceId, definition, new Timestamp(deadline.getTime()),
+                    new Timestamp(System.currentTimeMillis()));
+            return true;
+        } catch (DuplicateKeyException e) {
+            return false;
+        }
+    }
+
+    public int deleteClaimedBefore(long timeMs) {
+        return jdbcTemplate.update("DELETE FROM DEADLINE_ESCALATION WHERE CLAIMED_AT < ?", new Timestamp(timeMs));
+    }
+}
+
+@Component
+@Slf4j
+public class DeadlineMonitor {
+
+    @Autowired
+    private DeadlineProperties properties;
+
+    @Autowired
+    private DeadlineClaimStore claimStore;
+
+    @Autowired
+    private RuntimeService runtimeService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired(required = false)
+    private List<DeadlineEscalationHandler> escalationHandlers = Collections.emptyList();
+
+    // Filled by engine threads, drained by the ticker
+    private final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();
+    // Owned by the ticker thread, like the wheel
+    private final Map<String, TimingWheel.Entry> entries = new HashMap<>();
+
+    private TimingWheel wheel;
+    private ScheduledExecutorService ticker;
+    private ExecutorService escalationExecutor;
+
+    private volatile long pending;
+    private final LongAdder scheduled = new LongAdder();
+    private final LongAdder fired = new LongAdder();
+    private final LongAdder escalated = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+    private final LongAdder claimedElsewhere = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        if (!properties.isEnabled()) {
+            log.info("Deadline monitor disabled");
+            return;
+        }
+        wheel = new TimingWheel(System.currentTimeMillis(), properties.getTickMs(),
+                properties.getSlotsPerLevel(), properties.getLevels());
+        escalationExecutor = Executors.newFixedThreadPool(properties.getEscalationThreads(), runnable -> {
+            Thread thread = new Thread(runnable, "deadline-escalation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "deadline-ticker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::tick, properties.getTickMs(), properties.getTickMs(), TimeUnit.MILLISECONDS);
+
+        Gauge.builder("workflow.deadlines.pending", this, monitor -> monitor.pending).register(meterRegistry);
+        FunctionCounter.builder("workflow.deadlines.fired", fired, LongAdder::sum).register(meterRegistry);
+        FunctionCounter.builder("workflow.deadlines.escalated", escalated, LongAdder::sum).register(meterRegistry);
+        FunctionCounter.builder("workflow.deadlines.stale", stale, LongAdder::sum).register(meterRegistry);
+        FunctionCounter.builder("workflow.deadlines.claimed.elsewhere", claimedElsewhere, LongAdder::sum).register(meterRegistry);
+        log.info("Deadline monitor started, tick {} ms, definitions {}", properties.getTickMs(),
+                properties.getDefinitions().keySet());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+            escalationExecutor.shutdownNow();
+        }
+    }
+
+    @EventListener
+    public void onApplicationReady(ApplicationReadyEvent event) {
+        if (properties.isEnabled()) {
+            escalationExecutor.execute(this::reload);
+        }
+    }
+
+    // Replaces an earlier deadline of the same definition for the instance; inside an
+    // engine command it takes effect once the command committed
+    public void schedule(DelegateExecution execution, String definition, Date deadline) {
+        schedule(execution.getProcessInstanceId(), definition, deadline);
+    }
+
+    public void schedule(String processInstanceId, String definition, Date deadline) {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        if (!properties.getDefinitions().containsKey(definition)) {
+            throw new IllegalArgumentException("Unknown deadline definition: " + definition);
+        }
+        TimingWheel.Entry entry = new TimingWheel.Entry(key(processInstanceId, definition), definition,
+                processInstanceId, deadline.getTime());
+        afterCommit(() -> {
+            TimingWheel.Entry previous = entries.put(entry.key, entry);
+            if (previous != null) {
+                wheel.remove(previous);
+            }
+            scheduled.increment();
+            if (!wheel.add(entry)) {
+                entries.remove(entry.key);
+                fire(entry);
+            }
+        });
+    }
+
+    // Inside an engine command it takes effect once the command committed
+    public void cancel(String processInstanceId, String definition) {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        String key = key(processInstanceId, definition);
+        afterCommit(() -> {
+            TimingWheel.Entry entry = entries.remove(key);
+            if (entry != null) {
+                wheel.remove(entry);
+            }
+        });
+    }
+
+    private void afterCommit(Runnable command) {
+        CommandContext commandContext = Context.getCommandContext();
+        if (commandContext == null) {
+            commands.add(command);
+        } else {
+            commandContext.getTransactionContext().addTransactionListener(TransactionState.COMMITTED,
+                    ctx -> commands.add(command));
+        }
+    }
+
+    public DeadlineMonitorStatus getStatus() {
+        return new DeadlineMonitorStatus(properties.isEnabled(), properties.getTickMs(), pending,
+                scheduled.sum(), fired.sum(), escalated.sum(), stale.sum());
+    }
+
+    private void tick() {
+        try {
+            Runnable command;
+            while ((command = commands.poll()) != null) {
+                command.run();
+            }
+            long target = wheel.elapsedTicks(System.currentTimeMillis());
+            while (wheel.getCurrentTick() < target) {
+                wheel.advance(entry -> {
+                    entries.remove(entry.key, entry);
+                    fire(entry);
+                });
+            }
+            pending = wheel.size();
+        } catch (Exception e) {
+            // An exception would cancel the periodic task
+            log.error("Deadline tick failed", e);
+        }
+    }
+
+    private void fire(TimingWheel.Entry entry) {
+        fired.increment();
+        DeadlineDefinition definition = properties.getDefinitions().get(entry.definition);
+        DeadlineEvent event = DeadlineEvent.builder()
+                .definition(entry.definition)
+                .processInstanceId(entry.processInstanceId)
+                .activityId(definition.getActivity())
+                .variable(definition.getVariable())
+                .deadline(new Date(entry.deadlineMs))
+                .firedAt(new Date())
+                .build();
+        escalationExecutor.execute(() -> escalate(event));
+    }
+
+    private void escalate(DeadlineEvent event) {
+        try {
+            long waiting = runtimeService.createExecutionQuery()
+                    .processInstanceId(event.getProcessInstanceId())
+                    .activityId(event.getActivityId())
+                    .count();
+            if (waiting == 0) {
+                stale.increment();
+                log.debug("Deadline {} of {} is void, activity {} already left",
+                        event.getDefinition(), event.getProcessInstanceId(), event.getActivityId());
+                return;
+            }
+            if (!claimStore.claim(event.getProcessInstanceId(), event.getDefinition(), event.getDeadline())) {
+                claimedElsewhere.increment();
+                log.debug("Deadline {} of {} is escalated by another node", event.getDefinition(), event.getProcessInstanceId());
+                return;
+            }
+            log.warn("Deadline {} of process {} passed at {}, escalating",
+                    event.getDefinition(), event.getProcessInstanceId(), event.getDeadline());
+            for (DeadlineEscalationHandler handler : escalationHandlers) {
+                handler.escalate(event);
+            }
+            runtimeService.setVariable(event.getProcessInstanceId(), escalatedVariable(event.getVariable()), true);
+            escalated.increment();
+        } catch (Exception e) {
+            log.error("Escalation of deadline {} for process {} failed",
+                    event.getDefinition(), event.getProcessInstanceId(), e);
+        }
+    }
+
+    // Pages the executions waiting in each monitored activity, one variable query per page
+    private void reload() {
+        long started = System.currentTimeMillis();
+        int deleted = claimStore.deleteClaimedBefore(started - TimeUnit.DAYS.toMillis(properties.getClaimRetentionDays()));
+        if (deleted > 0) {
+            log.info("Deleted {} deadline escalation claims older than {} days", deleted, properties.getClaimRetentionDays());
+        }
+        int reloaded = 0;
+        for (Map.Entry<String, DeadlineDefinition> definition : properties.getDefinitions().entrySet()) {
+            String variable = definition.getValue().getVariable();
+            String escalatedVariable = escalatedVariable(variable);
+            int first = 0;
+            while (true) {
+                List<Execution> executions = runtimeService.createExecutionQuery()
+                        .activityId(definition.getValue().getActivity())
+                        .orderByProcessInstanceId().asc()
+                        .listPage(first, properties.getReloadPageSize());
+                if (executions.isEmpty()) {
+                    break;
+                }
+                String[] processInstanceIds = executions.stream()
+                        .map(Execution::getProcessInstanceId).distinct().toArray(String[]::new);
+                Map<String, Date> deadlines = new HashMap<>();
+                Set<String> alreadyEscalated = new HashSet<>();
+                for (VariableInstance instance : runtimeService.createVariableInstanceQuery()
+                        .processInstanceIdIn(processInstanceIds)
+                        .variableNameIn(variable, escalatedVariable)
+                        .disableCustomObjectDeserialization()
+                        .list()) {
+                    if (escalatedVariable.equals(instance.getName())) {
+                        alreadyEscalated.add(instance.getProcessInstanceId());
+                    } else if (instance.getValue() instanceof Date) {
+                        deadlines.put(instance.getProcessInstanceId(), (Date) instance.getValue());
+                    }
+                }
+                for (Map.Entry<String, Date> deadline : deadlines.entrySet()) {
+                    if (!alreadyEscalated.contains(deadline.getKey())) {
+                        schedule(deadline.getKey(), definition.getKey(), deadline.getValue());
+                        reloaded++;
+                    }
+                }
+                first += executions.size();
+            }
+        }
+        log.info("Reloaded {} deadlines in {} ms", reloaded, System.currentTimeMillis() - started);
+    }
+
+    private static String key(String processInstanceId, String definition) {
+        return processInstanceId + ':' + definition;
+    }
+
+    private static String escalatedVariable(String variable) {
+        return variable + "Escalated";
+    }
+}
+
+// Default escalation, goes through the regular notification pipeline
+@Component
+@Slf4j
+public class NotificationDeadlineEscalation implements DeadlineEscalationHandler {
+
+    @Autowired
+    private NotificationService notificationService;
+
+    @Override
+    public void escalate(DeadlineEvent event) {
+        notificationService.sendDeadlineEscalationNotification(event.getProcessInstanceId(),
+                event.getActivityId(), event.getDeadline());
+    }
+}
+
+@RestController
+@RequestMapping("/api/admin/deadlines")
+public class DeadlineMonitorController {
+
+    @Autowired
+    private DeadlineMonitor deadlineMonitor;
+
+    @GetMapping
+    public ResponseEntity<DeadlineMonitorStatus> getStatus() {
+        return ResponseEntity.ok(deadlineMonitor.getStatus());
+    }
+}
+
+class TimingWheelTest {
+
+    private static final long TICK_MS = 100;
+
+    @Test
+    void testDeadlineNeverFiresEarly() {
+        TimingWheel wheel = new TimingWheel(0, TICK_MS, 4, 3);
+        TimingWheel.Entry entry = entry("a", 250);
+        assertThat(wheel.add(entry)).isTrue();
+        assertThat(wheel.tickOf(250)).isEqualTo(3);
+        assertThat(wheel.elapsedTicks(250)).isEqualTo(2);
+
+        // The ticker advances to the elapsed tick: at 250 ms tick 3 has not started yet
+        List<TimingWheel.Entry> fired = new ArrayList<>();
+        while (wheel.getCurrentTick() < wheel.elapsedTicks(250)) {
+            wheel.advance(fired::add);
+        }
+        assertThat(fired).isEmpty();
+        while (wheel.getCurrentTick() < wheel.elapsedTicks(300)) {
+            wheel.advance(fired::add);
+        }
+        assertThat(fired).containsExactly(entry);
+    }
+
+    @Test
+    void testEveryDeadlineFiresInItsTick() {
+        // 4 slots and 3 levels cover 64 ticks, later deadlines are parked and re-filed
+        TimingWheel wheel = new TimingWheel(0, TICK_MS, 4, 3);
+        Random random = new Random(42);
+        Map<TimingWheel.Entry, Long> expected = new HashMap<>();
+        for (int i = 0; i < 2000; i++) {
+            long deadlineMs = 1 + random.nextInt(500 * (int) TICK_MS);
+            TimingWheel.Entry entry = entry("e" + i, deadlineMs);
+            assertThat(wheel.add(entry)).isTrue();
+            expected.put(entry, (deadlineMs + TICK_MS - 1) / TICK_MS);
+        }
+
+        Map<TimingWheel.Entry, Long> firedAt = new HashMap<>();
+        while (wheel.size() > 0) {
+            long tick = wheel.getCurrentTick() + 1;
+            wheel.advance(entry -> firedAt.put(entry, tick));
+        }
+        assertThat(firedAt).isEqualTo(expected);
+    }
+
+    @Test
+    void testRemovedDeadlineDoesNotFire() {
+        TimingWheel wheel = new TimingWheel(0, TICK_MS, 4, 3);
+        TimingWheel.Entry kept = entry("kept", 2000);
+        TimingWheel.Entry removed = entry("removed", 2000);
+        wheel.add(kept);
+        wheel.add(removed);
+        wheel.remove(removed);
+        wheel.remove(removed);
+        assertThat(wheel.size()).isEqualTo(1);
+
+        List<TimingWheel.Entry> fired = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            wheel.advance(fired::add);
+        }
+        assertThat(fired).containsExactly(kept);
+    }
+
+    @Test
+    void testPastDeadlineIsNotAdded() {
+        TimingWheel wheel = new TimingWheel(0, TICK_MS, 4, 3);
+        wheel.advance(entry -> { });
+        wheel.advance(entry -> { });
+        assertThat(wheel.add(entry("late", 150))).isFalse();
+        assertThat(wheel.size()).isZero();
+    }
+
+    @Test
+    void testSlotsMustBePowerOfTwo() {
+        assertThatThrownBy(() -> new TimingWheel(0, TICK_MS, 100, 3))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static TimingWheel.Entry entry(String key, long deadlineMs) {
+        return new TimingWheel.Entry(key, "approval", "pi-" + key, deadlineMs);
+    }
+}
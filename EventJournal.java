@@ -0,0 +1,670 @@
+// Memory-mapped event journal
+//
+// Append-only local log of task, execution and process events for downstream
+// consumers. EventJournalService builds a JournalEntry on the engine thread, buffers
+// it per command and appends it to the memory-mapped segment files once the
+// transaction committed; a rolled back command leaves no entry. Entries do not go
+// through SideEffectDispatcher / SideEffectQueue: their overload policies would drop
+// or reorder them, and an append is a copy into mapped memory, cheap enough for the
+// committing thread.
+//
+// Segment files are named after the sequence number of their first record
+// (00000000000000000001.journal) and pre-allocated to segment-size-mb. Record layout:
+//
+//   int   payload length (written last, 0 = end of data)
+//   int   CRC32 of the payload
+//   long  sequence
+//   long  timestamp
+//   byte  AuditEventType ordinal (only append new constants to AuditEventType)
+//   str   processInstanceId, processDefinitionKey, elementId, elementName, actor, detail
+//         (int byte length, -1 for null, UTF-8 bytes)
+//
+// On startup the last segment is scanned and a torn or corrupt tail is zeroed, so
+// appends continue after the last valid record. Dirty pages are forced to disk every
+// force-interval-ms and on segment roll; a process crash loses nothing that was
+// appended, an OS crash at most the last interval.
+//
+// JournalReader replays from any sequence number; GET /api/journal/events serves
+// the same over HTTP.
+//
+// application.yml:
+//
+// workflow:
+//   journal:
+//     enabled: true
+//     directory: ./data/journal
+//     segment-size-mb: 64
+//     retained-segments: 16
+//     force-interval-ms: 1000
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class JournalEntry {
+    private long sequence;
+    private long timestamp;
+    private AuditEventType type;
+    private String processInstanceId;
+    private String processDefinitionKey;
+    // Task id, activity id or sequence flow id
+    private String elementId;
+    private String elementName;
+    private String actor;
+    private String detail;
+}
+
+// Binary layout of one record, shared by the writer and readers
+public final class JournalCodec {
+
+    static final int HEADER_SIZE = 8;
+    private static final AuditEventType[] TYPES = AuditEventType.values();
+
+    private JournalCodec() {
+    }
+
+    // Encodes the payload of a record into the scratch buffer, growing it if needed
+    static ByteBuffer encode(ByteBuffer scratch, long sequence, JournalEntry entry) {
+        byte[][] strings = {
+            bytes(entry.getProcessInstanceId()),
+            bytes(entry.getProcessDefinitionKey()),
+            bytes(entry.getElementId()),
+            bytes(entry.getElementName()),
+            bytes(entry.getActor()),
+            bytes(entry.getDetail())
+        };
+        int size = 8 + 8 + 1;
+        for (byte[] value : strings) {
+            size += 4 + (value != null ? value.length : 0);
+        }
+        if (scratch.capacity() < size) {
+            scratch = ByteBuffer.allocate(Math.max(size, scratch.capacity() * 2));
+        }
+        scratch.clear();
+        scratch.putLong(sequence);
+        scratch.putLong(entry.getTimestamp());
+        scratch.put((byte) entry.getType().ordinal());
+        for (byte[] value : strings) {
+            if (value == null) {
+                scratch.putInt(-1);
+            } else {
+                scratch.putInt(value.length);
+                scratch.put(value);
+            }
+        }
+        scratch.flip();
+        return scratch;
+    }
+
+    static JournalEntry decode(ByteBuffer payload) {
+        return JournalEntry.builder()
+                .sequence(payload.getLong())
+                .timestamp(payload.getLong())
+                .type(TYPES[payload.get()])
+                .processInstanceId(string(payload))
+                .processDefinitionKey(string(payload))
+                .elementId(string(payload))
+                .elementName(string(payload))
+                .actor(string(payload))
+                .detail(string(payload))
+                .build();
+    }
+
+    static int crc(ByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(offset + length).position(offset);
+        crc.update(slice);
+        return (int) crc.getValue();
+    }
+
+    static String fileName(long baseSequence) {
+        return String.format("%020d.journal", baseSequence);
+    }
+
+    static long baseSequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.indexOf('.')));
+    }
+
+    private static byte[] bytes(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static String string(ByteBuffer payload) {
+        int length = payload.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String value = new String(payload.array(), payload.arrayOffset() + payload.position(), length, StandardCharsets.UTF_8);
+        payload.position(payload.position() + length);
+        return value;
+    }
+}
+
+@Component
+@Slf4j
+public class EventJournal {
+
+    @Value("${workflow.journal.enabled:true}")
+    private boolean enabled;
+
+    @Value("${workflow.journal.directory:./data/journal}")
+    private String directory;
+
+    @Value("${workflow.journal.segment-size-mb:64}")
+    private int segmentSizeMb;
+
+    @Value("${workflow.journal.retained-segments:16}")
+    private int retainedSegments;
+
+    @Value("${workflow.journal.force-interval-ms:1000}")
+    private long forceIntervalMs;
+
+    // baseSequence -> segment file
+    private final ConcurrentSkipListMap<Long, Path> segments = new ConcurrentSkipListMap<>();
+
+    private Path journalDirectory;
+    private FileChannel activeChannel;
+    private volatile MappedByteBuffer active;
+    private ByteBuffer scratch = ByteBuffer.allocate(1024);
+    private long nextSequence = 1;
+    // Readers never look past this sequence, it is written after the record bytes
+    private volatile long lastSequence;
+
+    private final LongAdder appended = new LongAdder();
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            log.info("Event journal disabled");
+            return;
+        }
+        journalDirectory = Paths.get(directory);
+        Files.createDirectories(journalDirectory);
+        try (Stream<Path> files = Files.list(journalDirectory)) {
+            files.filter(path -> path.getFileName().toString().endsWith(".journal"))
+                    .forEach(path -> segments.put(JournalCodec.baseSequence(path), path));
+        }
+
+        if (segments.isEmpty()) {
+            openSegment(1);
+        } else {
+            recover(segments.lastEntry().getValue(), segments.lastKey());
+        }
+        lastSequence = nextSequence - 1;
+        log.info("Event journal at {}: {} segments, next sequence {}", journalDirectory, segments.size(), nextSequence);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "event-journal-force");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::force, forceIntervalMs, forceIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (active != null) {
+            active.force();
+            activeChannel.close();
+        }
+    }
+
+    // Appends the entry and returns its sequence number
+    public synchronized long append(JournalEntry entry) {
+        long sequence = nextSequence;
+        scratch = JournalCodec.encode(scratch, sequence, entry);
+        int length = scratch.remaining();
+        int recordSize = JournalCodec.HEADER_SIZE + length;
+        if (recordSize > segmentSize()) {
+            throw new IllegalArgumentException("Journal record of " + recordSize + " bytes exceeds segment size");
+        }
+        if (active.remaining() < recordSize) {
+            roll(sequence);
+        }
+
+        MappedByteBuffer buffer = active;
+        int position = buffer.position();
+        buffer.position(position + JournalCodec.HEADER_SIZE);
+        buffer.put(scratch);
+        buffer.putInt(position + 4, JournalCodec.crc(buffer, position + JournalCodec.HEADER_SIZE, length));
+        // Length last: a record with a non-zero length is complete
+        buffer.putInt(position, length);
+
+        nextSequence = sequence + 1;
+        lastSequence = sequence;
+        appended.increment();
+        entry.setSequence(sequence);
+        return sequence;
+    }
+
+    public JournalReader openReader(long fromSequence) {
+        if (!enabled) {
+            throw new IllegalStateException("Event journal is disabled");
+        }
+        return new JournalReader(this, fromSequence);
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public long getAppendedCount() {
+        return appended.sum();
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    // Segment holding the given sequence, or the oldest retained one
+    Map.Entry<Long, Path> segmentFor(long sequence) {
+        Map.Entry<Long, Path> segment = segments.floorEntry(sequence);
+        return segment != null ? segment : segments.firstEntry();
+    }
+
+    Path segmentStartingAt(long sequence) {
+        return segments.get(sequence);
+    }
+
+    private void force() {
+        MappedByteBuffer buffer = active;
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    private void roll(long baseSequence) {
+        try {
+            active.force();
+            activeChannel.close();
+            openSegment(baseSequence);
+            while (segments.size() > retainedSegments) {
+                Map.Entry<Long, Path> oldest = segments.pollFirstEntry();
+                Files.deleteIfExists(oldest.getValue());
+                log.info("Deleted journal segment {}", oldest.getValue().getFileName());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to roll journal segment", e);
+        }
+    }
+
+    private void openSegment(long baseSequence) throws IOException {
+        Path path = journalDirectory.resolve(JournalCodec.fileName(baseSequence));
+        activeChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        active = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize());
+        segments.put(baseSequence, path);
+        nextSequence = baseSequence;
+        log.debug("Opened journal segment {}", path.getFileName());
+    }
+
+    // Finds the end of the valid records in the last segment and zeroes anything after it
+    private void recover(Path path, long baseSequence) throws IOException {
+        activeChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        active = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(activeChannel.size(), segmentSize()));
+
+        long sequence = baseSequence;
+        int position = 0;
+        while (position + JournalCodec.HEADER_SIZE <= active.capacity()) {
+            int length = active.getInt(position);
+            if (length <= 0) {
+                break;
+            }
+            int payload = position + JournalCodec.HEADER_SIZE;
+            if (length > active.capacity() - payload
+                    || active.getInt(position + 4) != JournalCodec.crc(active, payload, length)
+                    || active.getLong(payload) != sequence) {
+                log.warn("Truncating journal segment {} at offset {} after sequence {}",
+                        path.getFileName(), position, sequence - 1);
+                for (int i = position; i < active.capacity(); i++) {
+                    active.put(i, (byte) 0);
+                }
+                break;
+            }
+            position = payload + length;
+            sequence++;
+        }
+        active.position(position);
+        nextSequence = sequence;
+    }
+
+    private int segmentSize() {
+        return segmentSizeMb * 1024 * 1024;
+    }
+}
+
+// Sequential reader over the journal; not thread-safe, one per consumer
+@Slf4j
+public class JournalReader implements Closeable {
+
+    private final EventJournal journal;
+    private long nextSequence;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private int position;
+
+    JournalReader(EventJournal journal, long fromSequence) {
+        this.journal = journal;
+        this.nextSequence = Math.max(1, fromSequence);
+    }
+
+    // Next entry, or null when the reader has caught up with the writer
+    public JournalEntry next() {
+        while (nextSequence <= journal.getLastSequence()) {
+            if (segment == null && !openSegment()) {
+                return null;
+            }
+            int length = position + JournalCodec.HEADER_SIZE <= segment.capacity() ? segment.getInt(position) : 0;
+            if (length <= 0) {
+                // End of this segment, the next one starts at nextSequence
+                closeSegment();
+                continue;
+            }
+            int payloadOffset = position + JournalCodec.HEADER_SIZE;
+            if (segment.getInt(position + 4) != JournalCodec.crc(segment, payloadOffset, length)) {
+                throw new IllegalStateException("Corrupt journal record at offset " + position
+                        + " while reading sequence " + nextSequence);
+            }
+            byte[] payload = new byte[length];
+            ByteBuffer view = segment.duplicate();
+            view.position(payloadOffset);
+            view.get(payload);
+            position = payloadOffset + length;
+
+            JournalEntry entry = JournalCodec.decode(ByteBuffer.wrap(payload));
+            if (entry.getSequence() < nextSequence) {
+                // Skipping forward to the requested start sequence
+                continue;
+            }
+            nextSequence = entry.getSequence() + 1;
+            return entry;
+        }
+        return null;
+    }
+
+    public List<JournalEntry> poll(int maxEntries) {
+        List<JournalEntry> entries = new ArrayList<>();
+        JournalEntry entry;
+        while (entries.size() < maxEntries && (entry = next()) != null) {
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    public long getNextSequence() {
+        return nextSequence;
+    }
+
+    @Override
+    public void close() {
+        closeSegment();
+    }
+
+    private boolean openSegment() {
+        Path path = journal.segmentStartingAt(nextSequence);
+        if (path == null) {
+            Map.Entry<Long, Path> containing = journal.segmentFor(nextSequence);
+            if (containing == null) {
+                return false;
+            }
+            if (containing.getKey() > nextSequence) {
+                log.warn("Journal sequences {}-{} are no longer retained", nextSequence, containing.getKey() - 1);
+                nextSequence = containing.getKey();
+            }
+            path = containing.getValue();
+        }
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            position = 0;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open journal segment " + path, e);
+        }
+    }
+
+    private void closeSegment() {
+        segment = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Failed to close journal segment", e);
+            }
+            channel = null;
+        }
+    }
+}
+
+@Service
+@Slf4j
+public class EventJournalService {
+
+    @Autowired
+    private EventJournal eventJournal;
+
+    @Value("${workflow.journal.enabled:true}")
+    private boolean enabled;
+
+    private final Map<CommandContext, List<JournalEntry>> pending = new ConcurrentHashMap<>();
+
+    public void recordTaskEvent(AuditEventType type, DelegateTask task) {
+        if (!enabled) {
+            return;
+        }
+        record(JournalEntry.builder()
+                .timestamp(System.currentTimeMillis())
+                .type(type)
+                .processInstanceId(task.getProcessInstanceId())
+                .processDefinitionKey(ProcessDefinitionKeys.of(task.getProcessDefinitionId()))
+                .elementId(task.getId())
+                .elementName(task.getName())
+                .actor(task.getAssignee())
+                .detail(type == AuditEventType.TASK_DELETED ? task.getDeleteReason() : null)
+                .build());
+    }
+
+    public void recordExecutionEvent(AuditEventType type, DelegateExecution execution) {
+        if (!enabled) {
+            return;
+        }
+        boolean take = type == AuditEventType.SEQUENCE_FLOW_TAKEN;
+        record(JournalEntry.builder()
+                .timestamp(System.currentTimeMillis())
+                .type(type)
+                .processInstanceId(execution.getProcessInstanceId())
+                .processDefinitionKey(ProcessDefinitionKeys.of(execution.getProcessDefinitionId()))
+                .elementId(take ? execution.getCurrentTransitionId() : execution.getCurrentActivityId())
+                .elementName(take ? null : execution.getCurrentActivityName())
+                .build());
+    }
+
+    private void record(JournalEntry entry) {
+        CommandContext commandContext = Context.getCommandContext();
+        if (commandContext == null) {
+            append(Collections.singletonList(entry));
+            return;
+        }
+        pending.computeIfAbsent(commandContext, this::register).add(entry);
+    }
+
+    private List<JournalEntry> register(CommandContext commandContext) {
+        TransactionContext transactionContext = commandContext.getTransactionContext();
+        transactionContext.addTransactionListener(TransactionState.COMMITTED, ctx -> {
+            List<JournalEntry> entries = pending.remove(ctx);
+            if (entries != null) {
+                append(entries);
+            }
+        });
+        transactionContext.addTransactionListener(TransactionState.ROLLED_BACK, ctx -> pending.remove(ctx));
+        // Only the engine thread of the command adds to it
+        return new ArrayList<>();
+    }
+
+    // The transaction is already committed, a failing append cannot undo it
+    private void append(List<JournalEntry> entries) {
+        for (JournalEntry entry : entries) {
+            try {
+                eventJournal.append(entry);
+            } catch (RuntimeException e) {
+                log.error("Failed to journal {} of process instance {}", entry.getType(), entry.getProcessInstanceId(), e);
+            }
+        }
+    }
+}
+
+@RestController
+@RequestMapping("/api/journal")
+public class EventJournalController {
+
+    @Autowired
+    private EventJournal eventJournal;
+
+    @GetMapping("/events")
+    public ResponseEntity<List<JournalEntry>> getEvents(@RequestParam(defaultValue = "1") long fromSequence,
+                                                        @RequestParam(defaultValue = "500") int max) {
+        try (JournalReader reader = eventJournal.openReader(fromSequence)) {
+            return ResponseEntity.ok(reader.poll(Math.min(max, 10000)));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+    }
+}
+
+class EventJournalTest {
+
+    @TempDir
+    Path directory;
+
+    private final List<EventJournal> journals = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() throws IOException {
+        for (EventJournal journal : journals) {
+            journal.close();
+        }
+    }
+
+    @Test
+    void testEntriesAreReadBackInOrder() throws IOException {
+        EventJournal journal = open(64);
+        for (int i = 1; i <= 3; i++) {
+            assertThat(journal.append(entry("task-" + i))).isEqualTo(i);
+        }
+
+        try (JournalReader reader = journal.openReader(1)) {
+            List<JournalEntry> entries = reader.poll(10);
+            assertThat(entries).extracting(JournalEntry::getSequence).containsExactly(1L, 2L, 3L);
+            assertThat(entries.get(0).getElementId()).isEqualTo("task-1");
+            assertThat(entries.get(0).getType()).isEqualTo(AuditEventType.TASK_COMPLETED);
+            assertThat(entries.get(0).getActor()).isNull();
+            assertThat(entries.get(0).getDetail()).isEqualTo("d\u00e9tail");
+            assertThat(reader.next()).isNull();
+        }
+        try (JournalReader reader = journal.openReader(3)) {
+            assertThat(reader.next().getElementId()).isEqualTo("task-3");
+        }
+    }
+
+    @Test
+    void testReaderFollowsSegmentRoll() throws IOException {
+        EventJournal journal = open(1);
+        int count = 20000;
+        for (int i = 1; i <= count; i++) {
+            journal.append(entry("task-" + i));
+        }
+        assertThat(journal.getSegmentCount()).isGreaterThan(1);
+
+        try (JournalReader reader = journal.openReader(1)) {
+            long expected = 1;
+            for (JournalEntry entry = reader.next(); entry != null; entry = reader.next()) {
+                assertThat(entry.getSequence()).isEqualTo(expected++);
+            }
+            assertThat(expected).isEqualTo(count + 1);
+        }
+    }
+
+    @Test
+    void testReaderRejectsCorruptRecord() throws IOException {
+        EventJournal journal = open(64);
+        journal.append(entry("task-1"));
+        journal.append(entry("task-2"));
+        int secondRecord = recordSize(journal, 1);
+        flipByte(segment(1), secondRecord + JournalCodec.HEADER_SIZE + 20);
+
+        try (JournalReader reader = journal.openReader(1)) {
+            assertThat(reader.next().getSequence()).isEqualTo(1);
+            assertThatThrownBy(reader::next).isInstanceOf(IllegalStateException.class)
+                    .hasMessageContaining("Corrupt journal record");
+        }
+    }
+
+    @Test
+    void testTornTailIsTruncatedOnRecovery() throws IOException {
+        EventJournal journal = open(64);
+        for (int i = 1; i <= 3; i++) {
+            journal.append(entry("task-" + i));
+        }
+        int thirdRecord = recordSize(journal, 1) + recordSize(journal, 2);
+        journal.close();
+        journals.remove(journal);
+        // The crash hit after the length of record 3 but before all of its payload
+        flipByte(segment(1), thirdRecord + JournalCodec.HEADER_SIZE + 20);
+
+        EventJournal recovered = open(64);
+        assertThat(recovered.getLastSequence()).isEqualTo(2);
+        assertThat(recovered.append(entry("task-3b"))).isEqualTo(3);
+        try (JournalReader reader = recovered.openReader(1)) {
+            assertThat(reader.poll(10)).extracting(JournalEntry::getElementId)
+                    .containsExactly("task-1", "task-2", "task-3b");
+        }
+    }
+
+    private EventJournal open(int segmentSizeMb) throws IOException {
+        EventJournal journal = new EventJournal();
+        ReflectionTestUtils.setField(journal, "enabled", true);
+        ReflectionTestUtils.setField(journal, "directory", directory.toString());
+        ReflectionTestUtils.setField(journal, "segmentSizeMb", segmentSizeMb);
+        ReflectionTestUtils.setField(journal, "retainedSegments", 16);
+        ReflectionTestUtils.setField(journal, "forceIntervalMs", 60000L);
+        journal.init();
+        journals.add(journal);
+        return journal;
+    }
+
+    // Header plus payload of the record with the given sequence
+    private int recordSize(EventJournal journal, long sequence) {
+        JournalEntry entry = entry("task-" + sequence);
+        return JournalCodec.HEADER_SIZE + JournalCodec.encode(ByteBuffer.allocate(256), sequence, entry).remaining();
+    }
+
+    private Path segment(long baseSequence) {
+        return directory.resolve(JournalCodec.fileName(baseSequence));
+    }
+
+    private static void flipByte(Path file, long offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer value = ByteBuffer.allocate(1);
+            channel.read(value, offset);
+            value.put(0, (byte) ~value.get(0)).rewind();
+            channel.write(value, offset);
+        }
+    }
+
+    private static JournalEntry entry(String taskId) {
+        return JournalEntry.builder()
+                .timestamp(1000)
+                .type(AuditEventType.TASK_COMPLETED)
+                .processInstanceId("pi-1")
+                .processDefinitionKey("approval")
+                .elementId(taskId)
+                .elementName("Approval Task")
+                .detail("d\u00e9tail")
+                .build();
+    }
+}
@@ -0,0 +1,465 @@
+// JMH benchmarks for the listener hot path
+//
+// Two suites, both measured in throughput and average time, with the GC profiler for
+// allocation rate (gc.alloc.rate.norm = bytes per operation):
+//
+//   SubscriberHandlerBenchmark   every CamundaEventSubscriber entry point, called with
+//                                DelegateTask / DelegateExecution fixtures of a real
+//                                deployed approval process; handler dependencies are
+//                                the application's own beans. Each call runs in its own
+//                                engine command, as listeners do, so the transactional
+//                                paths (outbox insert, counter flush after commit) are
+//                                measured; emptyCommand is the command overhead alone
+//   ApprovalProcessBenchmark     one instance of approval-bpmn-example.bpmn from start
+//                                to end in an in-memory engine, with the application
+//                                and its global listeners, and on a bare engine
+//                                without them
+//
+// The fixtures are dynamic proxies over a map; FixtureBaselineBenchmark measures the
+// proxy overhead alone, subtract it when comparing handler costs.
+//
+// Results are written as JSON (one file per run, under target/jmh) so two runs can be
+// compared with JmhResultComparison, which exits non-zero on a regression:
+//
+//   java -cp benchmarks.jar EventSubscriberBenchmarks
+//   java -cp benchmarks.jar JmhResultComparison target/jmh/baseline.json target/jmh/results-<ts>.json 10
+//
+// Any JMH command line works as well, e.g. a single suite:
+//
+//   java -jar benchmarks.jar SubscriberHandlerBenchmark -prof gc -rf json -rff target/jmh/handlers.json
+//
+// The JMH dependencies are in the application's pom; benchmarks.jar is shaded from the
+// test classes with:
+//
+// <plugin>
+//     <groupId>org.apache.maven.plugins</groupId>
+//     <artifactId>maven-shade-plugin</artifactId>
+//     <configuration>
+//         <finalName>benchmarks</finalName>
+//         <transformers>
+//             <transformer implementation="org.apache.maven.plugins.shade.resource.ManifestResourceTransformer">
+//                 <mainClass>org.openjdk.jmh.Main</mainClass>
+//             </transformer>
+//         </transformers>
+//     </configuration>
+// </plugin>
+
+// Runs both suites with the settings used for the stored baselines
+public class EventSubscriberBenchmarks {
+
+    public static void main(String[] args) throws RunnerException {
+        String resultFile = "target/jmh/results-" + System.currentTimeMillis() + ".json";
+        new File("target/jmh").mkdirs();
+        Options options = new OptionsBuilder()
+                .include(SubscriberHandlerBenchmark.class.getSimpleName())
+                .include(FixtureBaselineBenchmark.class.getSimpleName())
+                .include(ApprovalProcessBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(resultFile)
+                .build();
+        new Runner(options).run();
+        System.out.println("Results written to " + resultFile);
+    }
+}
+
+// Application context shared by the benchmarks of one fork
+final class BenchmarkApplication {
+
+    static final String APPROVAL_PROCESS_KEY = "Process_1";
+    static final String APPROVAL_BPMN = "approval-bpmn-example.bpmn";
+
+    private BenchmarkApplication() {
+    }
+
+    // Additional properties are applied after the defaults and may override them
+    static ConfigurableApplicationContext start(String... properties) {
+        return new SpringApplicationBuilder(CamundaApplication.class)
+                .web(WebApplicationType.NONE)
+                .properties(
+                        "spring.datasource.url=jdbc:h2:mem:benchmark-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1",
+                        "camunda.bpm.job-execution.enabled=false",
+                        // Console output would dominate every handler
+                        "logging.level.root=WARN",
+                        // No journal segments in the working directory
+                        "workflow.journal.enabled=false")
+                .properties(properties)
+                .run();
+    }
+
+    static String deployApprovalProcess(RepositoryService repositoryService) {
+        try (InputStream bpmn = openBpmn()) {
+            Deployment deployment = repositoryService.createDeployment()
+                    .addInputStream(APPROVAL_BPMN, bpmn)
+                    .deploy();
+            return repositoryService.createProcessDefinitionQuery()
+                    .deploymentId(deployment.getId())
+                    .singleResult()
+                    .getId();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static String readApprovalBpmn() {
+        try (InputStream bpmn = openBpmn()) {
+            return new String(bpmn.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static InputStream openBpmn() throws IOException {
+        InputStream resource = BenchmarkApplication.class.getClassLoader().getResourceAsStream(APPROVAL_BPMN);
+        return resource != null ? resource : new FileInputStream(APPROVAL_BPMN);
+    }
+}
+
+// DelegateTask / DelegateExecution backed by maps. Getters return the configured
+// property, variable access works on the variable map, anything else returns a default.
+final class DelegateFixtures {
+
+    private DelegateFixtures() {
+    }
+
+    static DelegateTask task(Map<String, Object> properties, Map<String, Object> variables) {
+        return proxy(DelegateTask.class, properties, variables);
+    }
+
+    static DelegateExecution execution(Map<String, Object> properties, Map<String, Object> variables) {
+        return proxy(DelegateExecution.class, properties, variables);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Map<String, Object> properties, Map<String, Object> variables) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+            String name = method.getName();
+            switch (name) {
+                case "getVariable":
+                case "getVariableLocal":
+                    return variables.get((String) args[0]);
+                case "getVariableTyped":
+                case "getVariableLocalTyped": {
+                    Object value = variables.get((String) args[0]);
+                    return value != null || variables.containsKey((String) args[0]) ? Variables.untypedValue(value) : null;
+                }
+                case "hasVariable":
+                case "hasVariableLocal":
+                    return variables.containsKey((String) args[0]);
+                case "setVariable":
+                case "setVariableLocal":
+                    variables.put((String) args[0], args[1]);
+                    return null;
+                case "getVariables":
+                case "getVariablesLocal":
+                    return new HashMap<>(variables);
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return type.getSimpleName() + properties;
+                default:
+                    break;
+            }
+            if (name.startsWith("set") && args != null && args.length == 1) {
+                properties.put("get" + name.substring(3), args[0]);
+                return null;
+            }
+            Object value = properties.get(name);
+            if (value != null) {
+                return value;
+            }
+            Class<?> returnType = method.getReturnType();
+            if (returnType == boolean.class) {
+                return false;
+            }
+            if (returnType == int.class) {
+                return 0;
+            }
+            if (returnType == long.class) {
+                return 0L;
+            }
+            return null;
+        });
+    }
+}
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class SubscriberHandlerBenchmark {
+
+    private ConfigurableApplicationContext context;
+    private CamundaEventSubscriber subscriber;
+    private CommandExecutor commandExecutor;
+
+    private DelegateTask task;
+    private DelegateExecution activityExecution;
+    private DelegateExecution flowExecution;
+    private DelegateExecution processExecution;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = BenchmarkApplication.start();
+        subscriber = context.getBean(CamundaEventSubscriber.class);
+        ProcessEngine engine = context.getBean(ProcessEngine.class);
+        commandExecutor = ((ProcessEngineConfigurationImpl) engine.getProcessEngineConfiguration())
+                .getCommandExecutorTxRequired();
+        String processDefinitionId = BenchmarkApplication.deployApprovalProcess(engine.getRepositoryService());
+
+        // Variables as they are after process start and task assignment
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("priority", "high");
+        variables.put("department", "finance");
+        variables.put("processOwner", "owner");
+        variables.put("processStartTime", new Date());
+        variables.put("assignedDate", new Date());
+        variables.put("processStatus", "RUNNING");
+
+        Map<String, Object> taskProperties = new HashMap<>();
+        taskProperties.put("getId", "task-1");
+        taskProperties.put("getName", "Review Request");
+        taskProperties.put("getTaskDefinitionKey", "UserTask_1");
+        taskProperties.put("getProcessInstanceId", "process-1");
+        taskProperties.put("getProcessDefinitionId", processDefinitionId);
+        taskProperties.put("getExecutionId", "process-1");
+        taskProperties.put("getAssignee", "finance.manager");
+        taskProperties.put("getPriority", 50);
+        taskProperties.put("getDeleteReason", "completed");
+        taskProperties.put("getProcessEngineServices", engine);
+        task = DelegateFixtures.task(taskProperties, variables);
+
+        activityExecution = execution(processDefinitionId, engine, variables, "UserTask_1", "Review Request", null);
+        flowExecution = execution(processDefinitionId, engine, variables, "Gateway_1", "Decision?", "Flow_Approved");
+        processExecution = execution(processDefinitionId, engine, variables, null, null, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public void emptyCommand() {
+        inCommand(() -> { });
+    }
+
+    @Benchmark
+    public void taskCreate() {
+        inCommand(() -> subscriber.handleTaskCreate(new TaskCreateEvent(task)));
+    }
+
+    @Benchmark
+    public void taskAssign() {
+        inCommand(() -> subscriber.handleTaskAssign(new TaskAssignEvent(task)));
+    }
+
+    @Benchmark
+    public void taskComplete() {
+        inCommand(() -> subscriber.handleTaskComplete(new TaskCompleteEvent(task)));
+    }
+
+    @Benchmark
+    public void taskDelete() {
+        inCommand(() -> subscriber.handleTaskDelete(new TaskDeleteEvent(task)));
+    }
+
+    @Benchmark
+    public void executionStart() {
+        inCommand(() -> subscriber.handleExecutionStart(new ExecutionStartEvent(activityExecution)));
+    }
+
+    @Benchmark
+    public void executionEnd() {
+        inCommand(() -> subscriber.handleExecutionEnd(new ExecutionEndEvent(activityExecution)));
+    }
+
+    @Benchmark
+    public void executionTake() {
+        inCommand(() -> subscriber.handleSequenceFlowTake(new SequenceFlowTakeEvent(flowExecution)));
+    }
+
+    @Benchmark
+    public void processStart() {
+        inCommand(() -> subscriber.handleProcessStart(new ProcessStartEvent(processExecution)));
+    }
+
+    @Benchmark
+    public void processEnd() {
+        inCommand(() -> subscriber.handleProcessEnd(new ProcessEndEvent(processExecution)));
+    }
+
+    // Listeners always run inside a command; without one the side effects take their
+    // no-transaction shortcuts (direct delivery, immediate counter flush)
+    private void inCommand(Runnable handler) {
+        commandExecutor.execute(commandContext -> {
+            handler.run();
+            return null;
+        });
+    }
+
+    static DelegateExecution execution(String processDefinitionId, ProcessEngineServices engine,
+                                       Map<String, Object> variables, String activityId, String activityName,
+                                       String transitionId) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("getId", activityId != null ? "execution-1" : "process-1");
+        properties.put("getProcessInstanceId", "process-1");
+        properties.put("getProcessDefinitionId", processDefinitionId);
+        properties.put("getProcessBusinessKey", "order-4711");
+        if (activityId != null) {
+            properties.put("getCurrentActivityId", activityId);
+            properties.put("getCurrentActivityName", activityName);
+        }
+        if (transitionId != null) {
+            properties.put("getCurrentTransitionId", transitionId);
+        }
+        properties.put("getProcessEngineServices", engine);
+        return DelegateFixtures.execution(properties, variables);
+    }
+}
+
+// Cost of the fixtures themselves: the reads and writes a typical handler makes
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FixtureBaselineBenchmark {
+
+    private DelegateTask task;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("priority", "high");
+        variables.put("department", "finance");
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("getId", "task-1");
+        properties.put("getProcessInstanceId", "process-1");
+        task = DelegateFixtures.task(properties, variables);
+    }
+
+    @Benchmark
+    public void readAndWrite(Blackhole blackhole) {
+        blackhole.consume(task.getId());
+        blackhole.consume(task.getProcessInstanceId());
+        blackhole.consume(task.getVariableTyped("priority", false));
+        blackhole.consume(task.getVariableTyped("department", false));
+        task.setVariable("taskStatus", "CREATED");
+    }
+}
+
+// One approval instance from start to end, with and without the application's listeners
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class ApprovalProcessBenchmark {
+
+    @Param({"true", "false"})
+    private boolean globalListeners;
+
+    private ConfigurableApplicationContext context;
+    private ProcessEngine processEngine;
+    private RuntimeService runtimeService;
+    private TaskService taskService;
+    private long instances;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if (globalListeners) {
+            context = BenchmarkApplication.start();
+            processEngine = context.getBean(ProcessEngine.class);
+        } else {
+            // Same database and history level, no plugins, parse listeners or Spring beans
+            processEngine = ProcessEngineConfiguration.createStandaloneInMemProcessEngineConfiguration()
+                    .setJdbcUrl("jdbc:h2:mem:benchmark-bare-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1")
+                    .setHistory(ProcessEngineConfiguration.HISTORY_FULL)
+                    .setJobExecutorActivate(false)
+                    .buildProcessEngine();
+        }
+        runtimeService = processEngine.getRuntimeService();
+        taskService = processEngine.getTaskService();
+        BenchmarkApplication.deployApprovalProcess(processEngine.getRepositoryService());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (context != null) {
+            context.close();
+        } else {
+            processEngine.close();
+        }
+    }
+
+    @Benchmark
+    public String runApprovalProcess() {
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("department", "finance");
+        variables.put("priority", "high");
+        variables.put("processOwner", "owner");
+        String processInstanceId = runtimeService
+                .startProcessInstanceByKey(BenchmarkApplication.APPROVAL_PROCESS_KEY, variables)
+                .getId();
+        Task task = taskService.createTaskQuery().processInstanceId(processInstanceId).singleResult();
+        // Alternate between both branches of the gateway
+        String decision = instances++ % 2 == 0 ? "approved" : "rejected";
+        taskService.complete(task.getId(), Collections.singletonMap("approvalStatus", decision));
+        return processInstanceId;
+    }
+}
+
+// Compares two JMH JSON result files; exits with 1 if a benchmark got slower by more
+// than the threshold (percent). Throughput scores are "higher is better", average
+// time scores "lower is better".
+public class JmhResultComparison {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: JmhResultComparison <baseline.json> <current.json> [threshold-percent]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+        Map<String, JsonNode> baseline = index(args[0]);
+        Map<String, JsonNode> current = index(args[1]);
+
+        boolean regression = false;
+        for (Map.Entry<String, JsonNode> entry : current.entrySet()) {
+            JsonNode before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.printf("%-90s new%n", entry.getKey());
+                continue;
+            }
+            double old = before.path("primaryMetric").path("score").asDouble();
+            double now = entry.getValue().path("primaryMetric").path("score").asDouble();
+            boolean higherIsBetter = "thrpt".equals(entry.getValue().path("mode").asText());
+            double change = old == 0 ? 0 : (now - old) / old * 100;
+            double worse = higherIsBetter ? -change : change;
+            String verdict = worse > threshold ? "REGRESSION" : worse < -threshold ? "improved" : "";
+            regression |= worse > threshold;
+            System.out.printf("%-90s %12.3f -> %12.3f %s %+7.1f%% %s%n", entry.getKey(), old, now,
+                    entry.getValue().path("primaryMetric").path("scoreUnit").asText(), change, verdict);
+        }
+        System.exit(regression ? 1 : 0);
+    }
+
+    // benchmark + mode + params -> result
+    private static Map<String, JsonNode> index(String file) throws IOException {
+        Map<String, JsonNode> results = new TreeMap<>();
+        for (JsonNode result : new ObjectMapper().readTree(new File(file))) {
+            StringBuilder key = new StringBuilder(result.path("benchmark").asText())
+                    .append(' ').append(result.path("mode").asText());
+            result.path("params").fields().forEachRemaining(param ->
+                    key.append(' ').append(param.getKey()).append('=').append(param.getValue().asText()));
+            results.put(key.toString(), result);
+        }
+        return results;
+    }
+}
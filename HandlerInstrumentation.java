@@ -0,0 +1,466 @@
+// Listener / handler instrumentation
+//
+// Every CamundaEventSubscriber entry point and every @ActivityHandler runs inside a
+// HandlerScope, which records on the calling thread:
+//   - wall time, into a Micrometer Timer
+//   - with track-variables: variable lookups VariablePrefetcher performs (a batched
+//     fetch counts as one) and writes made through a VariableSnapshot; access that
+//     bypasses the snapshot, task.getVariable / execution.setVariable, is not counted
+//   - with count-statements: JDBC statements the engine prepares while the handler
+//     runs (StatementCountingDataSource); inserts and updates the engine flushes at
+//     the end of the command are counted for the command, not the handler
+// and publishes per-handler meters:
+//   workflow.handler.duration{handler}             timer
+//   workflow.handler.variable.reads / .writes      summaries (track-variables)
+//   workflow.handler.statements                    summary (count-statements)
+//   workflow.handler.slow{handler}                 counter
+//
+// Neither optional part wraps the task or execution handed to a handler, or a
+// statement: variables are counted where the snapshot touches the scope, statements
+// by one proxy per engine connection checkout whose prepareStatement / createStatement
+// / prepareCall increment the counter. Both are on by default.
+//
+// CommandInstrumentationInterceptor times each outermost engine command and
+// splits it into handler time and engine time:
+//   workflow.command.duration{command}
+//   workflow.command.handler.time{command}
+//   workflow.command.statements{command}
+//
+// With count-statements, workflow.jdbc.statements counts every statement prepared on
+// the engine's DataSource, whether or not the thread ran a handler or an instrumented
+// command. With JDBC batch processing a batch of inserts of one table is prepared, and
+// counted, once. Only the engine's DataSource is wrapped; JdbcTemplate users of the
+// application DataSource are not counted.
+//
+// A watchdog thread looks at the running scopes every watchdog-interval-ms; a
+// handler still running after slow-threshold-ms gets one stack trace of its thread
+// logged, at most once per handler per stack-trace-interval-ms. Finished slow
+// invocations are counted in workflow.handler.slow every time but logged at most once
+// per handler per the same interval, with the number suppressed since.
+//
+// With the defaults the recording path is two nanoTime calls, a ThreadLocal lookup,
+// plain field increments and a cached meter lookup; scopes are pre-allocated per
+// thread.
+//
+// application.yml:
+//
+// workflow:
+//   instrumentation:
+//     enabled: true
+//     track-variables: true
+//     count-statements: true
+//     slow-threshold-ms: 50
+//     watchdog-interval-ms: 10
+//     stack-trace-interval-ms: 60000
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "workflow.instrumentation")
+public class HandlerInstrumentationProperties {
+    private boolean enabled = true;
+    // Counts VariablePrefetcher lookups and VariableSnapshot writes
+    private boolean trackVariables = true;
+    // Counts statements prepared on the engine's connections
+    private boolean countStatements = true;
+    private long slowThresholdMs = 50;
+    private long watchdogIntervalMs = 10;
+    private long stackTraceIntervalMs = 60000;
+}
+
+// Per-thread counters and a pre-allocated stack of scopes
+public class InstrumentationThreadState {
+
+    private static final int MAX_DEPTH = 32;
+
+    final Thread thread = Thread.currentThread();
+    final HandlerScope[] frames = new HandlerScope[MAX_DEPTH];
+    int depth;
+
+    // Running totals on this thread, scopes diff them
+    long variableReads;
+    long variableWrites;
+    long statements;
+    long handlerNanos;
+
+    // Read by the watchdog
+    volatile String activeHandler;
+    volatile long activeSince;
+
+    InstrumentationThreadState(HandlerInstrumentation instrumentation) {
+        for (int i = 0; i < MAX_DEPTH; i++) {
+            frames[i] = new HandlerScope(instrumentation, this);
+        }
+    }
+}
+
+public final class HandlerScope implements AutoCloseable {
+
+    private final HandlerInstrumentation instrumentation;
+    private final InstrumentationThreadState state;
+    String handler;
+    long startNanos;
+    long startReads;
+    long startWrites;
+    long startStatements;
+
+    HandlerScope(HandlerInstrumentation instrumentation, InstrumentationThreadState state) {
+        this.instrumentation = instrumentation;
+        this.state = state;
+    }
+
+    @Override
+    public void close() {
+        if (handler != null) {
+            instrumentation.end(state, this);
+        }
+    }
+}
+
+@Component
+@Slf4j
+public class HandlerInstrumentation {
+
+    // Returned when disabled or nested too deep, close() does nothing
+    private static final HandlerScope NOOP = new HandlerScope(null, null);
+
+    private static final ThreadLocal<InstrumentationThreadState> CURRENT = new ThreadLocal<>();
+
+    // All statements on the engine DataSource, including threads without a state
+    private static final LongAdder STATEMENTS = new LongAdder();
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private HandlerInstrumentationProperties properties;
+
+    private final ConcurrentHashMap<String, HandlerMeters> meters = new ConcurrentHashMap<>();
+    private final Map<Thread, InstrumentationThreadState> threads = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastStackTrace = new ConcurrentHashMap<>();
+    private ScheduledExecutorService watchdog;
+    private long slowThresholdNanos;
+
+    @PostConstruct
+    public void start() {
+        slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(properties.getSlowThresholdMs());
+        if (!properties.isEnabled()) {
+            return;
+        }
+        if (properties.isCountStatements()) {
+            FunctionCounter.builder("workflow.jdbc.statements", STATEMENTS, LongAdder::sum).register(meterRegistry);
+        }
+        watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "handler-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchdog.scheduleWithFixedDelay(this::inspectRunningHandlers,
+                properties.getWatchdogIntervalMs(), properties.getWatchdogIntervalMs(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (watchdog != null) {
+            watchdog.shutdownNow();
+        }
+    }
+
+    public HandlerScope begin(String handler) {
+        if (!properties.isEnabled()) {
+            return NOOP;
+        }
+        InstrumentationThreadState state = state();
+        if (state.depth == state.frames.length) {
+            return NOOP;
+        }
+        HandlerScope scope = state.frames[state.depth++];
+        scope.handler = handler;
+        scope.startReads = state.variableReads;
+        scope.startWrites = state.variableWrites;
+        scope.startStatements = state.statements;
+        scope.startNanos = System.nanoTime();
+        if (state.depth == 1) {
+            state.activeHandler = handler;
+            state.activeSince = scope.startNanos;
+        }
+        return scope;
+    }
+
+    void end(InstrumentationThreadState state, HandlerScope scope) {
+        long elapsed = System.nanoTime() - scope.startNanos;
+        state.depth--;
+        if (state.depth == 0) {
+            state.activeSince = 0;
+            state.activeHandler = null;
+            state.handlerNanos += elapsed;
+        }
+        String handler = scope.handler;
+        scope.handler = null;
+
+        HandlerMeters handlerMeters = meters.computeIfAbsent(handler, this::createMeters);
+        handlerMeters.duration.record(elapsed, TimeUnit.NANOSECONDS);
+        if (handlerMeters.reads != null) {
+            handlerMeters.reads.record(state.variableReads - scope.startReads);
+            handlerMeters.writes.record(state.variableWrites - scope.startWrites);
+        }
+        if (handlerMeters.statements != null) {
+            handlerMeters.statements.record(state.statements - scope.startStatements);
+        }
+        if (elapsed >= slowThresholdNanos) {
+            handlerMeters.slow.increment();
+            if (!handlerMeters.warningDue(System.currentTimeMillis(), properties.getStackTraceIntervalMs())) {
+                handlerMeters.suppressedWarnings.increment();
+                return;
+            }
+            log.warn("Slow handler {}: {} ms, {} variable reads, {} writes, {} statements ({} more slow since last warning)",
+                    handler, TimeUnit.NANOSECONDS.toMillis(elapsed), state.variableReads - scope.startReads,
+                    state.variableWrites - scope.startWrites, state.statements - scope.startStatements,
+                    handlerMeters.suppressedWarnings.sumThenReset());
+        }
+    }
+
+    // Wraps an @ActivityHandler so it runs in its own scope
+    public ActivityEventHandler wrap(String handler, ActivityEventHandler delegate) {
+        return execution -> {
+            try (HandlerScope scope = begin(handler)) {
+                delegate.handle(execution);
+            }
+        };
+    }
+
+    // Called by VariablePrefetcher, a batched fetch counts as the lookups it performs
+    public static void variablesRead(int count) {
+        InstrumentationThreadState state = CURRENT.get();
+        if (state != null) {
+            state.variableReads += count;
+        }
+    }
+
+    // Called by VariableSnapshot for every write it passes on to the task / execution
+    public static void variablesWritten(int count) {
+        InstrumentationThreadState state = CURRENT.get();
+        if (state != null) {
+            state.variableWrites += count;
+        }
+    }
+
+    // Called by StatementCountingDataSource for every prepared statement
+    public static void statementPrepared() {
+        STATEMENTS.increment();
+        InstrumentationThreadState state = CURRENT.get();
+        if (state != null) {
+            state.statements++;
+        }
+    }
+
+    // Engine statements executed since startup, across all threads; 0 unless count-statements
+    public static long totalStatements() {
+        return STATEMENTS.sum();
+    }
+
+    // Totals of the current thread, used by CommandInstrumentationInterceptor
+    static InstrumentationThreadState currentState() {
+        return CURRENT.get();
+    }
+
+    InstrumentationThreadState state() {
+        InstrumentationThreadState state = CURRENT.get();
+        if (state == null) {
+            state = new InstrumentationThreadState(this);
+            CURRENT.set(state);
+            threads.put(state.thread, state);
+        }
+        return state;
+    }
+
+    private void inspectRunningHandlers() {
+        long now = System.nanoTime();
+        Iterator<InstrumentationThreadState> iterator = threads.values().iterator();
+        while (iterator.hasNext()) {
+            InstrumentationThreadState state = iterator.next();
+            if (!state.thread.isAlive()) {
+                iterator.remove();
+                continue;
+            }
+            long since = state.activeSince;
+            String handler = state.activeHandler;
+            if (since == 0 || handler == null || now - since < slowThresholdNanos) {
+                continue;
+            }
+            Long last = lastStackTrace.get(handler);
+            long nowMs = System.currentTimeMillis();
+            if (last != null && nowMs - last < properties.getStackTraceIntervalMs()) {
+                continue;
+            }
+            lastStackTrace.put(handler, nowMs);
+            StackTraceElement[] stack = state.thread.getStackTrace();
+            // The handler may have finished while the stack was taken
+            if (state.activeSince != since) {
+                continue;
+            }
+            StringBuilder trace = new StringBuilder();
+            for (StackTraceElement element : stack) {
+                trace.append("\n\tat ").append(element);
+            }
+            log.warn("Handler {} running for {} ms on {}:{}", handler,
+                    TimeUnit.NANOSECONDS.toMillis(now - since), state.thread.getName(), trace);
+        }
+    }
+
+    private HandlerMeters createMeters(String handler) {
+        return new HandlerMeters(
+                Timer.builder("workflow.handler.duration").tag("handler", handler).register(meterRegistry),
+                properties.isTrackVariables()
+                        ? DistributionSummary.builder("workflow.handler.variable.reads").tag("handler", handler).register(meterRegistry)
+                        : null,
+                properties.isTrackVariables()
+                        ? DistributionSummary.builder("workflow.handler.variable.writes").tag("handler", handler).register(meterRegistry)
+                        : null,
+                properties.isCountStatements()
+                        ? DistributionSummary.builder("workflow.handler.statements").tag("handler", handler).register(meterRegistry)
+                        : null,
+                Counter.builder("workflow.handler.slow").tag("handler", handler).register(meterRegistry));
+    }
+
+    // reads / writes / statements are null when their tracking is off
+    @AllArgsConstructor
+    private static class HandlerMeters {
+        private final Timer duration;
+        private final DistributionSummary reads;
+        private final DistributionSummary writes;
+        private final DistributionSummary statements;
+        private final Counter slow;
+        // Slow invocations not logged since the last warning
+        private final LongAdder suppressedWarnings = new LongAdder();
+        private final AtomicLong lastWarning = new AtomicLong();
+
+        // At most one caller per interval gets true
+        boolean warningDue(long nowMs, long intervalMs) {
+            long last = lastWarning.get();
+            return nowMs - last >= intervalMs && lastWarning.compareAndSet(last, nowMs);
+        }
+    }
+}
+
+// Splits the latency of each outermost engine command into handler and engine time
+@Slf4j
+public class CommandInstrumentationInterceptor extends CommandInterceptor {
+
+    private final MeterRegistry meterRegistry;
+    private final ThreadLocal<int[]> nesting = ThreadLocal.withInitial(() -> new int[1]);
+    private final ConcurrentHashMap<Class<?>, Timer[]> timers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Class<?>, DistributionSummary> statementSummaries = new ConcurrentHashMap<>();
+
+    public CommandInstrumentationInterceptor(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public <T> T execute(Command<T> command) {
+        int[] depth = nesting.get();
+        if (depth[0]++ > 0) {
+            try {
+                return next.execute(command);
+            } finally {
+                depth[0]--;
+            }
+        }
+
+        InstrumentationThreadState state = HandlerInstrumentation.currentState();
+        long handlerNanosBefore = state != null ? state.handlerNanos : 0;
+        long statementsBefore = state != null ? state.statements : 0;
+        long start = System.nanoTime();
+        try {
+            return next.execute(command);
+        } finally {
+            depth[0]--;
+            long elapsed = System.nanoTime() - start;
+            state = HandlerInstrumentation.currentState();
+            long handlerNanos = state != null ? state.handlerNanos - handlerNanosBefore : 0;
+            long statements = state != null ? state.statements - statementsBefore : 0;
+
+            Timer[] commandTimers = timers.computeIfAbsent(command.getClass(), this::createTimers);
+            commandTimers[0].record(elapsed, TimeUnit.NANOSECONDS);
+            commandTimers[1].record(handlerNanos, TimeUnit.NANOSECONDS);
+            statementSummaries.computeIfAbsent(command.getClass(), type -> DistributionSummary
+                    .builder("workflow.command.statements").tag("command", type.getSimpleName())
+                    .register(meterRegistry)).record(statements);
+        }
+    }
+
+    private Timer[] createTimers(Class<?> commandType) {
+        String command = commandType.getSimpleName();
+        return new Timer[] {
+            Timer.builder("workflow.command.duration").tag("command", command).register(meterRegistry),
+            Timer.builder("workflow.command.handler.time").tag("command", command).register(meterRegistry)
+        };
+    }
+}
+
+// Counts JDBC statements per thread on the engine's DataSource only. It is a
+// TransactionAwareDataSourceProxy around the same target, so the engine keeps joining
+// Spring transactions and SpringProcessEngineConfiguration does not wrap it again.
+// The connection handed out is proxied once per checkout; the statements it creates
+// are returned as they are.
+public class StatementCountingDataSource extends TransactionAwareDataSourceProxy {
+
+    public StatementCountingDataSource(DataSource target) {
+        super(target instanceof TransactionAwareDataSourceProxy
+                ? ((TransactionAwareDataSourceProxy) target).getTargetDataSource() : target);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return countingConnection(super.getConnection());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return countingConnection(super.getConnection(username, password));
+    }
+
+    private static Connection countingConnection(Connection connection) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+                (proxy, method, args) -> {
+                    String name = method.getName();
+                    if (name.equals("prepareStatement") || name.equals("createStatement") || name.equals("prepareCall")) {
+                        HandlerInstrumentation.statementPrepared();
+                    }
+                    try {
+                        return method.invoke(connection, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+}
+
+// Runs after the starter's DefaultDatasourceConfiguration has set the engine DataSource
+@Component
+@Order(Ordering.DEFAULT_ORDER + 1)
+public class HandlerInstrumentationPlugin extends AbstractProcessEnginePlugin {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private HandlerInstrumentationProperties properties;
+
+    @Override
+    public void preInit(ProcessEngineConfigurationImpl processEngineConfiguration) {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        List<CommandInterceptor> interceptors = processEngineConfiguration.getCustomPreCommandInterceptorsTxRequired();
+        if (interceptors == null) {
+            interceptors = new ArrayList<>();
+            processEngineConfiguration.setCustomPreCommandInterceptorsTxRequired(interceptors);
+        }
+        interceptors.add(new CommandInstrumentationInterceptor(meterRegistry));
+
+        DataSource dataSource = processEngineConfiguration.getDataSource();
+        if (properties.isCountStatements() && dataSource != null && !(dataSource instanceof StatementCountingDataSource)) {
+            processEngineConfiguration.setDataSource(new StatementCountingDataSource(dataSource));
+        }
+    }
+}
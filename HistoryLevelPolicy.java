@@ -0,0 +1,431 @@
+// Policy driven history level
+//
+// history-level FULL records every variable update of every process, including the
+// technical ones (taskStatus, assignedBy, _startTime). PolicyHistoryLevel decides per
+// event from a policy file instead: each process definition, and optionally each of
+// its activities, gets one of the engine's levels (NONE, ACTIVITY, AUDIT, FULL), and
+// the event is produced when that level would produce it. Variable events additionally
+// look at the variable name:
+//
+//   matches variables (policy-wide or of the definition)          -> FULL
+//   otherwise matches excluded-variables                           -> NONE
+//   otherwise                                                      -> level of the activity / definition
+//
+// Process instance events always use the definition level, never an activity
+// override, so a historic process instance is either recorded from start to end or
+// not at all. Events the engine asks about without an entity are answered as FULL.
+//
+// The level keeps the id of FULL, so a database set up with history-level FULL
+// accepts it and nothing in ACT_GE_PROPERTY changes; it is registered under the name
+// "policy". The file is re-read when it changes (checked every reload-interval-ms)
+// or on POST /api/admin/history-policy/reload. A change applies to events from then on:
+// an activity started under one level and ended under another can leave an open
+// historic activity instance, or an end event without its row.
+//
+// Without a policy file every event is produced, as with FULL.
+//
+// history-policy.yml:
+//
+// default-level: ACTIVITY
+// excluded-variables: taskStatus, assignedBy, _*
+// definitions:
+//   approvalProcess:
+//     level: AUDIT
+//     variables: amount, decision*, approved
+//     activities:
+//       finalApproval: FULL
+//   reviewProcess:
+//     level: NONE
+//
+// Metrics: workflow.history.policy.events{produced}
+//
+// application.yml:
+//
+// workflow:
+//   history:
+//     policy:
+//       enabled: true
+//       file: ./config/history-policy.yml
+//       reload-interval-ms: 5000
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "workflow.history.policy")
+public class HistoryPolicyProperties {
+    private boolean enabled = false;
+    private String file = "./config/history-policy.yml";
+    private long reloadIntervalMs = 5000;
+}
+
+public enum HistoryPolicyLevel {
+    NONE(null),
+    ACTIVITY(HistoryLevel.HISTORY_LEVEL_ACTIVITY),
+    AUDIT(HistoryLevel.HISTORY_LEVEL_AUDIT),
+    FULL(HistoryLevel.HISTORY_LEVEL_FULL);
+
+    private final HistoryLevel historyLevel;
+
+    HistoryPolicyLevel(HistoryLevel historyLevel) {
+        this.historyLevel = historyLevel;
+    }
+
+    public boolean produces(HistoryEventType eventType, Object entity) {
+        return historyLevel != null && historyLevel.isHistoryEventProduced(eventType, entity);
+    }
+}
+
+// Contents of the policy file
+@Data
+@NoArgsConstructor
+public class HistoryPolicy {
+    private HistoryPolicyLevel defaultLevel = HistoryPolicyLevel.FULL;
+    private List<String> variables = new ArrayList<>();
+    private List<String> excludedVariables = new ArrayList<>();
+    private Map<String, DefinitionHistoryPolicy> definitions = new LinkedHashMap<>();
+}
+
+@Data
+@NoArgsConstructor
+public class DefinitionHistoryPolicy {
+    private HistoryPolicyLevel level;
+    private List<String> variables = new ArrayList<>();
+    private List<String> excludedVariables = new ArrayList<>();
+    private Map<String, HistoryPolicyLevel> activities = new LinkedHashMap<>();
+}
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class HistoryPolicyStatus {
+    private String file;
+    private boolean loaded;
+    private long version;
+    private LocalDateTime loadedAt;
+    private HistoryPolicy policy;
+    private long produced;
+    private long suppressed;
+}
+
+// Immutable, swapped as a whole on reload
+public final class CompiledHistoryPolicy {
+
+    static final CompiledHistoryPolicy FULL = new CompiledHistoryPolicy(new HistoryPolicy());
+
+    private final HistoryPolicy source;
+    private final HistoryPolicyLevel defaultLevel;
+    private final Pattern variables;
+    private final Pattern excludedVariables;
+    private final Map<String, Definition> definitions = new HashMap<>();
+
+    CompiledHistoryPolicy(HistoryPolicy source) {
+        this.source = source;
+        this.defaultLevel = source.getDefaultLevel() != null ? source.getDefaultLevel() : HistoryPolicyLevel.FULL;
+        this.variables = globs(source.getVariables());
+        this.excludedVariables = globs(source.getExcludedVariables());
+        source.getDefinitions().forEach((key, definition) -> definitions.put(key, new Definition(definition)));
+    }
+
+    HistoryPolicy getSource() {
+        return source;
+    }
+
+    HistoryPolicyLevel levelFor(String definitionKey, String activityId, String variableName, boolean instanceEvent) {
+        Definition definition = definitionKey != null ? definitions.get(definitionKey) : null;
+        if (variableName != null) {
+            if (matches(variables, variableName) || (definition != null && matches(definition.variables, variableName))) {
+                return HistoryPolicyLevel.FULL;
+            }
+            if (matches(excludedVariables, variableName) || (definition != null && matches(definition.excludedVariables, variableName))) {
+                return HistoryPolicyLevel.NONE;
+            }
+        }
+        if (definition == null) {
+            return defaultLevel;
+        }
+        if (!instanceEvent && activityId != null) {
+            HistoryPolicyLevel activityLevel = definition.activities.get(activityId);
+            if (activityLevel != null) {
+                return activityLevel;
+            }
+        }
+        return definition.level != null ? definition.level : defaultLevel;
+    }
+
+    private static boolean matches(Pattern pattern, String name) {
+        return pattern != null && pattern.matcher(name).matches();
+    }
+
+    // "amount, decision*" -> amount|decision.*
+    private static Pattern globs(List<String> globs) {
+        StringJoiner alternatives = new StringJoiner("|");
+        for (String glob : globs) {
+            for (String part : glob.split(",")) {
+                String trimmed = part.trim();
+                if (trimmed.isEmpty()) {
+                    continue;
+                }
+                StringBuilder regex = new StringBuilder();
+                for (char c : trimmed.toCharArray()) {
+                    if (c == '*') {
+                        regex.append(".*");
+                    } else if (c == '?') {
+                        regex.append('.');
+                    } else {
+                        regex.append(Pattern.quote(String.valueOf(c)));
+                    }
+                }
+                alternatives.add(regex);
+            }
+        }
+        return alternatives.length() == 0 ? null : Pattern.compile(alternatives.toString());
+    }
+
+    private static final class Definition {
+        final HistoryPolicyLevel level;
+        final Map<String, HistoryPolicyLevel> activities;
+        final Pattern variables;
+        final Pattern excludedVariables;
+
+        Definition(DefinitionHistoryPolicy policy) {
+            this.level = policy.getLevel();
+            this.activities = new HashMap<>(policy.getActivities());
+            this.variables = globs(policy.getVariables());
+            this.excludedVariables = globs(policy.getExcludedVariables());
+        }
+    }
+}
+
+@Component
+@Slf4j
+public class PolicyHistoryLevel implements HistoryLevel {
+
+    public static final String NAME = "policy";
+
+    @Autowired
+    private HistoryPolicyProperties properties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final ObjectMapper mapper = new ObjectMapper()
+            .setPropertyNamingStrategy(PropertyNamingStrategies.KEBAB_CASE)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .configure(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY, true);
+
+    private volatile CompiledHistoryPolicy policy = CompiledHistoryPolicy.FULL;
+    private volatile boolean loaded;
+    private volatile long version;
+    private volatile LocalDateTime loadedAt;
+    private volatile FileTime lastModified;
+
+    private final Map<Class<?>, ScopeAccessors> scopeAccessors = new ConcurrentHashMap<>();
+    private final LongAdder produced = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+    private ScheduledExecutorService reloader;
+
+    @PostConstruct
+    public void start() {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        FunctionCounter.builder("workflow.history.policy.events", produced, LongAdder::sum).tag("produced", "true").register(meterRegistry);
+        FunctionCounter.builder("workflow.history.policy.events", suppressed, LongAdder::sum).tag("produced", "false").register(meterRegistry);
+
+        reload();
+        reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "history-policy-reload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reloader.scheduleWithFixedDelay(this::reloadIfModified, properties.getReloadIntervalMs(),
+                properties.getReloadIntervalMs(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (reloader != null) {
+            reloader.shutdownNow();
+        }
+    }
+
+    @Override
+    public int getId() {
+        // Same id as FULL, the database keeps its history level
+        return HistoryLevel.HISTORY_LEVEL_FULL.getId();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean isHistoryEventProduced(HistoryEventType eventType, Object entity) {
+        if (entity == null) {
+            return HistoryPolicyLevel.FULL.produces(eventType, null);
+        }
+        boolean result = resolveLevel(eventType, entity).produces(eventType, entity);
+        (result ? produced : suppressed).increment();
+        return result;
+    }
+
+    public synchronized boolean reload() {
+        Path file = Paths.get(properties.getFile());
+        if (!Files.exists(file)) {
+            log.warn("History policy file {} not found, recording full history", file.toAbsolutePath());
+            policy = CompiledHistoryPolicy.FULL;
+            loaded = false;
+            lastModified = null;
+            return false;
+        }
+        try (Reader reader = Files.newBufferedReader(file)) {
+            FileTime modified = Files.getLastModifiedTime(file);
+            Object document = new Yaml().load(reader);
+            HistoryPolicy source = document != null ? mapper.convertValue(document, HistoryPolicy.class) : new HistoryPolicy();
+            policy = new CompiledHistoryPolicy(source);
+            loaded = true;
+            lastModified = modified;
+            loadedAt = LocalDateTime.now();
+            version++;
+            log.info("History policy {} loaded (version {}) - default: {}, definitions: {}",
+                    file, version, source.getDefaultLevel(), source.getDefinitions().keySet());
+            return true;
+        } catch (Exception e) {
+            // Keep the previous policy rather than switching to an unintended one
+            log.error("Invalid history policy {}, keeping version {}: {}", file, version, e.getMessage());
+            return false;
+        }
+    }
+
+    public HistoryPolicyStatus getStatus() {
+        return new HistoryPolicyStatus(properties.getFile(), loaded, version, loadedAt, policy.getSource(),
+                produced.sum(), suppressed.sum());
+    }
+
+    private void reloadIfModified() {
+        try {
+            Path file = Paths.get(properties.getFile());
+            FileTime modified = Files.exists(file) ? Files.getLastModifiedTime(file) : null;
+            if (!Objects.equals(modified, lastModified)) {
+                reload();
+            }
+        } catch (Exception e) {
+            log.warn("Checking history policy {} failed: {}", properties.getFile(), e.getMessage());
+        }
+    }
+
+    private HistoryPolicyLevel resolveLevel(HistoryEventType eventType, Object entity) {
+        String definitionId = null;
+        String definitionKey = null;
+        String activityId = null;
+        String variableName = null;
+
+        if (entity instanceof VariableInstanceEntity) {
+            VariableInstanceEntity variable = (VariableInstanceEntity) entity;
+            variableName = variable.getName();
+            ExecutionEntity execution = variable.getExecution();
+            if (execution != null) {
+                definitionId = execution.getProcessDefinitionId();
+                activityId = execution.getActivityId();
+            }
+        } else if (entity instanceof ExecutionEntity) {
+            ExecutionEntity execution = (ExecutionEntity) entity;
+            definitionId = execution.getProcessDefinitionId();
+            activityId = execution.getActivityId();
+        } else if (entity instanceof TaskEntity) {
+            TaskEntity task = (TaskEntity) entity;
+            definitionId = task.getProcessDefinitionId();
+            activityId = task.getTaskDefinitionKey();
+        } else {
+            ScopeAccessors accessors = scopeAccessors.computeIfAbsent(entity.getClass(), ScopeAccessors::new);
+            definitionKey = accessors.get(accessors.definitionKey, entity);
+            definitionId = accessors.get(accessors.definitionId, entity);
+            activityId = accessors.get(accessors.activityId, entity);
+        }
+
+        if (definitionKey == null && definitionId != null) {
+            definitionKey = ProcessDefinitionKeys.of(definitionId);
+        }
+        boolean instanceEvent = "process-instance".equals(eventType.getEntityType());
+        return policy.levelFor(definitionKey, activityId, variableName, instanceEvent);
+    }
+
+    // Incidents, jobs, identity links, external tasks, ... carry their scope under these names
+    private static final class ScopeAccessors {
+        final Optional<Method> definitionKey;
+        final Optional<Method> definitionId;
+        final Optional<Method> activityId;
+
+        ScopeAccessors(Class<?> type) {
+            this.definitionKey = find(type, "getProcessDefinitionKey");
+            this.definitionId = find(type, "getProcessDefinitionId", "getProcessDefId");
+            this.activityId = find(type, "getActivityId");
+        }
+
+        String get(Optional<Method> accessor, Object entity) {
+            if (!accessor.isPresent()) {
+                return null;
+            }
+            Object value = ReflectionUtils.invokeMethod(accessor.get(), entity);
+            return value instanceof String ? (String) value : null;
+        }
+
+        private static Optional<Method> find(Class<?> type, String... names) {
+            for (String name : names) {
+                Method method = ReflectionUtils.findMethod(type, name);
+                if (method != null) {
+                    ReflectionUtils.makeAccessible(method);
+                    return Optional.of(method);
+                }
+            }
+            return Optional.empty();
+        }
+    }
+}
+
+@Component
+public class HistoryPolicyPlugin extends AbstractProcessEnginePlugin {
+
+    @Autowired
+    private HistoryPolicyProperties properties;
+
+    @Autowired
+    private PolicyHistoryLevel policyHistoryLevel;
+
+    @Override
+    public void preInit(ProcessEngineConfigurationImpl processEngineConfiguration) {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        List<HistoryLevel> customLevels = processEngineConfiguration.getCustomHistoryLevels();
+        if (customLevels == null) {
+            customLevels = new ArrayList<>();
+            processEngineConfiguration.setCustomHistoryLevels(customLevels);
+        }
+        customLevels.add(policyHistoryLevel);
+        // Overrides camunda.bpm.history-level, which only names the level
+        processEngineConfiguration.setHistoryLevel(policyHistoryLevel);
+        processEngineConfiguration.setHistory(PolicyHistoryLevel.NAME);
+    }
+}
+
+@RestController
+@RequestMapping("/api/admin/history-policy")
+public class HistoryPolicyController {
+
+    @Autowired
+    private PolicyHistoryLevel policyHistoryLevel;
+
+    @GetMapping
+    public ResponseEntity<HistoryPolicyStatus> getPolicy() {
+        return ResponseEntity.ok(policyHistoryLevel.getStatus());
+    }
+
+    @PostMapping("/reload")
+    public ResponseEntity<HistoryPolicyStatus> reload() {
+        if (!policyHistoryLevel.reload()) {
+            return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body(policyHistoryLevel.getStatus());
+        }
+        return ResponseEntity.ok(policyHistoryLevel.getStatus());
+    }
+}
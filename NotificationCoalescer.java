@@ -0,0 +1,192 @@
+// Notification coalescing
+//
+// Sits between NotificationSender and NotificationDispatcher. Assignment,
+// completion and cancellation notifications are grouped per recipient; the first
+// message for a recipient opens a window, and when the window closes (or the batch
+// reaches max-batch-size) the recipient gets a single DIGEST message instead of one
+// message per task. Urgent messages bypass the window.
+//
+// submit() returns a future per message that completes when the message (or the
+// digest containing it) was sent, and fails when the dispatcher gave up on it.
+// OutboxRelay keeps the outbox row until then, so a message still waiting in a
+// window when the node dies is delivered again from the outbox. On shutdown the open
+// windows are flushed right away and shutdown waits up to shutdown-timeout-ms for
+// those sends; a digest that is not through by then is sent again from its rows.
+//
+// application.yml:
+//
+// workflow:
+//   notifications:
+//     coalescing:
+//       enabled: true
+//       window-ms: 30000
+//       max-batch-size: 50
+//       coalesced-types: TASK_ASSIGNMENT, TASK_COMPLETION, TASK_CANCELLATION
+//       urgent-types: FINAL_APPROVAL, REJECTION, DEADLINE_ESCALATION
+//       urgent-priority-threshold: 75
+//       shutdown-timeout-ms: 10000
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "workflow.notifications.coalescing")
+public class NotificationCoalescingProperties {
+    private boolean enabled = true;
+    private long windowMs = 30000;
+    private int maxBatchSize = 50;
+    private Set<NotificationType> coalescedTypes = EnumSet.of(
+            NotificationType.TASK_ASSIGNMENT, NotificationType.TASK_COMPLETION, NotificationType.TASK_CANCELLATION);
+    private Set<NotificationType> urgentTypes = EnumSet.of(
+            NotificationType.FINAL_APPROVAL, NotificationType.REJECTION, NotificationType.DEADLINE_ESCALATION);
+    // Task notifications with a priority at or above this value are sent right away
+    private int urgentPriorityThreshold = 75;
+    private long shutdownTimeoutMs = 10000;
+}
+
+@Component
+@Slf4j
+public class NotificationCoalescer {
+
+    @Autowired
+    private NotificationDispatcher notificationDispatcher;
+
+    @Autowired
+    private NotificationCoalescingProperties properties;
+
+    private final ConcurrentHashMap<String, RecipientBatch> batches = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "notification-coalescer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder digestsSent = new LongAdder();
+    private volatile boolean stopping;
+
+    // Runs before NotificationDispatcher shuts down, which this bean depends on
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        stopping = true;
+        scheduler.shutdownNow();
+        List<CompletableFuture<Void>> sends = new ArrayList<>();
+        batches.forEach((recipient, batch) -> sends.add(flush(recipient, batch)));
+        try {
+            CompletableFuture.allOf(sends.toArray(new CompletableFuture[0]))
+                    .get(properties.getShutdownTimeoutMs(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.warn("Notification coalescer stopped with digests still being sent, their outbox rows are sent again");
+        } catch (ExecutionException e) {
+            // Already reported to OutboxRelay through the acknowledgments
+        }
+    }
+
+    public CompletableFuture<Void> submit(NotificationMessage message) {
+        if (!properties.isEnabled() || stopping || bypassesWindow(message)) {
+            return notificationDispatcher.dispatch(message);
+        }
+
+        String recipient = message.getRecipient();
+        CompletableFuture<Void> acknowledgment = new CompletableFuture<>();
+        for (;;) {
+            RecipientBatch batch = batches.computeIfAbsent(recipient, this::openBatch);
+            int size = batch.add(message, acknowledgment);
+            if (size < 0) {
+                // Lost a race with a flush of this batch, retry with a fresh one
+                batches.remove(recipient, batch);
+                continue;
+            }
+            coalesced.increment();
+            if (size >= properties.getMaxBatchSize()) {
+                flush(recipient, batch);
+            }
+            return acknowledgment;
+        }
+    }
+
+    public int getOpenBatchCount() {
+        return batches.size();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    public long getDigestCount() {
+        return digestsSent.sum();
+    }
+
+    private boolean bypassesWindow(NotificationMessage message) {
+        return message.getRecipient() == null
+                || message.getPriority() >= properties.getUrgentPriorityThreshold()
+                || properties.getUrgentTypes().contains(message.getType())
+                || !properties.getCoalescedTypes().contains(message.getType());
+    }
+
+    private RecipientBatch openBatch(String recipient) {
+        RecipientBatch batch = new RecipientBatch();
+        batch.timer = scheduler.schedule(() -> flush(recipient, batch), properties.getWindowMs(), TimeUnit.MILLISECONDS);
+        return batch;
+    }
+
+    private CompletableFuture<Void> flush(String recipient, RecipientBatch batch) {
+        batches.remove(recipient, batch);
+        List<NotificationMessage> items = batch.close();
+        if (items == null || items.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> sent;
+        if (items.size() == 1) {
+            sent = notificationDispatcher.dispatch(items.get(0));
+        } else {
+            digestsSent.increment();
+            log.debug("Sending digest of {} notifications to {}", items.size(), recipient);
+            sent = notificationDispatcher.dispatch(NotificationMessage.builder()
+                    .type(NotificationType.DIGEST)
+                    .timestamp(System.currentTimeMillis())
+                    .recipient(recipient)
+                    .items(items)
+                    .build());
+        }
+        sent.whenComplete((result, error) -> batch.acknowledge(error));
+        return sent;
+    }
+
+    private static class RecipientBatch {
+        private final List<NotificationMessage> items = new ArrayList<>();
+        private final List<CompletableFuture<Void>> acknowledgments = new ArrayList<>();
+        private boolean closed;
+        private ScheduledFuture<?> timer;
+
+        // Returns the new batch size, or -1 if the batch was already flushed
+        synchronized int add(NotificationMessage message, CompletableFuture<Void> acknowledgment) {
+            if (closed) {
+                return -1;
+            }
+            items.add(message);
+            acknowledgments.add(acknowledgment);
+            return items.size();
+        }
+
+        // Only after close(), the lists no longer change
+        void acknowledge(Throwable error) {
+            for (CompletableFuture<Void> acknowledgment : acknowledgments) {
+                if (error == null) {
+                    acknowledgment.complete(null);
+                } else {
+                    acknowledgment.completeExceptionally(error);
+                }
+            }
+        }
+
+        synchronized List<NotificationMessage> close() {
+            if (closed) {
+                return null;
+            }
+            closed = true;
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            return items;
+        }
+    }
+}
@@ -0,0 +1,564 @@
+// Virtual-thread notification dispatcher (Java 21)
+//
+// NotificationCoalescer hands every NotificationMessage to the dispatcher, which
+// returns immediately unless max-pending-deliveries sends are already queued; then
+// the caller waits for room, which pushes back on SideEffectQueue. Each send runs on its own virtual thread and goes through:
+//   - a per-channel concurrency limit (semaphore); a send that timed out keeps its
+//     permit until it really returns, so hung sends cannot pile up past the limit
+//   - a per-attempt timeout
+//   - retries with exponential backoff and jitter
+//   - a per-channel circuit breaker that fails fast while the channel is down
+//
+// The future returned by dispatch() fails with NotificationDeliveryException when a
+// channel gave up or rejected the message with its circuit open; OutboxRelay then
+// retries the outbox row instead of losing the message.
+//
+// application.yml:
+//
+// workflow:
+//   notifications:
+//     max-concurrency-per-channel: 16
+//     timeout-ms: 5000
+//     max-attempts: 4
+//     initial-backoff-ms: 200
+//     max-backoff-ms: 10000
+//     circuit-breaker-failure-threshold: 5
+//     circuit-breaker-open-ms: 30000
+//     max-pending-deliveries: 10000
+
+// A delivery channel such as mail, SMS or push
+public interface NotificationChannel {
+    String getName();
+
+    default boolean supports(NotificationMessage message) {
+        return true;
+    }
+
+    void send(NotificationMessage message) throws Exception;
+}
+
+@Component
+@Slf4j
+public class LogNotificationChannel implements NotificationChannel {
+
+    @Override
+    public String getName() {
+        return "log";
+    }
+
+    @Override
+    public void send(NotificationMessage message) {
+        switch (message.getType()) {
+            case TASK_ASSIGNMENT:
+                log.info("📧 Sending assignment notification to {} for task '{}'",
+                        message.getRecipient(), message.getTaskName());
+                // Implementation: Send email, SMS, or push notification
+                break;
+            case TASK_COMPLETION:
+                log.info("✅ Sending completion notification to {} for task '{}'",
+                        message.getRecipient(), message.getTaskName());
+                break;
+            case TASK_CANCELLATION:
+                log.info("❌ Sending cancellation notification to {} for task '{}' - Reason: {}",
+                        message.getRecipient(), message.getTaskName(), message.getReason());
+                break;
+            case PROCESS_START:
+                log.info("🚀 Process started - Instance: {}, Definition: {}",
+                        message.getProcessInstanceId(), message.getProcessDefinitionKey());
+                break;
+            case PROCESS_END:
+                log.info("🏁 Process completed - Instance: {}, Definition: {}",
+                        message.getProcessInstanceId(), message.getProcessDefinitionKey());
+                break;
+            case FINAL_APPROVAL:
+                log.info("✅ Final approval notification for process {} approved by {}",
+                        message.getProcessInstanceId(), message.getActor());
+                break;
+            case REJECTION:
+                log.info("❌ Rejection notification for process {} rejected by {}",
+                        message.getProcessInstanceId(), message.getActor());
+                break;
+            case DEADLINE_ESCALATION:
+                log.info("⏰ Deadline escalation for process {} - {}",
+                        message.getProcessInstanceId(), message.getReason());
+                break;
+            case DIGEST:
+                log.info("📬 Sending digest of {} notifications to {}",
+                        message.getItems().size(), message.getRecipient());
+                break;
+        }
+    }
+}
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "workflow.notifications")
+public class NotificationDispatcherProperties {
+    private int maxConcurrencyPerChannel = 16;
+    private long timeoutMs = 5000;
+    private int maxAttempts = 4;
+    private long initialBackoffMs = 200;
+    private long maxBackoffMs = 10000;
+    private int circuitBreakerFailureThreshold = 5;
+    private long circuitBreakerOpenMs = 30000;
+    // Channel deliveries accepted but not finished, bounds memory when channels are slow
+    private int maxPendingDeliveries = 10000;
+}
+
+// CLOSED -> OPEN after N consecutive failures, OPEN -> HALF_OPEN after the open
+// period, HALF_OPEN lets a single probe through and closes again on success.
+public class NotificationCircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean probeInFlight;
+
+    public NotificationCircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    public synchronized boolean tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt < openMillis) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                probeInFlight = true;
+                return true;
+            default:
+                if (probeInFlight) {
+                    return false;
+                }
+                probeInFlight = true;
+                return true;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        probeInFlight = false;
+    }
+
+    public synchronized void recordFailure() {
+        probeInFlight = false;
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
+
+// A channel gave up on a message, or rejected it while its circuit was open
+public class NotificationDeliveryException extends RuntimeException {
+    public NotificationDeliveryException(String message) {
+        super(message);
+    }
+}
+
+@Data
+public class NotificationChannelStats {
+    private final String channel;
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+}
+
+@Component
+@Slf4j
+public class NotificationDispatcher {
+
+    private final List<ChannelSlot> channels = new ArrayList<>();
+    private final NotificationDispatcherProperties properties;
+    private final Semaphore pendingDeliveries;
+    private final ExecutorService executor =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("notification-", 0).factory());
+
+    @Autowired
+    public NotificationDispatcher(List<NotificationChannel> notificationChannels,
+                                  NotificationDispatcherProperties properties) {
+        this.properties = properties;
+        this.pendingDeliveries = new Semaphore(properties.getMaxPendingDeliveries());
+        for (NotificationChannel channel : notificationChannels) {
+            channels.add(new ChannelSlot(channel, properties));
+        }
+        log.info("Notification dispatcher started - channels: {}, concurrency per channel: {}",
+                notificationChannels.stream().map(NotificationChannel::getName).collect(Collectors.toList()),
+                properties.getMaxConcurrencyPerChannel());
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.warn("Notification dispatcher stopped with sends still in flight");
+            executor.shutdownNow();
+        }
+    }
+
+    // Only blocks the caller while max-pending-deliveries are queued; the future
+    // completes once every channel has delivered, and fails if one of them gave up
+    public CompletableFuture<Void> dispatch(NotificationMessage message) {
+        List<CompletableFuture<Void>> deliveries = new ArrayList<>(channels.size());
+        for (ChannelSlot slot : channels) {
+            if (slot.channel.supports(message)) {
+                try {
+                    pendingDeliveries.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    CompletableFuture<Void> interrupted = new CompletableFuture<>();
+                    interrupted.completeExceptionally(e);
+                    deliveries.add(interrupted);
+                    continue;
+                }
+                deliveries.add(CompletableFuture.runAsync(() -> deliver(slot, message), executor)
+                        .whenComplete((result, error) -> pendingDeliveries.release()));
+            }
+        }
+        return CompletableFuture.allOf(deliveries.toArray(new CompletableFuture[0]));
+    }
+
+    public int getPendingDeliveryCount() {
+        return properties.getMaxPendingDeliveries() - pendingDeliveries.availablePermits();
+    }
+
+    public NotificationChannelStats getStats(String channelName) {
+        return slot(channelName).stats;
+    }
+
+    public NotificationCircuitBreaker.State getCircuitState(String channelName) {
+        return slot(channelName).circuitBreaker.getState();
+    }
+
+    private void deliver(ChannelSlot slot, NotificationMessage message) {
+        long backoff = properties.getInitialBackoffMs();
+        for (int attempt = 1; attempt <= properties.getMaxAttempts(); attempt++) {
+            if (!slot.circuitBreaker.tryAcquire()) {
+                slot.stats.getRejected().increment();
+                log.warn("Channel {} circuit open - rejecting {} notification for {}",
+                        slot.channel.getName(), message.getType(), message.getRecipient());
+                throw new NotificationDeliveryException("Channel " + slot.channel.getName() + " circuit open");
+            }
+            if (attempt > 1) {
+                slot.stats.getRetried().increment();
+            }
+            if (sendOnce(slot, message)) {
+                slot.circuitBreaker.recordSuccess();
+                slot.stats.getDelivered().increment();
+                return;
+            }
+            slot.circuitBreaker.recordFailure();
+
+            if (attempt < properties.getMaxAttempts()) {
+                sleep(backoff + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+                backoff = Math.min(backoff * 2, properties.getMaxBackoffMs());
+            }
+        }
+        slot.stats.getFailed().increment();
+        log.error("Giving up on {} notification for {} via {} after {} attempts",
+                message.getType(), message.getRecipient(), slot.channel.getName(), properties.getMaxAttempts());
+        throw new NotificationDeliveryException("Channel " + slot.channel.getName() + " failed after "
+                + properties.getMaxAttempts() + " attempts");
+    }
+
+    private boolean sendOnce(ChannelSlot slot, NotificationMessage message) {
+        try {
+            slot.permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        // Whoever sets it releases the permit: the send when it returns, or the caller
+        // when it gave up before the send started
+        AtomicBoolean started = new AtomicBoolean();
+        Future<?> send;
+        try {
+            send = executor.submit(() -> {
+                if (!started.compareAndSet(false, true)) {
+                    return null;
+                }
+                try {
+                    slot.channel.send(message);
+                } finally {
+                    slot.permits.release();
+                }
+                return null;
+            });
+        } catch (RejectedExecutionException e) {
+            slot.permits.release();
+            return false;
+        }
+        try {
+            send.get(properties.getTimeoutMs(), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            abandon(slot, send, started);
+            slot.stats.getTimedOut().increment();
+            log.warn("Channel {} timed out after {} ms", slot.channel.getName(), properties.getTimeoutMs());
+            return false;
+        } catch (ExecutionException e) {
+            log.warn("Channel {} failed: {}", slot.channel.getName(), e.getCause().toString());
+            return false;
+        } catch (InterruptedException e) {
+            abandon(slot, send, started);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Interrupting does not stop blocking I/O, a running send keeps its permit
+    private void abandon(ChannelSlot slot, Future<?> send, AtomicBoolean started) {
+        send.cancel(true);
+        if (started.compareAndSet(false, true)) {
+            slot.permits.release();
+        }
+    }
+
+    private void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ChannelSlot slot(String channelName) {
+        for (ChannelSlot slot : channels) {
+            if (slot.channel.getName().equals(channelName)) {
+                return slot;
+            }
+        }
+        throw new IllegalArgumentException("Unknown notification channel: " + channelName);
+    }
+
+    private static class ChannelSlot {
+        private final NotificationChannel channel;
+        private final Semaphore permits;
+        private final NotificationCircuitBreaker circuitBreaker;
+        private final NotificationChannelStats stats;
+
+        ChannelSlot(NotificationChannel channel, NotificationDispatcherProperties properties) {
+            this.channel = channel;
+            this.permits = new Semaphore(properties.getMaxConcurrencyPerChannel());
+            this.circuitBreaker = new NotificationCircuitBreaker(
+                    properties.getCircuitBreakerFailureThreshold(), properties.getCircuitBreakerOpenMs());
+            this.stats = new NotificationChannelStats(channel.getName());
+        }
+    }
+}
+
+
+
+// Local channel with injectable latency and failures, used by the dispatcher tests
+public class FakeNotificationChannel implements NotificationChannel {
+
+    private final String name;
+    private volatile long latencyMs;
+    private volatile boolean ignoresInterrupts;
+    private final AtomicInteger failuresRemaining = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final AtomicInteger attempts = new AtomicInteger();
+    private final List<NotificationMessage> delivered = new CopyOnWriteArrayList<>();
+
+    public FakeNotificationChannel(String name) {
+        this.name = name;
+    }
+
+    public FakeNotificationChannel withLatency(long latencyMs) {
+        this.latencyMs = latencyMs;
+        return this;
+    }
+
+    // Like blocking socket I/O, the latency is not cut short by an interrupt
+    public FakeNotificationChannel ignoringInterrupts() {
+        this.ignoresInterrupts = true;
+        return this;
+    }
+
+    public FakeNotificationChannel failNext(int failures) {
+        failuresRemaining.set(failures);
+        return this;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void send(NotificationMessage message) throws Exception {
+        attempts.incrementAndGet();
+        int current = inFlight.incrementAndGet();
+        maxInFlight.accumulateAndGet(current, Math::max);
+        try {
+            if (latencyMs > 0) {
+                if (ignoresInterrupts) {
+                    long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(latencyMs);
+                    for (long left = latencyMs; left > 0; left = TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime())) {
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(left));
+                    }
+                } else {
+                    Thread.sleep(latencyMs);
+                }
+            }
+            if (failuresRemaining.getAndUpdate(n -> n > 0 ? n - 1 : 0) > 0) {
+                throw new IOException("Injected failure");
+            }
+            delivered.add(message);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    public int getAttempts() {
+        return attempts.get();
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+
+    public List<NotificationMessage> getDelivered() {
+        return delivered;
+    }
+}
+
+@Slf4j
+class NotificationDispatcherTest {
+
+    private NotificationDispatcherProperties properties;
+
+    @BeforeEach
+    void setUp() {
+        properties = new NotificationDispatcherProperties();
+        properties.setInitialBackoffMs(10);
+        properties.setMaxBackoffMs(50);
+        properties.setTimeoutMs(1000);
+    }
+
+    @Test
+    void testDispatchReturnsImmediatelyForSlowChannel() throws Exception {
+        FakeNotificationChannel channel = new FakeNotificationChannel("mail").withLatency(500);
+        NotificationDispatcher dispatcher = new NotificationDispatcher(List.of(channel), properties);
+
+        long start = System.nanoTime();
+        CompletableFuture<Void> delivery = dispatcher.dispatch(message("john"));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertThat(elapsedMs).isLessThan(200);
+        delivery.get(5, TimeUnit.SECONDS);
+        assertThat(channel.getDelivered()).hasSize(1);
+    }
+
+    @Test
+    void testConcurrencyIsLimitedPerChannel() throws Exception {
+        properties.setMaxConcurrencyPerChannel(2);
+        FakeNotificationChannel channel = new FakeNotificationChannel("sms").withLatency(50);
+        NotificationDispatcher dispatcher = new NotificationDispatcher(List.of(channel), properties);
+
+        List<CompletableFuture<Void>> deliveries = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            deliveries.add(dispatcher.dispatch(message("user" + i)));
+        }
+        CompletableFuture.allOf(deliveries.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+
+        assertThat(channel.getDelivered()).hasSize(20);
+        assertThat(channel.getMaxInFlight()).isLessThanOrEqualTo(2);
+    }
+
+    @Test
+    void testFailedSendsAreRetriedWithBackoff() throws Exception {
+        FakeNotificationChannel channel = new FakeNotificationChannel("push").failNext(2);
+        NotificationDispatcher dispatcher = new NotificationDispatcher(List.of(channel), properties);
+
+        dispatcher.dispatch(message("john")).get(5, TimeUnit.SECONDS);
+
+        assertThat(channel.getAttempts()).isEqualTo(3);
+        assertThat(channel.getDelivered()).hasSize(1);
+        assertThat(dispatcher.getStats("push").getRetried().sum()).isEqualTo(2);
+    }
+
+    @Test
+    void testTimedOutSendsCountAsFailures() throws Exception {
+        properties.setTimeoutMs(50);
+        properties.setMaxAttempts(2);
+        FakeNotificationChannel channel = new FakeNotificationChannel("mail").withLatency(1000);
+        NotificationDispatcher dispatcher = new NotificationDispatcher(List.of(channel), properties);
+
+        assertThatThrownBy(() -> dispatcher.dispatch(message("john")).get(5, TimeUnit.SECONDS))
+                .hasCauseInstanceOf(NotificationDeliveryException.class);
+
+        assertThat(dispatcher.getStats("mail").getTimedOut().sum()).isEqualTo(2);
+        assertThat(dispatcher.getStats("mail").getFailed().sum()).isEqualTo(1);
+        assertThat(channel.getDelivered()).isEmpty();
+    }
+
+    @Test
+    void testHungSendsKeepTheirPermit() throws Exception {
+        properties.setMaxConcurrencyPerChannel(1);
+        properties.setTimeoutMs(50);
+        properties.setMaxAttempts(1);
+        properties.setCircuitBreakerFailureThreshold(100);
+        FakeNotificationChannel channel = new FakeNotificationChannel("mail").withLatency(300).ignoringInterrupts();
+        NotificationDispatcher dispatcher = new NotificationDispatcher(List.of(channel), properties);
+
+        List<CompletableFuture<Void>> deliveries = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            deliveries.add(dispatcher.dispatch(message("user" + i)));
+        }
+        for (CompletableFuture<Void> delivery : deliveries) {
+            assertThatThrownBy(() -> delivery.get(5, TimeUnit.SECONDS))
+                    .hasCauseInstanceOf(NotificationDeliveryException.class);
+        }
+
+        assertThat(channel.getMaxInFlight()).isEqualTo(1);
+    }
+
+    @Test
+    void testCircuitOpensAfterRepeatedFailures() throws Exception {
+        properties.setMaxAttempts(1);
+        properties.setCircuitBreakerFailureThreshold(3);
+        FakeNotificationChannel channel = new FakeNotificationChannel("sms").failNext(100);
+        NotificationDispatcher dispatcher = new NotificationDispatcher(List.of(channel), properties);
+
+        for (int i = 0; i < 3; i++) {
+            assertThatThrownBy(() -> dispatcher.dispatch(message("john")).get(5, TimeUnit.SECONDS))
+                    .hasCauseInstanceOf(NotificationDeliveryException.class);
+        }
+        // Rejected, not dropped, so the outbox keeps the row
+        assertThatThrownBy(() -> dispatcher.dispatch(message("john")).get(5, TimeUnit.SECONDS))
+                .hasCauseInstanceOf(NotificationDeliveryException.class)
+                .hasMessageContaining("circuit open");
+
+        assertThat(dispatcher.getCircuitState("sms")).isEqualTo(NotificationCircuitBreaker.State.OPEN);
+        assertThat(channel.getAttempts()).isEqualTo(3);
+        assertThat(dispatcher.getStats("sms").getRejected().sum()).isEqualTo(1);
+    }
+
+    private NotificationMessage message(String recipient) {
+        return NotificationMessage.builder()
+                .type(NotificationType.TASK_ASSIGNMENT)
+                .timestamp(System.currentTimeMillis())
+                .recipient(recipient)
+                .taskName("Approval Task")
+                .build();
+    }
+}
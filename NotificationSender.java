@@ -0,0 +1,101 @@
+// Notification payloads
+//
+// NotificationService turns each engine event into a NotificationMessage on the
+// engine thread (task name etc. are read while the command context is open) and
+// publishes it through SideEffectDispatcher. NotificationSender is the sink that
+// hands the message to NotificationCoalescer, which batches per recipient and
+// forwards to NotificationDispatcher for delivery. An eventId counts as seen only
+// once its send was acknowledged, so a message that OutboxRelay redelivers after a
+// failed or lost send goes out again, while one that was already sent is dropped.
+
+public enum NotificationType {
+    TASK_ASSIGNMENT,
+    TASK_COMPLETION,
+    TASK_CANCELLATION,
+    PROCESS_START,
+    PROCESS_END,
+    FINAL_APPROVAL,
+    REJECTION,
+    // A monitored deadline passed, see DeadlineMonitor
+    DEADLINE_ESCALATION,
+    // Several coalesced notifications for one recipient, see NotificationCoalescer
+    DIGEST
+}
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class NotificationMessage implements ProcessScoped, TypedSideEffect {
+    // Dedup key assigned by OutboxRelay
+    private String eventId;
+    private NotificationType type;
+    private long timestamp;
+    private String recipient;
+    private String actor;
+    private String taskId;
+    private String taskName;
+    private String processInstanceId;
+    private String processDefinitionKey;
+    private String reason;
+    private int priority;
+    private List<NotificationMessage> items;
+}
+
+@Component
+@Slf4j
+public class NotificationSender implements SideEffectSink<NotificationMessage> {
+
+    private static final int RECENT_EVENT_IDS = 100000;
+
+    @Autowired
+    private NotificationCoalescer notificationCoalescer;
+
+    private final Set<String> recentEventIds = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > RECENT_EVENT_IDS;
+        }
+    });
+
+    @Override
+    public Class<NotificationMessage> payloadType() {
+        return NotificationMessage.class;
+    }
+
+    @Override
+    public void deliver(NotificationMessage message) {
+        deliverAcknowledged(message);
+    }
+
+    @Override
+    public CompletableFuture<Void> deliverAcknowledged(NotificationMessage message) {
+        String eventId = message.getEventId();
+        if (eventId != null && isSeen(eventId)) {
+            log.debug("Dropping duplicate notification {}", eventId);
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> sent = notificationCoalescer.submit(message);
+        if (eventId == null) {
+            return sent;
+        }
+        return sent.thenRun(() -> markSeen(eventId));
+    }
+
+    @Override
+    public boolean outboxEligible() {
+        return true;
+    }
+
+    private boolean isSeen(String eventId) {
+        synchronized (recentEventIds) {
+            return recentEventIds.contains(eventId);
+        }
+    }
+
+    private void markSeen(String eventId) {
+        synchronized (recentEventIds) {
+            recentEventIds.add(eventId);
+        }
+    }
+}
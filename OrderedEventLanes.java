@@ -0,0 +1,494 @@
+// Per-process-instance ordered event lanes for asynchronous listeners
+//
+// Replaces the context's ApplicationEventMulticaster. Events of the types listed in
+// async-event-types are not delivered on the publishing thread; the event is keyed by
+// its process instance and handed to one of N lanes, each a FIFO queue with a single
+// consumer thread. All events of one instance go to the same lane and are delivered
+// in publish order (create, assign, complete of a task never overtake each other),
+// different instances run in parallel across the lanes. Every other event type, and
+// any event without a process instance, is delivered synchronously as before.
+//
+// The key is taken from ProcessScoped, DelegateTask, DelegateExecution or HistoryEvent
+// payloads, and from events that expose one of those through getTask() /
+// getExecution() / getProcessInstanceId(). With after-commit (default) events
+// published inside an engine command are enqueued once the command has committed and
+// dropped when it rolls back, in the order they were published. Listeners of async
+// types run after the command ended, so only read-only events can go on the lanes,
+// such as history events (camunda.bpm.eventing.history) or the application's own
+// ProcessScoped events. Events that are, or carry through getTask() / getExecution(),
+// the engine's DelegateTask or DelegateExecution are never delivered asynchronously
+// even when listed: their listeners set the assignee or variables on the delegate,
+// which would be lost after commit. They stay synchronous and are logged once.
+//
+// Hot partitions: an instance is pinned to a lane only while it has events queued or
+// running. When its home lane (hash of the instance id) is above hot-lane-watermark,
+// an instance without pending events goes to the least loaded lane instead, so one
+// busy instance cannot hold up the instances hashed next to it; its own events stay
+// serialized. Each lane holds at most capacity-per-lane events; a publisher waits for
+// room (counted as blocked), events published from a lane thread never wait.
+//
+// Metrics: workflow.events.lane.depth{lane}, workflow.events.lane.processed{lane},
+// workflow.events.lane.failed{lane}, workflow.events.lane.wait{lane},
+// workflow.events.lanes.keys, workflow.events.lanes.rerouted,
+// workflow.events.lanes.blocked, GET /api/admin/event-lanes
+//
+// application.yml:
+//
+// workflow:
+//   events:
+//     lanes:
+//       enabled: false
+//       lanes: 0                     # 0 = one per available processor
+//       capacity-per-lane: 10000
+//       hot-lane-watermark: 0.5
+//       block-warning-ms: 1000
+//       after-commit: true
+//       async-event-types: HistoryEvent
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "workflow.events.lanes")
+public class EventLaneProperties {
+    private boolean enabled = false;
+    private int lanes = 0;
+    private int capacityPerLane = 10000;
+    // Fraction of the capacity above which new instances avoid the lane
+    private double hotLaneWatermark = 0.5;
+    private long blockWarningMs = 1000;
+    private boolean afterCommit = true;
+    // Simple class names of the events (or event payloads) delivered on the lanes
+    private Set<String> asyncEventTypes = new LinkedHashSet<>();
+}
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class EventLaneStatus {
+    private int lane;
+    private int depth;
+    private int capacity;
+    private long processed;
+    private long failed;
+}
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class EventLanesStatus {
+    private boolean enabled;
+    private List<EventLaneStatus> lanes;
+    private int pendingInstances;
+    private long rerouted;
+    private long blocked;
+    // Instances with the most queued events
+    private Map<String, Integer> hottestInstances;
+}
+
+// Partitioned executor: tasks with the same key run in submission order on one lane
+@Slf4j
+public class EventLanes {
+
+    private static final ThreadLocal<Lane> CURRENT_LANE = new ThreadLocal<>();
+
+    private final Lane[] lanes;
+    private final int capacity;
+    private final int hotDepth;
+    private final long blockWarningNanos;
+    // Keys with queued or running tasks and the lane they are pinned to
+    private final ConcurrentHashMap<String, KeyState> keys = new ConcurrentHashMap<>();
+    private final LongAdder rerouted = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+
+    EventLanes(int laneCount, int capacity, double hotLaneWatermark, long blockWarningMs) {
+        this.capacity = capacity;
+        this.hotDepth = Math.max(1, (int) (capacity * hotLaneWatermark));
+        this.blockWarningNanos = TimeUnit.MILLISECONDS.toNanos(blockWarningMs);
+        lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(i, capacity);
+        }
+        for (Lane lane : lanes) {
+            lane.worker.start();
+        }
+    }
+
+    public void submit(String key, Runnable task) {
+        KeyState state = keys.compute(key, (k, current) -> {
+            KeyState pinned = current != null ? current : new KeyState(route(k));
+            pinned.pending++;
+            return pinned;
+        });
+        Lane lane = state.lane;
+        // A lane thread waiting for room in a full lane could wait for itself
+        boolean permit = CURRENT_LANE.get() == null;
+        if (permit && !lane.permits.tryAcquire()) {
+            blocked.increment();
+            long start = System.nanoTime();
+            lane.permits.acquireUninterruptibly();
+            long waited = System.nanoTime() - start;
+            if (waited > blockWarningNanos) {
+                log.warn("Waited {} ms for room in event lane {}", TimeUnit.NANOSECONDS.toMillis(waited), lane.index);
+            }
+        }
+        lane.queue.add(new LaneTask(key, task, permit, System.nanoTime()));
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    public int getDepth(int lane) {
+        return lanes[lane].queue.size();
+    }
+
+    public long getProcessed(int lane) {
+        return lanes[lane].processed.sum();
+    }
+
+    public long getFailed(int lane) {
+        return lanes[lane].failed.sum();
+    }
+
+    public int getPendingKeys() {
+        return keys.size();
+    }
+
+    public long getRerouted() {
+        return rerouted.sum();
+    }
+
+    public long getBlocked() {
+        return blocked.sum();
+    }
+
+    void setWaitTimer(int lane, Timer timer) {
+        lanes[lane].waitTimer = timer;
+    }
+
+    EventLanesStatus status(int hottest) {
+        List<EventLaneStatus> laneStatus = new ArrayList<>(lanes.length);
+        for (Lane lane : lanes) {
+            laneStatus.add(new EventLaneStatus(lane.index, lane.queue.size(), capacity,
+                    lane.processed.sum(), lane.failed.sum()));
+        }
+        Map<String, Integer> hot = new LinkedHashMap<>();
+        keys.entrySet().stream()
+                .map(entry -> new AbstractMap.SimpleEntry<>(entry.getKey(), entry.getValue().pending))
+                .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+                .limit(hottest)
+                .forEach(entry -> hot.put(entry.getKey(), entry.getValue()));
+        return new EventLanesStatus(true, laneStatus, keys.size(), rerouted.sum(), blocked.sum(), hot);
+    }
+
+    // Lets every lane finish the tasks queued before the call
+    void shutdown(long timeoutMs) {
+        for (Lane lane : lanes) {
+            lane.queue.add(LaneTask.STOP);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        for (Lane lane : lanes) {
+            try {
+                lane.worker.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (lane.worker.isAlive()) {
+                log.warn("Event lane {} still had {} events at shutdown", lane.index, lane.queue.size());
+                lane.worker.interrupt();
+            }
+        }
+    }
+
+    // Called inside keys.compute for a key without pending tasks, so it may move freely
+    private Lane route(String key) {
+        Lane home = lanes[Math.floorMod(key.hashCode() * 0x9E3779B9, lanes.length)];
+        int homeDepth = home.queue.size();
+        if (homeDepth < hotDepth) {
+            return home;
+        }
+        Lane least = home;
+        int leastDepth = homeDepth;
+        for (Lane lane : lanes) {
+            int depth = lane.queue.size();
+            if (depth < leastDepth) {
+                least = lane;
+                leastDepth = depth;
+            }
+        }
+        if (least != home) {
+            rerouted.increment();
+        }
+        return least;
+    }
+
+    private void drain(Lane lane) {
+        CURRENT_LANE.set(lane);
+        while (true) {
+            LaneTask task;
+            try {
+                task = lane.queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task == LaneTask.STOP) {
+                return;
+            }
+            if (task.permit) {
+                lane.permits.release();
+            }
+            Timer waitTimer = lane.waitTimer;
+            if (waitTimer != null) {
+                waitTimer.record(System.nanoTime() - task.enqueuedNanos, TimeUnit.NANOSECONDS);
+            }
+            try {
+                task.runnable.run();
+            } catch (Throwable e) {
+                lane.failed.increment();
+                log.error("Event listener failed on lane {} for process instance {}", lane.index, task.key, e);
+            } finally {
+                lane.processed.increment();
+                keys.computeIfPresent(task.key, (k, state) -> --state.pending == 0 ? null : state);
+            }
+        }
+    }
+
+    private static final class KeyState {
+        final Lane lane;
+        // Guarded by keys.compute
+        int pending;
+
+        KeyState(Lane lane) {
+            this.lane = lane;
+        }
+    }
+
+    private static final class LaneTask {
+        static final LaneTask STOP = new LaneTask(null, null, false, 0);
+
+        final String key;
+        final Runnable runnable;
+        // Holds one of the lane's permits, released when taken off the queue
+        final boolean permit;
+        final long enqueuedNanos;
+
+        LaneTask(String key, Runnable runnable, boolean permit, long enqueuedNanos) {
+            this.key = key;
+            this.runnable = runnable;
+            this.permit = permit;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    private final class Lane {
+        final int index;
+        final LinkedBlockingQueue<LaneTask> queue = new LinkedBlockingQueue<>();
+        final Semaphore permits;
+        final Thread worker;
+        final LongAdder processed = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        volatile Timer waitTimer;
+
+        Lane(int index, int capacity) {
+            this.index = index;
+            this.permits = new Semaphore(capacity);
+            this.worker = new Thread(() -> drain(this), "event-lane-" + index);
+            this.worker.setDaemon(true);
+        }
+    }
+}
+
+// Registered under the name the context looks up, so it replaces the default multicaster
+@Component("applicationEventMulticaster")
+@Slf4j
+public class OrderedEventLaneMulticaster extends SimpleApplicationEventMulticaster
+        implements SmartInitializingSingleton {
+
+    @Autowired
+    private EventLaneProperties properties;
+
+    // Resolved late, the multicaster is created before ordinary singletons
+    @Autowired
+    private ObjectProvider<MeterRegistry> meterRegistry;
+
+    private EventLanes lanes;
+    private final Map<Class<?>, Boolean> asyncTypes = new ConcurrentHashMap<>();
+    private final Map<Class<?>, Optional<Method>> keyAccessors = new ConcurrentHashMap<>();
+    private final Map<CommandContext, List<LaneEvent>> pending = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        if (!properties.isEnabled() || properties.getAsyncEventTypes().isEmpty()) {
+            return;
+        }
+        int laneCount = properties.getLanes() > 0 ? properties.getLanes() : Runtime.getRuntime().availableProcessors();
+        lanes = new EventLanes(laneCount, Math.max(1, properties.getCapacityPerLane()),
+                properties.getHotLaneWatermark(), properties.getBlockWarningMs());
+        log.info("Event lanes started - lanes: {}, async event types: {}", laneCount, properties.getAsyncEventTypes());
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        MeterRegistry registry = meterRegistry.getIfAvailable();
+        if (lanes == null || registry == null) {
+            return;
+        }
+        for (int i = 0; i < lanes.getLaneCount(); i++) {
+            int lane = i;
+            String tag = String.valueOf(i);
+            Gauge.builder("workflow.events.lane.depth", lanes, l -> l.getDepth(lane)).tag("lane", tag).register(registry);
+            FunctionCounter.builder("workflow.events.lane.processed", lanes, l -> l.getProcessed(lane)).tag("lane", tag).register(registry);
+            FunctionCounter.builder("workflow.events.lane.failed", lanes, l -> l.getFailed(lane)).tag("lane", tag).register(registry);
+            lanes.setWaitTimer(lane, Timer.builder("workflow.events.lane.wait").tag("lane", tag).register(registry));
+        }
+        Gauge.builder("workflow.events.lanes.keys", lanes, EventLanes::getPendingKeys).register(registry);
+        FunctionCounter.builder("workflow.events.lanes.rerouted", lanes, EventLanes::getRerouted).register(registry);
+        FunctionCounter.builder("workflow.events.lanes.blocked", lanes, EventLanes::getBlocked).register(registry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (lanes != null) {
+            lanes.shutdown(5000);
+        }
+    }
+
+    @Override
+    public void multicastEvent(ApplicationEvent event, @Nullable ResolvableType eventType) {
+        String key = lanes != null ? laneKey(event) : null;
+        if (key == null) {
+            super.multicastEvent(event, eventType);
+            return;
+        }
+        ResolvableType type = eventType != null ? eventType : ResolvableType.forInstance(event);
+        Collection<ApplicationListener<?>> listeners = getApplicationListeners(event, type);
+        if (listeners.isEmpty()) {
+            return;
+        }
+        Runnable delivery = () -> {
+            for (ApplicationListener<?> listener : listeners) {
+                invokeListener(listener, event);
+            }
+        };
+
+        CommandContext commandContext = properties.isAfterCommit() ? Context.getCommandContext() : null;
+        if (commandContext == null) {
+            lanes.submit(key, delivery);
+        } else {
+            pending.computeIfAbsent(commandContext, this::register).add(new LaneEvent(key, delivery));
+        }
+    }
+
+    public EventLanesStatus getStatus() {
+        return lanes != null
+                ? lanes.status(10)
+                : new EventLanesStatus(false, Collections.emptyList(), 0, 0, 0, Collections.emptyMap());
+    }
+
+    private List<LaneEvent> register(CommandContext commandContext) {
+        TransactionContext transactionContext = commandContext.getTransactionContext();
+        transactionContext.addTransactionListener(TransactionState.COMMITTED, ctx -> {
+            List<LaneEvent> events = pending.remove(ctx);
+            if (events != null) {
+                for (LaneEvent event : events) {
+                    lanes.submit(event.key, event.delivery);
+                }
+            }
+        });
+        transactionContext.addTransactionListener(TransactionState.ROLLED_BACK, ctx -> pending.remove(ctx));
+        // Listeners are called on the engine thread, a plain list keeps publish order
+        return new ArrayList<>();
+    }
+
+    // Process instance of an async event type, null for synchronous delivery
+    private String laneKey(ApplicationEvent event) {
+        Object source = event instanceof PayloadApplicationEvent ? ((PayloadApplicationEvent<?>) event).getPayload() : event;
+        if (!asyncTypes.computeIfAbsent(source.getClass(), this::isAsyncType)) {
+            return null;
+        }
+        Optional<Method> accessor = keyAccessors.computeIfAbsent(source.getClass(), OrderedEventLaneMulticaster::findKeyAccessor);
+        Object scoped = accessor.isPresent() ? ReflectionUtils.invokeMethod(accessor.get(), source) : source;
+        if (scoped instanceof String) {
+            return (String) scoped;
+        } else if (scoped instanceof ProcessScoped) {
+            return ((ProcessScoped) scoped).getProcessInstanceId();
+        } else if (scoped instanceof DelegateTask) {
+            return ((DelegateTask) scoped).getProcessInstanceId();
+        } else if (scoped instanceof DelegateExecution) {
+            return ((DelegateExecution) scoped).getProcessInstanceId();
+        } else if (scoped instanceof HistoryEvent) {
+            return ((HistoryEvent) scoped).getProcessInstanceId();
+        }
+        return null;
+    }
+
+    private boolean isAsyncType(Class<?> type) {
+        for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+            if (properties.getAsyncEventTypes().contains(current.getSimpleName())) {
+                if (carriesDelegate(type)) {
+                    log.error("{} is listed in async-event-types but hands its listeners the engine's delegate, "
+                            + "changes made to it after commit would be lost; delivering it synchronously", type.getName());
+                    return false;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Listeners of these events may change the task / execution, that only works inside the command
+    private static boolean carriesDelegate(Class<?> type) {
+        if (isDelegate(type)) {
+            return true;
+        }
+        for (String name : new String[] {"getTask", "getExecution"}) {
+            Method method = ReflectionUtils.findMethod(type, name);
+            if (method != null && isDelegate(method.getReturnType())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isDelegate(Class<?> type) {
+        return DelegateTask.class.isAssignableFrom(type) || DelegateExecution.class.isAssignableFrom(type);
+    }
+
+    // Events that are not themselves scoped carry the task / execution they are about
+    private static Optional<Method> findKeyAccessor(Class<?> type) {
+        if (ProcessScoped.class.isAssignableFrom(type) || DelegateTask.class.isAssignableFrom(type)
+                || DelegateExecution.class.isAssignableFrom(type) || HistoryEvent.class.isAssignableFrom(type)) {
+            return Optional.empty();
+        }
+        for (String name : new String[] {"getTask", "getExecution", "getProcessInstanceId"}) {
+            Method method = ReflectionUtils.findMethod(type, name);
+            if (method != null) {
+                ReflectionUtils.makeAccessible(method);
+                return Optional.of(method);
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static final class LaneEvent {
+        final String key;
+        final Runnable delivery;
+
+        LaneEvent(String key, Runnable delivery) {
+            this.key = key;
+            this.delivery = delivery;
+        }
+    }
+}
+
+@RestController
+@RequestMapping("/api/admin/event-lanes")
+public class EventLaneController {
+
+    @Autowired
+    private OrderedEventLaneMulticaster multicaster;
+
+    @GetMapping
+    public ResponseEntity<EventLanesStatus> getStatus() {
+        return ResponseEntity.ok(multicaster.getStatus());
+    }
+}
@@ -0,0 +1,451 @@
+// Transactional outbox
+//
+// With workflow.events.dispatch-mode: OUTBOX, SideEffectDispatcher writes the audit
+// records and notifications of an engine command as ONE row into the OUTBOX table
+// (JSON array of payloads) on the engine's own connection, just before the engine
+// transaction commits. A rolled back command leaves no row, a committed one can no
+// longer lose its side effects.
+//
+// OutboxRelay drains the table in batches with one worker per partition. Rows carry a
+// partition key (hash of the process instance id, 4096 keys) and only the oldest
+// PENDING row of a key is ever claimed: the next one waits until it was acknowledged
+// and deleted, or parked as DEAD. Events of one instance are therefore handed over in
+// order, also when an earlier row is retried with backoff; the price is one row in
+// flight per key, and instances that share a key wait on each other.
+// A worker claims its batch with one UPDATE that stamps the rows with a lease token and
+// moves NEXT_ATTEMPT_AT lease-ms ahead, so other workers and nodes skip them; a row
+// whose claimer dies becomes due again when the lease runs out. Delivery is
+// at-least-once:
+//   - every payload gets the dedup key "<outbox id>:<index>" (eventId)
+//   - audit records are written straight to the AuditStore, which merges on EVENT_ID
+//   - notifications are handed to NotificationSender, whose future completes only when
+//     the channel send (or the digest containing the message) was acknowledged
+//   - a row is deleted only after all its payloads were acknowledged; otherwise it is
+//     retried with exponential backoff and parked as DEAD after max-attempts
+//
+// lease-ms has to cover the coalescing window plus the dispatcher's retries; an
+// acknowledgment that takes longer counts as a failure. At most max-in-flight-rows
+// claimed rows wait for their acknowledgment at a time.
+//
+// application.yml:
+//
+// workflow:
+//   events:
+//     dispatch-mode: OUTBOX
+//   outbox:
+//     relay-enabled: true
+//     partitions: 4
+//     batch-size: 200
+//     poll-interval-ms: 200
+//     max-attempts: 10
+//     initial-backoff-ms: 1000
+//     max-backoff-ms: 300000
+//     lease-ms: 120000
+//     max-in-flight-rows: 10000
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "workflow.outbox")
+public class OutboxProperties {
+    private boolean relayEnabled = true;
+    private int partitions = 4;
+    private int batchSize = 200;
+    private long pollIntervalMs = 200;
+    private int maxAttempts = 10;
+    private long initialBackoffMs = 1000;
+    private long maxBackoffMs = 300000;
+    private long leaseMs = 120000;
+    private int maxInFlightRows = 10000;
+}
+
+@Data
+@AllArgsConstructor
+public class OutboxRow {
+    private long id;
+    private int attempts;
+    private String payload;
+    private String leaseToken;
+}
+
+@Component
+@Slf4j
+public class OutboxStore {
+
+    // Rows are spread over this many keys; workers pick MOD(PARTITION_KEY, partitions)
+    private static final int PARTITION_KEYS = 4096;
+
+    private static final String INSERT_SQL =
+        "INSERT INTO OUTBOX (PARTITION_KEY, CREATED_AT, NEXT_ATTEMPT_AT, STATUS, ATTEMPTS, PAYLOAD) " +
+        "VALUES (?, ?, ?, 'PENDING', 0, ?)";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @PostConstruct
+    public void createTable() {
+        jdbcTemplate.execute(
+            "CREATE TABLE IF NOT EXISTS OUTBOX (" +
+            "ID BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+            "PARTITION_KEY INT NOT NULL, " +
+            "CREATED_AT TIMESTAMP NOT NULL, " +
+            "NEXT_ATTEMPT_AT TIMESTAMP NOT NULL, " +
+            "STATUS VARCHAR(8) NOT NULL, " +
+            "ATTEMPTS INT NOT NULL, " +
+            "LAST_ERROR VARCHAR(1000), " +
+            "LEASE_TOKEN VARCHAR(36), " +
+            "PAYLOAD CLOB NOT NULL)");
+        // Tables created before rows were claimed
+        jdbcTemplate.execute("ALTER TABLE OUTBOX ADD COLUMN IF NOT EXISTS LEASE_TOKEN VARCHAR(36)");
+        jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS IDX_OUTBOX_DUE ON OUTBOX (STATUS, NEXT_ATTEMPT_AT, ID)");
+        jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS IDX_OUTBOX_LEASE ON OUTBOX (LEASE_TOKEN)");
+        jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS IDX_OUTBOX_KEY ON OUTBOX (PARTITION_KEY, STATUS, ID)");
+    }
+
+    // Called inside the engine transaction, on the engine's connection
+    public void insert(Connection connection, List<Object> payloads) {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_SQL)) {
+            statement.setInt(1, partitionKey(payloads));
+            statement.setTimestamp(2, now);
+            statement.setTimestamp(3, now);
+            statement.setString(4, serialize(payloads));
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to write outbox row", e);
+        }
+    }
+
+    // The UPDATE re-checks NEXT_ATTEMPT_AT under the row lock, so of two concurrent
+    // claims of a row only the first one gets it. A row is only due when no older row of
+    // its key is still PENDING - leased, backing off or not yet due - which keeps a key in order.
+    public List<OutboxRow> claimDue(int partition, int partitions, int limit, long leaseMs) {
+        String leaseToken = UUID.randomUUID().toString();
+        long now = System.currentTimeMillis();
+        Timestamp nowTimestamp = new Timestamp(now);
+        int claimed = jdbcTemplate.update(
+            "UPDATE OUTBOX SET LEASE_TOKEN = ?, NEXT_ATTEMPT_AT = ? " +
+            "WHERE STATUS = 'PENDING' AND NEXT_ATTEMPT_AT <= ? AND ID IN (" +
+            "SELECT O.ID FROM OUTBOX O WHERE O.STATUS = 'PENDING' AND O.NEXT_ATTEMPT_AT <= ? " +
+            "AND MOD(O.PARTITION_KEY, ?) = ? AND NOT EXISTS (SELECT 1 FROM OUTBOX E " +
+            "WHERE E.PARTITION_KEY = O.PARTITION_KEY AND E.STATUS = 'PENDING' AND E.ID < O.ID) " +
+            "ORDER BY O.ID LIMIT ?)",
+            leaseToken, new Timestamp(now + leaseMs), nowTimestamp, nowTimestamp, partitions, partition, limit);
+        if (claimed == 0) {
+            return Collections.emptyList();
+        }
+        return jdbcTemplate.query(
+            "SELECT ID, ATTEMPTS, PAYLOAD, LEASE_TOKEN FROM OUTBOX WHERE LEASE_TOKEN = ? ORDER BY ID",
+            (rs, rowNum) -> new OutboxRow(rs.getLong(1), rs.getInt(2), rs.getString(3), rs.getString(4)),
+            leaseToken);
+    }
+
+    public void delete(List<Long> ids) {
+        jdbcTemplate.batchUpdate("DELETE FROM OUTBOX WHERE ID = ?", ids, ids.size(),
+                (ps, id) -> ps.setLong(1, id));
+    }
+
+    // Only while the lease is still ours; after it ran out another claim owns the row
+    public void reschedule(OutboxRow row, int attempts, long delayMs, String error) {
+        jdbcTemplate.update("UPDATE OUTBOX SET ATTEMPTS = ?, NEXT_ATTEMPT_AT = ?, LAST_ERROR = ?, LEASE_TOKEN = NULL " +
+                "WHERE ID = ? AND LEASE_TOKEN = ?",
+                attempts, new Timestamp(System.currentTimeMillis() + delayMs), truncate(error), row.getId(), row.getLeaseToken());
+    }
+
+    public void markDead(OutboxRow row, int attempts, String error) {
+        jdbcTemplate.update("UPDATE OUTBOX SET STATUS = 'DEAD', ATTEMPTS = ?, LAST_ERROR = ?, LEASE_TOKEN = NULL " +
+                "WHERE ID = ? AND LEASE_TOKEN = ?",
+                attempts, truncate(error), row.getId(), row.getLeaseToken());
+    }
+
+    public Map<String, Long> countByStatus() {
+        Map<String, Long> counts = new TreeMap<>();
+        jdbcTemplate.query("SELECT STATUS, COUNT(*) FROM OUTBOX GROUP BY STATUS",
+                (RowCallbackHandler) rs -> counts.put(rs.getString(1), rs.getLong(2)));
+        return counts;
+    }
+
+    public int requeueDead() {
+        return jdbcTemplate.update("UPDATE OUTBOX SET STATUS = 'PENDING', ATTEMPTS = 0, NEXT_ATTEMPT_AT = ? WHERE STATUS = 'DEAD'",
+                new Timestamp(System.currentTimeMillis()));
+    }
+
+    // [{"type":"AuditRecord","payload":{...}}, ...]
+    public String serialize(List<Object> payloads) {
+        ArrayNode array = objectMapper.createArrayNode();
+        for (Object payload : payloads) {
+            ObjectNode entry = array.addObject();
+            entry.put("type", payload.getClass().getSimpleName());
+            entry.set("payload", objectMapper.valueToTree(payload));
+        }
+        return array.toString();
+    }
+
+    public List<Object> deserialize(String json, Function<String, Class<?>> payloadTypes) throws IOException {
+        List<Object> payloads = new ArrayList<>();
+        for (JsonNode entry : objectMapper.readTree(json)) {
+            Class<?> type = payloadTypes.apply(entry.get("type").asText());
+            payloads.add(objectMapper.treeToValue(entry.get("payload"), type));
+        }
+        return payloads;
+    }
+
+    private int partitionKey(List<Object> payloads) {
+        for (Object payload : payloads) {
+            if (payload instanceof ProcessScoped && ((ProcessScoped) payload).getProcessInstanceId() != null) {
+                return Math.floorMod(((ProcessScoped) payload).getProcessInstanceId().hashCode(), PARTITION_KEYS);
+            }
+        }
+        return 0;
+    }
+
+    private static String truncate(String error) {
+        return error != null && error.length() > 1000 ? error.substring(0, 1000) : error;
+    }
+}
+
+@Component
+@Slf4j
+public class OutboxRelay {
+
+    @Autowired
+    private OutboxStore outboxStore;
+
+    @Autowired
+    private OutboxProperties properties;
+
+    @Autowired
+    private SideEffectDispatcher sideEffectDispatcher;
+
+    @Autowired
+    private AuditStore auditStore;
+
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean running;
+    private Semaphore inFlightRows;
+
+    // Outcomes of handed over rows, applied to the table by the workers
+    private final Queue<Long> acknowledgedRows = new ConcurrentLinkedQueue<>();
+    private final Queue<FailedRow> failedRows = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder deliveredRows = new LongAdder();
+    private final LongAdder deliveredPayloads = new LongAdder();
+    private final LongAdder retriedRows = new LongAdder();
+    private final LongAdder deadRows = new LongAdder();
+
+    @PostConstruct
+    public void start() {
+        if (sideEffectDispatcher.getDispatchMode() != DispatchMode.OUTBOX || !properties.isRelayEnabled()) {
+            log.info("Outbox relay not started (dispatch mode {}, relay enabled {})",
+                    sideEffectDispatcher.getDispatchMode(), properties.isRelayEnabled());
+            return;
+        }
+        inFlightRows = new Semaphore(properties.getMaxInFlightRows());
+        running = true;
+        for (int partition = 0; partition < properties.getPartitions(); partition++) {
+            int workerPartition = partition;
+            Thread worker = new Thread(() -> relayLoop(workerPartition), "outbox-relay-" + partition);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        log.info("Outbox relay started - partitions: {}, batchSize: {}, lease: {} ms",
+                properties.getPartitions(), properties.getBatchSize(), properties.getLeaseMs());
+    }
+
+    // Rows still waiting for an acknowledgment are delivered again once their lease ran out
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        for (Thread worker : workers) {
+            worker.interrupt();
+            worker.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        if (!workers.isEmpty()) {
+            applyOutcomes();
+        }
+    }
+
+    public long getDeliveredRowCount() {
+        return deliveredRows.sum();
+    }
+
+    public long getDeliveredPayloadCount() {
+        return deliveredPayloads.sum();
+    }
+
+    public long getRetriedRowCount() {
+        return retriedRows.sum();
+    }
+
+    public long getDeadRowCount() {
+        return deadRows.sum();
+    }
+
+    public int getInFlightRowCount() {
+        return inFlightRows == null ? 0 : properties.getMaxInFlightRows() - inFlightRows.availablePermits();
+    }
+
+    private void relayLoop(int partition) {
+        while (running) {
+            int relayed = 0;
+            try {
+                applyOutcomes();
+                relayed = relayBatch(partition);
+            } catch (Exception e) {
+                log.error("Outbox relay for partition {} failed", partition, e);
+            }
+            if (relayed < properties.getBatchSize()) {
+                try {
+                    Thread.sleep(properties.getPollIntervalMs());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // Returns the number of rows picked up
+    int relayBatch(int partition) {
+        int limit = Math.min(properties.getBatchSize(), inFlightRows.availablePermits());
+        if (limit == 0) {
+            return 0;
+        }
+        List<OutboxRow> rows = outboxStore.claimDue(partition, properties.getPartitions(), limit, properties.getLeaseMs());
+        if (rows.isEmpty()) {
+            return 0;
+        }
+
+        Map<OutboxRow, List<Object>> payloadsByRow = new LinkedHashMap<>();
+        List<AuditRecord> auditRecords = new ArrayList<>();
+        for (OutboxRow row : rows) {
+            try {
+                List<Object> payloads = outboxStore.deserialize(row.getPayload(), sideEffectDispatcher::getPayloadClass);
+                for (int i = 0; i < payloads.size(); i++) {
+                    Object payload = payloads.get(i);
+                    String eventId = row.getId() + ":" + i;
+                    if (payload instanceof AuditRecord) {
+                        ((AuditRecord) payload).setEventId(eventId);
+                        auditRecords.add((AuditRecord) payload);
+                    } else if (payload instanceof NotificationMessage) {
+                        ((NotificationMessage) payload).setEventId(eventId);
+                    }
+                }
+                payloadsByRow.put(row, payloads);
+            } catch (Exception e) {
+                // Cannot ever succeed, do not retry
+                outboxStore.markDead(row, row.getAttempts() + 1, "Unreadable payload: " + e.getMessage());
+                deadRows.increment();
+                log.error("Outbox row {} has an unreadable payload", row.getId(), e);
+            }
+        }
+
+        // Audit records of the whole batch in one write, the store merges on EVENT_ID
+        if (!auditRecords.isEmpty()) {
+            try {
+                auditStore.write(auditRecords);
+            } catch (Exception e) {
+                log.warn("Writing {} audit records from the outbox failed", auditRecords.size(), e);
+                payloadsByRow.keySet().forEach(row -> retryOrBury(row, e));
+                return rows.size();
+            }
+        }
+
+        // The row stays claimed until every payload is acknowledged
+        for (Map.Entry<OutboxRow, List<Object>> entry : payloadsByRow.entrySet()) {
+            OutboxRow row = entry.getKey();
+            List<Object> payloads = entry.getValue();
+            List<CompletableFuture<Void>> acknowledgments = new ArrayList<>(payloads.size());
+            for (Object payload : payloads) {
+                if (!(payload instanceof AuditRecord)) {
+                    acknowledgments.add(sideEffectDispatcher.deliverAcknowledged(payload));
+                }
+            }
+            inFlightRows.acquireUninterruptibly();
+            CompletableFuture.allOf(acknowledgments.toArray(new CompletableFuture[0]))
+                    .orTimeout(properties.getLeaseMs(), TimeUnit.MILLISECONDS)
+                    .whenComplete((result, error) -> {
+                        if (error == null) {
+                            acknowledgedRows.add(row.getId());
+                            deliveredPayloads.add(payloads.size());
+                        } else {
+                            failedRows.add(new FailedRow(row, error instanceof CompletionException && error.getCause() != null
+                                    ? error.getCause() : error));
+                        }
+                        inFlightRows.release();
+                    });
+        }
+        return rows.size();
+    }
+
+    private void applyOutcomes() {
+        List<Long> delivered = new ArrayList<>();
+        for (Long id = acknowledgedRows.poll(); id != null; id = acknowledgedRows.poll()) {
+            delivered.add(id);
+        }
+        if (!delivered.isEmpty()) {
+            outboxStore.delete(delivered);
+            deliveredRows.add(delivered.size());
+        }
+        for (FailedRow failed = failedRows.poll(); failed != null; failed = failedRows.poll()) {
+            retryOrBury(failed.row, failed.error);
+        }
+    }
+
+    private void retryOrBury(OutboxRow row, Throwable error) {
+        int attempts = row.getAttempts() + 1;
+        if (attempts >= properties.getMaxAttempts()) {
+            outboxStore.markDead(row, attempts, error.toString());
+            deadRows.increment();
+            log.error("Outbox row {} failed {} times, parked as DEAD", row.getId(), attempts, error);
+            return;
+        }
+        long backoff = Math.min(properties.getInitialBackoffMs() << Math.min(attempts - 1, 20), properties.getMaxBackoffMs());
+        outboxStore.reschedule(row, attempts, backoff, error.toString());
+        retriedRows.increment();
+        log.debug("Outbox row {} failed, retry {} in {} ms", row.getId(), attempts, backoff);
+    }
+
+    private static final class FailedRow {
+        final OutboxRow row;
+        final Throwable error;
+
+        FailedRow(OutboxRow row, Throwable error) {
+            this.row = row;
+            this.error = error;
+        }
+    }
+}
+
+@RestController
+@RequestMapping("/api/admin/outbox")
+public class OutboxController {
+
+    @Autowired
+    private OutboxStore outboxStore;
+
+    @Autowired
+    private OutboxRelay outboxRelay;
+
+    @GetMapping
+    public ResponseEntity<Map<String, Object>> getOutboxStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("rows", outboxStore.countByStatus());
+        status.put("deliveredRows", outboxRelay.getDeliveredRowCount());
+        status.put("deliveredPayloads", outboxRelay.getDeliveredPayloadCount());
+        status.put("retriedRows", outboxRelay.getRetriedRowCount());
+        status.put("deadRows", outboxRelay.getDeadRowCount());
+        status.put("inFlightRows", outboxRelay.getInFlightRowCount());
+        return ResponseEntity.ok(status);
+    }
+
+    @PostMapping("/requeue-dead")
+    public ResponseEntity<Map<String, Object>> requeueDead() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("requeued", outboxStore.requeueDead());
+        return ResponseEntity.ok(response);
+    }
+}
@@ -0,0 +1,414 @@
+// Contention-free process counters
+//
+// Counters such as rejectionCount used to be process variables updated with
+// getVariable + 1 / setVariable. Two concurrent paths of the same process instance
+// both update the variable row, and one of them fails with an
+// OptimisticLockingException and is retried. ProcessCounters keeps counters out of
+// the variable table altogether:
+//
+//   - increments made inside an engine command are buffered per CommandContext and
+//     applied after the transaction committed, a rolled-back command discards them
+//   - committed increments go to a LongAdder per (process instance, counter), so
+//     concurrent paths never touch the same row or the same cache line
+//   - the adders are folded into PROCESS_COUNTER with UPDATE ... + delta right after
+//     every command that changed them commits, and again every flush-interval-ms for
+//     whatever failed; all flushes run on the flusher thread, each in its own
+//     transaction, never in the engine's commit callbacks
+//   - at process end the final values are written as process variables, once, so
+//     they show up in the history as before, and the PROCESS_COUNTER rows of the
+//     instance are deleted after that command committed
+//
+// A read is the stored value, read from PROCESS_COUNTER each time, plus this node's
+// committed increments that are not stored yet, plus the increments of the calling
+// command; reads and flushes of a counter are serialized, so a read never counts a
+// flush twice. Nothing but unflushed increments is cached: when another node continues
+// the instance, it reads what this node has flushed, which is everything committed
+// except the last few milliseconds before the flush (or a flush that failed and waits
+// for the next interval).
+//
+// The bean is available to expressions as processCounters:
+//
+//   <bpmn:conditionExpression>${processCounters.get(execution, 'rejectionCount') >= 3}</bpmn:conditionExpression>
+//
+// application.yml:
+//
+// workflow:
+//   counters:
+//     flush-interval-ms: 5000
+//     idle-eviction-ms: 600000
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "workflow.counters")
+public class ProcessCounterProperties {
+    private long flushIntervalMs = 5000;
+    // Fully flushed counters untouched for this long are dropped from memory
+    private long idleEvictionMs = 600000;
+}
+
+@Repository
+public class ProcessCounterStore {
+
+    private static final String UPDATE_SQL =
+        "UPDATE PROCESS_COUNTER SET COUNTER_VALUE = COUNTER_VALUE + ?, UPDATED_AT = ? " +
+        "WHERE PROCESS_INSTANCE_ID = ? AND COUNTER_NAME = ?";
+
+    private static final String INSERT_SQL =
+        "INSERT INTO PROCESS_COUNTER (PROCESS_INSTANCE_ID, COUNTER_NAME, COUNTER_VALUE, UPDATED_AT) VALUES (?, ?, ?, ?)";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @PostConstruct
+    public void createTable() {
+        jdbcTemplate.execute(
+            "CREATE TABLE IF NOT EXISTS PROCESS_COUNTER (" +
+            "PROCESS_INSTANCE_ID VARCHAR(64) NOT NULL, " +
+            "COUNTER_NAME VARCHAR(255) NOT NULL, " +
+            "COUNTER_VALUE BIGINT NOT NULL, " +
+            "UPDATED_AT TIMESTAMP NOT NULL, " +
+            "PRIMARY KEY (PROCESS_INSTANCE_ID, COUNTER_NAME))");
+    }
+
+    public long load(String processInstanceId, String name) {
+        List<Long> values = jdbcTemplate.queryForList(
+            "SELECT COUNTER_VALUE FROM PROCESS_COUNTER WHERE PROCESS_INSTANCE_ID = ? AND COUNTER_NAME = ?",
+            Long.class, processInstanceId, name);
+        return values.isEmpty() ? 0 : values.get(0);
+    }
+
+    public void deleteAll(String processInstanceId) {
+        jdbcTemplate.update("DELETE FROM PROCESS_COUNTER WHERE PROCESS_INSTANCE_ID = ?", processInstanceId);
+    }
+
+    public Map<String, Long> findAll(String processInstanceId) {
+        Map<String, Long> values = new TreeMap<>();
+        jdbcTemplate.query(
+            "SELECT COUNTER_NAME, COUNTER_VALUE FROM PROCESS_COUNTER WHERE PROCESS_INSTANCE_ID = ?",
+            rs -> {
+                values.put(rs.getString(1), rs.getLong(2));
+            }, processInstanceId);
+        return values;
+    }
+
+    // Adds the delta to the stored value, creating the row on first flush. Always in a
+    // transaction of its own, whatever the calling thread is part of.
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void add(String processInstanceId, String name, long delta) {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        if (jdbcTemplate.update(UPDATE_SQL, delta, now, processInstanceId, name) == 0) {
+            try {
+                jdbcTemplate.update(INSERT_SQL, processInstanceId, name, delta, now);
+            } catch (DuplicateKeyException e) {
+                // Another node inserted the row in the meantime
+                jdbcTemplate.update(UPDATE_SQL, delta, now, processInstanceId, name);
+            }
+        }
+    }
+}
+
+@Component("processCounters")
+@Slf4j
+public class ProcessCounters {
+
+    @Autowired
+    private ProcessCounterProperties properties;
+
+    @Autowired
+    private ProcessCounterStore store;
+
+    // processInstanceId -> counter name -> cell
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, CounterCell>> cells = new ConcurrentHashMap<>();
+
+    // Evicted cells, flushed once more to pick up increments that raced with the eviction
+    private final Queue<RetiredCell> retired = new ConcurrentLinkedQueue<>();
+
+    private final Map<CommandContext, CommandCounters> pending = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "process-counter-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        long interval = properties.getFlushIntervalMs();
+        scheduler.scheduleWithFixedDelay(this::flushAll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        flushAll();
+    }
+
+    public long increment(DelegateExecution execution, String name) {
+        return add(execution.getProcessInstanceId(), name, 1);
+    }
+
+    // Sets the counter back to zero, as the calling command sees it
+    public void reset(DelegateExecution execution, String name) {
+        String processInstanceId = execution.getProcessInstanceId();
+        add(processInstanceId, name, -get(processInstanceId, name));
+    }
+
+    // Returns the value as seen by the calling command after the increment
+    public long add(String processInstanceId, String name, long delta) {
+        CommandContext commandContext = Context.getCommandContext();
+        if (commandContext == null) {
+            applyCommitted(processInstanceId, name, delta);
+            return get(processInstanceId, name);
+        }
+        pending.computeIfAbsent(commandContext, this::register).add(processInstanceId, name, delta);
+        return get(processInstanceId, name);
+    }
+
+    // Expression entry point: ${processCounters.get(execution, 'rejectionCount')}
+    public long get(DelegateExecution execution, String name) {
+        return get(execution.getProcessInstanceId(), name);
+    }
+
+    public long get(String processInstanceId, String name) {
+        long value = read(processInstanceId, name);
+        CommandContext commandContext = Context.getCommandContext();
+        if (commandContext != null) {
+            CommandCounters local = pending.get(commandContext);
+            if (local != null) {
+                value += local.delta(processInstanceId, name);
+            }
+        }
+        return value;
+    }
+
+    // Committed values of all counters of a process instance
+    public Map<String, Long> getAll(String processInstanceId) {
+        Set<String> names = new TreeSet<>(store.findAll(processInstanceId).keySet());
+        Map<String, CounterCell> byName = cells.get(processInstanceId);
+        if (byName != null) {
+            names.addAll(byName.keySet());
+        }
+        Map<String, Long> values = new TreeMap<>();
+        names.forEach(name -> values.put(name, read(processInstanceId, name)));
+        return values;
+    }
+
+    // The process instance reached a wait state, persist its counters once the command committed
+    public void flushAtWaitState(String processInstanceId) {
+        CommandContext commandContext = Context.getCommandContext();
+        if (commandContext == null) {
+            flush(processInstanceId);
+        } else {
+            pending.computeIfAbsent(commandContext, this::register).flushes.add(processInstanceId);
+        }
+    }
+
+    // Called from the process end listener: final values become process variables,
+    // the counters are dropped from memory and PROCESS_COUNTER after the commit
+    public void complete(DelegateExecution execution) {
+        String processInstanceId = execution.getProcessInstanceId();
+        CommandContext commandContext = Context.getCommandContext();
+        Set<String> names = new TreeSet<>(getAll(processInstanceId).keySet());
+        CommandCounters local = commandContext != null ? pending.get(commandContext) : null;
+        if (local != null && local.deltas.containsKey(processInstanceId)) {
+            names.addAll(local.deltas.get(processInstanceId).keySet());
+        }
+        names.forEach(name -> execution.setVariable(name, get(processInstanceId, name)));
+        if (commandContext == null) {
+            remove(processInstanceId);
+        } else {
+            pending.computeIfAbsent(commandContext, this::register).completions.add(processInstanceId);
+        }
+    }
+
+    public int getCachedInstanceCount() {
+        return cells.size();
+    }
+
+    void flushAll() {
+        long idleBefore = System.currentTimeMillis() - properties.getIdleEvictionMs();
+        for (Map.Entry<String, ConcurrentHashMap<String, CounterCell>> entry : cells.entrySet()) {
+            for (Map.Entry<String, CounterCell> counter : entry.getValue().entrySet()) {
+                CounterCell cell = counter.getValue();
+                flush(entry.getKey(), counter.getKey(), cell);
+                if (cell.lastTouched < idleBefore && cell.isClean()) {
+                    evict(entry.getKey(), counter.getKey(), cell);
+                }
+            }
+            cells.computeIfPresent(entry.getKey(), (id, byName) -> byName.isEmpty() ? null : byName);
+        }
+        for (int i = retired.size(); i > 0; i--) {
+            RetiredCell cell = retired.poll();
+            if (cell == null) {
+                break;
+            }
+            flush(cell.processInstanceId, cell.name, cell.cell);
+            if (!cell.cell.isClean()) {
+                retired.add(cell);
+            }
+        }
+    }
+
+    private void flush(String processInstanceId) {
+        Map<String, CounterCell> byName = cells.get(processInstanceId);
+        if (byName != null) {
+            byName.forEach((name, cell) -> flush(processInstanceId, name, cell));
+        }
+    }
+
+    // The final values are process variables now; increments that race with this are lost
+    // with the instance they belong to
+    private void remove(String processInstanceId) {
+        cells.remove(processInstanceId);
+        try {
+            store.deleteAll(processInstanceId);
+        } catch (DataAccessException e) {
+            log.warn("Could not delete the counters of {}: {}", processInstanceId, e.getMessage());
+        }
+    }
+
+    // Serialized per cell with the other flushes and with reads, so a delta is never
+    // written twice nor counted twice by a read
+    private void flush(String processInstanceId, String name, CounterCell cell) {
+        synchronized (cell) {
+            long delta = cell.fold();
+            if (delta == 0) {
+                return;
+            }
+            try {
+                store.add(processInstanceId, name, delta);
+                cell.flushed(delta);
+            } catch (DataAccessException e) {
+                // Stays unflushed and is retried on the next flush
+                log.warn("Could not persist counter {} of {}: {}", name, processInstanceId, e.getMessage());
+            }
+        }
+    }
+
+    private void evict(String processInstanceId, String name, CounterCell cell) {
+        Map<String, CounterCell> byName = cells.get(processInstanceId);
+        if (byName != null && byName.remove(name, cell)) {
+            retired.add(new RetiredCell(processInstanceId, name, cell));
+        }
+    }
+
+    // Stored value plus this node's committed increments not stored yet
+    private long read(String processInstanceId, String name) {
+        Map<String, CounterCell> byName = cells.get(processInstanceId);
+        CounterCell cell = byName != null ? byName.get(name) : null;
+        if (cell == null) {
+            return store.load(processInstanceId, name);
+        }
+        synchronized (cell) {
+            return store.load(processInstanceId, name) + cell.pending();
+        }
+    }
+
+    private void applyCommitted(String processInstanceId, String name, long delta) {
+        CounterCell cell = cells.computeIfAbsent(processInstanceId, id -> new ConcurrentHashMap<>())
+                .computeIfAbsent(name, n -> new CounterCell());
+        cell.increments.add(delta);
+        cell.lastTouched = System.currentTimeMillis();
+    }
+
+    private CommandCounters register(CommandContext commandContext) {
+        CommandCounters counters = new CommandCounters();
+        TransactionContext transactionContext = commandContext.getTransactionContext();
+        transactionContext.addTransactionListener(TransactionState.COMMITTED, ctx -> commit(ctx));
+        transactionContext.addTransactionListener(TransactionState.ROLLED_BACK, ctx -> pending.remove(ctx));
+        return counters;
+    }
+
+    private void commit(CommandContext commandContext) {
+        CommandCounters counters = pending.remove(commandContext);
+        if (counters == null) {
+            return;
+        }
+        counters.deltas.forEach((processInstanceId, byName) ->
+                byName.forEach((name, delta) -> applyCommitted(processInstanceId, name, delta[0])));
+        // This runs after the engine transaction completed, the writes belong on the flusher
+        // thread; the sooner they are stored, the sooner other nodes read them
+        Set<String> flushes = new LinkedHashSet<>(counters.deltas.keySet());
+        flushes.addAll(counters.flushes);
+        flushes.removeAll(counters.completions);
+        if (!flushes.isEmpty() || !counters.completions.isEmpty()) {
+            try {
+                scheduler.execute(() -> {
+                    flushes.forEach(this::flush);
+                    counters.completions.forEach(this::remove);
+                });
+            } catch (RejectedExecutionException e) {
+                // Shutting down, the final flushAll picks the increments up
+            }
+        }
+    }
+
+    // This node's committed increments of one counter of one process instance
+    private static class CounterCell {
+        private final LongAdder increments = new LongAdder();
+        // Folded out of increments but not yet written to PROCESS_COUNTER, guarded by the cell
+        private long unflushed;
+        private volatile long lastTouched = System.currentTimeMillis();
+
+        // Caller holds the cell
+        long pending() {
+            return unflushed + increments.sum();
+        }
+
+        // Moves the committed increments into unflushed and returns it; caller holds the cell
+        long fold() {
+            long delta = increments.sum();
+            if (delta != 0) {
+                increments.add(-delta);
+                unflushed += delta;
+            }
+            return unflushed;
+        }
+
+        synchronized void flushed(long delta) {
+            unflushed -= delta;
+        }
+
+        synchronized boolean isClean() {
+            return unflushed == 0 && increments.sum() == 0;
+        }
+    }
+
+    @AllArgsConstructor
+    private static class RetiredCell {
+        private final String processInstanceId;
+        private final String name;
+        private final CounterCell cell;
+    }
+
+    // Increments made during one command, only touched by the command's thread
+    private static class CommandCounters {
+        private final Map<String, Map<String, long[]>> deltas = new HashMap<>();
+        private final Set<String> flushes = new LinkedHashSet<>();
+        private final Set<String> completions = new LinkedHashSet<>();
+
+        void add(String processInstanceId, String name, long delta) {
+            deltas.computeIfAbsent(processInstanceId, id -> new HashMap<>())
+                    .computeIfAbsent(name, n -> new long[1])[0] += delta;
+        }
+
+        long delta(String processInstanceId, String name) {
+            Map<String, long[]> byName = deltas.get(processInstanceId);
+            long[] delta = byName != null ? byName.get(name) : null;
+            return delta != null ? delta[0] : 0;
+        }
+    }
+}
+
+@RestController
+@RequestMapping("/api/admin/counters")
+public class ProcessCounterController {
+
+    @Autowired
+    private ProcessCounters processCounters;
+
+    @GetMapping("/{processInstanceId}")
+    public ResponseEntity<Map<String, Long>> getCounters(@PathVariable String processInstanceId) {
+        return ResponseEntity.ok(processCounters.getAll(processInstanceId));
+    }
+}
@@ -0,0 +1,395 @@
+// Streaming process KPIs per process definition key
+//
+// Fed by the process start and end listeners instead of HistoricProcessInstanceQuery
+// aggregations. Each process definition key has a ring of time slices (slice-ms
+// wide, enough of them to cover the longest window). A slice counts started,
+// completed and cancelled instances and holds a coarse LatencyHistogram of the
+// durations of the instances that ended in it. A window is the merge of its most
+// recent slices, so for every configured window there is:
+//
+//   throughput        completed instances per minute
+//   completion rate   completed / (completed + cancelled)
+//   started           instances started
+//   duration          mean, p50, p95, p99, max of the instances that ended
+//
+// plus the number of instances in flight. That one is the runtime count, set from
+// ACT_RU_EXECUTION on startup and every reconcile-interval-ms; in between the
+// listeners of this node move it (start and end events of a command that rolls back
+// are taken back). A reconciliation replaces the listener changes it has seen, so
+// instances started around startup are not counted twice and drift does not add up.
+// As a runtime count it covers the whole cluster and every node reports it: aggregate
+// workflow.process.inflight across nodes with max, not sum.
+//
+// Memory is bounded: slices are recycled in place, histograms are allocated on the
+// first completion of a slice, and at most max-process-definitions keys are tracked
+// (further keys are folded into "_other"). Window snapshots are cached for
+// snapshot-cache-ms, so gauges scraped together merge the slices once.
+//
+// Exposed via GET /api/metrics/processes and as Micrometer gauges:
+//   workflow.process.inflight{process}
+//   workflow.process.throughput{process,window}
+//   workflow.process.completion.rate{process,window}
+//   workflow.process.duration{process,window,quantile}
+//
+// application.yml:
+//
+// workflow:
+//   kpi:
+//     slice-ms: 10000
+//     windows-ms: 60000, 300000, 900000
+//     histogram-sub-bucket-bits: 4
+//     max-process-definitions: 200
+//     snapshot-cache-ms: 1000
+//     reconcile-interval-ms: 60000
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "workflow.kpi")
+public class ProcessKpiProperties {
+    private long sliceMs = 10000;
+    private List<Long> windowsMs = new ArrayList<>(Arrays.asList(60000L, 300000L, 900000L));
+    // 4 bits: 16 sub-buckets per power of two, < 6.25% relative error, ~4.7 KB per slice
+    private int histogramSubBucketBits = 4;
+    private int maxProcessDefinitions = 200;
+    private long snapshotCacheMs = 1000;
+    private long reconcileIntervalMs = 60000;
+}
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ProcessKpiSnapshot {
+    private String processDefinitionKey;
+    private long windowMs;
+    private long started;
+    private long completed;
+    private long cancelled;
+    private double throughputPerMinute;
+    private double completionRate;
+    private long inFlight;
+    private double meanMs;
+    private long p50Ms;
+    private long p95Ms;
+    private long p99Ms;
+    private long maxMs;
+}
+
+@Component
+@Slf4j
+public class ProcessKpiAggregator {
+
+    static final String OTHER_PROCESSES = "_other";
+
+    private static final double[] PUBLISHED_QUANTILES = {50, 95, 99};
+
+    @Autowired
+    private ProcessKpiProperties properties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private RepositoryService repositoryService;
+
+    @Autowired
+    private RuntimeService runtimeService;
+
+    private final ConcurrentHashMap<String, ProcessKpiSeries> series = new ConcurrentHashMap<>();
+
+    private int sliceCount;
+
+    @PostConstruct
+    public void init() {
+        if (properties.getWindowsMs().isEmpty()) {
+            throw new IllegalStateException("workflow.kpi.windows-ms must not be empty");
+        }
+        long longest = Collections.max(properties.getWindowsMs());
+        // One extra slice for the current, partially filled one
+        sliceCount = (int) ((longest + properties.getSliceMs() - 1) / properties.getSliceMs()) + 1;
+        log.info("Process KPI windows {} ms, {} slices of {} ms per process definition",
+                properties.getWindowsMs(), sliceCount, properties.getSliceMs());
+    }
+
+    @EventListener
+    public void onApplicationReady(ApplicationReadyEvent event) {
+        reconcileInFlight();
+    }
+
+    // Replaces the in-flight counts with the runtime counts (all versions of a key). Listener
+    // changes made before the queries are dropped, later ones stay on top of the result; one
+    // racing with the queries may be off until the next run.
+    @Scheduled(initialDelayString = "${workflow.kpi.reconcile-interval-ms:60000}",
+            fixedDelayString = "${workflow.kpi.reconcile-interval-ms:60000}")
+    public synchronized void reconcileInFlight() {
+        Map<ProcessKpiSeries, Long> seen = new HashMap<>();
+        series.values().forEach(kpis -> seen.put(kpis, kpis.inFlightDelta.get()));
+        Map<ProcessKpiSeries, Long> running = new HashMap<>();
+        try {
+            for (ProcessDefinition definition : repositoryService.createProcessDefinitionQuery().latestVersion().list()) {
+                long count = runtimeService.createProcessInstanceQuery()
+                        .processDefinitionKey(definition.getKey())
+                        .count();
+                ProcessKpiSeries kpis = count > 0 ? series(definition.getKey()) : series.get(definition.getKey());
+                if (kpis != null) {
+                    running.merge(kpis, count, Long::sum);
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Could not reconcile in-flight process counts: {}", e.getMessage());
+            return;
+        }
+        for (ProcessKpiSeries kpis : series.values()) {
+            kpis.inFlightBase = running.getOrDefault(kpis, 0L);
+            kpis.inFlightDelta.addAndGet(-seen.getOrDefault(kpis, 0L));
+        }
+    }
+
+    public void processStarted(String processDefinitionKey) {
+        ProcessKpiSeries kpis = series(processDefinitionKey);
+        KpiSlice slice = kpis.slice(System.currentTimeMillis());
+        kpis.inFlightDelta.incrementAndGet();
+        slice.started.increment();
+        onRollback(() -> {
+            kpis.inFlightDelta.decrementAndGet();
+            slice.started.decrement();
+        });
+    }
+
+    // durationMs may be null when the start time is unknown
+    public void processEnded(String processDefinitionKey, Long durationMs, boolean cancelled) {
+        ProcessKpiSeries kpis = series(processDefinitionKey);
+        KpiSlice slice = kpis.slice(System.currentTimeMillis());
+        LongAdder ended = cancelled ? slice.cancelled : slice.completed;
+        kpis.inFlightDelta.decrementAndGet();
+        ended.increment();
+        if (durationMs != null) {
+            slice.durations(properties.getHistogramSubBucketBits()).record(durationMs);
+        }
+        // The duration sample stays, a histogram cannot take a value back
+        onRollback(() -> {
+            kpis.inFlightDelta.incrementAndGet();
+            ended.decrement();
+        });
+    }
+
+    public List<ProcessKpiSnapshot> getSnapshots() {
+        List<ProcessKpiSnapshot> snapshots = new ArrayList<>();
+        series.values().forEach(kpis -> properties.getWindowsMs().forEach(window -> snapshots.add(kpis.snapshot(window))));
+        return snapshots;
+    }
+
+    public List<ProcessKpiSnapshot> getSnapshots(String processDefinitionKey) {
+        ProcessKpiSeries kpis = series.get(processDefinitionKey);
+        if (kpis == null) {
+            return Collections.emptyList();
+        }
+        List<ProcessKpiSnapshot> snapshots = new ArrayList<>();
+        properties.getWindowsMs().forEach(window -> snapshots.add(kpis.snapshot(window)));
+        return snapshots;
+    }
+
+    private void onRollback(Runnable undo) {
+        CommandContext commandContext = Context.getCommandContext();
+        if (commandContext != null) {
+            commandContext.getTransactionContext().addTransactionListener(TransactionState.ROLLED_BACK, ctx -> undo.run());
+        }
+    }
+
+    private ProcessKpiSeries series(String processDefinitionKey) {
+        String key = processDefinitionKey != null ? processDefinitionKey : OTHER_PROCESSES;
+        ProcessKpiSeries kpis = series.get(key);
+        if (kpis != null) {
+            return kpis;
+        }
+        if (series.size() >= properties.getMaxProcessDefinitions()) {
+            key = OTHER_PROCESSES;
+        }
+        return series.computeIfAbsent(key, this::createSeries);
+    }
+
+    private ProcessKpiSeries createSeries(String processDefinitionKey) {
+        ProcessKpiSeries kpis = new ProcessKpiSeries(processDefinitionKey);
+        Gauge.builder("workflow.process.inflight", kpis, ProcessKpiSeries::inFlight)
+                .tag("process", processDefinitionKey)
+                .register(meterRegistry);
+        for (long window : properties.getWindowsMs()) {
+            String windowTag = Duration.ofMillis(window).toString();
+            Gauge.builder("workflow.process.throughput", kpis, k -> k.snapshot(window).getThroughputPerMinute())
+                    .tag("process", processDefinitionKey)
+                    .tag("window", windowTag)
+                    .baseUnit("per_minute")
+                    .register(meterRegistry);
+            Gauge.builder("workflow.process.completion.rate", kpis, k -> k.snapshot(window).getCompletionRate())
+                    .tag("process", processDefinitionKey)
+                    .tag("window", windowTag)
+                    .register(meterRegistry);
+            for (double quantile : PUBLISHED_QUANTILES) {
+                Gauge.builder("workflow.process.duration", kpis, k -> k.durationAt(window, quantile))
+                        .tag("process", processDefinitionKey)
+                        .tag("window", windowTag)
+                        .tag("quantile", String.valueOf(quantile / 100))
+                        .baseUnit("milliseconds")
+                        .register(meterRegistry);
+            }
+        }
+        return kpis;
+    }
+
+    // One time slice; recycled for a later slice index once the ring wraps
+    private static class KpiSlice {
+        private volatile long index = -1;
+        private final LongAdder started = new LongAdder();
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder cancelled = new LongAdder();
+        private volatile LatencyHistogram durations;
+
+        LatencyHistogram durations(int subBucketBits) {
+            LatencyHistogram histogram = durations;
+            if (histogram == null) {
+                synchronized (this) {
+                    histogram = durations;
+                    if (histogram == null) {
+                        histogram = new LatencyHistogram(subBucketBits);
+                        durations = histogram;
+                    }
+                }
+            }
+            return histogram;
+        }
+
+        // Caller holds the slice's lock; a recording racing with the reset may be lost
+        void recycle(long newIndex) {
+            started.reset();
+            completed.reset();
+            cancelled.reset();
+            LatencyHistogram histogram = durations;
+            if (histogram != null) {
+                histogram.reset();
+            }
+            index = newIndex;
+        }
+    }
+
+    private class ProcessKpiSeries {
+        private final String processDefinitionKey;
+        private final KpiSlice[] slices;
+        // Runtime count of the last reconciliation plus the listener changes since
+        private volatile long inFlightBase;
+        private final AtomicLong inFlightDelta = new AtomicLong();
+        private final ConcurrentHashMap<Long, CachedSnapshot> cache = new ConcurrentHashMap<>();
+
+        ProcessKpiSeries(String processDefinitionKey) {
+            this.processDefinitionKey = processDefinitionKey;
+            this.slices = new KpiSlice[sliceCount];
+            for (int i = 0; i < sliceCount; i++) {
+                slices[i] = new KpiSlice();
+            }
+        }
+
+        long inFlight() {
+            return inFlightBase + inFlightDelta.get();
+        }
+
+        KpiSlice slice(long nowMs) {
+            long index = nowMs / properties.getSliceMs();
+            KpiSlice slice = slices[(int) (index % sliceCount)];
+            if (slice.index != index) {
+                synchronized (slice) {
+                    if (slice.index < index) {
+                        slice.recycle(index);
+                    }
+                }
+            }
+            return slice;
+        }
+
+        long durationAt(long windowMs, double quantile) {
+            CachedSnapshot cached = cached(windowMs);
+            return cached.durations != null ? cached.durations.getValueAtPercentile(quantile) : 0;
+        }
+
+        ProcessKpiSnapshot snapshot(long windowMs) {
+            return cached(windowMs).snapshot;
+        }
+
+        private CachedSnapshot cached(long windowMs) {
+            long now = System.currentTimeMillis();
+            CachedSnapshot cached = cache.get(windowMs);
+            if (cached == null || now - cached.createdAt > properties.getSnapshotCacheMs()) {
+                cached = compute(windowMs, now);
+                cache.put(windowMs, cached);
+            }
+            return cached;
+        }
+
+        private CachedSnapshot compute(long windowMs, long now) {
+            long sliceMs = properties.getSliceMs();
+            long current = now / sliceMs;
+            int windowSlices = (int) Math.min(sliceCount, Math.max(1, windowMs / sliceMs));
+            long started = 0;
+            long completed = 0;
+            long cancelled = 0;
+            LatencyHistogram merged = null;
+            for (long index = current - windowSlices + 1; index <= current; index++) {
+                KpiSlice slice = slices[(int) (Math.floorMod(index, (long) sliceCount))];
+                if (slice.index != index) {
+                    continue;
+                }
+                started += slice.started.sum();
+                completed += slice.completed.sum();
+                cancelled += slice.cancelled.sum();
+                LatencyHistogram durations = slice.durations;
+                if (durations != null && durations.getCount() > 0) {
+                    if (merged == null) {
+                        merged = new LatencyHistogram(properties.getHistogramSubBucketBits());
+                    }
+                    merged.add(durations);
+                }
+            }
+            // The current slice is only partly elapsed
+            long coveredMs = (windowSlices - 1) * sliceMs + (now - current * sliceMs);
+            double throughput = coveredMs > 0 ? completed * 60000.0 / coveredMs : 0;
+            long ended = completed + cancelled;
+            ProcessKpiSnapshot snapshot = new ProcessKpiSnapshot(
+                    processDefinitionKey,
+                    windowMs,
+                    started,
+                    completed,
+                    cancelled,
+                    throughput,
+                    ended > 0 ? (double) completed / ended : 1.0,
+                    inFlight(),
+                    merged != null ? merged.getMean() : 0,
+                    merged != null ? merged.getValueAtPercentile(50) : 0,
+                    merged != null ? merged.getValueAtPercentile(95) : 0,
+                    merged != null ? merged.getValueAtPercentile(99) : 0,
+                    merged != null ? merged.getMax() : 0);
+            return new CachedSnapshot(now, snapshot, merged);
+        }
+    }
+
+    @AllArgsConstructor
+    private static class CachedSnapshot {
+        private final long createdAt;
+        private final ProcessKpiSnapshot snapshot;
+        private final LatencyHistogram durations;
+    }
+}
+
+@RestController
+@RequestMapping("/api/metrics/processes")
+public class ProcessKpiController {
+
+    @Autowired
+    private ProcessKpiAggregator processKpiAggregator;
+
+    @GetMapping
+    public ResponseEntity<List<ProcessKpiSnapshot>> getAllProcessKpis() {
+        return ResponseEntity.ok(processKpiAggregator.getSnapshots());
+    }
+
+    @GetMapping("/{processDefinitionKey}")
+    public ResponseEntity<List<ProcessKpiSnapshot>> getProcessKpis(@PathVariable String processDefinitionKey) {
+        return ResponseEntity.ok(processKpiAggregator.getSnapshots(processDefinitionKey));
+    }
+}
@@ -0,0 +1,269 @@
+// Parse-time selective listener attachment
+//
+// Instead of registering GlobalTaskListener / GlobalExecutionListener as custom
+// pre-listeners (which run on every activity and sequence flow of every process),
+// this BpmnParseListener decides per BPMN element at deployment parse time whether
+// anybody needs its events:
+//   - process start/end           always (process audit, KPIs)
+//   - user task listeners         always (task lifecycle audit must be lossless)
+//   - activity start/end          audited activity types, or a registered handler
+//   - sequence flow take          registered handler, or SEQUENCE_FLOW_TAKEN audit
+//                                 tier of the process not OFF (AuditTierPolicy)
+// Gateways, events and flows nobody handles get no listener at all. With the default
+// tier (ALWAYS) every flow keeps its take listener, as before. The tier is read when
+// the deployment is parsed: turning SEQUENCE_FLOW_TAKEN on at runtime for a process
+// whose tier was OFF at deployment takes effect with the next deployment or restart.
+//
+// What was attached is logged per process and served by
+// GET /api/admin/listener-attachments
+//
+// application.yml:
+//
+// workflow:
+//   listeners:
+//     audited-activity-types: userTask, serviceTask, sendTask, receiveTask, scriptTask,
+//                             businessRuleTask, manualTask, task, callActivity, subProcess
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "workflow.listeners")
+public class ListenerAttachmentProperties {
+    private Set<String> auditedActivityTypes = new HashSet<>(Arrays.asList(
+            "userTask", "serviceTask", "sendTask", "receiveTask", "scriptTask",
+            "businessRuleTask", "manualTask", "task", "callActivity", "subProcess"));
+}
+
+@Data
+public class ProcessListenerAttachment {
+    private final String processDefinitionKey;
+    private final Map<String, List<String>> attached = new LinkedHashMap<>();
+    private int skippedElements;
+
+    void attach(String elementId, String eventName) {
+        attached.computeIfAbsent(elementId, id -> new ArrayList<>()).add(eventName);
+    }
+
+    void skip() {
+        skippedElements++;
+    }
+}
+
+@Component
+@Slf4j
+public class ListenerAttachmentReport {
+
+    private final Map<String, ProcessListenerAttachment> byProcess = new ConcurrentHashMap<>();
+
+    public void record(ProcessListenerAttachment attachment) {
+        byProcess.put(attachment.getProcessDefinitionKey(), attachment);
+        log.info("Listeners for process {}: attached to {} elements, skipped {} - {}",
+                attachment.getProcessDefinitionKey(), attachment.getAttached().size(),
+                attachment.getSkippedElements(), attachment.getAttached());
+    }
+
+    public Collection<ProcessListenerAttachment> getAttachments() {
+        return byProcess.values();
+    }
+}
+
+@Slf4j
+public class SelectiveListenerParseListener extends AbstractBpmnParseListener {
+
+    private static final String[] TASK_EVENTS = {
+        TaskListener.EVENTNAME_CREATE,
+        TaskListener.EVENTNAME_ASSIGNMENT,
+        TaskListener.EVENTNAME_COMPLETE,
+        TaskListener.EVENTNAME_DELETE
+    };
+
+    private final ActivityHandlerRegistry handlerRegistry;
+    private final ListenerAttachmentProperties properties;
+    private final ListenerAttachmentReport report;
+    private final AuditTierPolicy auditTierPolicy;
+    private final TaskListener taskListener;
+    private final ExecutionListener executionListener;
+
+    // One parse runs on one thread; the process callback comes after its activities
+    private final ThreadLocal<Map<ProcessDefinitionImpl, ProcessListenerAttachment>> inProgress =
+            ThreadLocal.withInitial(IdentityHashMap::new);
+
+    public SelectiveListenerParseListener(ActivityHandlerRegistry handlerRegistry,
+                                          ListenerAttachmentProperties properties,
+                                          ListenerAttachmentReport report,
+                                          AuditTierPolicy auditTierPolicy,
+                                          TaskListener taskListener,
+                                          ExecutionListener executionListener) {
+        this.handlerRegistry = handlerRegistry;
+        this.properties = properties;
+        this.report = report;
+        this.auditTierPolicy = auditTierPolicy;
+        this.taskListener = taskListener;
+        this.executionListener = executionListener;
+    }
+
+    @Override
+    public void parseProcess(Element processElement, ProcessDefinitionEntity processDefinition) {
+        processDefinition.addListener(ExecutionListener.EVENTNAME_START, executionListener);
+        processDefinition.addListener(ExecutionListener.EVENTNAME_END, executionListener);
+
+        ProcessListenerAttachment attachment = inProgress.get().remove(processDefinition);
+        // Also drops leftovers of a parse that failed half way
+        inProgress.get().clear();
+        if (attachment == null) {
+            attachment = new ProcessListenerAttachment(processDefinition.getKey());
+        }
+        attachment.attach(processDefinition.getKey(), ExecutionListener.EVENTNAME_START);
+        attachment.attach(processDefinition.getKey(), ExecutionListener.EVENTNAME_END);
+        report.record(attachment);
+    }
+
+    @Override
+    public void parseUserTask(Element userTaskElement, ScopeImpl scope, ActivityImpl activity) {
+        TaskDefinition taskDefinition = ((UserTaskActivityBehavior) activity.getActivityBehavior()).getTaskDefinition();
+        ProcessListenerAttachment attachment = attachmentFor(activity.getProcessDefinition());
+        for (String eventName : TASK_EVENTS) {
+            taskDefinition.addTaskListener(eventName, taskListener);
+            attachment.attach(activity.getId(), eventName);
+        }
+        attachActivityListeners(activity);
+    }
+
+    @Override
+    public void parseServiceTask(Element serviceTaskElement, ScopeImpl scope, ActivityImpl activity) {
+        attachActivityListeners(activity);
+    }
+
+    @Override
+    public void parseSendTask(Element sendTaskElement, ScopeImpl scope, ActivityImpl activity) {
+        attachActivityListeners(activity);
+    }
+
+    @Override
+    public void parseReceiveTask(Element receiveTaskElement, ScopeImpl scope, ActivityImpl activity) {
+        attachActivityListeners(activity);
+    }
+
+    @Override
+    public void parseScriptTask(Element scriptTaskElement, ScopeImpl scope, ActivityImpl activity) {
+        attachActivityListeners(activity);
+    }
+
+    @Override
+    public void parseBusinessRuleTask(Element businessRuleTaskElement, ScopeImpl scope, ActivityImpl activity) {
+        attachActivityListeners(activity);
+    }
+
+    @Override
+    public void parseManualTask(Element manualTaskElement, ScopeImpl scope, ActivityImpl activity) {
+        attachActivityListeners(activity);
+    }
+
+    @Override
+    public void parseTask(Element taskElement, ScopeImpl scope, ActivityImpl activity) {
+        attachActivityListeners(activity);
+    }
+
+    @Override
+    public void parseCallActivity(Element callActivityElement, ScopeImpl scope, ActivityImpl activity) {
+        attachActivityListeners(activity);
+    }
+
+    @Override
+    public void parseSubProcess(Element subProcessElement, ScopeImpl scope, ActivityImpl activity) {
+        attachActivityListeners(activity);
+    }
+
+    @Override
+    public void parseExclusiveGateway(Element exclusiveGwElement, ScopeImpl scope, ActivityImpl activity) {
+        attachActivityListeners(activity);
+    }
+
+    @Override
+    public void parseInclusiveGateway(Element inclusiveGwElement, ScopeImpl scope, ActivityImpl activity) {
+        attachActivityListeners(activity);
+    }
+
+    @Override
+    public void parseParallelGateway(Element parallelGwElement, ScopeImpl scope, ActivityImpl activity) {
+        attachActivityListeners(activity);
+    }
+
+    @Override
+    public void parseEventBasedGateway(Element eventBasedGwElement, ScopeImpl scope, ActivityImpl activity) {
+        attachActivityListeners(activity);
+    }
+
+    @Override
+    public void parseStartEvent(Element startEventElement, ScopeImpl scope, ActivityImpl startEventActivity) {
+        attachActivityListeners(startEventActivity);
+    }
+
+    @Override
+    public void parseEndEvent(Element endEventElement, ScopeImpl scope, ActivityImpl activity) {
+        attachActivityListeners(activity);
+    }
+
+    @Override
+    public void parseIntermediateCatchEvent(Element intermediateEventElement, ScopeImpl scope, ActivityImpl activity) {
+        attachActivityListeners(activity);
+    }
+
+    @Override
+    public void parseIntermediateThrowEvent(Element intermediateEventElement, ScopeImpl scope, ActivityImpl activity) {
+        attachActivityListeners(activity);
+    }
+
+    @Override
+    public void parseBoundaryEvent(Element boundaryEventElement, ScopeImpl scopeElement, ActivityImpl nestedActivity) {
+        attachActivityListeners(nestedActivity);
+    }
+
+    @Override
+    public void parseSequenceFlow(Element sequenceFlowElement, ScopeImpl scopeElement, TransitionImpl transition) {
+        String processDefinitionKey = transition.getProcessDefinition().getKey();
+        ProcessListenerAttachment attachment = attachmentFor(transition.getProcessDefinition());
+        if (auditTierPolicy.getRule(AuditEventType.SEQUENCE_FLOW_TAKEN, processDefinitionKey).getTier() != AuditTier.OFF
+                || handlerRegistry.hasHandlers(processDefinitionKey, transition.getId(), ExecutionListener.EVENTNAME_TAKE)) {
+            transition.addListener(ExecutionListener.EVENTNAME_TAKE, executionListener);
+            attachment.attach(transition.getId(), ExecutionListener.EVENTNAME_TAKE);
+        } else {
+            attachment.skip();
+        }
+    }
+
+    private void attachActivityListeners(ActivityImpl activity) {
+        String processDefinitionKey = activity.getProcessDefinition().getKey();
+        boolean audited = properties.getAuditedActivityTypes().contains((String) activity.getProperty("type"));
+        ProcessListenerAttachment attachment = attachmentFor(activity.getProcessDefinition());
+
+        boolean attachedAny = false;
+        for (String eventName : new String[] {ExecutionListener.EVENTNAME_START, ExecutionListener.EVENTNAME_END}) {
+            if (audited || handlerRegistry.hasHandlers(processDefinitionKey, activity.getId(), eventName)) {
+                activity.addListener(eventName, executionListener);
+                attachment.attach(activity.getId(), eventName);
+                attachedAny = true;
+            }
+        }
+        if (!attachedAny) {
+            attachment.skip();
+        }
+    }
+
+    private ProcessListenerAttachment attachmentFor(ProcessDefinitionImpl processDefinition) {
+        return inProgress.get().computeIfAbsent(processDefinition,
+                definition -> new ProcessListenerAttachment(definition.getKey()));
+    }
+}
+
+@RestController
+@RequestMapping("/api/admin/listener-attachments")
+public class ListenerAttachmentController {
+
+    @Autowired
+    private ListenerAttachmentReport listenerAttachmentReport;
+
+    @GetMapping
+    public ResponseEntity<Collection<ProcessListenerAttachment>> getListenerAttachments() {
+        return ResponseEntity.ok(listenerAttachmentReport.getAttachments());
+    }
+}
@@ -0,0 +1,310 @@
+// Commit-aware side effect dispatch
+//
+// AuditService and NotificationService publish their payloads here instead of
+// acting on them directly. In AFTER_COMMIT mode the payloads are buffered per
+// engine CommandContext and released to the sinks in one batch once the engine
+// transaction has committed; a rolled-back command discards its buffer, so an
+// OptimisticLockingException no longer produces ghost notifications or audit rows.
+// In OUTBOX mode the payloads of sinks that opt in are additionally written as one
+// OUTBOX row per command inside the engine transaction and delivered by OutboxRelay.
+// The row is written when the command context closes, before the engine flushes and
+// closes its session; with the Spring starter the transaction's COMMITTING phase
+// only comes after that, when the session can no longer execute statements.
+// Payloads published after the row was written are released after commit as usual.
+// Released payloads are handed to the bounded SideEffectQueue, whose workers call the
+// sinks, so a slow sink cannot stall the engine thread (see SideEffectQueue).
+//
+// application.yml:
+//
+// workflow:
+//   events:
+//     dispatch-mode: AFTER_COMMIT   # or IMMEDIATE, OUTBOX
+
+// Receives side effect payloads of a single type
+public interface SideEffectSink<T> {
+    Class<T> payloadType();
+    void deliver(T payload);
+
+    // Payloads go through the transactional outbox in OUTBOX mode
+    default boolean outboxEligible() {
+        return false;
+    }
+
+    // Completes once the payload really reached its destination; the outbox keeps
+    // the row until then. Sinks that hand off asynchronously override this.
+    default CompletableFuture<Void> deliverAcknowledged(T payload) {
+        deliver(payload);
+        return CompletableFuture.completedFuture(null);
+    }
+}
+
+// Payload that belongs to a process instance, used to partition the outbox
+public interface ProcessScoped {
+    String getProcessInstanceId();
+}
+
+public enum DispatchMode {
+    // Deliver on the calling thread as soon as the event is published
+    IMMEDIATE,
+    // Buffer per command context and deliver after the transaction committed
+    AFTER_COMMIT,
+    // As AFTER_COMMIT, but outbox-eligible payloads are persisted in the engine
+    // transaction and delivered at least once by OutboxRelay
+    OUTBOX
+}
+
+@Component
+@Slf4j
+public class SideEffectDispatcher {
+
+    @Autowired
+    private List<SideEffectSink<?>> sinks;
+
+    @Autowired
+    private OutboxStore outboxStore;
+
+    @Autowired
+    private SideEffectQueue sideEffectQueue;
+
+    @Value("${workflow.events.dispatch-mode:AFTER_COMMIT}")
+    private DispatchMode dispatchMode;
+
+    private final Map<Class<?>, SideEffectSink<Object>> sinksByType = new HashMap<>();
+    private final Map<CommandContext, CommandSideEffects> pending = new ConcurrentHashMap<>();
+
+    private final LongAdder released = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+
+    @PostConstruct
+    @SuppressWarnings("unchecked")
+    public void init() throws IOException {
+        for (SideEffectSink<?> sink : sinks) {
+            sinksByType.put(sink.payloadType(), (SideEffectSink<Object>) sink);
+        }
+        if (sideEffectQueue.isEnabled()) {
+            sideEffectQueue.start(this::deliverToSink, this::getPayloadClass);
+        }
+        log.info("Side effect dispatch mode: {}, sinks: {}", dispatchMode, sinksByType.keySet());
+    }
+
+    public void publish(Object payload) {
+        CommandContext commandContext = dispatchMode != DispatchMode.IMMEDIATE
+                ? Context.getCommandContext() : null;
+
+        // Outside of an engine command there is no transaction to wait for
+        if (commandContext == null) {
+            deliver(payload);
+            return;
+        }
+
+        pending.computeIfAbsent(commandContext, this::register).add(payload);
+    }
+
+    public DispatchMode getDispatchMode() {
+        return dispatchMode;
+    }
+
+    public int getPendingCommandCount() {
+        return pending.size();
+    }
+
+    public long getReleasedCount() {
+        return released.sum();
+    }
+
+    public long getDiscardedCount() {
+        return discarded.sum();
+    }
+
+    public Class<?> getPayloadClass(String simpleName) {
+        for (Class<?> payloadType : sinksByType.keySet()) {
+            if (payloadType.getSimpleName().equals(simpleName)) {
+                return payloadType;
+            }
+        }
+        throw new IllegalArgumentException("No side effect sink registered for " + simpleName);
+    }
+
+    // Used by OutboxRelay, a failed future makes it retry the row
+    public CompletableFuture<Void> deliverAcknowledged(Object payload) {
+        SideEffectSink<Object> sink = sinksByType.get(payload.getClass());
+        if (sink == null) {
+            return CompletableFuture.failedFuture(
+                    new IllegalStateException("No side effect sink registered for " + payload.getClass().getSimpleName()));
+        }
+        try {
+            return sink.deliverAcknowledged(payload);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private CommandSideEffects register(CommandContext commandContext) {
+        CommandSideEffects sideEffects = new CommandSideEffects();
+        TransactionContext transactionContext = commandContext.getTransactionContext();
+        if (dispatchMode == DispatchMode.OUTBOX) {
+            commandContext.registerCommandContextListener(new CommandContextListener() {
+                @Override
+                public void onCommandContextClose(CommandContext context) {
+                    persist(context);
+                }
+
+                @Override
+                public void onCommandFailed(CommandContext context, Throwable t) {
+                    // The transaction rolls back, discard() drops the payloads
+                }
+            });
+        }
+        transactionContext.addTransactionListener(TransactionState.COMMITTED, ctx -> release(ctx));
+        transactionContext.addTransactionListener(TransactionState.ROLLED_BACK, ctx -> discard(ctx));
+        return sideEffects;
+    }
+
+    // Still inside the command, before the session flush: one OUTBOX row on the engine's connection
+    private void persist(CommandContext commandContext) {
+        CommandSideEffects sideEffects = pending.get(commandContext);
+        if (sideEffects == null) {
+            return;
+        }
+        List<Object> durable = new ArrayList<>();
+        List<Object> direct = new ArrayList<>();
+        for (Object payload : sideEffects.payloads) {
+            SideEffectSink<Object> sink = sinksByType.get(payload.getClass());
+            (sink != null && sink.outboxEligible() ? durable : direct).add(payload);
+        }
+        if (!durable.isEmpty()) {
+            Connection connection = commandContext.getDbSqlSession().getSqlSession().getConnection();
+            outboxStore.insert(connection, durable);
+        }
+        sideEffects.payloads.clear();
+        sideEffects.payloads.addAll(direct);
+    }
+
+    private void release(CommandContext commandContext) {
+        CommandSideEffects sideEffects = pending.remove(commandContext);
+        if (sideEffects == null) {
+            return;
+        }
+        for (Object payload : sideEffects.payloads) {
+            deliver(payload);
+        }
+        released.add(sideEffects.payloads.size());
+    }
+
+    private void discard(CommandContext commandContext) {
+        CommandSideEffects sideEffects = pending.remove(commandContext);
+        if (sideEffects != null) {
+            discarded.add(sideEffects.payloads.size());
+            log.debug("Discarded {} side effects of rolled back command", sideEffects.payloads.size());
+        }
+    }
+
+    private void deliver(Object payload) {
+        if (sideEffectQueue.isEnabled()) {
+            sideEffectQueue.offer(payload);
+        } else {
+            deliverToSink(payload);
+        }
+    }
+
+    private void deliverToSink(Object payload) {
+        SideEffectSink<Object> sink = sinksByType.get(payload.getClass());
+        if (sink == null) {
+            log.warn("No side effect sink registered for {}", payload.getClass().getSimpleName());
+            return;
+        }
+        try {
+            sink.deliver(payload);
+        } catch (Exception e) {
+            // The engine transaction is already committed at this point
+            log.error("Side effect delivery failed for {}", payload, e);
+        }
+    }
+
+    // Payloads published during one command, only touched by the command's thread
+    private static class CommandSideEffects {
+        private final List<Object> payloads = new ArrayList<>();
+
+        void add(Object payload) {
+            payloads.add(payload);
+        }
+    }
+}
+
+@SpringBootTest(properties = {
+        "workflow.events.dispatch-mode=OUTBOX",
+        "workflow.outbox.relay-enabled=false"
+})
+class SideEffectDispatcherOutboxTest {
+
+    @Autowired
+    private ProcessEngine processEngine;
+
+    @Autowired
+    private RepositoryService repositoryService;
+
+    @Autowired
+    private RuntimeService runtimeService;
+
+    @Autowired
+    private SideEffectDispatcher sideEffectDispatcher;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    void testCommittedCommandWritesOutboxRow() {
+        String marker = UUID.randomUUID().toString();
+        commandExecutor().execute(commandContext -> {
+            sideEffectDispatcher.publish(record(marker));
+            return null;
+        });
+        assertThat(outboxRows(marker)).isEqualTo(1);
+    }
+
+    @Test
+    void testRolledBackCommandLeavesNoOutboxRow() {
+        String marker = UUID.randomUUID().toString();
+        assertThatThrownBy(() -> commandExecutor().execute(commandContext -> {
+            sideEffectDispatcher.publish(record(marker));
+            throw new IllegalStateException("rollback");
+        })).hasMessage("rollback");
+        assertThat(outboxRows(marker)).isZero();
+    }
+
+    @Test
+    void testProcessStartCommitsWithItsOutboxRow() {
+        repositoryService.createDeployment()
+                .addModelInstance("outbox-test.bpmn", Bpmn.createExecutableProcess("outboxTest")
+                        .startEvent()
+                        .userTask("approvalTask")
+                        .endEvent()
+                        .done())
+                .deploy();
+
+        ProcessInstance processInstance = runtimeService.startProcessInstanceByKey("outboxTest");
+
+        assertThat(runtimeService.createProcessInstanceQuery().processInstanceId(processInstance.getId()).count())
+                .isEqualTo(1);
+        assertThat(outboxRows(processInstance.getId())).isPositive();
+    }
+
+    private CommandExecutor commandExecutor() {
+        return ((ProcessEngineConfigurationImpl) processEngine.getProcessEngineConfiguration())
+                .getCommandExecutorTxRequired();
+    }
+
+    private long outboxRows(String marker) {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM OUTBOX WHERE PAYLOAD LIKE ?", Long.class,
+                "%" + marker + "%");
+    }
+
+    private static AuditRecord record(String detail) {
+        return AuditRecord.builder()
+                .type(AuditEventType.TASK_CREATED)
+                .timestamp(System.currentTimeMillis())
+                .processInstanceId("outbox-test")
+                .detail(detail)
+                .build();
+    }
+}
@@ -0,0 +1,521 @@
+// Bounded side effect queue with overload policies
+//
+// SideEffectDispatcher no longer calls the sinks on the engine thread. Released
+// payloads go into a bounded queue split into lanes (by process instance, so one
+// instance stays ordered); one worker per lane delivers to the sinks. When the audit
+// store or a notification channel slows down, the queue fills up and the overload
+// policy of the payload's event class decides what happens on the engine thread:
+//
+//   BLOCK  wait up to block-timeout-ms for room, then spill
+//   DROP   low-value events: dropped as soon as the lane is above
+//          low-value-watermark, keeping room for everything else
+//   SPILL  append to a local JSON-lines file; spilled events are replayed once the
+//          queue has drained below the watermark
+//   SHED   discard and count
+//
+// The event class is "<payload class>.<type>" (e.g. AuditRecord.SEQUENCE_FLOW_TAKEN);
+// policies are looked up for the full class, then the payload class, then the default.
+// Spill files are capped at max-spill-mb, beyond that spilled events are shed.
+//
+// While spilled events wait for replay, every new event goes to the spill file behind
+// them whatever its policy (DROP still drops above the watermark), so nothing overtakes
+// a spilled event of its lane. Replay progress is kept in "<spill file>.offset", written
+// every few hundred lines and when a replay stops; a failed or interrupted replay
+// resumes there instead of redelivering the whole file, and later files wait until the
+// earlier one is done. Events still queued at shutdown are spilled to a file that sorts
+// before the others, they are older than anything still on disk.
+//
+// Metrics: workflow.sideeffects.queue.depth / .capacity,
+// workflow.sideeffects.overload{eventClass, outcome=dropped|spilled|shed|blocked},
+// GET /api/admin/side-effects
+//
+// application.yml:
+//
+// workflow:
+//   events:
+//     queue:
+//       enabled: true
+//       capacity: 10000
+//       lanes: 2
+//       block-timeout-ms: 50
+//       low-value-watermark: 0.5
+//       spill-directory: ./data/spill
+//       max-spill-mb: 512
+//       replay-interval-ms: 5000
+//       default-policy: BLOCK
+//       policies:
+//         "[AuditRecord.SEQUENCE_FLOW_TAKEN]": DROP
+//         AuditRecord: SPILL
+//         NotificationMessage: BLOCK
+
+public enum OverloadPolicy {
+    BLOCK,
+    DROP,
+    SPILL,
+    SHED
+}
+
+// Payload with a type that refines its event class, see SideEffectQueue
+public interface TypedSideEffect {
+    Enum<?> getType();
+}
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "workflow.events.queue")
+public class SideEffectQueueProperties {
+    private boolean enabled = true;
+    private int capacity = 10000;
+    private int lanes = 2;
+    private long blockTimeoutMs = 50;
+    private double lowValueWatermark = 0.5;
+    private String spillDirectory = "./data/spill";
+    private long maxSpillMb = 512;
+    private long replayIntervalMs = 5000;
+    private OverloadPolicy defaultPolicy = OverloadPolicy.BLOCK;
+    private Map<String, OverloadPolicy> policies = new HashMap<>();
+
+    public SideEffectQueueProperties() {
+        policies.put("AuditRecord.SEQUENCE_FLOW_TAKEN", OverloadPolicy.DROP);
+        policies.put("AuditRecord", OverloadPolicy.SPILL);
+        policies.put("NotificationMessage", OverloadPolicy.BLOCK);
+    }
+}
+
+@Data
+@AllArgsConstructor
+public class SideEffectQueueStatus {
+    private int depth;
+    private int capacity;
+    private long spilledPending;
+    private Map<String, Map<String, Long>> overload;
+}
+
+@Component
+@Slf4j
+public class SideEffectQueue {
+
+    @Autowired
+    private SideEffectQueueProperties properties;
+
+    @Autowired
+    private OutboxStore outboxStore;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // Not called directly; makes Spring destroy the sinks only after the queue drained
+    @Autowired
+    private List<SideEffectSink<?>> sinks;
+
+    private ArrayBlockingQueue<Object>[] lanes;
+    private Thread[] workers;
+    private Consumer<Object> delivery;
+    private Function<String, Class<?>> payloadTypes;
+    private volatile boolean running;
+    private int lowValueLimit;
+
+    private final ConcurrentHashMap<String, OverloadPolicy> policyCache = new ConcurrentHashMap<>();
+    // eventClass -> outcome -> count
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Counter>> overloadCounters = new ConcurrentHashMap<>();
+
+    private final Object spillLock = new Object();
+    private Path spillDirectory;
+    private BufferedWriter spillWriter;
+    private Path spillFile;
+    private int spillFileSequence;
+    private final AtomicLong spillBytes = new AtomicLong();
+    private final AtomicLong spilledPending = new AtomicLong();
+    private ScheduledExecutorService replayer;
+
+    private static final int OFFSET_INTERVAL = 256;
+
+    // Called by SideEffectDispatcher once its sinks are known
+    @SuppressWarnings("unchecked")
+    public void start(Consumer<Object> delivery, Function<String, Class<?>> payloadTypes) throws IOException {
+        this.delivery = delivery;
+        this.payloadTypes = payloadTypes;
+        int laneCount = Math.max(1, properties.getLanes());
+        int laneCapacity = Math.max(1, properties.getCapacity() / laneCount);
+        lowValueLimit = (int) (laneCapacity * properties.getLowValueWatermark());
+
+        lanes = new ArrayBlockingQueue[laneCount];
+        workers = new Thread[laneCount];
+        running = true;
+        for (int i = 0; i < laneCount; i++) {
+            ArrayBlockingQueue<Object> lane = new ArrayBlockingQueue<>(laneCapacity);
+            lanes[i] = lane;
+            workers[i] = new Thread(() -> drain(lane), "side-effects-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+
+        spillDirectory = Paths.get(properties.getSpillDirectory());
+        Files.createDirectories(spillDirectory);
+        try (Stream<Path> files = Files.list(spillDirectory)) {
+            files.filter(path -> path.getFileName().toString().endsWith(".jsonl"))
+                    .forEach(path -> {
+                        spillBytes.addAndGet(path.toFile().length());
+                        spilledPending.addAndGet(Math.max(0, countLines(path) - readOffset(offsetFile(path))));
+                    });
+        }
+        replayer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "side-effects-replay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        replayer.scheduleWithFixedDelay(this::replaySpilled,
+                properties.getReplayIntervalMs(), properties.getReplayIntervalMs(), TimeUnit.MILLISECONDS);
+
+        Gauge.builder("workflow.sideeffects.queue.depth", this, SideEffectQueue::getDepth).register(meterRegistry);
+        Gauge.builder("workflow.sideeffects.queue.capacity", this, queue -> queue.getCapacity()).register(meterRegistry);
+        Gauge.builder("workflow.sideeffects.spilled.pending", spilledPending, AtomicLong::get).register(meterRegistry);
+        log.info("Side effect queue started - lanes: {}, capacity per lane: {}, spill directory: {}",
+                laneCount, laneCapacity, spillDirectory);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        if (replayer != null) {
+            // An interrupted replay records its offset and stops putting into the lanes
+            replayer.shutdownNow();
+            replayer.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        if (workers != null) {
+            for (Thread worker : workers) {
+                worker.join(TimeUnit.SECONDS.toMillis(10));
+            }
+        }
+        // Whatever the workers could not deliver in time survives on disk, ahead of the
+        // spilled events it was queued before
+        synchronized (spillLock) {
+            closeSpillWriter();
+            if (lanes != null && getDepth() > 0) {
+                spillFile = spillDirectory.resolve(String.format("spill-0-%019d.jsonl",
+                        Long.MAX_VALUE - System.currentTimeMillis()));
+                for (ArrayBlockingQueue<Object> lane : lanes) {
+                    Object payload;
+                    while ((payload = lane.poll()) != null) {
+                        spill(payload, eventClass(payload));
+                    }
+                }
+            }
+            closeSpillWriter();
+        }
+    }
+
+    public boolean isEnabled() {
+        return properties.isEnabled();
+    }
+
+    // Never blocks longer than block-timeout-ms
+    public void offer(Object payload) {
+        ArrayBlockingQueue<Object> lane = laneFor(payload);
+        String eventClass = eventClass(payload);
+        OverloadPolicy policy = policyFor(eventClass);
+
+        if (policy == OverloadPolicy.DROP && lane.size() >= lowValueLimit) {
+            count(eventClass, "dropped");
+            return;
+        }
+        // While spilled events wait for replay, everything queues up behind them on disk.
+        // Checking for them and enqueueing or spilling is one decision under spillLock:
+        // spill() raises spilledPending under the same lock and a replay lowers it only
+        // after the line is in its lane, so neither a concurrent offer nor a replay
+        // reaching 0 in between can let a later event overtake this one.
+        synchronized (spillLock) {
+            if (spilledPending.get() > 0) {
+                spill(payload, eventClass);
+                return;
+            }
+            if (lane.offer(payload)) {
+                return;
+            }
+            if (policy == OverloadPolicy.SPILL) {
+                spill(payload, eventClass);
+                return;
+            }
+        }
+
+        switch (policy) {
+            case BLOCK:
+                // Waits without the lock; events offered meanwhile are newer than this one
+                count(eventClass, "blocked");
+                try {
+                    if (lane.offer(payload, properties.getBlockTimeoutMs(), TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                synchronized (spillLock) {
+                    if (spilledPending.get() == 0 && lane.offer(payload)) {
+                        return;
+                    }
+                    spill(payload, eventClass);
+                }
+                break;
+            case DROP:
+                count(eventClass, "dropped");
+                break;
+            case SHED:
+            default:
+                count(eventClass, "shed");
+                break;
+        }
+    }
+
+    public int getDepth() {
+        int depth = 0;
+        if (lanes != null) {
+            for (ArrayBlockingQueue<Object> lane : lanes) {
+                depth += lane.size();
+            }
+        }
+        return depth;
+    }
+
+    public int getCapacity() {
+        int capacity = 0;
+        if (lanes != null) {
+            for (ArrayBlockingQueue<Object> lane : lanes) {
+                capacity += lane.size() + lane.remainingCapacity();
+            }
+        }
+        return capacity;
+    }
+
+    public SideEffectQueueStatus getStatus() {
+        Map<String, Map<String, Long>> overload = new TreeMap<>();
+        overloadCounters.forEach((eventClass, byOutcome) -> {
+            Map<String, Long> counts = new TreeMap<>();
+            byOutcome.forEach((outcome, counter) -> counts.put(outcome, (long) counter.count()));
+            overload.put(eventClass, counts);
+        });
+        return new SideEffectQueueStatus(getDepth(), getCapacity(), spilledPending.get(), overload);
+    }
+
+    private void drain(ArrayBlockingQueue<Object> lane) {
+        while (running || !lane.isEmpty()) {
+            Object payload;
+            try {
+                payload = lane.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (payload != null) {
+                delivery.accept(payload);
+            }
+        }
+    }
+
+    private void spill(Object payload, String eventClass) {
+        String line = outboxStore.serialize(Collections.singletonList(payload));
+        synchronized (spillLock) {
+            if (spillBytes.get() + line.length() + 1 > properties.getMaxSpillMb() * 1024 * 1024) {
+                count(eventClass, "shed");
+                return;
+            }
+            try {
+                if (spillWriter == null) {
+                    if (spillFile == null) {
+                        spillFile = spillDirectory.resolve(String.format("spill-%013d-%06d.jsonl",
+                                System.currentTimeMillis(), spillFileSequence++ % 1000000));
+                    }
+                    spillWriter = Files.newBufferedWriter(spillFile, StandardCharsets.UTF_8,
+                            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                }
+                spillWriter.write(line);
+                spillWriter.newLine();
+                spillBytes.addAndGet(line.length() + 1);
+                spilledPending.incrementAndGet();
+                count(eventClass, "spilled");
+            } catch (IOException e) {
+                count(eventClass, "shed");
+                log.error("Failed to spill {} side effect, shedding it", eventClass, e);
+            }
+        }
+    }
+
+    // Replays spill files oldest first once the queue has room again
+    private void replaySpilled() {
+        if (getDepth() > lowValueLimit * lanes.length) {
+            return;
+        }
+        List<Path> files;
+        synchronized (spillLock) {
+            closeSpillWriter();
+            try (Stream<Path> listing = Files.list(spillDirectory)) {
+                files = listing.filter(path -> path.getFileName().toString().endsWith(".jsonl"))
+                        .sorted()
+                        .collect(Collectors.toList());
+            } catch (IOException e) {
+                log.error("Failed to list spill directory {}", spillDirectory, e);
+                return;
+            }
+        }
+        for (Path file : files) {
+            if (!replay(file)) {
+                // Later files must not overtake the rest of this one
+                return;
+            }
+        }
+    }
+
+    // True when the file was replayed to the end
+    private boolean replay(Path file) {
+        Path offsetFile = offsetFile(file);
+        long offset = readOffset(offsetFile);
+        long replayed = 0;
+        long recorded = offset;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            long skipped = 0;
+            while (skipped < offset && reader.readLine() != null) {
+                skipped++;
+            }
+            while ((line = reader.readLine()) != null) {
+                List<Object> payloads;
+                try {
+                    payloads = outboxStore.deserialize(line, payloadTypes);
+                } catch (IOException e) {
+                    log.error("Skipping unreadable line {} of spill file {}", offset + replayed + 1, file, e);
+                    payloads = Collections.emptyList();
+                }
+                for (Object payload : payloads) {
+                    // The replay thread may wait, the engine never does
+                    laneFor(payload).put(payload);
+                }
+                replayed++;
+                spilledPending.updateAndGet(pending -> Math.max(0, pending - 1));
+                if (offset + replayed - recorded >= OFFSET_INTERVAL) {
+                    recorded = offset + replayed;
+                    writeOffset(offsetFile, recorded);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writeOffset(offsetFile, offset + replayed);
+            return false;
+        } catch (IOException e) {
+            log.error("Failed to replay spill file {}, resuming after line {}", file, offset + replayed, e);
+            writeOffset(offsetFile, offset + replayed);
+            return false;
+        }
+        try {
+            long size = Files.size(file);
+            Files.delete(file);
+            spillBytes.addAndGet(-size);
+            Files.deleteIfExists(offsetFile);
+        } catch (IOException e) {
+            log.error("Failed to delete replayed spill file {}", file, e);
+            writeOffset(offsetFile, offset + replayed);
+        }
+        log.info("Replayed {} spilled side effects from {}", replayed, file.getFileName());
+        return true;
+    }
+
+    private static Path offsetFile(Path file) {
+        return file.resolveSibling(file.getFileName() + ".offset");
+    }
+
+    // Lines of the file already handed to the lanes, 0 when unknown
+    private static long readOffset(Path offsetFile) {
+        try {
+            return Files.exists(offsetFile) ? Long.parseLong(Files.readString(offsetFile).trim()) : 0;
+        } catch (IOException | NumberFormatException e) {
+            log.warn("Unreadable spill offset {}, replaying the file from the start", offsetFile);
+            return 0;
+        }
+    }
+
+    private static void writeOffset(Path offsetFile, long lines) {
+        try {
+            Files.writeString(offsetFile, Long.toString(lines));
+        } catch (IOException e) {
+            log.error("Failed to record spill replay offset {}", offsetFile, e);
+        }
+    }
+
+    private static long countLines(Path file) {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            long lines = 0;
+            while (reader.readLine() != null) {
+                lines++;
+            }
+            return lines;
+        } catch (IOException e) {
+            log.error("Failed to count spilled side effects in {}", file, e);
+            return 0;
+        }
+    }
+
+    private void closeSpillWriter() {
+        if (spillWriter != null) {
+            try {
+                spillWriter.close();
+            } catch (IOException e) {
+                log.error("Failed to close spill file {}", spillFile, e);
+            }
+            spillWriter = null;
+        }
+        spillFile = null;
+    }
+
+    private ArrayBlockingQueue<Object> laneFor(Object payload) {
+        if (lanes.length == 1 || !(payload instanceof ProcessScoped)) {
+            return lanes[0];
+        }
+        String processInstanceId = ((ProcessScoped) payload).getProcessInstanceId();
+        return lanes[processInstanceId == null ? 0 : Math.floorMod(processInstanceId.hashCode(), lanes.length)];
+    }
+
+    private String eventClass(Object payload) {
+        String payloadClass = payload.getClass().getSimpleName();
+        if (payload instanceof TypedSideEffect && ((TypedSideEffect) payload).getType() != null) {
+            return payloadClass + "." + ((TypedSideEffect) payload).getType().name();
+        }
+        return payloadClass;
+    }
+
+    private OverloadPolicy policyFor(String eventClass) {
+        OverloadPolicy policy = policyCache.get(eventClass);
+        if (policy == null) {
+            Map<String, OverloadPolicy> policies = properties.getPolicies();
+            int dot = eventClass.indexOf('.');
+            policy = policies.get(eventClass);
+            if (policy == null && dot > 0) {
+                policy = policies.get(eventClass.substring(0, dot));
+            }
+            if (policy == null) {
+                policy = properties.getDefaultPolicy();
+            }
+            policyCache.put(eventClass, policy);
+        }
+        return policy;
+    }
+
+    private void count(String eventClass, String outcome) {
+        overloadCounters.computeIfAbsent(eventClass, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(outcome, key -> Counter.builder("workflow.sideeffects.overload")
+                        .tag("eventClass", eventClass)
+                        .tag("outcome", outcome)
+                        .register(meterRegistry))
+                .increment();
+    }
+}
+
+@RestController
+@RequestMapping("/api/admin/side-effects")
+public class SideEffectQueueController {
+
+    @Autowired
+    private SideEffectQueue sideEffectQueue;
+
+    @GetMapping
+    public ResponseEntity<SideEffectQueueStatus> getSideEffectQueueStatus() {
+        return ResponseEntity.ok(sideEffectQueue.getStatus());
+    }
+}
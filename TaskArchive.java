@@ -0,0 +1,1158 @@
+// Columnar archive of completed tasks
+//
+// CamundaEventSubscriber.archiveTaskData hands every completed task to TaskArchiver.
+// The row - task, process and assignee ids, create / complete time, duration, priority
+// and the task's final scalar variables - is buffered once the completing command has
+// committed, and every flush-interval-ms (or when segment-rows are buffered) the buffer
+// is written as one immutable segment file, column by column:
+//
+//   int magic "TCA1", int version, int directory length
+//   directory, per column: name, type, null count, min / max, blocks (offset, sizes)
+//   blocks, each deflated on its own
+//
+//   LONG columns    (createdAt, completedAt - epoch millis, durationMs, priority)
+//                   one block: null bitmap when there are nulls, then zig-zag varint
+//                   deltas of the non-null values
+//   STRING columns  (ids, keys, names, assignee, var.<name>)
+//                   a sorted dictionary block and a codes block (1, 2 or 4 bytes per
+//                   row, 0 = null); min / max are the first and last dictionary entry
+//
+// Variables become columns named var.<name>, present only in segments whose rows have
+// them; Dates are stored as ISO instants, other scalars with String.valueOf, and
+// collections or serialized objects are left out. Values are read without
+// deserializing, object variables are skipped in their serialized form.
+//
+// scan() skips a segment from its directory alone when completedAt or
+// processDefinitionKey stats rule it out, or when the definition key is not in the
+// column's dictionary. Otherwise only the filter columns are inflated, and the
+// projected columns only for segments with matching rows. Segments are written to a
+// temporary file and moved into place, so a crash never leaves a partial segment. Rows
+// still buffered are lost with a crash, and rows beyond max-buffered-rows are dropped
+// (outcome=dropped): the archive is a compact copy for reporting, not a replacement for
+// engine history, and history cleanup must not rely on it.
+//
+// Metrics: workflow.archive.rows{outcome}, workflow.archive.buffered,
+// workflow.archive.segments
+//
+// application.yml:
+//
+// workflow:
+//   archive:
+//     enabled: true
+//     directory: ./data/task-archive
+//     segment-rows: 50000
+//     flush-interval-ms: 60000
+//     max-buffered-rows: 200000
+//     max-value-length: 1024
+//     compression-level: 6
+//     variables:              # empty = all scalar variables
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "workflow.archive")
+public class TaskArchiveProperties {
+    private boolean enabled = true;
+    private String directory = "./data/task-archive";
+    private int segmentRows = 50000;
+    private long flushIntervalMs = 60000;
+    private int maxBufferedRows = 200000;
+    private int maxValueLength = 1024;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private Set<String> variables = new LinkedHashSet<>();
+}
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ArchivedTask {
+    private String taskId;
+    private String taskDefinitionKey;
+    private String taskName;
+    private String processInstanceId;
+    private String processDefinitionKey;
+    private String assignee;
+    private Long createdAt;
+    private Long completedAt;
+    private Long durationMs;
+    private Long priority;
+    private Map<String, String> variables;
+}
+
+public enum TaskArchiveColumnType {
+    LONG,
+    STRING
+}
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TaskArchiveColumn {
+    private String name;
+    private TaskArchiveColumnType type;
+    private int nullCount;
+    private Object min;
+    private Object max;
+    private int dictionarySize;
+    private long compressedBytes;
+    private long rawBytes;
+}
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TaskArchiveSegment {
+    private String file;
+    private int rows;
+    private List<TaskArchiveColumn> columns;
+}
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class TaskArchiveQuery {
+    // completedAt range, from inclusive, to exclusive
+    private Instant from;
+    private Instant to;
+    private String processDefinitionKey;
+    // Empty = all columns of each segment
+    private List<String> columns;
+    private int limit;
+}
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TaskArchiveScanStats {
+    private long rows;
+    private int segments;
+    private int segmentsPruned;
+    private long blocksInflated;
+    private long bytesInflated;
+}
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TaskArchiveResult {
+    private List<Map<String, Object>> rows;
+    private TaskArchiveScanStats stats;
+}
+
+// Builds a segment in memory and writes it with one call
+final class TaskSegmentWriter {
+
+    static final int MAGIC = 0x54434131; // "TCA1"
+    static final int VERSION = 1;
+
+    static final List<String> FIXED_COLUMNS = Arrays.asList("taskId", "taskDefinitionKey", "taskName",
+            "processInstanceId", "processDefinitionKey", "assignee", "createdAt", "completedAt", "durationMs", "priority");
+
+    private TaskSegmentWriter() {
+    }
+
+    static void write(Path file, List<ArchivedTask> rows, int compressionLevel) throws IOException {
+        ByteArrayOutputStream directory = new ByteArrayOutputStream();
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        DataOutputStream dir = new DataOutputStream(directory);
+
+        Set<String> variableNames = new TreeSet<>();
+        for (ArchivedTask row : rows) {
+            if (row.getVariables() != null) {
+                variableNames.addAll(row.getVariables().keySet());
+            }
+        }
+        dir.writeInt(rows.size());
+        dir.writeInt(FIXED_COLUMNS.size() + variableNames.size());
+        Deflater deflater = new Deflater(compressionLevel);
+        try {
+            writeStringColumn(dir, data, deflater, "taskId", rows, ArchivedTask::getTaskId);
+            writeStringColumn(dir, data, deflater, "taskDefinitionKey", rows, ArchivedTask::getTaskDefinitionKey);
+            writeStringColumn(dir, data, deflater, "taskName", rows, ArchivedTask::getTaskName);
+            writeStringColumn(dir, data, deflater, "processInstanceId", rows, ArchivedTask::getProcessInstanceId);
+            writeStringColumn(dir, data, deflater, "processDefinitionKey", rows, ArchivedTask::getProcessDefinitionKey);
+            writeStringColumn(dir, data, deflater, "assignee", rows, ArchivedTask::getAssignee);
+            writeLongColumn(dir, data, deflater, "createdAt", rows, ArchivedTask::getCreatedAt);
+            writeLongColumn(dir, data, deflater, "completedAt", rows, ArchivedTask::getCompletedAt);
+            writeLongColumn(dir, data, deflater, "durationMs", rows, ArchivedTask::getDurationMs);
+            writeLongColumn(dir, data, deflater, "priority", rows, ArchivedTask::getPriority);
+            for (String name : variableNames) {
+                writeStringColumn(dir, data, deflater, "var." + name, rows,
+                        row -> row.getVariables() != null ? row.getVariables().get(name) : null);
+            }
+        } finally {
+            deflater.end();
+        }
+        dir.flush();
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(directory.size());
+            directory.writeTo(out);
+            data.writeTo(out);
+        }
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeLongColumn(DataOutputStream dir, ByteArrayOutputStream data, Deflater deflater,
+                                        String name, List<ArchivedTask> rows, Function<ArchivedTask, Long> getter) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        byte[] nulls = new byte[(rows.size() + 7) / 8];
+        int nullCount = 0;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        long previous = 0;
+        ByteArrayOutputStream values = new ByteArrayOutputStream();
+        for (int i = 0; i < rows.size(); i++) {
+            Long value = getter.apply(rows.get(i));
+            if (value == null) {
+                nulls[i >> 3] |= (byte) (1 << (i & 7));
+                nullCount++;
+                continue;
+            }
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            long delta = value - previous;
+            writeVarLong(values, (delta << 1) ^ (delta >> 63));
+            previous = value;
+        }
+        if (nullCount > 0) {
+            raw.write(nulls);
+        }
+        values.writeTo(raw);
+
+        dir.writeUTF(name);
+        dir.writeByte(TaskArchiveColumnType.LONG.ordinal());
+        dir.writeInt(nullCount);
+        dir.writeLong(nullCount == rows.size() ? 0 : min);
+        dir.writeLong(nullCount == rows.size() ? 0 : max);
+        dir.writeByte(1);
+        writeBlock(dir, data, deflater, raw.toByteArray());
+    }
+
+    private static void writeStringColumn(DataOutputStream dir, ByteArrayOutputStream data, Deflater deflater,
+                                          String name, List<ArchivedTask> rows, Function<ArchivedTask, String> getter) throws IOException {
+        String[] values = new String[rows.size()];
+        TreeSet<String> distinct = new TreeSet<>();
+        int nullCount = 0;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = getter.apply(rows.get(i));
+            if (values[i] == null) {
+                nullCount++;
+            } else {
+                distinct.add(values[i]);
+            }
+        }
+        String[] dictionary = distinct.toArray(new String[0]);
+        Map<String, Integer> codes = new HashMap<>(dictionary.length * 2);
+        ByteArrayOutputStream dictionaryRaw = new ByteArrayOutputStream();
+        DataOutputStream dictionaryOut = new DataOutputStream(dictionaryRaw);
+        for (int i = 0; i < dictionary.length; i++) {
+            codes.put(dictionary[i], i + 1);
+            dictionaryOut.writeUTF(dictionary[i]);
+        }
+        dictionaryOut.flush();
+
+        int width = codeWidth(dictionary.length);
+        ByteBuffer codesRaw = ByteBuffer.allocate(values.length * width);
+        for (String value : values) {
+            int code = value == null ? 0 : codes.get(value);
+            if (width == 1) {
+                codesRaw.put((byte) code);
+            } else if (width == 2) {
+                codesRaw.putShort((short) code);
+            } else {
+                codesRaw.putInt(code);
+            }
+        }
+
+        dir.writeUTF(name);
+        dir.writeByte(TaskArchiveColumnType.STRING.ordinal());
+        dir.writeInt(nullCount);
+        dir.writeInt(dictionary.length);
+        dir.writeUTF(dictionary.length > 0 ? dictionary[0] : "");
+        dir.writeUTF(dictionary.length > 0 ? dictionary[dictionary.length - 1] : "");
+        dir.writeByte(2);
+        writeBlock(dir, data, deflater, dictionaryRaw.toByteArray());
+        writeBlock(dir, data, deflater, codesRaw.array());
+    }
+
+    static int codeWidth(int dictionarySize) {
+        return dictionarySize < 0xFF ? 1 : dictionarySize < 0xFFFF ? 2 : 4;
+    }
+
+    private static void writeBlock(DataOutputStream dir, ByteArrayOutputStream data, Deflater deflater, byte[] raw) throws IOException {
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        long offset = data.size();
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(chunk);
+            data.write(chunk, 0, n);
+        }
+        dir.writeLong(offset);
+        dir.writeInt((int) (data.size() - offset));
+        dir.writeInt(raw.length);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
+
+// Reads the directory on open; blocks are read and inflated only when asked for
+final class TaskSegmentReader implements Closeable {
+
+    private final Path file;
+    private final FileChannel channel;
+    private final long dataStart;
+    private final int rows;
+    private final Map<String, ColumnMeta> columns = new LinkedHashMap<>();
+    private long blocksInflated;
+    private long bytesInflated;
+
+    private TaskSegmentReader(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(12);
+            readFully(header, 0);
+            header.flip();
+            if (header.getInt() != TaskSegmentWriter.MAGIC) {
+                throw new IOException("Not a task archive segment: " + file);
+            }
+            int version = header.getInt();
+            if (version != TaskSegmentWriter.VERSION) {
+                throw new IOException("Unsupported task archive segment version " + version + ": " + file);
+            }
+            int directoryLength = header.getInt();
+            ByteBuffer directory = ByteBuffer.allocate(directoryLength);
+            readFully(directory, 12);
+            this.dataStart = 12L + directoryLength;
+
+            DataInputStream dir = new DataInputStream(new ByteArrayInputStream(directory.array()));
+            this.rows = dir.readInt();
+            int columnCount = dir.readInt();
+            for (int c = 0; c < columnCount; c++) {
+                ColumnMeta meta = new ColumnMeta();
+                meta.name = dir.readUTF();
+                meta.type = TaskArchiveColumnType.values()[dir.readByte()];
+                meta.nullCount = dir.readInt();
+                if (meta.type == TaskArchiveColumnType.LONG) {
+                    meta.min = dir.readLong();
+                    meta.max = dir.readLong();
+                } else {
+                    meta.dictionarySize = dir.readInt();
+                    meta.min = dir.readUTF();
+                    meta.max = dir.readUTF();
+                }
+                int blocks = dir.readByte();
+                meta.offsets = new long[blocks];
+                meta.compressed = new int[blocks];
+                meta.raw = new int[blocks];
+                for (int b = 0; b < blocks; b++) {
+                    meta.offsets[b] = dir.readLong();
+                    meta.compressed[b] = dir.readInt();
+                    meta.raw[b] = dir.readInt();
+                }
+                columns.put(meta.name, meta);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    static TaskSegmentReader open(Path file) throws IOException {
+        return new TaskSegmentReader(file);
+    }
+
+    int rows() {
+        return rows;
+    }
+
+    Set<String> columnNames() {
+        return columns.keySet();
+    }
+
+    boolean hasColumn(String name) {
+        return columns.containsKey(name);
+    }
+
+    boolean allNull(String name) {
+        ColumnMeta meta = columns.get(name);
+        return meta == null || meta.nullCount == rows;
+    }
+
+    int nullCount(String name) {
+        return columns.get(name).nullCount;
+    }
+
+    long minLong(String name) {
+        return (Long) columns.get(name).min;
+    }
+
+    long maxLong(String name) {
+        return (Long) columns.get(name).max;
+    }
+
+    String minString(String name) {
+        return (String) columns.get(name).min;
+    }
+
+    String maxString(String name) {
+        return (String) columns.get(name).max;
+    }
+
+    TaskArchiveColumnType type(String name) {
+        return columns.get(name).type;
+    }
+
+    long blocksInflated() {
+        return blocksInflated;
+    }
+
+    long bytesInflated() {
+        return bytesInflated;
+    }
+
+    // Null values are Long.MIN_VALUE
+    long[] readLongs(String name) throws IOException {
+        ColumnMeta meta = columns.get(name);
+        ByteBuffer raw = ByteBuffer.wrap(inflate(meta, 0));
+        long[] values = new long[rows];
+        byte[] nulls = null;
+        if (meta.nullCount > 0) {
+            nulls = new byte[(rows + 7) / 8];
+            raw.get(nulls);
+        }
+        long previous = 0;
+        for (int i = 0; i < rows; i++) {
+            if (nulls != null && (nulls[i >> 3] & (1 << (i & 7))) != 0) {
+                values[i] = Long.MIN_VALUE;
+                continue;
+            }
+            long zigZag = readVarLong(raw);
+            previous += (zigZag >>> 1) ^ -(zigZag & 1);
+            values[i] = previous;
+        }
+        return values;
+    }
+
+    String[] readDictionary(String name) throws IOException {
+        ColumnMeta meta = columns.get(name);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(inflate(meta, 0)));
+        String[] dictionary = new String[meta.dictionarySize];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = in.readUTF();
+        }
+        return dictionary;
+    }
+
+    // Index into the dictionary, -1 for null
+    int[] readCodes(String name) throws IOException {
+        ColumnMeta meta = columns.get(name);
+        ByteBuffer raw = ByteBuffer.wrap(inflate(meta, 1));
+        int width = TaskSegmentWriter.codeWidth(meta.dictionarySize);
+        int[] codes = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            int code = width == 1 ? raw.get() & 0xFF : width == 2 ? raw.getShort() & 0xFFFF : raw.getInt();
+            codes[i] = code - 1;
+        }
+        return codes;
+    }
+
+    TaskArchiveSegment describe() {
+        List<TaskArchiveColumn> described = new ArrayList<>();
+        for (ColumnMeta meta : columns.values()) {
+            boolean empty = meta.nullCount == rows;
+            described.add(new TaskArchiveColumn(meta.name, meta.type, meta.nullCount, empty ? null : meta.min,
+                    empty ? null : meta.max, meta.dictionarySize, IntStream.of(meta.compressed).asLongStream().sum(),
+                    IntStream.of(meta.raw).asLongStream().sum()));
+        }
+        return new TaskArchiveSegment(file.getFileName().toString(), rows, described);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private byte[] inflate(ColumnMeta meta, int block) throws IOException {
+        ByteBuffer compressed = ByteBuffer.allocate(meta.compressed[block]);
+        readFully(compressed, dataStart + meta.offsets[block]);
+        byte[] raw = new byte[meta.raw[block]];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array());
+            int length = 0;
+            while (length < raw.length) {
+                int n = inflater.inflate(raw, length, raw.length - length);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                length += n;
+            }
+            if (length != raw.length) {
+                throw new IOException("Truncated block of column " + meta.name + " in " + file);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt block of column " + meta.name + " in " + file, e);
+        } finally {
+            inflater.end();
+        }
+        blocksInflated++;
+        bytesInflated += raw.length;
+        return raw;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new EOFException("Unexpected end of " + file);
+            }
+        }
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static final class ColumnMeta {
+        String name;
+        TaskArchiveColumnType type;
+        int nullCount;
+        Object min;
+        Object max;
+        int dictionarySize;
+        long[] offsets;
+        int[] compressed;
+        int[] raw;
+    }
+}
+
+@Component
+@Slf4j
+public class TaskArchiver {
+
+    private static final String SEGMENT_PREFIX = "tasks-";
+    private static final String SEGMENT_SUFFIX = ".tca";
+
+    @Autowired
+    private TaskArchiveProperties properties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final List<ArchivedTask> buffer = new ArrayList<>();
+    private final Object flushLock = new Object();
+    private final AtomicLong sequence = new AtomicLong();
+    private final LongAdder archived = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder segmentsWritten = new LongAdder();
+    private ScheduledExecutorService flusher;
+    private Path directory;
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        directory = Paths.get(properties.getDirectory());
+        Files.createDirectories(directory);
+        sequence.set(listSegments().size());
+
+        Gauge.builder("workflow.archive.buffered", this, archiver -> archiver.buffered()).register(meterRegistry);
+        FunctionCounter.builder("workflow.archive.rows", archived, LongAdder::sum).tag("outcome", "archived").register(meterRegistry);
+        FunctionCounter.builder("workflow.archive.rows", dropped, LongAdder::sum).tag("outcome", "dropped").register(meterRegistry);
+        FunctionCounter.builder("workflow.archive.segments", segmentsWritten, LongAdder::sum).register(meterRegistry);
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "task-archive-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, properties.getFlushIntervalMs(),
+                properties.getFlushIntervalMs(), TimeUnit.MILLISECONDS);
+        log.info("Task archive started - directory: {}, segments: {}", directory.toAbsolutePath(), sequence.get());
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (flusher == null) {
+            return;
+        }
+        flusher.shutdown();
+        flushQuietly();
+    }
+
+    // Called from the complete listener; the row is kept only if the command commits
+    public void archive(DelegateTask task) {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        ArchivedTask row = capture(task);
+        CommandContext commandContext = Context.getCommandContext();
+        if (commandContext == null) {
+            buffer(row);
+            return;
+        }
+        commandContext.getTransactionContext().addTransactionListener(TransactionState.COMMITTED, ctx -> buffer(row));
+    }
+
+    public void flush() throws IOException {
+        synchronized (flushLock) {
+            List<ArchivedTask> rows;
+            synchronized (buffer) {
+                if (buffer.isEmpty()) {
+                    return;
+                }
+                rows = new ArrayList<>(buffer);
+                buffer.clear();
+            }
+            int written = 0;
+            try {
+                while (written < rows.size()) {
+                    List<ArchivedTask> segment = rows.subList(written, Math.min(rows.size(), written + properties.getSegmentRows()));
+                    writeSegment(segment);
+                    written += segment.size();
+                }
+            } finally {
+                if (written < rows.size()) {
+                    requeue(rows.subList(written, rows.size()));
+                }
+            }
+        }
+    }
+
+    public TaskArchiveScanStats scan(TaskArchiveQuery query, Consumer<Map<String, Object>> consumer) throws IOException {
+        TaskArchiveScanStats stats = new TaskArchiveScanStats();
+        long from = query.getFrom() != null ? query.getFrom().toEpochMilli() : Long.MIN_VALUE;
+        long to = query.getTo() != null ? query.getTo().toEpochMilli() : Long.MAX_VALUE;
+        int limit = query.getLimit() > 0 ? query.getLimit() : Integer.MAX_VALUE;
+
+        for (Path file : listSegments()) {
+            if (stats.getRows() >= limit) {
+                break;
+            }
+            stats.setSegments(stats.getSegments() + 1);
+            try (TaskSegmentReader reader = TaskSegmentReader.open(file)) {
+                BitSet selected = select(reader, query.getProcessDefinitionKey(), from, to);
+                if (selected == null || selected.isEmpty()) {
+                    stats.setSegmentsPruned(stats.getSegmentsPruned() + (selected == null ? 1 : 0));
+                } else {
+                    emit(reader, selected, projection(reader, query.getColumns()), limit, stats, consumer);
+                }
+                stats.setBlocksInflated(stats.getBlocksInflated() + reader.blocksInflated());
+                stats.setBytesInflated(stats.getBytesInflated() + reader.bytesInflated());
+            }
+        }
+        return stats;
+    }
+
+    public List<TaskArchiveSegment> segments() throws IOException {
+        List<TaskArchiveSegment> segments = new ArrayList<>();
+        for (Path file : listSegments()) {
+            try (TaskSegmentReader reader = TaskSegmentReader.open(file)) {
+                segments.add(reader.describe());
+            }
+        }
+        return segments;
+    }
+
+    public int buffered() {
+        synchronized (buffer) {
+            return buffer.size();
+        }
+    }
+
+    // Rows of the segment matching the filters, null when the directory rules it out
+    private BitSet select(TaskSegmentReader reader, String definitionKey, long from, long to) throws IOException {
+        int rows = reader.rows();
+        boolean timeFilter = from != Long.MIN_VALUE || to != Long.MAX_VALUE;
+        if (timeFilter) {
+            if (reader.allNull("completedAt") || reader.maxLong("completedAt") < from || reader.minLong("completedAt") >= to) {
+                return null;
+            }
+        }
+        int definitionCode = -1;
+        if (definitionKey != null) {
+            if (reader.allNull("processDefinitionKey") || definitionKey.compareTo(reader.minString("processDefinitionKey")) < 0
+                    || definitionKey.compareTo(reader.maxString("processDefinitionKey")) > 0) {
+                return null;
+            }
+            definitionCode = Arrays.binarySearch(reader.readDictionary("processDefinitionKey"), definitionKey);
+            if (definitionCode < 0) {
+                return null;
+            }
+        }
+
+        BitSet selected = new BitSet(rows);
+        selected.set(0, rows);
+        // Segment wholly inside the range: completedAt is not needed
+        if (timeFilter && (reader.minLong("completedAt") < from || reader.maxLong("completedAt") >= to
+                || reader.nullCount("completedAt") > 0)) {
+            long[] completedAt = reader.readLongs("completedAt");
+            for (int i = 0; i < rows; i++) {
+                if (completedAt[i] == Long.MIN_VALUE || completedAt[i] < from || completedAt[i] >= to) {
+                    selected.clear(i);
+                }
+            }
+        }
+        if (definitionKey != null && (reader.nullCount("processDefinitionKey") > 0
+                || !reader.minString("processDefinitionKey").equals(reader.maxString("processDefinitionKey")))) {
+            int[] codes = reader.readCodes("processDefinitionKey");
+            for (int i = selected.nextSetBit(0); i >= 0; i = selected.nextSetBit(i + 1)) {
+                if (codes[i] != definitionCode) {
+                    selected.clear(i);
+                }
+            }
+        }
+        return selected;
+    }
+
+    private void emit(TaskSegmentReader reader, BitSet selected, List<String> columns, int limit,
+                      TaskArchiveScanStats stats, Consumer<Map<String, Object>> consumer) throws IOException {
+        Object[] decoded = new Object[columns.size()];
+        String[][] dictionaries = new String[columns.size()][];
+        for (int c = 0; c < columns.size(); c++) {
+            String column = columns.get(c);
+            if (reader.type(column) == TaskArchiveColumnType.LONG) {
+                decoded[c] = reader.readLongs(column);
+            } else {
+                dictionaries[c] = reader.readDictionary(column);
+                decoded[c] = reader.readCodes(column);
+            }
+        }
+        for (int i = selected.nextSetBit(0); i >= 0 && stats.getRows() < limit; i = selected.nextSetBit(i + 1)) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            for (int c = 0; c < columns.size(); c++) {
+                Object value;
+                if (dictionaries[c] == null) {
+                    long v = ((long[]) decoded[c])[i];
+                    value = v == Long.MIN_VALUE ? null : v;
+                } else {
+                    int code = ((int[]) decoded[c])[i];
+                    value = code < 0 ? null : dictionaries[c][code];
+                }
+                if (value != null) {
+                    row.put(columns.get(c), value);
+                }
+            }
+            consumer.accept(row);
+            stats.setRows(stats.getRows() + 1);
+        }
+    }
+
+    private List<String> projection(TaskSegmentReader reader, List<String> requested) {
+        if (requested == null || requested.isEmpty()) {
+            return new ArrayList<>(reader.columnNames());
+        }
+        List<String> columns = new ArrayList<>();
+        for (String column : requested) {
+            if (reader.hasColumn(column) && !reader.allNull(column)) {
+                columns.add(column);
+            }
+        }
+        return columns;
+    }
+
+    private ArchivedTask capture(DelegateTask task) {
+        long completedAt = System.currentTimeMillis();
+        Date createTime = task.getCreateTime();
+        Map<String, String> variables = new TreeMap<>();
+        if (properties.getVariables().isEmpty()) {
+            VariableMap values = task.getVariablesTyped(false);
+            for (String name : values.keySet()) {
+                putRendered(variables, name, values.getValueTyped(name));
+            }
+        } else {
+            for (String name : properties.getVariables()) {
+                putRendered(variables, name, task.getVariableTyped(name, false));
+            }
+        }
+        return ArchivedTask.builder()
+                .taskId(task.getId())
+                .taskDefinitionKey(task.getTaskDefinitionKey())
+                .taskName(task.getName())
+                .processInstanceId(task.getProcessInstanceId())
+                .processDefinitionKey(ProcessDefinitionKeys.of(task.getProcessDefinitionId()))
+                .assignee(task.getAssignee())
+                .createdAt(createTime != null ? createTime.getTime() : null)
+                .completedAt(completedAt)
+                .durationMs(createTime != null ? completedAt - createTime.getTime() : null)
+                .priority((long) task.getPriority())
+                .variables(variables)
+                .build();
+    }
+
+    private void putRendered(Map<String, String> variables, String name, TypedValue value) {
+        String rendered = render(value);
+        if (rendered != null) {
+            variables.put(name, rendered);
+        }
+    }
+
+    // Only primitive values; serialized objects, files and collections stay serialized and are skipped
+    private String render(TypedValue typed) {
+        if (typed == null || typed instanceof ObjectValue || typed.getType() == null
+                || !typed.getType().isPrimitiveValueType()) {
+            return null;
+        }
+        Object value = typed.getValue();
+        String rendered;
+        if (value instanceof Date) {
+            rendered = ((Date) value).toInstant().toString();
+        } else if (value instanceof String || value instanceof Number || value instanceof Boolean
+                || value instanceof Character || value instanceof Enum) {
+            rendered = String.valueOf(value);
+        } else {
+            return null;
+        }
+        return rendered.length() > properties.getMaxValueLength() ? rendered.substring(0, properties.getMaxValueLength()) : rendered;
+    }
+
+    private void buffer(ArchivedTask row) {
+        int size;
+        synchronized (buffer) {
+            if (buffer.size() >= properties.getMaxBufferedRows()) {
+                dropped.increment();
+                return;
+            }
+            buffer.add(row);
+            size = buffer.size();
+        }
+        archived.increment();
+        if (size == properties.getSegmentRows() && flusher != null) {
+            flusher.execute(this::flushQuietly);
+        }
+    }
+
+    // Unwritten rows go back in front of newer ones, as far as the buffer limit allows
+    private void requeue(List<ArchivedTask> rows) {
+        synchronized (buffer) {
+            int room = Math.max(0, properties.getMaxBufferedRows() - buffer.size());
+            int kept = Math.min(room, rows.size());
+            buffer.addAll(0, rows.subList(rows.size() - kept, rows.size()));
+            if (kept < rows.size()) {
+                dropped.add(rows.size() - kept);
+                log.error("Task archive buffer full, dropped {} rows", rows.size() - kept);
+            }
+        }
+    }
+
+    private void writeSegment(List<ArchivedTask> rows) throws IOException {
+        long firstCompleted = rows.stream().map(ArchivedTask::getCompletedAt).filter(Objects::nonNull)
+                .mapToLong(Long::longValue).min().orElse(0);
+        Path file = directory.resolve(String.format("%s%013d-%06d%s", SEGMENT_PREFIX, firstCompleted,
+                sequence.incrementAndGet(), SEGMENT_SUFFIX));
+        long start = System.nanoTime();
+        TaskSegmentWriter.write(file, rows, properties.getCompressionLevel());
+        segmentsWritten.increment();
+        log.info("Archived {} tasks to {} ({} bytes) in {} ms", rows.size(), file.getFileName(), Files.size(file),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.error("Writing task archive segment failed, rows stay buffered: {}", e.getMessage(), e);
+        }
+    }
+
+    private List<Path> listSegments() throws IOException {
+        if (directory == null || !Files.isDirectory(directory)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> {
+                String name = file.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted().collect(Collectors.toList());
+        }
+    }
+}
+
+@RestController
+@RequestMapping("/api/admin/task-archive")
+@Slf4j
+public class TaskArchiveController {
+
+    @Autowired
+    private TaskArchiver taskArchiver;
+
+    @GetMapping
+    public ResponseEntity<TaskArchiveResult> scan(
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant to,
+            @RequestParam(required = false) String processDefinitionKey,
+            @RequestParam(required = false) List<String> columns,
+            @RequestParam(defaultValue = "1000") int limit) {
+        TaskArchiveQuery query = TaskArchiveQuery.builder()
+                .from(from)
+                .to(to)
+                .processDefinitionKey(processDefinitionKey)
+                .columns(columns)
+                .limit(limit)
+                .build();
+        try {
+            List<Map<String, Object>> rows = new ArrayList<>();
+            TaskArchiveScanStats stats = taskArchiver.scan(query, rows::add);
+            return ResponseEntity.ok(new TaskArchiveResult(rows, stats));
+        } catch (IOException e) {
+            log.error("Task archive scan failed", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    @GetMapping("/segments")
+    public ResponseEntity<List<TaskArchiveSegment>> segments() {
+        try {
+            return ResponseEntity.ok(taskArchiver.segments());
+        } catch (IOException e) {
+            log.error("Listing task archive segments failed", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    @PostMapping("/flush")
+    public ResponseEntity<Void> flush() {
+        try {
+            taskArchiver.flush();
+            return ResponseEntity.ok().build();
+        } catch (IOException e) {
+            log.error("Task archive flush failed", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+}
+
+class TaskArchiveTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testSegmentRoundTripWithNulls() throws IOException {
+        List<ArchivedTask> rows = List.of(
+                task("t-1", "approval", 1000L).assignee("hr.manager").priority(50L)
+                        .variables(Map.of("amount", "1200", "currency", "EUR")).build(),
+                // Nulls in string, long and variable columns
+                task("t-2", null, null).assignee(null).createdAt(null).durationMs(null).priority(null).variables(null).build(),
+                task("t-3", "approval", 3000L).taskName("R\u00e9view").variables(Map.of("amount", "80")).build());
+        Path file = directory.resolve("segment.tca");
+        TaskSegmentWriter.write(file, rows, Deflater.DEFAULT_COMPRESSION);
+
+        try (TaskSegmentReader reader = TaskSegmentReader.open(file)) {
+            assertThat(reader.rows()).isEqualTo(3);
+            assertThat(reader.columnNames()).containsExactly("taskId", "taskDefinitionKey", "taskName",
+                    "processInstanceId", "processDefinitionKey", "assignee", "createdAt", "completedAt",
+                    "durationMs", "priority", "var.amount", "var.currency");
+            assertThat(strings(reader, "processDefinitionKey")).containsExactly("approval", null, "approval");
+            assertThat(strings(reader, "assignee")).containsExactly("hr.manager", null, "hr.manager");
+            assertThat(strings(reader, "taskName")).containsExactly("Approval Task", "Approval Task", "R\u00e9view");
+            assertThat(strings(reader, "var.amount")).containsExactly("1200", null, "80");
+            assertThat(strings(reader, "var.currency")).containsExactly("EUR", null, null);
+            assertThat(reader.readLongs("completedAt")).containsExactly(1000L, Long.MIN_VALUE, 3000L);
+            assertThat(reader.readLongs("priority")).containsExactly(50L, Long.MIN_VALUE, 50L);
+
+            assertThat(reader.nullCount("completedAt")).isEqualTo(1);
+            assertThat(reader.minLong("completedAt")).isEqualTo(1000L);
+            assertThat(reader.maxLong("completedAt")).isEqualTo(3000L);
+            assertThat(reader.minString("var.amount")).isEqualTo("1200");
+            assertThat(reader.maxString("var.amount")).isEqualTo("80");
+            assertThat(reader.allNull("assignee")).isFalse();
+            assertThat(reader.allNull("var.unknown")).isTrue();
+
+            TaskArchiveColumn currency = reader.describe().getColumns().stream()
+                    .filter(column -> column.getName().equals("var.currency")).findFirst().orElseThrow();
+            assertThat(currency.getNullCount()).isEqualTo(2);
+            assertThat(currency.getDictionarySize()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void testAllNullColumnsHaveNoStats() throws IOException {
+        Path file = directory.resolve("segment.tca");
+        TaskSegmentWriter.write(file, List.of(task("t-1", null, null).assignee(null).durationMs(null).build()),
+                Deflater.DEFAULT_COMPRESSION);
+
+        try (TaskSegmentReader reader = TaskSegmentReader.open(file)) {
+            assertThat(reader.allNull("completedAt")).isTrue();
+            assertThat(reader.allNull("assignee")).isTrue();
+            assertThat(reader.readLongs("completedAt")).containsExactly(Long.MIN_VALUE);
+            assertThat(reader.readCodes("assignee")).containsExactly(-1);
+            TaskArchiveColumn assignee = reader.describe().getColumns().stream()
+                    .filter(column -> column.getName().equals("assignee")).findFirst().orElseThrow();
+            assertThat(assignee.getMin()).isNull();
+            assertThat(assignee.getMax()).isNull();
+        }
+    }
+
+    @Test
+    void testDictionaryCodeWidths() throws IOException {
+        assertThat(TaskSegmentWriter.codeWidth(254)).isEqualTo(1);
+        assertThat(TaskSegmentWriter.codeWidth(255)).isEqualTo(2);
+        assertThat(TaskSegmentWriter.codeWidth(65534)).isEqualTo(2);
+        assertThat(TaskSegmentWriter.codeWidth(65535)).isEqualTo(4);
+
+        // Around each width boundary, with a null so code 0 stays reserved
+        for (int distinct : new int[] {254, 255, 300, 65534, 65535, 70000}) {
+            List<ArchivedTask> rows = new ArrayList<>();
+            for (int i = 0; i < distinct; i++) {
+                rows.add(task(String.format("t-%06d", i), "approval", (long) i).build());
+            }
+            rows.add(task(null, "approval", (long) distinct).build());
+            Path file = directory.resolve("segment-" + distinct + ".tca");
+            TaskSegmentWriter.write(file, rows, Deflater.BEST_SPEED);
+
+            try (TaskSegmentReader reader = TaskSegmentReader.open(file)) {
+                String[] taskIds = strings(reader, "taskId");
+                assertThat(taskIds).hasSize(distinct + 1);
+                for (int i = 0; i < distinct; i++) {
+                    assertThat(taskIds[i]).isEqualTo(rows.get(i).getTaskId());
+                }
+                assertThat(taskIds[distinct]).isNull();
+                assertThat(reader.describe().getColumns().get(0).getRawBytes())
+                        .isGreaterThanOrEqualTo((long) (distinct + 1) * TaskSegmentWriter.codeWidth(distinct));
+            }
+        }
+    }
+
+    @Test
+    void testLongDeltasRoundTrip() throws IOException {
+        long[] values = {0L, 5L, 3L, -7L, Long.MAX_VALUE, Long.MIN_VALUE + 1, 1_700_000_000_000L, 1_700_000_000_001L, -1L};
+        List<ArchivedTask> rows = new ArrayList<>();
+        for (long value : values) {
+            rows.add(task("t-" + rows.size(), "approval", value).build());
+        }
+        Path file = directory.resolve("segment.tca");
+        TaskSegmentWriter.write(file, rows, Deflater.DEFAULT_COMPRESSION);
+
+        try (TaskSegmentReader reader = TaskSegmentReader.open(file)) {
+            assertThat(reader.readLongs("completedAt")).containsExactly(values);
+            assertThat(reader.minLong("completedAt")).isEqualTo(Long.MIN_VALUE + 1);
+            assertThat(reader.maxLong("completedAt")).isEqualTo(Long.MAX_VALUE);
+        }
+    }
+
+    @Test
+    void testScanPrunesByCompletedAtAndDefinitionKey() throws IOException {
+        TaskArchiver archiver = archiver();
+        writeSegment(archiver, List.of(task("a-1", "approval", 1000L).build(), task("a-2", "approval", 1500L).build()));
+        writeSegment(archiver, List.of(task("b-1", "invoice", 2000L).build(), task("b-2", "review", 2500L).build()));
+        writeSegment(archiver, List.of(task("c-1", "approval", 3000L).build(), task("c-2", "zeta", 3500L).build()));
+
+        // completedAt stats rule out the first and last segment
+        List<Map<String, Object>> rows = new ArrayList<>();
+        TaskArchiveScanStats stats = archiver.scan(TaskArchiveQuery.builder()
+                .from(Instant.ofEpochMilli(2000)).to(Instant.ofEpochMilli(3000))
+                .columns(List.of("taskId")).build(), rows::add);
+        assertThat(rows).extracting(row -> row.get("taskId")).containsExactly("b-1", "b-2");
+        assertThat(stats.getSegments()).isEqualTo(3);
+        assertThat(stats.getSegmentsPruned()).isEqualTo(2);
+        // Wholly inside the range: only the projected dictionary and codes are inflated
+        assertThat(stats.getBlocksInflated()).isEqualTo(2);
+
+        // "approval" sorts before the second segment's min, the third has it in its dictionary
+        rows.clear();
+        stats = archiver.scan(TaskArchiveQuery.builder().processDefinitionKey("approval")
+                .columns(List.of("taskId")).build(), rows::add);
+        assertThat(rows).extracting(row -> row.get("taskId")).containsExactly("a-1", "a-2", "c-1");
+        assertThat(stats.getSegmentsPruned()).isEqualTo(1);
+
+        // Inside the third segment's min / max but not in its dictionary
+        rows.clear();
+        stats = archiver.scan(TaskArchiveQuery.builder().processDefinitionKey("onboarding").build(), rows::add);
+        assertThat(rows).isEmpty();
+        assertThat(stats.getSegmentsPruned()).isEqualTo(3);
+
+        // Both filters, the range cuts into the first segment
+        rows.clear();
+        archiver.scan(TaskArchiveQuery.builder().processDefinitionKey("approval")
+                .from(Instant.ofEpochMilli(1200)).to(Instant.ofEpochMilli(5000)).build(), rows::add);
+        assertThat(rows).extracting(row -> row.get("taskId")).containsExactly("a-2", "c-1");
+    }
+
+    @Test
+    void testScanProjectsRequestedColumns() throws IOException {
+        TaskArchiver archiver = archiver();
+        writeSegment(archiver, List.of(
+                task("t-1", "approval", 1000L).variables(Map.of("amount", "1200")).build(),
+                task("t-2", "approval", 2000L).assignee(null).build(),
+                task("t-3", "approval", 3000L).variables(Map.of("amount", "80")).build()));
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+        TaskArchiveScanStats stats = archiver.scan(TaskArchiveQuery.builder()
+                .columns(List.of("taskId", "var.amount", "assignee", "var.unknown")).limit(2).build(), rows::add);
+        assertThat(rows).containsExactly(
+                Map.of("taskId", "t-1", "var.amount", "1200", "assignee", "hr.manager"),
+                Map.of("taskId", "t-2"));
+        assertThat(stats.getRows()).isEqualTo(2);
+        assertThat(stats.getBlocksInflated()).isEqualTo(6);
+
+        // No projection: every column of the segment, nulls left out of the row
+        rows.clear();
+        archiver.scan(TaskArchiveQuery.builder().build(), rows::add);
+        assertThat(rows).hasSize(3);
+        assertThat(rows.get(1)).doesNotContainKeys("assignee", "var.amount")
+                .containsEntry("completedAt", 2000L).containsEntry("priority", 50L);
+    }
+
+    private TaskArchiver archiver() {
+        TaskArchiveProperties properties = new TaskArchiveProperties();
+        properties.setDirectory(directory.toString());
+        TaskArchiver archiver = new TaskArchiver();
+        ReflectionTestUtils.setField(archiver, "properties", properties);
+        ReflectionTestUtils.setField(archiver, "directory", directory);
+        return archiver;
+    }
+
+    private static void writeSegment(TaskArchiver archiver, List<ArchivedTask> rows) {
+        ReflectionTestUtils.invokeMethod(archiver, "writeSegment", rows);
+    }
+
+    private static String[] strings(TaskSegmentReader reader, String column) throws IOException {
+        String[] dictionary = reader.readDictionary(column);
+        int[] codes = reader.readCodes(column);
+        String[] values = new String[codes.length];
+        for (int i = 0; i < codes.length; i++) {
+            values[i] = codes[i] < 0 ? null : dictionary[codes[i]];
+        }
+        return values;
+    }
+
+    private static ArchivedTask.ArchivedTaskBuilder task(String taskId, String processDefinitionKey, Long completedAt) {
+        return ArchivedTask.builder()
+                .taskId(taskId)
+                .taskDefinitionKey("approvalTask")
+                .taskName("Approval Task")
+                .processInstanceId("pi-" + taskId)
+                .processDefinitionKey(processDefinitionKey)
+                .assignee("hr.manager")
+                .createdAt(completedAt != null ? completedAt - 100 : 0L)
+                .completedAt(completedAt)
+                .durationMs(100L)
+                .priority(50L);
+    }
+}
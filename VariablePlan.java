@@ -0,0 +1,199 @@
+// Declarative variable access for listener and activity handlers
+//
+// Each handler declares up front which variables it reads. The subscriber fetches
+// them with one collectVariables pass over the scope hierarchy per event, instead of
+// one getVariable call per name, and hands the handler a VariableSnapshot.
+//
+// Values are fetched without deserialization: strings, dates, numbers and booleans
+// come back as plain values, object values (Java / JSON / XML serialized) stay
+// serialized until a handler asks for the object through getObject(). A large
+// object variable in the same scope is never deserialized just because a handler
+// reads a string next to it.
+//
+//   private static final VariablePlan TASK_COMPLETE_VARIABLES =
+//           VariablePlan.of("assignedDate", "processOwner");
+//
+//   VariableSnapshot variables = variablePrefetcher.fetch(task, TASK_COMPLETE_VARIABLES);
+//   Date assignedDate = variables.getDate("assignedDate");
+//
+// @ActivityHandler methods declare their plan with the variables attribute and take
+// the snapshot as a second parameter:
+//
+//   @ActivityHandler(activity = "approvalTask", event = ExecutionListener.EVENTNAME_END,
+//                    variables = {"approved", "approver"})
+//   void handleApprovalTaskEnd(DelegateExecution execution, VariableSnapshot variables) { ... }
+//
+// Writes go through the snapshot, which passes them on to the task / execution and
+// counts them for the handler (see HandlerInstrumentation); the snapshot's own values
+// stay as they were fetched.
+//
+//   variables.set("taskStatus", "COMPLETED");
+
+public final class VariablePlan {
+
+    public static final VariablePlan NONE = new VariablePlan(Collections.emptyList());
+
+    private final List<String> names;
+
+    private VariablePlan(List<String> names) {
+        this.names = names;
+    }
+
+    public static VariablePlan of(String... names) {
+        if (names.length == 0) {
+            return NONE;
+        }
+        return new VariablePlan(Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(Arrays.asList(names)))));
+    }
+
+    public List<String> getNames() {
+        return names;
+    }
+
+    public boolean isEmpty() {
+        return names.isEmpty();
+    }
+
+    public boolean declares(String name) {
+        return names.contains(name);
+    }
+
+    @Override
+    public String toString() {
+        return "VariablePlan" + names;
+    }
+}
+
+// Values of a VariablePlan as they were when the event was dispatched
+public class VariableSnapshot {
+
+    private final VariableScope scope;
+    private final VariablePlan plan;
+    private final VariableMap values;
+    private Map<String, Object> deserialized;
+
+    VariableSnapshot(VariableScope scope, VariablePlan plan, VariableMap values) {
+        this.scope = scope;
+        this.plan = plan;
+        this.values = values;
+    }
+
+    public boolean contains(String name) {
+        return checked(name) != null;
+    }
+
+    // Value as stored, never deserializes; null if the variable does not exist
+    public TypedValue getTyped(String name) {
+        return checked(name);
+    }
+
+    // Plain value whatever its type, for comparisons that must not fail on an unexpected one;
+    // null if the variable does not exist or is a serialized object value
+    public Object getValue(String name) {
+        TypedValue typed = checked(name);
+        if (typed == null || (typed instanceof ObjectValue && !((ObjectValue) typed).isDeserialized())) {
+            return null;
+        }
+        return typed.getValue();
+    }
+
+    public String getString(String name) {
+        return primitive(name, String.class);
+    }
+
+    public Date getDate(String name) {
+        return primitive(name, Date.class);
+    }
+
+    public Boolean getBoolean(String name) {
+        return primitive(name, Boolean.class);
+    }
+
+    public Integer getInteger(String name) {
+        Number value = primitive(name, Number.class);
+        return value != null ? value.intValue() : null;
+    }
+
+    public Long getLong(String name) {
+        Number value = primitive(name, Number.class);
+        return value != null ? value.longValue() : null;
+    }
+
+    // Deserializes an object value on first access, primitive values are returned as is
+    @SuppressWarnings("unchecked")
+    public <T> T getObject(String name) {
+        TypedValue typed = checked(name);
+        if (typed == null) {
+            return null;
+        }
+        if (!(typed instanceof ObjectValue) || ((ObjectValue) typed).isDeserialized()) {
+            return (T) typed.getValue();
+        }
+        if (deserialized == null) {
+            deserialized = new HashMap<>();
+        }
+        return (T) deserialized.computeIfAbsent(name, n -> {
+            HandlerInstrumentation.variablesRead(1);
+            return scope.getVariableTyped(n, true).getValue();
+        });
+    }
+
+    // Sets the variable on the task / execution the snapshot was fetched from, like setVariable
+    public void set(String name, Object value) {
+        HandlerInstrumentation.variablesWritten(1);
+        scope.setVariable(name, value);
+    }
+
+    public VariablePlan getPlan() {
+        return plan;
+    }
+
+    private <T> T primitive(String name, Class<T> type) {
+        TypedValue typed = checked(name);
+        if (typed == null) {
+            return null;
+        }
+        if (typed instanceof ObjectValue && !((ObjectValue) typed).isDeserialized()) {
+            throw new IllegalStateException("Variable '" + name + "' is a serialized object value, use getObject()");
+        }
+        Object value = typed.getValue();
+        if (value != null && !type.isInstance(value)) {
+            throw new ClassCastException("Variable '" + name + "' is " + value.getClass().getSimpleName()
+                    + ", not " + type.getSimpleName());
+        }
+        return type.cast(value);
+    }
+
+    // Reading an undeclared variable is a bug in the handler's plan, not a missing value
+    private TypedValue checked(String name) {
+        if (!plan.declares(name)) {
+            throw new IllegalArgumentException("Variable '" + name + "' is not part of " + plan);
+        }
+        return values.getValueTyped(name);
+    }
+}
+
+@Component
+public class VariablePrefetcher {
+
+    // One pass over the scope and its parents for all names of the plan, values stay serialized
+    public VariableSnapshot fetch(VariableScope scope, VariablePlan plan) {
+        VariableMapImpl values = new VariableMapImpl();
+        if (plan.isEmpty()) {
+            return new VariableSnapshot(scope, plan, values);
+        }
+        if (scope instanceof AbstractVariableScope) {
+            ((AbstractVariableScope) scope).collectVariables(values, plan.getNames(), false, false);
+            HandlerInstrumentation.variablesRead(1);
+        } else {
+            for (String name : plan.getNames()) {
+                TypedValue value = scope.getVariableTyped(name, false);
+                if (value != null) {
+                    values.putValueTyped(name, value);
+                }
+            }
+            HandlerInstrumentation.variablesRead(plan.getNames().size());
+        }
+        return new VariableSnapshot(scope, plan, values);
+    }
+}
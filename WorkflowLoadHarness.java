@@ -0,0 +1,355 @@
+// End-to-end load harness: deploy, start and complete through WorkflowController
+//
+// Boots the application on an in-memory H2 database (BenchmarkApplication, without
+// the web server) and drives the real WorkflowController / WorkflowService beans:
+//
+//   1. POST /deploy-and-start with approval-bpmn-example.bpmn, once
+//   2. per instance: POST /process-definition/{id}/start, GET /active-tasks/{id},
+//      POST /tasks/{taskId}/complete with approvalStatus approved or rejected
+//
+// Arrivals are open loop: instance i is due at start + i / rate, each runs on its own
+// virtual thread, and end-to-end latency is measured from the due time, so a stalled
+// system shows up as latency instead of a lower arrival rate. max-in-flight bounds
+// the running instances; once it is reached arrivals wait and the wait is included
+// in the latency. A 409 from the controller (OptimisticLockingException) is retried
+// up to max-retries times and counted.
+//
+// A warmup phase runs first and is discarded. The measured phase reports throughput,
+// latency percentiles per call and end to end, optimistic-lock retries, and engine
+// JDBC statements in total, per instance and per engine command (workflow.jdbc.statements,
+// workflow.command.statements; the harness turns on
+// workflow.instrumentation.count-statements unless it is passed explicitly). With --out the report is also written as JSON so two
+// runs can be compared.
+//
+//   java -cp benchmarks.jar WorkflowLoadHarness --rate=100 --duration-seconds=60 \
+//       --reject-ratio=0.3 --pool-size=20 --out=target/load/baseline.json
+//
+// Options (defaults): rate=50 instances/s, duration-seconds=60, warmup-seconds=10,
+// max-in-flight=500, pool-size=10 (Hikari connections), reject-ratio=0.5,
+// think-time-ms=0, max-retries=5, out=none. Any other --key=value is passed to the
+// application as a property, e.g. --workflow.instrumentation.enabled=false.
+//
+// Requires Java 21 for virtual threads.
+
+public class WorkflowLoadHarness {
+
+    public static void main(String[] args) throws Exception {
+        LoadHarnessOptions options = LoadHarnessOptions.parse(args);
+        List<String> properties = new ArrayList<>(options.getApplicationProperties());
+        properties.add("spring.datasource.hikari.maximum-pool-size=" + options.getPoolSize());
+        if (properties.stream().noneMatch(property -> property.startsWith("workflow.instrumentation.count-statements="))) {
+            properties.add("workflow.instrumentation.count-statements=true");
+        }
+
+        LoadReport report;
+        try (ConfigurableApplicationContext context = BenchmarkApplication.start(properties.toArray(new String[0]))) {
+            report = new WorkflowLoadRun(context, options).run();
+        }
+        report.print(System.out);
+        if (options.getOut() != null) {
+            File out = new File(options.getOut());
+            if (out.getParentFile() != null) {
+                out.getParentFile().mkdirs();
+            }
+            new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(out, report);
+            System.out.println("Report written to " + out);
+        }
+    }
+}
+
+@Data
+public class LoadHarnessOptions {
+    private double rate = 50;
+    private int durationSeconds = 60;
+    private int warmupSeconds = 10;
+    private int maxInFlight = 500;
+    private int poolSize = 10;
+    private double rejectRatio = 0.5;
+    private long thinkTimeMs = 0;
+    private int maxRetries = 5;
+    private String out;
+    @JsonIgnore
+    private List<String> applicationProperties = new ArrayList<>();
+
+    static LoadHarnessOptions parse(String[] args) {
+        LoadHarnessOptions options = new LoadHarnessOptions();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected --key=value, got " + arg);
+            }
+            String key = arg.substring(2, separator);
+            String value = arg.substring(separator + 1);
+            switch (key) {
+                case "rate": options.setRate(Double.parseDouble(value)); break;
+                case "duration-seconds": options.setDurationSeconds(Integer.parseInt(value)); break;
+                case "warmup-seconds": options.setWarmupSeconds(Integer.parseInt(value)); break;
+                case "max-in-flight": options.setMaxInFlight(Integer.parseInt(value)); break;
+                case "pool-size": options.setPoolSize(Integer.parseInt(value)); break;
+                case "reject-ratio": options.setRejectRatio(Double.parseDouble(value)); break;
+                case "think-time-ms": options.setThinkTimeMs(Long.parseLong(value)); break;
+                case "max-retries": options.setMaxRetries(Integer.parseInt(value)); break;
+                case "out": options.setOut(value); break;
+                default: options.getApplicationProperties().add(key + "=" + value);
+            }
+        }
+        if (options.getRate() <= 0 || options.getMaxInFlight() <= 0) {
+            throw new IllegalArgumentException("rate and max-in-flight must be positive");
+        }
+        return options;
+    }
+}
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class LatencyPercentiles {
+    private long count;
+    private double meanMs;
+    private double p50Ms;
+    private double p90Ms;
+    private double p99Ms;
+    private double p999Ms;
+    private double maxMs;
+
+    // The histogram records microseconds
+    static LatencyPercentiles of(LatencyHistogram histogram) {
+        return new LatencyPercentiles(histogram.getCount(),
+                histogram.getMean() / 1000.0,
+                histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(90) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMax() / 1000.0);
+    }
+}
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CommandStatements {
+    private long commands;
+    private double statementsPerCommand;
+}
+
+@Data
+public class LoadReport {
+    private LoadHarnessOptions options;
+    private double elapsedSeconds;
+    private long started;
+    private long completed;
+    private long approved;
+    private long rejected;
+    private long failed;
+    private long optimisticLockRetries;
+    private double throughputPerSecond;
+    private Map<String, LatencyPercentiles> latency = new LinkedHashMap<>();
+    private long statements;
+    private double statementsPerInstance;
+    private Map<String, CommandStatements> commandStatements = new TreeMap<>();
+
+    void print(PrintStream out) {
+        out.printf("%nInstances: %d started, %d completed (%d approved, %d rejected), %d failed in %.1f s%n",
+                started, completed, approved, rejected, failed, elapsedSeconds);
+        out.printf("Throughput: %.1f instances/s (target %.1f)%n", throughputPerSecond, options.getRate());
+        out.printf("Optimistic-lock retries: %d%n", optimisticLockRetries);
+        out.printf("%nLatency (ms)      %8s %9s %9s %9s %9s %9s %9s%n",
+                "count", "mean", "p50", "p90", "p99", "p99.9", "max");
+        latency.forEach((name, p) -> out.printf("  %-15s %8d %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n", name,
+                p.getCount(), p.getMeanMs(), p.getP50Ms(), p.getP90Ms(), p.getP99Ms(), p.getP999Ms(), p.getMaxMs()));
+        out.printf("%nJDBC statements: %d, %.1f per instance%n", statements, statementsPerInstance);
+        commandStatements.forEach((command, s) -> out.printf("  %-45s %8d commands %7.1f statements each%n",
+                command, s.getCommands(), s.getStatementsPerCommand()));
+    }
+}
+
+// One harness run against a started application context
+@Slf4j
+class WorkflowLoadRun {
+
+    private static final String PROCESS_KEY = BenchmarkApplication.APPROVAL_PROCESS_KEY;
+
+    private final WorkflowController controller;
+    private final MeterRegistry meterRegistry;
+    private final LoadHarnessOptions options;
+    private String processDefinitionId;
+
+    WorkflowLoadRun(ConfigurableApplicationContext context, LoadHarnessOptions options) {
+        this.controller = context.getBean(WorkflowController.class);
+        this.meterRegistry = context.getBean(MeterRegistry.class);
+        this.options = options;
+    }
+
+    LoadReport run() {
+        deploy();
+        if (options.getWarmupSeconds() > 0) {
+            runPhase(options.getWarmupSeconds(), new PhaseStats());
+        }
+
+        long statementsBefore = HandlerInstrumentation.totalStatements();
+        Map<String, double[]> commandsBefore = commandStatements();
+        PhaseStats stats = new PhaseStats();
+        long elapsedNanos = runPhase(options.getDurationSeconds(), stats);
+        long statements = HandlerInstrumentation.totalStatements() - statementsBefore;
+        Map<String, double[]> commandsAfter = commandStatements();
+
+        LoadReport report = new LoadReport();
+        report.setOptions(options);
+        report.setElapsedSeconds(elapsedNanos / 1e9);
+        report.setStarted(stats.started.sum());
+        report.setCompleted(stats.completed.sum());
+        report.setApproved(stats.approved.sum());
+        report.setRejected(stats.rejected.sum());
+        report.setFailed(stats.failed.sum());
+        report.setOptimisticLockRetries(stats.retries.sum());
+        report.setThroughputPerSecond(stats.completed.sum() / report.getElapsedSeconds());
+        report.getLatency().put("start", LatencyPercentiles.of(stats.start));
+        report.getLatency().put("active-tasks", LatencyPercentiles.of(stats.activeTasks));
+        report.getLatency().put("complete", LatencyPercentiles.of(stats.complete));
+        report.getLatency().put("end-to-end", LatencyPercentiles.of(stats.endToEnd));
+        report.setStatements(statements);
+        report.setStatementsPerInstance(stats.completed.sum() > 0 ? (double) statements / stats.completed.sum() : 0);
+        commandsAfter.forEach((command, after) -> {
+            double[] before = commandsBefore.getOrDefault(command, new double[2]);
+            long count = (long) (after[0] - before[0]);
+            if (count > 0) {
+                report.getCommandStatements().put(command, new CommandStatements(count, (after[1] - before[1]) / count));
+            }
+        });
+        return report;
+    }
+
+    private void deploy() {
+        WorkflowDeploymentRequest request = new WorkflowDeploymentRequest(
+                BenchmarkApplication.readApprovalBpmn(), "Approval Process", PROCESS_KEY, variables(0));
+        WorkflowDeploymentResponse response = controller.deployAndStartProcess(request).getBody();
+        if (response == null || !response.isSuccess()) {
+            throw new IllegalStateException("Deployment failed: " + (response != null ? response.getErrorMessage() : "no response"));
+        }
+        processDefinitionId = response.getProcessDefinitionId();
+        // Finish the instance the deployment started so it does not linger as an open task
+        completeOpenTask(response.getProcessInstanceId(), false, new PhaseStats());
+    }
+
+    // Returns the elapsed time until the last instance of the phase finished
+    private long runPhase(int seconds, PhaseStats stats) {
+        long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / options.getRate());
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        Semaphore inFlight = new Semaphore(options.getMaxInFlight());
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (long i = 0; ; i++) {
+                long due = start + i * periodNanos;
+                if (due >= end) {
+                    break;
+                }
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                inFlight.acquireUninterruptibly();
+                boolean reject = ThreadLocalRandom.current().nextDouble() < options.getRejectRatio();
+                long instance = i;
+                clients.execute(() -> {
+                    try {
+                        runInstance(instance, due, reject, stats);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private void runInstance(long instance, long due, boolean reject, PhaseStats stats) {
+        try {
+            WorkflowDeploymentResponse started = call(stats.start, stats,
+                    () -> controller.startProcess(processDefinitionId, variables(instance)));
+            if (started == null || !started.isSuccess()) {
+                stats.failed.increment();
+                return;
+            }
+            stats.started.increment();
+            if (options.getThinkTimeMs() > 0) {
+                Thread.sleep(options.getThinkTimeMs());
+            }
+            if (!completeOpenTask(started.getProcessInstanceId(), reject, stats)) {
+                stats.failed.increment();
+                return;
+            }
+            stats.endToEnd.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due));
+            stats.completed.increment();
+            (reject ? stats.rejected : stats.approved).increment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            log.warn("Instance {} failed: {}", instance, e.toString());
+            stats.failed.increment();
+        }
+    }
+
+    private boolean completeOpenTask(String processInstanceId, boolean reject, PhaseStats stats) {
+        List<Map<String, Object>> tasks = call(stats.activeTasks, stats, () -> controller.getActiveTasks(processInstanceId));
+        if (tasks == null || tasks.isEmpty()) {
+            return false;
+        }
+        String taskId = (String) tasks.get(0).get("id");
+        Map<String, Object> decision = new HashMap<>();
+        decision.put("approvalStatus", reject ? "rejected" : "approved");
+        decision.put("approved", !reject);
+        decision.put("approver", "load.approver");
+        ResponseEntity<Void> completed = exchange(stats.complete, stats, () -> controller.completeTask(taskId, decision));
+        return completed.getStatusCode().is2xxSuccessful();
+    }
+
+    private <T> T call(LatencyHistogram latency, PhaseStats stats, Supplier<ResponseEntity<T>> request) {
+        ResponseEntity<T> response = exchange(latency, stats, request);
+        return response.getStatusCode().is2xxSuccessful() ? response.getBody() : null;
+    }
+
+    // Records each attempt and retries a conflict, like a client of the REST API would
+    private <T> ResponseEntity<T> exchange(LatencyHistogram latency, PhaseStats stats, Supplier<ResponseEntity<T>> request) {
+        for (int attempt = 0; ; attempt++) {
+            long started = System.nanoTime();
+            ResponseEntity<T> response = request.get();
+            latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started));
+            if (response.getStatusCode() != HttpStatus.CONFLICT || attempt >= options.getMaxRetries()) {
+                return response;
+            }
+            stats.retries.increment();
+        }
+    }
+
+    private Map<String, Object> variables(long instance) {
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("department", instance % 2 == 0 ? "finance" : "hr");
+        variables.put("priority", instance % 10 == 0 ? "high" : "normal");
+        variables.put("processOwner", "load.owner");
+        variables.put("requestId", "load-" + instance);
+        return variables;
+    }
+
+    // command -> {count, total statements}
+    private Map<String, double[]> commandStatements() {
+        Map<String, double[]> result = new HashMap<>();
+        for (DistributionSummary summary : meterRegistry.find("workflow.command.statements").summaries()) {
+            result.put(summary.getId().getTag("command"), new double[] {summary.count(), summary.totalAmount()});
+        }
+        return result;
+    }
+
+    private static class PhaseStats {
+        // Microseconds
+        final LatencyHistogram start = new LatencyHistogram();
+        final LatencyHistogram activeTasks = new LatencyHistogram();
+        final LatencyHistogram complete = new LatencyHistogram();
+        final LatencyHistogram endToEnd = new LatencyHistogram();
+        final LongAdder started = new LongAdder();
+        final LongAdder completed = new LongAdder();
+        final LongAdder approved = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder retries = new LongAdder();
+    }
+}
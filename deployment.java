@@ -71,6 +71,47 @@ public class WorkflowController {
         }
     }
     
+    @PostMapping("/process-definition/{id}/start")
+    public ResponseEntity<WorkflowDeploymentResponse> startProcess(
+            @PathVariable String id, @RequestBody(required = false) Map<String, Object> variables) {
+        
+        try {
+            return ResponseEntity.ok(workflowService.startProcess(id, variables));
+        } catch (OptimisticLockingException e) {
+            // Nothing was written, the client may retry
+            log.debug("Concurrent modification starting process {}", id);
+            WorkflowDeploymentResponse conflictResponse = new WorkflowDeploymentResponse();
+            conflictResponse.setSuccess(false);
+            conflictResponse.setErrorMessage("Concurrent modification: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(conflictResponse);
+        } catch (Exception e) {
+            log.error("Error starting process", e);
+            WorkflowDeploymentResponse errorResponse = new WorkflowDeploymentResponse();
+            errorResponse.setSuccess(false);
+            errorResponse.setErrorMessage("Internal server error: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(errorResponse);
+        }
+    }
+    
+    @PostMapping("/tasks/{taskId}/complete")
+    public ResponseEntity<Void> completeTask(
+            @PathVariable String taskId, @RequestBody(required = false) Map<String, Object> variables) {
+        
+        try {
+            workflowService.completeTask(taskId, variables);
+            return ResponseEntity.ok().build();
+        } catch (OptimisticLockingException e) {
+            // Another command changed the instance first, the client may retry
+            log.debug("Concurrent modification completing task {}", taskId);
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        } catch (NotFoundException e) {
+            return ResponseEntity.notFound().build();
+        } catch (Exception e) {
+            log.error("Error completing task", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+    
     @GetMapping("/process-instance/{id}")
     public ResponseEntity<Map<String, Object>> getProcessInstanceDetails(@PathVariable String id) {
         try {
@@ -168,6 +209,24 @@ public class WorkflowService {
         return response;
     }
     
+    // Starts an instance of an already deployed definition; engine exceptions propagate
+    // so the caller can tell a concurrent modification from a failure
+    public WorkflowDeploymentResponse startProcess(String processDefinitionId, Map<String, Object> variables) {
+        Map<String, Object> processVariables = variables != null ? variables : new HashMap<>();
+        ProcessInstance processInstance = runtimeService.startProcessInstanceById(processDefinitionId, processVariables);
+        
+        WorkflowDeploymentResponse response = new WorkflowDeploymentResponse();
+        response.setProcessDefinitionId(processDefinitionId);
+        response.setProcessInstanceId(processInstance.getId());
+        response.setProcessVariables(processVariables);
+        response.setSuccess(true);
+        return response;
+    }
+    
+    public void completeTask(String taskId, Map<String, Object> variables) {
+        taskService.complete(taskId, variables != null ? variables : new HashMap<>());
+    }
+    
     public Map<String, Object> getProcessInstanceDetails(String processInstanceId) {
         Map<String, Object> details = new HashMap<>();
         